@@ -4,13 +4,21 @@ import net.benmann.evald.MultiEvald;
 import net.benmann.evald.Evald;
 import net.benmann.evald.Library;
 import net.sothatsit.evaluate.benchmark.Benchmark;
-import net.sothatsit.evaluate.compiler.CompiledExpression;
-import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.cache.SpecialisationCache;
+import net.sothatsit.evaluate.compiler.*;
+import net.sothatsit.evaluate.compiler.vector.VectorCompiler;
 import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.optimiser.PrecisionPolicy;
 import net.sothatsit.evaluate.parser.ExpressionParser;
 import net.sothatsit.evaluate.tree.Expression;
 import net.sothatsit.evaluate.tree.function.MathFunctions;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
 public class Evaluate {
 
     public static void main(String[] args) {
@@ -18,6 +26,472 @@ public class Evaluate {
 
         //checkEquivalence(equation);
         //benchmark(equation, 100, 1_000_000);
+        //benchmarkStartup(10_000);
+        //benchmarkVector("sqrt(a * a + b * b) * c + (a - b) / (c + 2)", 100, 1_000_000);
+        //benchmarkPrecisionPolicy("((((0.3 * a + 1.2) * a - 0.7) * a + 2.1) * a - 1.1) * a + b * c + 0.5", 100, 1_000_000);
+        //benchmarkSpecialisation("x * sqrt(k1 * k1 + k2) / (1 + k2 ^ 2) + ln(k1) * y", 100, 1_000_000);
+        //benchmarkGradient("sin(a * b) * cosh(c) + a / (1 + b * b) + sqrt(a * a + c * c)", 100, 100_000);
+        //benchmarkIncremental(40, 50, 100, 10_000);
+        //benchmarkOutputSelection(8, 50, 100, 10_000);
+    }
+
+    /**
+     * Compare the time taken to evaluate every one of {@param outputCount} outputs over {@param inputCount} inputs,
+     * against evaluating only a few selected outputs, for {@param evaluations} evaluations.
+     */
+    public static void benchmarkOutputSelection(int inputCount, int outputCount, int trials, int evaluations) {
+        ExpressionParser parser = new ExpressionParser();
+        for(int index = 0; index < inputCount; ++index) {
+            parser.addArgument("v" + index);
+        }
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        {
+            Random random = new Random(42);
+            for(int index = 0; index < outputCount; ++index) {
+                String a = "v" + random.nextInt(inputCount);
+                String b = "v" + random.nextInt(inputCount);
+                String c = "v" + random.nextInt(inputCount);
+
+                compiler.addOutput(parser.parse("sin(" + a + " * " + b + ") + sqrt(" + b + " * " + b + " + " + c + ") * " + a));
+            }
+        }
+
+        CompiledExpression compiled = compiler.compile();
+        {
+            Random random = new Random(42);
+            for(int index = 0; index < inputCount; ++index) {
+                compiled.setVariable(index, random.nextDouble());
+            }
+        }
+
+        Benchmark benchmark = new Benchmark();
+
+        benchmark.addTestCase("all outputs", () -> {
+            for(int evaluation = 0; evaluation < evaluations; ++evaluation) {
+                compiled.evaluate();
+            }
+            blackhole(compiled.outputs);
+        });
+
+        for(int selected : new int[] {1, 5, 20}) {
+            if(selected > outputCount)
+                continue;
+
+            long outputMask = (1L << selected) - 1;
+
+            benchmark.addTestCase(selected + " selected", () -> {
+                for(int evaluation = 0; evaluation < evaluations; ++evaluation) {
+                    compiled.evaluate(outputMask);
+                }
+                blackhole(compiled.outputs);
+            });
+        }
+
+        System.out.println();
+        System.out.println("Running " + trials + " trials of " + evaluations + " evaluations...");
+        System.out.println();
+
+        benchmark.warmup();
+        benchmark.runTrials(trials);
+
+        System.out.print(benchmark.toString());
+    }
+
+    /**
+     * Compare the time taken to re-evaluate {@param outputCount} outputs, which each depend on a few of
+     * {@param inputCount} inputs, after changing some of the inputs, when recomputing every output against
+     * only recomputing the outputs affected by the changed inputs. This is measured for {@param updates}
+     * updates at a range of numbers of inputs changed per update.
+     */
+    public static void benchmarkIncremental(int inputCount, int outputCount, int trials, int updates) {
+        ExpressionParser parser = new ExpressionParser();
+        for(int index = 0; index < inputCount; ++index) {
+            parser.addArgument("v" + index);
+        }
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        {
+            Random random = new Random(42);
+            for(int index = 0; index < outputCount; ++index) {
+                String a = "v" + random.nextInt(inputCount);
+                String b = "v" + random.nextInt(inputCount);
+                String c = "v" + random.nextInt(inputCount);
+
+                compiler.addOutput(parser.parse("sin(" + a + " * " + b + ") + sqrt(" + b + " * " + b + " + " + c + ") * " + a));
+            }
+        }
+
+        CompiledExpression full = compiler.compile();
+        CompiledIncrementalExpression incremental = compiler.compileIncremental();
+
+        Benchmark benchmark = new Benchmark();
+
+        for(int changes : new int[] {1, 2, 5, 10, 20, inputCount}) {
+            if(changes > inputCount)
+                continue;
+
+            int[] changedInputs = new int[updates * changes];
+            double[] changedValues = new double[updates * changes];
+            {
+                Random random = new Random(changes);
+                for(int index = 0; index < changedInputs.length; ++index) {
+                    changedInputs[index] = random.nextInt(inputCount);
+                    changedValues[index] = random.nextDouble();
+                }
+            }
+
+            benchmark.addTestCase("full, " + changes + " changed", () -> {
+                for(int index = 0; index < changedInputs.length; index += changes) {
+                    for(int change = index; change < index + changes; ++change) {
+                        full.setVariable(changedInputs[change], changedValues[change]);
+                    }
+                    full.evaluate();
+                }
+                blackhole(full.outputs);
+            });
+
+            benchmark.addTestCase("incremental, " + changes + " changed", () -> {
+                for(int index = 0; index < changedInputs.length; index += changes) {
+                    for(int change = index; change < index + changes; ++change) {
+                        incremental.setVariable(changedInputs[change], changedValues[change]);
+                    }
+                    incremental.evaluate();
+                }
+                blackhole(incremental.outputs);
+            });
+        }
+
+        System.out.println();
+        System.out.println("Running " + trials + " trials of " + updates + " updates...");
+        System.out.println();
+
+        benchmark.warmup();
+        benchmark.runTrials(trials);
+
+        System.out.print(benchmark.toString());
+    }
+
+    /**
+     * Compare the time taken to compute the value and gradient of {@param equation}, which has the
+     * inputs a, b and c, at {@param points} points using the symbolic gradient, against estimating
+     * the gradient with central finite differences.
+     */
+    public static void benchmarkGradient(String equation, int trials, int points) {
+        ExpressionParser parser = new ExpressionParser();
+
+        parser.addArgument("a");
+        parser.addArgument("b");
+        parser.addArgument("c");
+
+        Expression expression = parser.parse(equation);
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+        CompiledGradientExpression compiled = compiler.compileGradient();
+
+        double[] inputs = new double[3 * points];
+        {
+            Random random = new Random(42);
+            for(int index = 0; index < inputs.length; ++index) {
+                inputs[index] = random.nextDouble();
+            }
+        }
+
+        double[] outputs = new double[1];
+        double[] gradients = new double[3];
+
+        Benchmark benchmark = new Benchmark();
+
+        benchmark.addTestCase("symbolic", () -> {
+            for(int point = 0; point < points; ++point) {
+                compiled.evaluateGradient(inputs, 3 * point, outputs, 0, gradients, 0);
+            }
+            blackhole(gradients);
+        });
+
+        benchmark.addTestCase("finite differences", () -> {
+            double[] shifted = new double[3];
+            double[] above = new double[1];
+            double[] below = new double[1];
+            double step = 1e-6;
+
+            for(int point = 0; point < points; ++point) {
+                compiled.evaluate(inputs, 3 * point, outputs, 0);
+
+                for(int input = 0; input < 3; ++input) {
+                    System.arraycopy(inputs, 3 * point, shifted, 0, 3);
+
+                    shifted[input] += step;
+                    compiled.evaluate(shifted, 0, above, 0);
+
+                    shifted[input] -= 2 * step;
+                    compiled.evaluate(shifted, 0, below, 0);
+
+                    gradients[input] = (above[0] - below[0]) / (2 * step);
+                }
+            }
+            blackhole(gradients);
+        });
+
+        System.out.println();
+        System.out.println("Running " + trials + " trials over " + points + " points...");
+        System.out.println();
+
+        benchmark.warmup();
+        benchmark.runTrials(trials);
+
+        System.out.print(benchmark.toString());
+    }
+
+    /**
+     * Compare the throughput of evaluating {@param equation}, which has the inputs x, y, k1 and k2, over
+     * columns of {@param rows} rows, against a specialisation of it with k1 and k2 bound to constants.
+     */
+    public static void benchmarkSpecialisation(String equation, int trials, int rows) {
+        ExpressionParser parser = new ExpressionParser();
+
+        parser.addArgument("x");
+        parser.addArgument("y");
+        parser.addArgument("k1");
+        parser.addArgument("k2");
+
+        Expression expression = parser.parse(equation);
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+        CompiledExpression general = compiler.compile();
+
+        SpecialisationCache specialisations = new SpecialisationCache(expression, new int[] {2, 3}, 1_000_000);
+        CompiledExpression specialised = specialisations.compile(1.5, 2.5);
+
+        System.out.println("General: " + expression);
+        System.out.println("Specialised: " + expression.bind("k1", 1.5).bind("k2", 2.5));
+
+        double[][] inputColumns = new double[4][rows];
+        {
+            Random random = new Random(42);
+            for(int row = 0; row < rows; ++row) {
+                inputColumns[0][row] = random.nextDouble();
+                inputColumns[1][row] = random.nextDouble();
+                inputColumns[2][row] = 1.5;
+                inputColumns[3][row] = 2.5;
+            }
+        }
+
+        double[][] generalOutputs = new double[1][rows];
+        double[][] specialisedOutputs = new double[1][rows];
+
+        Benchmark benchmark = new Benchmark();
+
+        benchmark.addTestCase("general", () -> general.evaluateBatch(inputColumns, generalOutputs, 0, rows));
+        benchmark.addTestCase("specialised", () -> specialised.evaluateBatch(inputColumns, specialisedOutputs, 0, rows));
+
+        System.out.println();
+        System.out.println("Running " + trials + " trials over " + rows + " rows...");
+        System.out.println();
+
+        benchmark.warmup();
+        benchmark.runTrials(trials);
+
+        System.out.print(benchmark.toString());
+
+        blackhole(generalOutputs);
+        blackhole(specialisedOutputs);
+    }
+
+    /**
+     * Compare the throughput of evaluating the polynomial-shaped {@param equation} over columns of {@param rows}
+     * rows when optimised under {@link PrecisionPolicy#STRICT}, against {@link PrecisionPolicy#RELAXED},
+     * which fuses its multiplications and additions.
+     */
+    public static void benchmarkPrecisionPolicy(String equation, int trials, int rows) {
+        double[][] inputColumns = new double[3][rows];
+        {
+            Random random = new Random(42);
+            for(double[] column : inputColumns) {
+                for(int row = 0; row < rows; ++row) {
+                    column[row] = random.nextDouble();
+                }
+            }
+        }
+
+        Benchmark benchmark = new Benchmark();
+
+        for(PrecisionPolicy policy : PrecisionPolicy.values()) {
+            ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all(policy));
+
+            parser.addArgument("a");
+            parser.addArgument("b");
+            parser.addArgument("c");
+
+            Expression expression = parser.parse(equation);
+            System.out.println(policy + ": " + expression);
+
+            ExpressionCompiler compiler = new ExpressionCompiler();
+            compiler.addOutput(expression);
+            CompiledExpression compiled = compiler.compile();
+
+            double[][] outputColumns = new double[1][rows];
+
+            benchmark.addTestCase(policy.name().toLowerCase(), () -> {
+                compiled.evaluateBatch(inputColumns, outputColumns, 0, rows);
+                blackhole(outputColumns);
+            });
+        }
+
+        System.out.println();
+        System.out.println("Running " + trials + " trials over " + rows + " rows...");
+        System.out.println();
+
+        benchmark.warmup();
+        benchmark.runTrials(trials);
+
+        System.out.print(benchmark.toString());
+    }
+
+    /**
+     * Compare the throughput of evaluating {@param equation} over columns of {@param rows} rows using the
+     * scalar compiled expression, against the vectorised expression. The JVM must be started with
+     * {@code --add-modules jdk.incubator.vector} for the vectorised expression to be used.
+     */
+    public static void benchmarkVector(String equation, int trials, int rows) {
+        ExpressionParser parser = new ExpressionParser();
+
+        parser.addArgument("a");
+        parser.addArgument("b");
+        parser.addArgument("c");
+
+        Expression expression = parser.parse(equation);
+
+        double[][] inputColumns = new double[3][rows];
+        {
+            Random random = new Random(42);
+            for(double[] column : inputColumns) {
+                for(int row = 0; row < rows; ++row) {
+                    column[row] = random.nextDouble();
+                }
+            }
+        }
+
+        double[][] scalarOutputs = new double[1][rows];
+        double[][] vectorOutputs = new double[1][rows];
+
+        ExpressionCompiler scalarCompiler = new ExpressionCompiler();
+        scalarCompiler.addOutput(expression);
+        CompiledExpression scalar = scalarCompiler.compile();
+
+        VectorCompiler vectorCompiler = new VectorCompiler();
+        vectorCompiler.addOutput(expression);
+        CompiledExpression vector = vectorCompiler.compile();
+
+        if(!VectorCompiler.isSupported()) {
+            System.out.println("The Vector API is not available, so both test cases are scalar");
+        }
+
+        System.out.println();
+        System.out.println("Running " + trials + " trials over " + rows + " rows...");
+        System.out.println();
+
+        Benchmark benchmark = new Benchmark();
+
+        benchmark.addTestCase("scalar", () -> scalar.evaluateBatch(inputColumns, scalarOutputs, 0, rows));
+        benchmark.addTestCase("vector", () -> vector.evaluateBatch(inputColumns, vectorOutputs, 0, rows));
+
+        benchmark.warmup();
+        benchmark.runTrials(trials);
+
+        System.out.print(benchmark.toString());
+
+        blackhole(scalarOutputs);
+        blackhole(vectorOutputs);
+    }
+
+    /**
+     * Compare the time taken to parse and compile {@param expressionCount} random
+     * expressions one at a time, against compiling them in parallel with a {@link BulkCompiler}.
+     */
+    public static void benchmarkStartup(int expressionCount) {
+        Supplier<ExpressionParser> parserFactory = () -> {
+            ExpressionParser parser = new ExpressionParser();
+
+            parser.addArgument("a");
+            parser.addArgument("b");
+            parser.addArgument("c");
+
+            return parser;
+        };
+
+        List<String> corpus = new ArrayList<>();
+        {
+            Random random = new Random(42);
+            for(int index = 0; index < expressionCount; ++index) {
+                corpus.add(randomEquation(random, 5));
+            }
+        }
+
+        // Warm up the parser and compiler so that the comparison is not dominated by JIT compilation
+        new BulkCompiler(parserFactory).compileAll(corpus.subList(0, Math.min(1_000, corpus.size())));
+
+        double sequentialMs;
+        {
+            long start = System.nanoTime();
+
+            ExpressionParser parser = parserFactory.get();
+            ExpressionLoader loader = new ExpressionLoader();
+
+            List<CompiledExpression> compiled = new ArrayList<>();
+            for(String equation : corpus) {
+                ExpressionCompiler compiler = new ExpressionCompiler(ClassIsolation.SHARED, loader);
+
+                compiler.addOutput(parser.parse(equation));
+                compiled.add(compiler.compile());
+            }
+
+            long end = System.nanoTime();
+            sequentialMs = (end - start) / 1_000_000d;
+
+            blackhole(compiled);
+        }
+
+        double parallelMs;
+        {
+            long start = System.nanoTime();
+
+            List<CompiledExpression> compiled = new BulkCompiler(parserFactory).compileAll(corpus);
+
+            long end = System.nanoTime();
+            parallelMs = (end - start) / 1_000_000d;
+
+            blackhole(compiled);
+        }
+
+        System.out.println("Sequentially compiled " + expressionCount + " expressions in " + sequentialMs + "ms");
+        System.out.println("Bulk compiled " + expressionCount + " expressions in " + parallelMs + "ms"
+                           + " on " + ForkJoinPool.commonPool().getParallelism() + " threads"
+                           + " (" + (sequentialMs / parallelMs) + "x faster)");
+    }
+
+    private static String randomEquation(Random random, int depth) {
+        if(depth == 0 || random.nextInt(4) == 0) {
+            switch(random.nextInt(4)) {
+                case 0: return "a";
+                case 1: return "b";
+                case 2: return "c";
+                default: return Integer.toString(1 + random.nextInt(9));
+            }
+        }
+
+        switch(random.nextInt(7)) {
+            case 0: return "sin(" + randomEquation(random, depth - 1) + ")";
+            case 1: return "sqrt(" + randomEquation(random, depth - 1) + ")";
+            case 2: return "(" + randomEquation(random, depth - 1) + " + " + randomEquation(random, depth - 1) + ")";
+            case 3: return "(" + randomEquation(random, depth - 1) + " - " + randomEquation(random, depth - 1) + ")";
+            case 4: return "(" + randomEquation(random, depth - 1) + " * " + randomEquation(random, depth - 1) + ")";
+            case 5: return "(" + randomEquation(random, depth - 1) + " / " + randomEquation(random, depth - 1) + ")";
+            default: return "if(" + randomEquation(random, depth - 1) + " < " + randomEquation(random, depth - 1)
+                            + ", " + randomEquation(random, depth - 1) + ", " + randomEquation(random, depth - 1) + ")";
+        }
     }
 
     public static void benchmarkMultiStage(int trials, int operationsPerTrial) {
@@ -167,10 +641,12 @@ public class Evaluate {
             compiler.addOutput(outputOne);
             compiler.addOutput(outputTwo);
 
-            CompiledExpression expression = compiler.compile();
+            CompiledClass<CompiledExpression> compiled = compiler.compileClass();
+            CompiledExpression expression = compiled.newInstance();
 
             long end = System.nanoTime();
             System.out.println("Evaluate parsed expressions in " + ((end - start) / 1_000_000d) + "ms");
+            System.out.println("Evaluate generated " + compiled.getBytecodeSize() + " bytes of bytecode");
 
             testEvaluate = () -> {
                 final double[] outputs = new double[2];
@@ -221,7 +697,7 @@ public class Evaluate {
 
         benchmark.addTestCase("evald", testEvald);
         benchmark.addTestCase("multi-evald", testMultiEvald);
-        //benchmark.addTestCase("Evaluate", testEvaluate);
+        benchmark.addTestCase("Evaluate", testEvaluate);
         //benchmark.addTestCase("manual", testManual);
 
         benchmark.warmup();
@@ -22,30 +22,25 @@ public class PrefixTree<E> {
 
     private void add(String string, int index, E value) {
         if(index >= string.length())
-            throw new IllegalArgumentException("This tree already contains the prefix \"" + string + "\"");
+            throw new IllegalArgumentException("Cannot add an empty prefix to this tree");
 
         char ch = string.charAt(index);
-        E existing = values.get(ch);
 
-        if(existing != null) {
-            throw new IllegalArgumentException("A value for the prefix \"" + string.substring(0, index + 1) + "\"" +
-                                               " already exists in this tree");
-        }
-
-        PrefixTree<E> subTree = subTrees.get(ch);
+        if(index == string.length() - 1) {
+            if(values.containsKey(ch))
+                throw new IllegalArgumentException("This tree already contains the prefix \"" + string + "\"");
 
-        if(subTree != null) {
-            subTree.add(string, index + 1, value);
+            values.put(ch, value);
             return;
         }
 
-        if(index == string.length() - 1) {
-            values.put(ch, value);
-        } else {
+        PrefixTree<E> subTree = subTrees.get(ch);
+
+        if(subTree == null) {
             subTree = new PrefixTree<>();
             subTrees.put(ch, subTree);
-
-            subTree.add(string, index + 1, value);
         }
+
+        subTree.add(string, index + 1, value);
     }
 }
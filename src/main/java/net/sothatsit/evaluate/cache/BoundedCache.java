@@ -0,0 +1,134 @@
+package net.sothatsit.evaluate.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe cache that evicts its least recently used entries once
+ * the total weight of its entries exceeds a maximum weight.
+ *
+ * Values are computed outside of the cache's lock, so that slow computations do not block other
+ * callers. Two threads that miss on the same key at the same time may therefore both compute
+ * its value, although only the first value to be stored is ever returned.
+ */
+public class BoundedCache<K, V> {
+
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+
+    private final Map<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalWeight = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public BoundedCache(long maxWeight, ToLongFunction<V> weigher) {
+        if(maxWeight <= 0)
+            throw new IllegalArgumentException("maxWeight must be positive");
+
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Create a cache that holds at most {@param maxEntries} entries.
+     */
+    public static <K, V> BoundedCache<K, V> ofSize(long maxEntries) {
+        return new BoundedCache<>(maxEntries, value -> 1);
+    }
+
+    /**
+     * Get the value cached for {@param key}, or null if there is none.
+     */
+    public synchronized V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+
+        if(entry == null) {
+            missCount += 1;
+            return null;
+        }
+
+        hitCount += 1;
+        return entry.value;
+    }
+
+    /**
+     * Get the value cached for {@param key}, or compute it using {@param loader} and cache it.
+     */
+    public V get(K key, Supplier<V> loader) {
+        V value = getIfPresent(key);
+
+        if(value != null)
+            return value;
+
+        return putIfAbsent(key, loader.get());
+    }
+
+    /**
+     * Cache {@param value} for {@param key}, unless a value is already cached for it.
+     *
+     * @return The value that is cached for {@param key}.
+     */
+    public synchronized V putIfAbsent(K key, V value) {
+        Entry<V> existing = entries.get(key);
+
+        if(existing != null)
+            return existing.value;
+
+        long weight = weigher.applyAsLong(value);
+
+        if(weight < 0)
+            throw new IllegalArgumentException("Weight of value cannot be negative, " + weight);
+
+        entries.put(key, new Entry<>(value, weight));
+        totalWeight += weight;
+
+        evictToMaxWeight();
+
+        return value;
+    }
+
+    private void evictToMaxWeight() {
+        Iterator<Entry<V>> iterator = entries.values().iterator();
+
+        while(totalWeight > maxWeight && iterator.hasNext()) {
+            Entry<V> eldest = iterator.next();
+            iterator.remove();
+
+            totalWeight -= eldest.weight;
+            evictionCount += 1;
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        Entry<V> entry = entries.remove(key);
+
+        if(entry != null) {
+            totalWeight -= entry.weight;
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    public synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hitCount, missCount, evictionCount, entries.size(), totalWeight);
+    }
+
+    private static class Entry<V> {
+
+        public final V value;
+        public final long weight;
+
+        public Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
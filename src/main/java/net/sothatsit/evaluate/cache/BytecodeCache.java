@@ -0,0 +1,384 @@
+package net.sothatsit.evaluate.cache;
+
+import net.sothatsit.evaluate.compiler.ClassIsolation;
+import net.sothatsit.evaluate.compiler.CompiledClass;
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.compiler.ExpressionLoader;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.function.Function;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A persistent cache of compiled classes, stored as files in a directory.
+ *
+ * Each entry holds the bytecode of a class, along with the metadata needed to construct it. Entries
+ * are written asynchronously to a temporary file, which is then atomically renamed into place, so a
+ * crash can never leave a partially written entry. Entries that are corrupt, that were written by
+ * a different version of this library, or that use functions that are no longer available,
+ * are deleted when they are read.
+ *
+ * The key of each entry includes the configuration of the parser it was parsed with, so that changing
+ * a constant, function, operator, number type or optimiser gives a new key, instead of restoring the
+ * class compiled for the previous configuration. Entries for previous configurations are never read
+ * again, and can be removed by deleting the directory.
+ */
+public class BytecodeCache implements Closeable {
+
+    public static final String LIBRARY_VERSION = "1.0";
+
+    /**
+     * Must be incremented whenever the format of the entries or the shape of the generated classes change.
+     */
+    public static final int FORMAT_VERSION = 4;
+
+    private static final int MAGIC = 0x45564C43;
+    private static final String EXTENSION = ".evc";
+
+    private final Path directory;
+    private final ExecutorService writer;
+    private final AtomicLong writeFailureCount = new AtomicLong();
+
+    public BytecodeCache(Path directory) throws IOException {
+        this.directory = directory;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BytecodeCache writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Files.createDirectories(directory);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Create the key used to store the expression {@param source} with the input variables {@param arguments},
+     * when parsed by a parser with the configuration of {@param parser}.
+     */
+    public static String createKey(String source, List<String> arguments, ExpressionParser parser) {
+        StringBuilder key = new StringBuilder();
+
+        key.append(LIBRARY_VERSION).append('\0').append(FORMAT_VERSION).append('\0').append(source);
+
+        for(String argument : arguments) {
+            key.append('\0').append(argument);
+        }
+
+        key.append('\0').append(parser.getConfiguration());
+
+        return key.toString();
+    }
+
+    private Path getPath(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder name = new StringBuilder();
+            for(byte b : hash) {
+                name.append(String.format("%02x", b & 0xFF));
+            }
+
+            return directory.resolve(name.append(EXTENSION).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Load the class stored under {@param key}, resolving the functions it uses from {@param parser}.
+     * {@param key} should be created from the configuration of {@param parser}, so that the functions
+     * found by name are those that the class was compiled with.
+     *
+     * @return The loaded class, or null if there is no valid entry for {@param key}.
+     */
+    public CompiledClass<CompiledExpression> load(String key, ExpressionParser parser, ClassIsolation isolation) {
+        return load(key, parser, isolation, null);
+    }
+
+    /**
+     * Load the class stored under {@param key}, resolving the functions it uses from {@param parser}.
+     *
+     * @param loader The loader that the class is defined in when {@param isolation} is {@link ClassIsolation#SHARED},
+     *               so that many restored classes share a single loader. If null, the class is defined in a new loader.
+     * @return The loaded class, or null if there is no valid entry for {@param key}.
+     */
+    public CompiledClass<CompiledExpression> load(String key, ExpressionParser parser,
+                                                  ClassIsolation isolation, ExpressionLoader loader) {
+        Path path = getPath(key);
+
+        if(!Files.exists(path))
+            return null;
+
+        try {
+            Entry entry = read(path);
+
+            if(entry == null || !entry.key.equals(key)) {
+                delete(path);
+                return null;
+            }
+
+            List<Function> functions = new ArrayList<>();
+            for(String name : entry.functionNames) {
+                Function function = parser.getFunction(name);
+
+                if(function == null) {
+                    delete(path);
+                    return null;
+                }
+
+                functions.add(function);
+            }
+
+            return ExpressionCompiler.define(
+                    isolation, loader, entry.className, functions,
+                    entry.inputCount, entry.outputCount, entry.bytecode
+            );
+        } catch (IOException | LinkageError e) {
+            delete(path);
+            return null;
+        }
+    }
+
+    /**
+     * Asynchronously store {@param compiled} under {@param key}.
+     *
+     * @return A future that completes once the entry is written, or fails with an {@link UncheckedIOException}
+     *         if it could not be written. A failure to write an entry does not affect the other entries,
+     *         and is counted by {@link #getWriteFailureCount()} for callers that do not wait on the future.
+     */
+    public Future<?> store(String key, CompiledClass<CompiledExpression> compiled) {
+        Path path = getPath(key);
+        Entry entry = new Entry(key, compiled);
+
+        return writer.submit(() -> {
+            try {
+                write(path, entry);
+            } catch (IOException e) {
+                writeFailureCount.incrementAndGet();
+                throw new UncheckedIOException("Unable to write " + path, e);
+            }
+        });
+    }
+
+    /**
+     * @return The number of entries that could not be written since this cache was created.
+     */
+    public long getWriteFailureCount() {
+        return writeFailureCount.get();
+    }
+
+    /**
+     * Wait for all pending writes to complete.
+     */
+    public void flush() throws InterruptedException {
+        try {
+            writer.submit(() -> {}).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Delete all entries in the cache directory that are corrupt or were written by a different version.
+     *
+     * @return The number of entries that were deleted.
+     */
+    public int purgeStale() throws IOException {
+        int deleted = 0;
+
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for(Path path : stream) {
+                Entry entry;
+
+                try {
+                    entry = read(path);
+                } catch (IOException e) {
+                    entry = null;
+                }
+
+                if(entry == null || !getPath(entry.key).equals(path)) {
+                    delete(path);
+                    deleted += 1;
+                }
+            }
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Another process may be using the entry, in which case we will retry next time it is read
+        }
+    }
+
+    private void write(Path path, Entry entry) throws IOException {
+        Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+
+        try {
+            try(OutputStream file = Files.newOutputStream(temporary)) {
+                CRC32 crc = new CRC32();
+                OutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), crc);
+                DataOutputStream out = new DataOutputStream(checked);
+
+                out.writeInt(MAGIC);
+                out.writeUTF(LIBRARY_VERSION);
+                out.writeInt(FORMAT_VERSION);
+                // Keys hold the whole source, and so may be too long to write using writeUTF
+                byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeUTF(entry.className);
+                out.writeInt(entry.inputCount);
+                out.writeInt(entry.outputCount);
+
+                out.writeInt(entry.functionNames.size());
+                for(String name : entry.functionNames) {
+                    out.writeUTF(name);
+                }
+
+                out.writeInt(entry.bytecode.length);
+                out.write(entry.bytecode);
+                out.flush();
+
+                // The checksum covers everything written before it
+                new DataOutputStream(file).writeLong(crc.getValue());
+            }
+
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * @return The entry stored in {@param path}, or null if it is corrupt or from a different version.
+     */
+    private static Entry read(Path path) throws IOException {
+        try(InputStream file = new BufferedInputStream(Files.newInputStream(path))) {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(file, crc));
+
+            if(in.readInt() != MAGIC)
+                return null;
+            if(!in.readUTF().equals(LIBRARY_VERSION) || in.readInt() != FORMAT_VERSION)
+                return null;
+
+            int keyLength = in.readInt();
+            if(keyLength < 0 || keyLength > Files.size(path))
+                return null;
+
+            byte[] keyBytes = new byte[keyLength];
+            in.readFully(keyBytes);
+
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            String className = in.readUTF();
+            int inputCount = in.readInt();
+            int outputCount = in.readInt();
+
+            int functionCount = in.readInt();
+            if(functionCount < 0)
+                return null;
+
+            List<String> functionNames = new ArrayList<>();
+            for(int index = 0; index < functionCount; ++index) {
+                functionNames.add(in.readUTF());
+            }
+
+            int length = in.readInt();
+            if(length < 0 || length > Files.size(path))
+                return null;
+
+            byte[] bytecode = new byte[length];
+            in.readFully(bytecode);
+
+            long expectedChecksum = crc.getValue();
+            long checksum = new DataInputStream(file).readLong();
+
+            if(checksum != expectedChecksum || file.read() != -1)
+                return null;
+
+            return new Entry(key, className, inputCount, outputCount, functionNames, bytecode);
+        } catch (EOFException | UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+
+        public final String key;
+        public final String className;
+        public final int inputCount;
+        public final int outputCount;
+        public final List<String> functionNames;
+        public final byte[] bytecode;
+
+        public Entry(String key, CompiledClass<CompiledExpression> compiled) {
+            String className = compiled.clazz.getName();
+
+            // Hidden classes have a suffix added to their name when they are defined
+            if(className.indexOf('/') >= 0) {
+                className = className.substring(0, className.indexOf('/'));
+            }
+
+            this.key = key;
+            this.className = className;
+            this.inputCount = compiled.inputCount;
+            this.outputCount = compiled.outputCount;
+            this.functionNames = new ArrayList<>();
+            this.bytecode = compiled.getBytecode();
+
+            for(Function function : compiled.functions) {
+                functionNames.add(function.getName());
+            }
+        }
+
+        public Entry(String key, String className, int inputCount, int outputCount,
+                     List<String> functionNames, byte[] bytecode) {
+
+            this.key = key;
+            this.className = className;
+            this.inputCount = inputCount;
+            this.outputCount = outputCount;
+            this.functionNames = functionNames;
+            this.bytecode = bytecode;
+        }
+    }
+}
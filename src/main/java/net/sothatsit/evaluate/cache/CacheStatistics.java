@@ -0,0 +1,37 @@
+package net.sothatsit.evaluate.cache;
+
+/**
+ * A snapshot of the statistics of a {@link BoundedCache}.
+ */
+public class CacheStatistics {
+
+    public final long hitCount;
+    public final long missCount;
+    public final long evictionCount;
+    public final int entryCount;
+    public final long totalWeight;
+
+    public CacheStatistics(long hitCount, long missCount, long evictionCount, int entryCount, long totalWeight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.entryCount = entryCount;
+        this.totalWeight = totalWeight;
+    }
+
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    public double getHitRate() {
+        long requests = getRequestCount();
+
+        return (requests == 0 ? 1.0 : (double) hitCount / requests);
+    }
+
+    @Override
+    public String toString() {
+        return "{hits: " + hitCount + ", misses: " + missCount + ", evictions: " + evictionCount +
+               ", entries: " + entryCount + ", weight: " + totalWeight + "}";
+    }
+}
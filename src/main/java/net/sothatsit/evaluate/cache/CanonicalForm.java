@@ -0,0 +1,311 @@
+package net.sothatsit.evaluate.cache;
+
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.tree.*;
+import net.sothatsit.evaluate.tree.function.Function;
+
+import java.util.*;
+
+/**
+ * Produces a canonical string for expression trees, such that structurally
+ * equivalent trees produce equal strings.
+ *
+ * The arguments of order-independent functions are sorted, so (a + b) and (b + a) have the same form.
+ * Constants are written from their value, so 2, 2.0 and 2E0 have the same form. The constants of
+ * expressions of longs are written from their exact long value, and the number type of each expression
+ * is part of its form, so expressions of longs and doubles never have the same form.
+ *
+ * Functions are identified by instance rather than by name, as functions with the same name may be
+ * defined differently by different parsers. Impure nodes, such as two calls to rand(), are never equivalent
+ * to each other, and so each is written separately, whereas a single impure node used twice is written once.
+ *
+ * Each distinct sub-tree is written once, and is then referred to by the order it was written in, so that the
+ * length of the form of trees that share nodes grows with their number of nodes rather than their number of paths.
+ * The arguments of order-independent functions are sorted by a structural hash, and so equivalent trees may have
+ * different forms if two of their different arguments have equal hashes. Trees with equal forms are always equivalent.
+ */
+public class CanonicalForm {
+
+    /**
+     * A number for each function instance that has been written, weakly referenced so that functions can be unloaded.
+     */
+    private static final Map<Function, Long> functionIds = new WeakHashMap<>();
+    private static long nextFunctionId = 0;
+
+    private final StringBuilder builder = new StringBuilder();
+
+    /**
+     * The number type of the expression being written, which decides how its constants are written.
+     */
+    private NumberType numberType;
+
+    /**
+     * The structural hash of each node that has been hashed, which is equal for structurally equivalent nodes.
+     */
+    private final Map<Node, Long> hashes = new IdentityHashMap<>();
+
+    /**
+     * The number of each node that has been written, and of each distinct form that has been written.
+     */
+    private final Map<Node, Integer> ids = new IdentityHashMap<>();
+    private final Map<String, Integer> formIds = new HashMap<>();
+    private int nextFormId = 0;
+
+    private CanonicalForm() {}
+
+    public static String of(Expression... expressions) {
+        CanonicalForm form = new CanonicalForm();
+
+        for(Expression expression : expressions) {
+            if(form.builder.length() > 0) {
+                form.builder.append('|');
+            }
+
+            form.builder.append(expression.numberType).append(':');
+            form.builder.append(expression.getArgumentCount()).append(':');
+            form.append(expression.root, expression.numberType);
+        }
+
+        return form.builder.toString();
+    }
+
+    public static String of(Node node) {
+        return of(node, NumberType.DOUBLE);
+    }
+
+    public static String of(Node node, NumberType numberType) {
+        CanonicalForm form = new CanonicalForm();
+
+        form.builder.append(numberType).append(':');
+        form.append(node, numberType);
+
+        return form.builder.toString();
+    }
+
+    /**
+     * Write the form of each node of {@param root} that has not already been written, followed by a reference to it.
+     */
+    private void append(Node root, NumberType numberType) {
+        // Nodes may be shared between expressions of different number types, whose constants are written differently
+        if(numberType != this.numberType) {
+            this.numberType = numberType;
+            hashes.clear();
+            ids.clear();
+        }
+
+        hash(root);
+
+        Deque<Node> stack = new ArrayDeque<>();
+
+        stack.push(root);
+
+        while(!stack.isEmpty()) {
+            Node node = stack.peek();
+
+            if(ids.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+
+            // The arguments are pushed above the node in reverse, so that they are written in order before it
+            Node[] arguments = getSortedArguments(node);
+            boolean argumentsWritten = true;
+
+            for(int index = arguments.length - 1; index >= 0; --index) {
+                if(!ids.containsKey(arguments[index])) {
+                    stack.push(arguments[index]);
+                    argumentsWritten = false;
+                }
+            }
+
+            if(!argumentsWritten)
+                continue;
+
+            stack.pop();
+            ids.put(node, write(node, arguments));
+        }
+
+        builder.append('@').append(ids.get(root));
+    }
+
+    /**
+     * Write the form of {@param node}, whose {@param arguments} have already been written, if it is new.
+     *
+     * @return The number of the form of {@param node}.
+     */
+    private int write(Node node, Node[] arguments) {
+        StringBuilder form = new StringBuilder();
+
+        if(node instanceof ConstantNode) {
+            ConstantNode constant = (ConstantNode) node;
+
+            if(numberType == NumberType.LONG) {
+                form.append(constant.longValue);
+            } else {
+                form.append(constant.value);
+            }
+        } else if(node instanceof VariableNode) {
+            form.append('$').append(((VariableNode) node).index);
+        } else {
+            if(node instanceof IfNode) {
+                form.append("if");
+            } else {
+                Function function = ((AbstractFunctionNode) node).getFunction();
+
+                form.append(function.getName()).append('~').append(getFunctionId(function));
+            }
+
+            form.append('(');
+
+            for(int index = 0; index < arguments.length; ++index) {
+                if(index > 0) {
+                    form.append(',');
+                }
+
+                form.append('#').append(ids.get(arguments[index]));
+            }
+
+            form.append(')');
+        }
+
+        String key = form.toString();
+        Integer existing = formIds.get(key);
+
+        // Impure nodes with equal forms are still different, as each may give a different value
+        if(existing != null && isPure(node))
+            return existing;
+
+        int id = nextFormId++;
+
+        formIds.put(key, id);
+        builder.append(key).append(';');
+
+        return id;
+    }
+
+    private static boolean isPure(Node node) {
+        return !(node instanceof AbstractFunctionNode)
+                || ((AbstractFunctionNode) node).getFunction().getOptimiseOptions().isPure;
+    }
+
+    private static synchronized long getFunctionId(Function function) {
+        return functionIds.computeIfAbsent(function, key -> nextFunctionId++);
+    }
+
+    /**
+     * Compute the structural hash of each node of {@param root} that has not already been hashed.
+     */
+    private void hash(Node root) {
+        Deque<Node> stack = new ArrayDeque<>();
+
+        stack.push(root);
+
+        while(!stack.isEmpty()) {
+            Node node = stack.peek();
+
+            if(hashes.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+
+            Node[] arguments = getArguments(node);
+            boolean argumentsHashed = true;
+
+            for(Node argument : arguments) {
+                if(!hashes.containsKey(argument)) {
+                    stack.push(argument);
+                    argumentsHashed = false;
+                }
+            }
+
+            if(!argumentsHashed)
+                continue;
+
+            stack.pop();
+            hashes.put(node, hash(node, arguments));
+        }
+    }
+
+    private long hash(Node node, Node[] arguments) {
+        if(node instanceof ConstantNode) {
+            ConstantNode constant = (ConstantNode) node;
+            long bits = (numberType == NumberType.LONG ? constant.longValue : Double.doubleToLongBits(constant.value));
+
+            return mix(1 + 31 * bits);
+        }
+
+        if(node instanceof VariableNode)
+            return mix(2 + 31L * ((VariableNode) node).index);
+
+        long[] argumentHashes = new long[arguments.length];
+
+        for(int index = 0; index < arguments.length; ++index) {
+            argumentHashes[index] = hashes.get(arguments[index]);
+        }
+
+        long hash;
+
+        if(node instanceof IfNode) {
+            hash = 3;
+        } else {
+            Function function = ((AbstractFunctionNode) node).getFunction();
+
+            hash = function.getName().hashCode();
+
+            if(!function.getOptimiseOptions().isOrderDependant) {
+                Arrays.sort(argumentHashes);
+            }
+        }
+
+        for(long argumentHash : argumentHashes) {
+            hash = mix(hash * 31 + argumentHash);
+        }
+
+        return hash;
+    }
+
+    /**
+     * @return The arguments of {@param node}, sorted by their hash if their order does not matter.
+     */
+    private Node[] getSortedArguments(Node node) {
+        Node[] arguments = getArguments(node);
+
+        if(node instanceof AbstractFunctionNode
+                && !((AbstractFunctionNode) node).getFunction().getOptimiseOptions().isOrderDependant) {
+
+            arguments = arguments.clone();
+            Arrays.sort(arguments, Comparator.comparingLong(hashes::get));
+        }
+
+        return arguments;
+    }
+
+    private static Node[] getArguments(Node node) {
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+        }
+
+        if(node instanceof ConstantNode || node instanceof VariableNode)
+            return new Node[0];
+
+        throw new IllegalArgumentException("Unknown type of Node " + node + " (" + node.getClass() + ")");
+    }
+
+    /**
+     * Spread the bits of {@param value}, so that similar trees have very different hashes.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+
+        return value;
+    }
+}
@@ -0,0 +1,259 @@
+package net.sothatsit.evaluate.cache;
+
+import net.sothatsit.evaluate.compiler.ClassIsolation;
+import net.sothatsit.evaluate.compiler.CompiledClass;
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.compiler.ExpressionLoader;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.AbstractFunctionNode;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.IfNode;
+import net.sothatsit.evaluate.tree.Node;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * A two level cache of parsed and compiled expressions.
+ *
+ * The first level maps the source of an expression and its arguments to its parsed and optimised
+ * {@link Expression}. The second level maps the {@link CanonicalForm} of optimised expressions to
+ * the class they were compiled to, so that equivalent expressions share a single compiled class.
+ *
+ * Classes can additionally be persisted to disk using a {@link BytecodeCache}, in which case they
+ * are restored directly from the source of their expression, without parsing or compiling it.
+ *
+ * The cached {@link Expression}s are shared, and therefore must not be modified.
+ */
+public class ExpressionCache {
+
+    private final Supplier<ExpressionParser> parserFactory;
+    private final ClassIsolation isolation;
+
+    /**
+     * The loader that every class compiled or restored by this cache is defined in when {@link #isolation} is SHARED.
+     */
+    private final ExpressionLoader loader = new ExpressionLoader();
+
+    private final BoundedCache<SourceKey, Expression> parsed;
+    private final BoundedCache<String, CompiledClass<CompiledExpression>> compiled;
+
+    /**
+     * The key in {@link #compiled} of the class that each source was compiled to or restored as, so that
+     * the classes themselves are only held by {@link #compiled} and count once towards its maximum size.
+     */
+    private final BoundedCache<SourceKey, String> sourceClasses;
+
+    private volatile BytecodeCache persistentCache;
+
+    /**
+     * @param parserFactory     Creates parsers with the functions, constants and operators to parse with.
+     *                          Arguments should not be added, as they are added by this cache. Functions
+     *                          are identified by instance, so each parser should be given the same functions.
+     * @param maxParsedNodes    The maximum total number of nodes in the cached parsed expressions.
+     * @param maxCompiledBytes  The maximum total size of the bytecode of the cached compiled classes.
+     *                          The keys of the classes cached for each source are bounded by the same
+     *                          number of characters.
+     */
+    public ExpressionCache(Supplier<ExpressionParser> parserFactory, long maxParsedNodes, long maxCompiledBytes) {
+        this(parserFactory, maxParsedNodes, maxCompiledBytes, ClassIsolation.PER_EXPRESSION);
+    }
+
+    public ExpressionCache(Supplier<ExpressionParser> parserFactory,
+                           long maxParsedNodes,
+                           long maxCompiledBytes,
+                           ClassIsolation isolation) {
+
+        this.parserFactory = parserFactory;
+        this.isolation = isolation;
+
+        this.parsed = new BoundedCache<>(maxParsedNodes, expression -> countNodes(expression.root));
+        this.compiled = new BoundedCache<>(maxCompiledBytes, CompiledClass::getBytecodeSize);
+        this.sourceClasses = new BoundedCache<>(maxCompiledBytes, String::length);
+    }
+
+    /**
+     * Persist compiled classes to {@param persistentCache}, and restore them from it.
+     *
+     * Classes are written in the background, and so failures to write them do not fail compilation.
+     * They are instead counted by {@link BytecodeCache#getWriteFailureCount()}.
+     */
+    public void setPersistentCache(BytecodeCache persistentCache) {
+        this.persistentCache = persistentCache;
+    }
+
+    public BytecodeCache getPersistentCache() {
+        return persistentCache;
+    }
+
+    /**
+     * Parse and optimise {@param source}, with the input variables {@param arguments}.
+     */
+    public Expression parse(String source, String... arguments) {
+        SourceKey key = new SourceKey(source, Arrays.asList(arguments));
+
+        return parsed.get(key, () -> {
+            ExpressionParser parser = parserFactory.get();
+
+            for(String argument : arguments) {
+                parser.addArgument(argument);
+            }
+
+            return parser.parse(source);
+        });
+    }
+
+    /**
+     * Parse, optimise and compile {@param source}, with the input variables {@param arguments}.
+     */
+    public CompiledExpression compile(String source, String... arguments) {
+        return compileClass(source, arguments).newInstance();
+    }
+
+    /**
+     * Parse, optimise and compile {@param source} into a class, with the input variables {@param arguments}.
+     */
+    public CompiledClass<CompiledExpression> compileClass(String source, String... arguments) {
+        SourceKey key = new SourceKey(source, Arrays.asList(arguments));
+        String classKey = sourceClasses.getIfPresent(key);
+
+        if(classKey != null) {
+            CompiledClass<CompiledExpression> compiledClass = compiled.getIfPresent(classKey);
+
+            // The class may have been evicted since, in which case it is compiled or restored again
+            if(compiledClass != null)
+                return compiledClass;
+        }
+
+        BytecodeCache persistentCache = this.persistentCache;
+        CompiledClass<CompiledExpression> compiledClass;
+
+        if(persistentCache == null) {
+            Expression expression = parse(source, arguments);
+
+            classKey = CanonicalForm.of(expression);
+            compiledClass = compileCanonical(classKey, expression);
+        } else {
+            ExpressionParser parser = parserFactory.get();
+            String persistentKey = BytecodeCache.createKey(source, key.arguments, parser);
+            CompiledClass<CompiledExpression> restored = persistentCache.load(persistentKey, parser, isolation, loader);
+
+            if(restored != null) {
+                // Persistent keys start with the library version, and so never equal a canonical form
+                classKey = persistentKey;
+                compiledClass = compiled.putIfAbsent(classKey, restored);
+            } else {
+                Expression expression = parse(source, arguments);
+
+                classKey = CanonicalForm.of(expression);
+                compiledClass = compileCanonical(classKey, expression);
+                persistentCache.store(persistentKey, compiledClass);
+            }
+        }
+
+        sourceClasses.putIfAbsent(key, classKey);
+
+        return compiledClass;
+    }
+
+    /**
+     * Compile {@param outputs} into a class, or find an already compiled class for equivalent outputs.
+     */
+    public CompiledClass<CompiledExpression> compileClass(Expression... outputs) {
+        return compileCanonical(CanonicalForm.of(outputs), outputs);
+    }
+
+    private CompiledClass<CompiledExpression> compileCanonical(String key, Expression... outputs) {
+        return compiled.get(key, () -> {
+            ExpressionCompiler compiler = new ExpressionCompiler(isolation, loader);
+
+            for(Expression output : outputs) {
+                compiler.addOutput(output);
+            }
+
+            return compiler.compileClass();
+        });
+    }
+
+    /**
+     * The statistics of the cache from the source of expressions to the keys of their compiled classes.
+     */
+    public CacheStatistics getSourceStatistics() {
+        return sourceClasses.getStatistics();
+    }
+
+    public CacheStatistics getParseStatistics() {
+        return parsed.getStatistics();
+    }
+
+    public CacheStatistics getCompileStatistics() {
+        return compiled.getStatistics();
+    }
+
+    public void invalidateAll() {
+        parsed.invalidateAll();
+        compiled.invalidateAll();
+        sourceClasses.invalidateAll();
+    }
+
+    /**
+     * @return The number of distinct nodes in the tree {@param root}, as nodes shared by many parents are stored once.
+     */
+    private static long countNodes(Node root) {
+        Set<Node> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> toCount = new ArrayDeque<>();
+        toCount.add(root);
+
+        while(!toCount.isEmpty()) {
+            Node node = toCount.poll();
+
+            if(!counted.add(node))
+                continue;
+
+            if(node instanceof AbstractFunctionNode) {
+                Collections.addAll(toCount, ((AbstractFunctionNode) node).getArguments());
+            } else if(node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+
+                toCount.add(ifNode.condition);
+                toCount.add(ifNode.thenNode);
+                toCount.add(ifNode.elseNode);
+            }
+        }
+
+        return counted.size();
+    }
+
+    private static class SourceKey {
+
+        public final String source;
+        public final List<String> arguments;
+
+        public SourceKey(String source, List<String> arguments) {
+            this.source = source;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * source.hashCode() + arguments.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof SourceKey))
+                return false;
+
+            SourceKey other = (SourceKey) obj;
+
+            return source.equals(other.source) && arguments.equals(other.arguments);
+        }
+    }
+}
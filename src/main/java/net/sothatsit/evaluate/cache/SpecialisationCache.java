@@ -0,0 +1,119 @@
+package net.sothatsit.evaluate.cache;
+
+import net.sothatsit.evaluate.compiler.ClassIsolation;
+import net.sothatsit.evaluate.compiler.CompiledClass;
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.optimiser.Optimiser;
+import net.sothatsit.evaluate.tree.Expression;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * A cache of specialisations of a single expression, each compiled with a set of its inputs bound to constants.
+ *
+ * This suits expressions where some inputs, such as coefficients, stay the same for many evaluations
+ * while the others vary. Binding them lets the optimiser fold away the sub-expressions that only depend
+ * on them, and the resulting class is smaller and faster than the class for the general expression.
+ *
+ * The compiled specialisations take the same inputs as the general expression, but ignore the bound inputs.
+ */
+public class SpecialisationCache {
+
+    private final Expression expression;
+    private final int[] boundArguments;
+    private final Supplier<Optimiser> optimiserFactory;
+    private final ClassIsolation isolation;
+
+    private final BoundedCache<BoundValues, CompiledClass<CompiledExpression>> specialisations;
+
+    /**
+     * @param boundArguments    The indices of the inputs of {@param expression} to specialise on.
+     * @param maxCompiledBytes  The maximum total size of the bytecode of the cached specialisations.
+     */
+    public SpecialisationCache(Expression expression, int[] boundArguments, long maxCompiledBytes) {
+        this(expression, boundArguments, maxCompiledBytes, CompositeOptimiser::all, ClassIsolation.PER_EXPRESSION);
+    }
+
+    /**
+     * @param optimiserFactory  Creates the optimisers used to fold the bound inputs into the expression.
+     */
+    public SpecialisationCache(Expression expression,
+                               int[] boundArguments,
+                               long maxCompiledBytes,
+                               Supplier<Optimiser> optimiserFactory,
+                               ClassIsolation isolation) {
+
+        for(int argument : boundArguments) {
+            if(argument < 0 || argument >= expression.getArgumentCount())
+                throw new IllegalArgumentException("Unknown argument index " + argument);
+        }
+
+        this.expression = expression;
+        this.boundArguments = boundArguments.clone();
+        this.optimiserFactory = optimiserFactory;
+        this.isolation = isolation;
+
+        this.specialisations = new BoundedCache<>(maxCompiledBytes, CompiledClass::getBytecodeSize);
+    }
+
+    public Expression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Get a new instance of the specialisation of the expression with the bound inputs set to {@param values}.
+     */
+    public CompiledExpression compile(double... values) {
+        return compileClass(values).newInstance();
+    }
+
+    /**
+     * Get the class of the specialisation of the expression with the bound inputs set to {@param values},
+     * compiling it if it is not already cached.
+     */
+    public CompiledClass<CompiledExpression> compileClass(double... values) {
+        if(values.length != boundArguments.length)
+            throw new IllegalArgumentException("Expected " + boundArguments.length + " values, got " + values.length);
+
+        BoundValues key = new BoundValues(values.clone());
+
+        return specialisations.get(key, () -> {
+            Expression specialised = expression.bind(boundArguments, key.values, optimiserFactory.get());
+
+            ExpressionCompiler compiler = new ExpressionCompiler(isolation);
+            compiler.addOutput(specialised);
+
+            return compiler.compileClass();
+        });
+    }
+
+    public CacheStatistics getStatistics() {
+        return specialisations.getStatistics();
+    }
+
+    public void invalidateAll() {
+        specialisations.invalidateAll();
+    }
+
+    private static class BoundValues {
+
+        public final double[] values;
+
+        public BoundValues(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof BoundValues && Arrays.equals(values, ((BoundValues) obj).values);
+        }
+    }
+}
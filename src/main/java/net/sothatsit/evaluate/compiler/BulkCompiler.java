@@ -0,0 +1,86 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Parses, optimises and compiles many equations in parallel.
+ *
+ * Each thread uses its own parser created by the parser factory, as parsers are not thread-safe.
+ * All of the work except for class definition is done in parallel.
+ */
+public class BulkCompiler {
+
+    private final ThreadLocal<ExpressionParser> parsers;
+    private final ClassIsolation isolation;
+    private final ExpressionLoader loader = new ExpressionLoader();
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parserFactory Creates parsers that have all of the arguments and functions the equations use.
+     */
+    public BulkCompiler(Supplier<ExpressionParser> parserFactory) {
+        this(parserFactory, ClassIsolation.SHARED, ForkJoinPool.commonPool());
+    }
+
+    public BulkCompiler(Supplier<ExpressionParser> parserFactory, ClassIsolation isolation, ForkJoinPool pool) {
+        this.parsers = ThreadLocal.withInitial(parserFactory);
+        this.isolation = isolation;
+        this.pool = pool;
+    }
+
+    public ClassIsolation getIsolation() {
+        return isolation;
+    }
+
+    /**
+     * Parse, optimise and compile {@param equation} on the calling thread.
+     */
+    public CompiledExpression compile(String equation) {
+        Expression expression = parsers.get().parse(equation);
+
+        ExpressionCompiler compiler = new ExpressionCompiler(isolation, loader);
+        compiler.addOutput(expression);
+
+        return compiler.compile();
+    }
+
+    /**
+     * Parse, optimise and compile {@param equation} on this compiler's pool.
+     */
+    public CompletableFuture<CompiledExpression> compileAsync(String equation) {
+        return CompletableFuture.supplyAsync(() -> compile(equation), pool);
+    }
+
+    /**
+     * Parse, optimise and compile each of {@param equations} in parallel, on this compiler's pool.
+     */
+    public CompletableFuture<List<CompiledExpression>> compileAllAsync(List<String> equations) {
+        List<CompletableFuture<CompiledExpression>> futures = new ArrayList<>();
+        for(String equation : equations) {
+            futures.add(compileAsync(equation));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        });
+    }
+
+    /**
+     * Parse, optimise and compile each of {@param equations} in parallel, waiting for them all to complete.
+     *
+     * @return The compiled expressions, in the same order as {@param equations}.
+     */
+    public List<CompiledExpression> compileAll(List<String> equations) {
+        return pool.submit(() -> {
+            return equations.parallelStream().map(this::compile).collect(Collectors.toList());
+        }).join();
+    }
+}
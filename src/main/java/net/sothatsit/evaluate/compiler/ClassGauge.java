@@ -0,0 +1,79 @@
+package net.sothatsit.evaluate.compiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the classes generated by all compilers, along with the JVM's class and metaspace usage,
+ * so that it can be verified that compiled classes are being unloaded.
+ */
+public class ClassGauge {
+
+    private static final ReferenceQueue<Class<?>> collected = new ReferenceQueue<>();
+    private static final Set<Reference<Class<?>>> live = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private static final AtomicLong definedCount = new AtomicLong();
+
+    public static void track(Class<?> clazz) {
+        expungeCollected();
+
+        live.add(new WeakReference<>(clazz, collected));
+        definedCount.incrementAndGet();
+    }
+
+    private static void expungeCollected() {
+        Reference<? extends Class<?>> reference;
+
+        while((reference = collected.poll()) != null) {
+            live.remove(reference);
+        }
+    }
+
+    /**
+     * The total number of classes that have been generated.
+     */
+    public static long getDefinedClassCount() {
+        return definedCount.get();
+    }
+
+    /**
+     * The number of generated classes that have not yet been garbage collected.
+     */
+    public static int getLiveClassCount() {
+        expungeCollected();
+
+        return live.size();
+    }
+
+    public static int getJvmLoadedClassCount() {
+        return ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+    }
+
+    public static long getJvmUnloadedClassCount() {
+        return ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount();
+    }
+
+    /**
+     * The number of bytes of metaspace in use, or -1 if the JVM does not have a metaspace memory pool.
+     */
+    public static long getMetaspaceUsed() {
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getName().equals("Metaspace"))
+                return pool.getUsage().getUsed();
+        }
+
+        return -1;
+    }
+
+    public static String getSummary() {
+        return "compiled classes: " + getLiveClassCount() + " live of " + getDefinedClassCount() + " defined, " +
+               "jvm classes: " + getJvmLoadedClassCount() + " loaded, " + getJvmUnloadedClassCount() + " unloaded, " +
+               "metaspace: " + (getMetaspaceUsed() / 1024) + " KiB";
+    }
+}
@@ -0,0 +1,30 @@
+package net.sothatsit.evaluate.compiler;
+
+/**
+ * Controls which class loader the classes generated by an {@link ExpressionCompiler} are defined in,
+ * and therefore when they can be garbage collected.
+ */
+public enum ClassIsolation {
+
+    /**
+     * All classes are defined in a single loader owned by the compiler.
+     *
+     * None of the classes can be unloaded until the compiler and all of its compiled expressions are unreachable.
+     */
+    SHARED,
+
+    /**
+     * Each compiled class is defined in its own class loader.
+     *
+     * A class is unloaded once the expressions created from it are no longer referenced.
+     */
+    PER_EXPRESSION,
+
+    /**
+     * Each compiled class is defined as a hidden class, where the runtime supports them (Java 15+).
+     *
+     * Hidden classes are unloaded once they are no longer referenced, and are cheaper to define than
+     * a new class loader. Falls back to {@link #PER_EXPRESSION} when hidden classes are unsupported.
+     */
+    HIDDEN
+}
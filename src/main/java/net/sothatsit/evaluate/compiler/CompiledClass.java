@@ -0,0 +1,60 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.tree.function.Function;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A class generated by an {@link ExpressionCompiler}, from which any number of
+ * independent expressions of type {@code E} can be cheaply created.
+ *
+ * @param <E> The base class of the generated class, such as {@link CompiledExpression}.
+ */
+public class CompiledClass<E> {
+
+    public final Class<? extends E> clazz;
+    public final List<Function> functions;
+    public final int inputCount;
+    public final int outputCount;
+
+    private final byte[] bytecode;
+    private final Constructor<? extends E> constructor;
+
+    public CompiledClass(Class<E> expressionType, Class<?> clazz, List<Function> functions,
+                         int inputCount, int outputCount, byte[] bytecode) {
+
+        this.clazz = clazz.asSubclass(expressionType);
+        this.functions = Collections.unmodifiableList(new ArrayList<>(functions));
+        this.inputCount = inputCount;
+        this.outputCount = outputCount;
+        this.bytecode = bytecode;
+
+        FunctionLinker.register(this.clazz, this.functions);
+
+        try {
+            this.constructor = this.clazz.getConstructor(int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("Compilation failed", e);
+        }
+    }
+
+    public int getBytecodeSize() {
+        return bytecode.length;
+    }
+
+    public byte[] getBytecode() {
+        return bytecode.clone();
+    }
+
+    public E newInstance() {
+        try {
+            return constructor.newInstance(inputCount, outputCount);
+        } catch (InvocationTargetException | InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Compilation failed", e);
+        }
+    }
+}
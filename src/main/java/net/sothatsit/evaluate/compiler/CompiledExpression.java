@@ -1,22 +1,136 @@
 package net.sothatsit.evaluate.compiler;
 
+import java.util.Arrays;
+import java.util.BitSet;
+
 public abstract class CompiledExpression {
 
     public final double[] inputs;
     public final double[] outputs;
 
+    /**
+     * The mask passed to {@link #evaluateSelected} by {@link #evaluate(long)} and {@link #evaluate(BitSet)},
+     * reused to avoid allocating.
+     */
+    private final long[] outputMask;
+
     public CompiledExpression(int inputCount, int outputCount) {
         this.inputs = new double[inputCount];
         this.outputs = new double[outputCount];
+        this.outputMask = new long[getOutputMaskLength(outputCount)];
+    }
+
+    /**
+     * @return The number of words needed in a mask of {@param outputCount} outputs.
+     */
+    public static int getOutputMaskLength(int outputCount) {
+        return outputCount / 64 + 1;
     }
 
     public final void setVariable(int index, double value) {
+        double previous = inputs[index];
+
         inputs[index] = value;
+        onVariableSet(index, previous, value);
+    }
+
+    /**
+     * Called by {@link #setVariable} after it sets the input {@param index} from {@param previous} to {@param value}.
+     */
+    protected void onVariableSet(int index, double previous, double value) {
+        // Nothing to track by default
     }
 
     public final double getOutput(int index) {
         return outputs[index];
     }
 
-    public abstract void evaluate();
+    /**
+     * Evaluate using the values set with {@link #setVariable}, storing the results to be retrieved with {@link #getOutput}.
+     *
+     * This is not thread-safe, as the inputs and outputs are stored in this instance.
+     */
+    public void evaluate() {
+        evaluate(inputs, 0, outputs, 0);
+    }
+
+    /**
+     * Evaluate only the outputs whose bits are set in {@param outputMask}, using the values set with
+     * {@link #setVariable}. Only the first 64 outputs can be selected, see {@link #evaluate(BitSet)}.
+     *
+     * This is not thread-safe, as the inputs and outputs are stored in this instance.
+     */
+    public void evaluate(long outputMask) {
+        Arrays.fill(this.outputMask, 0);
+        this.outputMask[0] = outputMask;
+
+        evaluateSelected(inputs, 0, outputs, 0, this.outputMask);
+    }
+
+    /**
+     * Evaluate only the outputs whose bits are set in {@param outputMask}, using the values set with {@link #setVariable}.
+     *
+     * The bits are copied into a mask of words on each call. Where the same outputs are evaluated many
+     * times, it is faster to use {@link #evaluate(long)}, or to pass a mask of words computed once to
+     * {@link #evaluateSelected}.
+     *
+     * This is not thread-safe, as the inputs and outputs are stored in this instance.
+     */
+    public void evaluate(BitSet outputMask) {
+        long[] words = this.outputMask;
+        int length = words.length * 64;
+
+        Arrays.fill(words, 0);
+
+        int index = outputMask.nextSetBit(0);
+
+        while(index >= 0 && index < length) {
+            words[index / 64] |= 1L << index;
+            index = outputMask.nextSetBit(index + 1);
+        }
+
+        evaluateSelected(inputs, 0, outputs, 0, words);
+    }
+
+    /**
+     * Evaluate only the outputs whose bits are set in the bitset {@param outputMask}, skipping the common terms
+     * that only the other outputs use. The other outputs in {@param outputs} may be left unchanged.
+     *
+     * {@param outputMask} must hold at least {@link #getOutputMaskLength} words. By default every output
+     * is evaluated, whereas the classes generated by {@link ExpressionCompiler} only evaluate those selected.
+     */
+    public void evaluateSelected(double[] inputs, int inputOffset,
+                                 double[] outputs, int outputOffset,
+                                 long[] outputMask) {
+
+        evaluate(inputs, inputOffset, outputs, outputOffset);
+    }
+
+    /**
+     * Evaluate using the inputs starting at {@param inputs}[{@param inputOffset}], storing
+     * the results into {@param outputs} starting at {@param outputOffset}.
+     *
+     * Only the given arrays are read and written, so this may be called concurrently from any number of threads.
+     */
+    public abstract void evaluate(double[] inputs, int inputOffset, double[] outputs, int outputOffset);
+
+    /**
+     * Evaluate every row from {@param from} (inclusive) to {@param to} (exclusive) of
+     * the column arrays {@param inputColumns}, storing the results in {@param outputColumns}.
+     *
+     * Input {@code i} of row {@code r} is read from {@code inputColumns[i][r]},
+     * and output {@code o} of row {@code r} is written to {@code outputColumns[o][r]}.
+     */
+    public abstract void evaluateBatch(double[][] inputColumns, double[][] outputColumns, int from, int to);
+
+    /**
+     * Evaluate every row from {@param from} (inclusive) to {@param to} (exclusive) of the
+     * interleaved array {@param inputs}, storing the results interleaved in {@param outputs}.
+     *
+     * Input {@code i} of row {@code r} is read from {@code inputs[r * inputStride + i]},
+     * and output {@code o} of row {@code r} is written to {@code outputs[r * outputStride + o]}.
+     */
+    public abstract void evaluateStrided(double[] inputs, int inputStride,
+                                         double[] outputs, int outputStride,
+                                         int from, int to);
 }
@@ -0,0 +1,51 @@
+package net.sothatsit.evaluate.compiler;
+
+/**
+ * An expression compiled by {@link ExpressionCompiler#compileFloat} to compute in single precision.
+ *
+ * Half as much memory is read and written per value as a {@link CompiledExpression}, at the cost of precision.
+ */
+public abstract class CompiledFloatExpression {
+
+    public final float[] inputs;
+    public final float[] outputs;
+
+    public CompiledFloatExpression(int inputCount, int outputCount) {
+        this.inputs = new float[inputCount];
+        this.outputs = new float[outputCount];
+    }
+
+    public final void setVariable(int index, float value) {
+        inputs[index] = value;
+    }
+
+    public final float getOutput(int index) {
+        return outputs[index];
+    }
+
+    /**
+     * Evaluate using the values set with {@link #setVariable}, storing the results to be retrieved with {@link #getOutput}.
+     *
+     * This is not thread-safe, as the inputs and outputs are stored in this instance.
+     */
+    public void evaluate() {
+        evaluate(inputs, 0, outputs, 0);
+    }
+
+    /**
+     * @see CompiledExpression#evaluate(double[], int, double[], int)
+     */
+    public abstract void evaluate(float[] inputs, int inputOffset, float[] outputs, int outputOffset);
+
+    /**
+     * @see CompiledExpression#evaluateBatch(double[][], double[][], int, int)
+     */
+    public abstract void evaluateBatch(float[][] inputColumns, float[][] outputColumns, int from, int to);
+
+    /**
+     * @see CompiledExpression#evaluateStrided(double[], int, double[], int, int, int)
+     */
+    public abstract void evaluateStrided(float[] inputs, int inputStride,
+                                         float[] outputs, int outputStride,
+                                         int from, int to);
+}
@@ -0,0 +1,43 @@
+package net.sothatsit.evaluate.compiler;
+
+/**
+ * A compiled expression that can also compute the derivatives of its outputs with respect to each of its inputs.
+ *
+ * The derivative of output {@code o} with respect to input {@code i} is stored at {@code o * inputCount + i}
+ * in the gradients, such that the gradients form the Jacobian of the outputs with one row per output.
+ */
+public abstract class CompiledGradientExpression extends CompiledExpression {
+
+    public final double[] gradients;
+
+    public CompiledGradientExpression(int inputCount, int outputCount) {
+        super(inputCount, outputCount);
+
+        this.gradients = new double[inputCount * outputCount];
+    }
+
+    public final double getGradient(int outputIndex, int inputIndex) {
+        return gradients[outputIndex * inputs.length + inputIndex];
+    }
+
+    /**
+     * Evaluate the outputs and their gradients using the values set with {@link #setVariable},
+     * storing them to be retrieved with {@link #getOutput} and {@link #getGradient}.
+     *
+     * This is not thread-safe, as the inputs, outputs and gradients are stored in this instance.
+     */
+    public void evaluateGradient() {
+        evaluateGradient(inputs, 0, outputs, 0, gradients, 0);
+    }
+
+    /**
+     * Evaluate using the inputs starting at {@param inputs}[{@param inputOffset}], storing the results into
+     * {@param outputs} starting at {@param outputOffset}, and their gradients into {@param gradients}
+     * starting at {@param gradientOffset}.
+     *
+     * The values and their gradients are computed together, so that the terms they have in common are only computed once.
+     */
+    public abstract void evaluateGradient(double[] inputs, int inputOffset,
+                                          double[] outputs, int outputOffset,
+                                          double[] gradients, int gradientOffset);
+}
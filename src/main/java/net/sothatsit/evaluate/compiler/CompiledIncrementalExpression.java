@@ -0,0 +1,70 @@
+package net.sothatsit.evaluate.compiler;
+
+import java.util.Arrays;
+
+/**
+ * A compiled expression that only recomputes the outputs, and the common terms, that depend on the inputs
+ * that have changed since it was last evaluated with {@link #evaluate()}.
+ *
+ * The values of common terms are cached in fields between evaluations. Inputs are marked as changed by
+ * {@link #setVariable} when their value changes, and must otherwise be marked using {@link #markChanged}.
+ */
+public abstract class CompiledIncrementalExpression extends CompiledExpression {
+
+    /**
+     * A bitset of the inputs that have changed. The bit after the last input is set
+     * until the first evaluation, so that every output is computed at least once.
+     */
+    private final long[] changed;
+
+    public CompiledIncrementalExpression(int inputCount, int outputCount) {
+        super(inputCount, outputCount);
+
+        this.changed = new long[inputCount / 64 + 1];
+        markAllChanged();
+    }
+
+    @Override
+    protected void onVariableSet(int index, double previous, double value) {
+        if(Double.doubleToRawLongBits(previous) != Double.doubleToRawLongBits(value)) {
+            markChanged(index);
+        }
+    }
+
+    /**
+     * Mark the input {@param index} as changed, such that everything that depends on it is recomputed by the next evaluation.
+     */
+    public void markChanged(int index) {
+        changed[index >> 6] |= 1L << index;
+    }
+
+    /**
+     * Mark every input as changed, such that everything is recomputed by the next evaluation.
+     */
+    public void markAllChanged() {
+        Arrays.fill(changed, -1L);
+    }
+
+    /**
+     * Recompute the outputs that depend on the inputs that have changed since the last evaluation.
+     *
+     * This is not thread-safe, as the inputs, outputs and cached terms are stored in this instance.
+     */
+    @Override
+    public void evaluate() {
+        evaluateChanged(inputs, 0, outputs, 0, changed);
+        Arrays.fill(changed, 0L);
+    }
+
+    /**
+     * Recompute the outputs and the cached terms that depend on the inputs set in {@param changed},
+     * reading the inputs from {@param inputs} starting at {@param inputOffset}, and storing the
+     * results in {@param outputs} starting at {@param outputOffset}.
+     *
+     * The outputs that are not recomputed are left as they are, so {@param outputs} must
+     * hold the results of the previous evaluation.
+     */
+    protected abstract void evaluateChanged(double[] inputs, int inputOffset,
+                                            double[] outputs, int outputOffset,
+                                            long[] changed);
+}
@@ -0,0 +1,52 @@
+package net.sothatsit.evaluate.compiler;
+
+/**
+ * An expression compiled by {@link ExpressionCompiler#compileLong} to compute with exact integer arithmetic.
+ *
+ * Additions, subtractions and multiplications wrap around on overflow, unless the
+ * expression was compiled with {@link ExpressionCompiler#setOverflowChecked}.
+ */
+public abstract class CompiledLongExpression {
+
+    public final long[] inputs;
+    public final long[] outputs;
+
+    public CompiledLongExpression(int inputCount, int outputCount) {
+        this.inputs = new long[inputCount];
+        this.outputs = new long[outputCount];
+    }
+
+    public final void setVariable(int index, long value) {
+        inputs[index] = value;
+    }
+
+    public final long getOutput(int index) {
+        return outputs[index];
+    }
+
+    /**
+     * Evaluate using the values set with {@link #setVariable}, storing the results to be retrieved with {@link #getOutput}.
+     *
+     * This is not thread-safe, as the inputs and outputs are stored in this instance.
+     */
+    public void evaluate() {
+        evaluate(inputs, 0, outputs, 0);
+    }
+
+    /**
+     * @see CompiledExpression#evaluate(double[], int, double[], int)
+     */
+    public abstract void evaluate(long[] inputs, int inputOffset, long[] outputs, int outputOffset);
+
+    /**
+     * @see CompiledExpression#evaluateBatch(double[][], double[][], int, int)
+     */
+    public abstract void evaluateBatch(long[][] inputColumns, long[][] outputColumns, int from, int to);
+
+    /**
+     * @see CompiledExpression#evaluateStrided(double[], int, double[], int, int, int)
+     */
+    public abstract void evaluateStrided(long[] inputs, int inputStride,
+                                         long[] outputs, int outputStride,
+                                         int from, int to);
+}
@@ -0,0 +1,300 @@
+package net.sothatsit.evaluate.compiler;
+
+import java.util.Set;
+
+import static jdk.internal.org.objectweb.asm.Opcodes.*;
+
+/**
+ * Describes where a compiled method reads its inputs from, and where it writes its outputs to.
+ */
+public abstract class DataLayout {
+
+    /**
+     * Called once at the start of the method, before any rows are evaluated.
+     *
+     * This is where array loads that are the same for every row should be hoisted.
+     *
+     * @param usedInputs  The inputs that may be loaded by the method.
+     * @param usedOutputs The outputs that may be stored by the method.
+     */
+    public void begin(MethodCompiler mc, Set<Integer> usedInputs, Set<Integer> usedOutputs) {}
+
+    /**
+     * Create a layout that reads and writes the same data for another method of the same class, whose
+     * parameters begin with the same parameters as this layout's method.
+     *
+     * This is used to split the work of a method between several methods.
+     */
+    public abstract DataLayout copy();
+
+    /**
+     * Called after each row has been evaluated, to advance to the next row.
+     */
+    public void endRow(MethodCompiler mc) {}
+
+    /**
+     * Push the value of the input {@param index} onto the stack.
+     */
+    public abstract void loadInput(MethodCompiler mc, int index);
+
+    /**
+     * Push the array and array index that the output {@param index} should be stored in onto the stack.
+     */
+    public abstract void beginOutput(MethodCompiler mc, int index);
+
+    /**
+     * Store the output value on the stack into the array and array index pushed by {@link #beginOutput}.
+     */
+    public void endOutput(MethodCompiler mc, int index) {
+        mc.arrayStore();
+    }
+
+    /**
+     * Push the index of the element {@param index} past the offset in the variable {@param offsetVariable}.
+     */
+    protected static void loadIndex(MethodCompiler mc, int offsetVariable, int index) {
+        mc.locals.loadVariable(offsetVariable);
+
+        if(index != 0) {
+            mc.loadConstant(index);
+            mc.insn(IADD);
+        }
+    }
+
+    /**
+     * Reads a single row from an array starting at an offset, and writes it to an array starting at an offset.
+     *
+     * Input {@code i} is {@code inputs[inputOffset + i]}.
+     */
+    public static class Offset extends DataLayout {
+
+        protected final int inputsVariable;
+        protected final int inputOffsetVariable;
+        protected final int outputsVariable;
+        protected final int outputOffsetVariable;
+
+        public Offset(int inputsVariable, int inputOffsetVariable, int outputsVariable, int outputOffsetVariable) {
+            this.inputsVariable = inputsVariable;
+            this.inputOffsetVariable = inputOffsetVariable;
+            this.outputsVariable = outputsVariable;
+            this.outputOffsetVariable = outputOffsetVariable;
+        }
+
+        @Override
+        public DataLayout copy() {
+            return new Offset(inputsVariable, inputOffsetVariable, outputsVariable, outputOffsetVariable);
+        }
+
+        @Override
+        public void loadInput(MethodCompiler mc, int index) {
+            mc.locals.loadVariable(inputsVariable);
+            loadIndex(mc, inputOffsetVariable, index);
+            mc.arrayLoad();
+        }
+
+        @Override
+        public void beginOutput(MethodCompiler mc, int index) {
+            mc.locals.loadVariable(outputsVariable);
+            loadIndex(mc, outputOffsetVariable, index);
+        }
+    }
+
+    /**
+     * Reads a single row like {@link Offset}, and writes the first {@code valueCount} outputs like {@link Offset},
+     * but writes the outputs after them, which hold the gradients of the values, to a separate array.
+     *
+     * Output {@code valueCount + i} is {@code gradients[gradientOffset + i]}.
+     */
+    public static class Gradient extends Offset {
+
+        private final int gradientsVariable;
+        private final int gradientOffsetVariable;
+        private final int valueCount;
+
+        public Gradient(int inputsVariable, int inputOffsetVariable,
+                        int outputsVariable, int outputOffsetVariable,
+                        int gradientsVariable, int gradientOffsetVariable,
+                        int valueCount) {
+
+            super(inputsVariable, inputOffsetVariable, outputsVariable, outputOffsetVariable);
+
+            this.gradientsVariable = gradientsVariable;
+            this.gradientOffsetVariable = gradientOffsetVariable;
+            this.valueCount = valueCount;
+        }
+
+        @Override
+        public DataLayout copy() {
+            return new Gradient(
+                    inputsVariable, inputOffsetVariable,
+                    outputsVariable, outputOffsetVariable,
+                    gradientsVariable, gradientOffsetVariable,
+                    valueCount
+            );
+        }
+
+        @Override
+        public void beginOutput(MethodCompiler mc, int index) {
+            if(index < valueCount) {
+                super.beginOutput(mc, index);
+                return;
+            }
+
+            mc.locals.loadVariable(gradientsVariable);
+            loadIndex(mc, gradientOffsetVariable, index - valueCount);
+        }
+    }
+
+    /**
+     * Struct-of-arrays layout, where each input and each output is its own column array.
+     *
+     * Input {@code i} of row {@code r} is {@code inputColumns[i][r]}.
+     */
+    public static class Columns extends DataLayout {
+
+        private final int inputColumnsVariable;
+        private final int outputColumnsVariable;
+        private final int rowVariable;
+
+        private int[] inputVariables;
+        private int[] outputVariables;
+
+        public Columns(int inputColumnsVariable, int outputColumnsVariable, int rowVariable) {
+            this.inputColumnsVariable = inputColumnsVariable;
+            this.outputColumnsVariable = outputColumnsVariable;
+            this.rowVariable = rowVariable;
+        }
+
+        @Override
+        public DataLayout copy() {
+            return new Columns(inputColumnsVariable, outputColumnsVariable, rowVariable);
+        }
+
+        @Override
+        public void begin(MethodCompiler mc, Set<Integer> usedInputs, Set<Integer> usedOutputs) {
+            inputVariables = new int[countUpTo(usedInputs)];
+            for(int index : usedInputs) {
+                inputVariables[index] = loadColumn(mc, inputColumnsVariable, index);
+            }
+
+            outputVariables = new int[countUpTo(usedOutputs)];
+            for(int index : usedOutputs) {
+                outputVariables[index] = loadColumn(mc, outputColumnsVariable, index);
+            }
+        }
+
+        private static int countUpTo(Set<Integer> indices) {
+            int count = 0;
+            for(int index : indices) {
+                count = Math.max(count, index + 1);
+            }
+            return count;
+        }
+
+        private static int loadColumn(MethodCompiler mc, int columnsVariable, int index) {
+            int variable = mc.locals.newReferenceVariable();
+
+            mc.locals.loadVariable(columnsVariable);
+            mc.loadConstant(index);
+            mc.insn(AALOAD);
+            mc.locals.storeVariable(variable);
+
+            return variable;
+        }
+
+        @Override
+        public void endRow(MethodCompiler mc) {
+            mc.locals.incrementVariable(rowVariable, 1);
+        }
+
+        @Override
+        public void loadInput(MethodCompiler mc, int index) {
+            mc.locals.loadVariable(inputVariables[index]);
+            mc.locals.loadVariable(rowVariable);
+            mc.arrayLoad();
+        }
+
+        @Override
+        public void beginOutput(MethodCompiler mc, int index) {
+            mc.locals.loadVariable(outputVariables[index]);
+            mc.locals.loadVariable(rowVariable);
+        }
+    }
+
+    /**
+     * Array-of-structs layout, where the inputs and outputs of each row are interleaved in a single array.
+     *
+     * Input {@code i} of row {@code r} is {@code inputs[r * inputStride + i]}.
+     */
+    public static class Strided extends DataLayout {
+
+        private final int inputsVariable;
+        private final int inputStrideVariable;
+        private final int outputsVariable;
+        private final int outputStrideVariable;
+        private final int rowVariable;
+
+        private int inputOffsetVariable;
+        private int outputOffsetVariable;
+
+        public Strided(int inputsVariable, int inputStrideVariable,
+                       int outputsVariable, int outputStrideVariable,
+                       int rowVariable) {
+
+            this.inputsVariable = inputsVariable;
+            this.inputStrideVariable = inputStrideVariable;
+            this.outputsVariable = outputsVariable;
+            this.outputStrideVariable = outputStrideVariable;
+            this.rowVariable = rowVariable;
+        }
+
+        @Override
+        public DataLayout copy() {
+            return new Strided(inputsVariable, inputStrideVariable, outputsVariable, outputStrideVariable, rowVariable);
+        }
+
+        @Override
+        public void begin(MethodCompiler mc, Set<Integer> usedInputs, Set<Integer> usedOutputs) {
+            inputOffsetVariable = startOffset(mc, inputStrideVariable);
+            outputOffsetVariable = startOffset(mc, outputStrideVariable);
+        }
+
+        private int startOffset(MethodCompiler mc, int strideVariable) {
+            int variable = mc.locals.newIntVariable();
+
+            mc.locals.loadVariable(rowVariable);
+            mc.locals.loadVariable(strideVariable);
+            mc.insn(IMUL);
+            mc.locals.storeVariable(variable);
+
+            return variable;
+        }
+
+        @Override
+        public void endRow(MethodCompiler mc) {
+            advanceOffset(mc, inputOffsetVariable, inputStrideVariable);
+            advanceOffset(mc, outputOffsetVariable, outputStrideVariable);
+            mc.locals.incrementVariable(rowVariable, 1);
+        }
+
+        private static void advanceOffset(MethodCompiler mc, int offsetVariable, int strideVariable) {
+            mc.locals.loadVariable(offsetVariable);
+            mc.locals.loadVariable(strideVariable);
+            mc.insn(IADD);
+            mc.locals.storeVariable(offsetVariable);
+        }
+
+        @Override
+        public void loadInput(MethodCompiler mc, int index) {
+            mc.locals.loadVariable(inputsVariable);
+            loadIndex(mc, inputOffsetVariable, index);
+            mc.arrayLoad();
+        }
+
+        @Override
+        public void beginOutput(MethodCompiler mc, int index) {
+            mc.locals.loadVariable(outputsVariable);
+            loadIndex(mc, outputOffsetVariable, index);
+        }
+    }
+}
@@ -1,28 +1,84 @@
 package net.sothatsit.evaluate.compiler;
 
 import jdk.internal.org.objectweb.asm.ClassWriter;
+import jdk.internal.org.objectweb.asm.Label;
 import static jdk.internal.org.objectweb.asm.Opcodes.*;
 
 import jdk.internal.org.objectweb.asm.Type;
+import net.sothatsit.evaluate.optimiser.CostModel;
+import net.sothatsit.evaluate.optimiser.Optimiser;
 import net.sothatsit.evaluate.tree.*;
 import net.sothatsit.evaluate.tree.function.*;
+import net.sothatsit.evaluate.tree.function.operator.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public class ExpressionCompiler {
 
-    private final ExpressionLoader loader = new ExpressionLoader();
+    private final ClassIsolation isolation;
+    private final ExpressionLoader loader;
     private final List<Expression> outputs = new ArrayList<>();
 
+    private boolean overflowChecked = false;
+    private CostModel costModel = new CostModel();
+
+    public ExpressionCompiler() {
+        this(ClassIsolation.SHARED);
+    }
+
+    public ExpressionCompiler(ClassIsolation isolation) {
+        this(isolation, new ExpressionLoader());
+    }
+
+    /**
+     * @param loader The loader that classes are defined in when {@param isolation} is {@link ClassIsolation#SHARED}.
+     *               This allows many compilers, possibly on different threads, to share a single loader.
+     */
+    public ExpressionCompiler(ClassIsolation isolation, ExpressionLoader loader) {
+        if(isolation == ClassIsolation.HIDDEN && !HiddenClassDefiner.isSupported()) {
+            isolation = ClassIsolation.PER_EXPRESSION;
+        }
+
+        this.isolation = isolation;
+        this.loader = loader;
+    }
+
+    public ClassIsolation getIsolation() {
+        return isolation;
+    }
+
+    /**
+     * Set whether expressions compiled by {@link #compileLong} should throw an {@link ArithmeticException}
+     * when an addition, subtraction or multiplication overflows, instead of wrapping around.
+     *
+     * The outputs must then have been parsed with {@link net.sothatsit.evaluate.parser.ExpressionParser#setOverflowChecked},
+     * as otherwise the optimisers fold constants and re-associate operations as if they wrap, which can hide overflows.
+     */
+    public void setOverflowChecked(boolean overflowChecked) {
+        this.overflowChecked = overflowChecked;
+    }
+
+    /**
+     * Set the estimated costs of functions used to decide which common terms are worth computing once,
+     * such as the {@link Optimiser#getCostModel()} of the optimiser that the outputs were optimised by.
+     */
+    public void setCostModel(CostModel costModel) {
+        this.costModel = costModel;
+    }
+
     public int addOutput(Expression expression) {
         outputs.add(expression);
 
-        Collections.sort(outputs);
-
         return outputs.size() - 1;
     }
 
+    public List<Expression> getOutputs() {
+        return Collections.unmodifiableList(outputs);
+    }
+
     public int getInputCount() {
         int max = 0;
         for(Expression expression : outputs) {
@@ -31,10 +87,11 @@ public class ExpressionCompiler {
         return max;
     }
 
-    private List<Function> findNeededFunctionReferences() {
-        Set<Function> necessary = new HashSet<>();
+    private static List<Function> findNeededFunctionReferences(List<Expression> outputs) {
+        Set<Function> necessary = new LinkedHashSet<>();
         { // Find all the external functions that the expression uses
             Queue<Node> toCheck = new LinkedBlockingQueue<>();
+            Set<Node> checked = Collections.newSetFromMap(new IdentityHashMap<>());
 
             for(Expression expression : outputs) {
                 toCheck.add(expression.root);
@@ -43,11 +100,16 @@ public class ExpressionCompiler {
             while(!toCheck.isEmpty()) {
                 Node node = toCheck.poll();
 
+                // Nodes may be shared by many parents, and so are only checked the first time they are reached
+                if(!checked.add(node))
+                    continue;
+
+                Collections.addAll(toCheck, getChildren(node));
+
                 if(!(node instanceof AbstractFunctionNode))
                     continue;
 
                 AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
-                Collections.addAll(toCheck, functionNode.getArguments());
 
                 if(functionNode.getFunction() instanceof Compilable)
                     continue;
@@ -60,31 +122,191 @@ public class ExpressionCompiler {
     }
 
     public CompiledExpression compile() {
-        String name = loader.getNextName();
-        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        return compileClass().newInstance();
+    }
 
-        String className = name.replace('.', '/');
-        String classSuper = Type.getInternalName(CompiledExpression.class);
-        cw.visit(V1_8, ACC_PUBLIC, className, null, classSuper, null);
+    /**
+     * Create an expression that is interpreted until it has been evaluated {@param threshold} times,
+     * after which the current outputs of this compiler are compiled on {@param executor}.
+     */
+    public TieredExpression compileTiered(int threshold, Executor executor) {
+        ExpressionCompiler compiler = copy();
 
-        List<Function> fields = findNeededFunctionReferences();
-        { // Fields
-            for(Function function : fields) {
-                cw.visitField(ACC_PRIVATE | ACC_FINAL, function.getName(), getFunctionDesc(function), null, null).visitEnd();
-            }
+        return new TieredExpression(compiler.getOutputs(), getInputCount(), threshold, executor, compiler::compile);
+    }
+
+    /**
+     * Compile the current outputs of this compiler on {@param executor}.
+     *
+     * Outputs added to this compiler after this is called do not affect the result.
+     */
+    public CompletableFuture<CompiledExpression> compileAsync(Executor executor) {
+        return CompletableFuture.supplyAsync(copy()::compile, executor);
+    }
+
+    /**
+     * @return A compiler with the same outputs as this compiler, that shares its loader.
+     */
+    private ExpressionCompiler copy() {
+        ExpressionCompiler compiler = new ExpressionCompiler(isolation, loader);
+        compiler.setOverflowChecked(overflowChecked);
+        compiler.setCostModel(costModel);
+
+        for(Expression expression : outputs) {
+            compiler.addOutput(expression);
         }
 
-        { // Constructor
-            Class<?>[] parameterTypes = new Class<?>[2 + fields.size()];
-            {
-                parameterTypes[0] = int.class;
-                parameterTypes[1] = int.class;
-                for(int index = 0; index < fields.size(); ++index) {
-                    parameterTypes[2 + index] = getFunctionReferenceClass(fields.get(index));
+        return compiler;
+    }
+
+    /**
+     * Compile the outputs into an expression that computes in single precision.
+     *
+     * Functions whose {@link net.sothatsit.evaluate.optimiser.OptimiseOptions#isPrecisionSensitive}
+     * is set are still computed in double precision.
+     */
+    public CompiledFloatExpression compileFloat() {
+        return compileFloatClass().newInstance();
+    }
+
+    /**
+     * Compile the outputs, which must have been parsed as {@link NumberType#LONG}, into an expression of longs.
+     */
+    public CompiledLongExpression compileLong() {
+        return compileLongClass().newInstance();
+    }
+
+    /**
+     * Compile the outputs into a class, from which many {@link CompiledExpression}s can be created.
+     */
+    public CompiledClass<CompiledExpression> compileClass() {
+        return compileClass(NumberType.DOUBLE, CompiledExpression.class);
+    }
+
+    /**
+     * Compile the outputs into a class, from which many {@link CompiledFloatExpression}s can be created.
+     */
+    public CompiledClass<CompiledFloatExpression> compileFloatClass() {
+        return compileClass(NumberType.FLOAT, CompiledFloatExpression.class);
+    }
+
+    /**
+     * Compile the outputs into a class, from which many {@link CompiledLongExpression}s can be created.
+     */
+    public CompiledClass<CompiledLongExpression> compileLongClass() {
+        return compileClass(NumberType.LONG, CompiledLongExpression.class);
+    }
+
+    /**
+     * Compile the outputs and their gradients into an expression, where the gradients are
+     * derived symbolically from the outputs. See {@link CompiledGradientExpression}.
+     *
+     * @throws UnsupportedOperationException If an output uses a function that cannot be differentiated.
+     */
+    public CompiledGradientExpression compileGradient() {
+        return compileGradientClass().newInstance();
+    }
+
+    /**
+     * Compile the outputs and their gradients into a class, from which many {@link CompiledGradientExpression}s can be created.
+     */
+    public CompiledClass<CompiledGradientExpression> compileGradientClass() {
+        int inputCount = getInputCount();
+        List<Expression> gradients = new ArrayList<>();
+
+        for(Expression output : outputs) {
+            Expression[] gradient = output.gradient();
+
+            for(int index = 0; index < inputCount; ++index) {
+                if(index < gradient.length) {
+                    gradients.add(gradient[index]);
+                } else {
+                    gradients.add(new Expression(new ConstantNode(0.0), output.arguments));
                 }
             }
+        }
+
+        return compileClass(NumberType.DOUBLE, CompiledGradientExpression.class, gradients, false);
+    }
+
+    /**
+     * Compile the outputs into an expression that only recomputes the outputs
+     * affected by the inputs that have changed. See {@link CompiledIncrementalExpression}.
+     */
+    public CompiledIncrementalExpression compileIncremental() {
+        return compileIncrementalClass().newInstance();
+    }
+
+    /**
+     * Compile the outputs into a class, from which many {@link CompiledIncrementalExpression}s can be created.
+     */
+    public CompiledClass<CompiledIncrementalExpression> compileIncrementalClass() {
+        return compileClass(NumberType.DOUBLE, CompiledIncrementalExpression.class, null, true);
+    }
+
+    private <E> CompiledClass<E> compileClass(NumberType numberType, Class<E> expressionType) {
+        return compileClass(numberType, expressionType, null, false);
+    }
+
+    /**
+     * Compile the outputs into a subclass of {@param expressionType}, which computes in {@param numberType}.
+     *
+     * @param gradients   The gradients of the outputs to compute in evaluateGradient, or null if there is no such method.
+     * @param incremental Whether to generate the evaluateChanged method of {@link CompiledIncrementalExpression}.
+     */
+    private <E> CompiledClass<E> compileClass(NumberType numberType, Class<E> expressionType,
+                                              List<Expression> gradients, boolean incremental) {
+        // The operations in expressions of longs have different semantics, such as integer division
+        for(Expression output : outputs) {
+            if((output.numberType == NumberType.LONG) != (numberType == NumberType.LONG)) {
+                throw new IllegalStateException(
+                        "Cannot compile the " + output.numberType + " expression " + output + " as " + numberType
+                );
+            }
+
+            if(numberType == NumberType.LONG && overflowChecked && !output.overflowChecked) {
+                throw new IllegalStateException(
+                        "Cannot check the overflow of the expression " + output + ", which was optimised as if it wraps"
+                );
+            }
+        }
 
-            MethodCompiler mc = MethodCompiler.begin(cw, className, void.class, "<init>", parameterTypes);
+        ExpressionLoader loader;
+        String name;
+
+        switch(isolation) {
+            case SHARED:
+                loader = this.loader;
+                name = loader.getNextName();
+                break;
+            case PER_EXPRESSION:
+                loader = new ExpressionLoader();
+                name = loader.getNextName();
+                break;
+            case HIDDEN:
+                loader = null;
+                name = HiddenClassDefiner.CLASS_NAME;
+                break;
+            default:
+                throw new IllegalStateException("Unknown class isolation " + isolation);
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+
+        String className = name.replace('.', '/');
+        String classSuper = Type.getInternalName(expressionType);
+        cw.visit(V1_8, ACC_PUBLIC, className, null, classSuper, null);
+
+        // The values are computed again alongside their gradients, so that they can share common terms
+        List<Expression> valuesAndGradients = new ArrayList<>(outputs);
+        if(gradients != null) {
+            valuesAndGradients.addAll(gradients);
+        }
+
+        List<Function> functions = findNeededFunctionReferences(valuesAndGradients);
+
+        { // Constructor
+            MethodCompiler mc = MethodCompiler.begin(cw, className, void.class, "<init>", int.class, int.class);
 
             mc.loadThis();
             mc.varInsn(ILOAD, 1);
@@ -92,183 +314,1670 @@ public class ExpressionCompiler {
 
             mc.mv.visitMethodInsn(INVOKESPECIAL, classSuper, "<init>", "(II)V", false);
 
-            for(int index = 0; index < fields.size(); ++index) {
-                Function function = fields.get(index);
+            mc.end();
+        }
+
+        Class<?> array = numberType.arrayType;
+        Class<?> columns = numberType.columnsType;
 
-                mc.loadThis();
-                mc.varInsn(ALOAD, 3 + index);
-                mc.storeField(function.getName(), getFunctionDesc(function));
-            }
+        { // public void evaluate(double[] inputs, int inputOffset, double[] outputs, int outputOffset):
+            MethodCompiler mc = beginMethod(
+                    cw, className, functions, numberType, "evaluate",
+                    array, int.class, array, int.class
+            );
+
+            compileMethod(mc, new DataLayout.Offset(1, 2, 3, 4), outputs);
+
+            mc.end();
+        }
+
+        { // public void evaluateBatch(double[][] inputColumns, double[][] outputColumns, int from, int to):
+            MethodCompiler mc = beginMethod(
+                    cw, className, functions, numberType, "evaluateBatch",
+                    columns, columns, int.class, int.class
+            );
+
+            compileRowLoop(mc, new DataLayout.Columns(1, 2, 3), 3, 4);
+
+            mc.end();
+        }
+
+        { // public void evaluateStrided(double[] inputs, int inputStride, double[] outputs, int outputStride, int from, int to):
+            MethodCompiler mc = beginMethod(
+                    cw, className, functions, numberType, "evaluateStrided",
+                    array, int.class, array, int.class, int.class, int.class
+            );
+
+            compileRowLoop(mc, new DataLayout.Strided(1, 2, 3, 4, 5), 5, 6);
+
+            mc.end();
+        }
+
+        if(gradients != null) {
+            // public void evaluateGradient(double[] inputs, int inputOffset, double[] outputs, int outputOffset,
+            //                              double[] gradients, int gradientOffset):
+            MethodCompiler mc = beginMethod(
+                    cw, className, functions, numberType, "evaluateGradient",
+                    array, int.class, array, int.class, array, int.class
+            );
+
+            compileMethod(mc, new DataLayout.Gradient(1, 2, 3, 4, 5, 6, outputs.size()), valuesAndGradients);
+
+            mc.end();
+        }
+
+        if(incremental) {
+            // protected void evaluateChanged(double[] inputs, int inputOffset, double[] outputs, int outputOffset,
+            //                                long[] changed):
+            MethodCompiler mc = beginMethod(
+                    cw, className, functions, numberType, "evaluateChanged",
+                    array, int.class, array, int.class, long[].class
+            );
+
+            compileMethod(mc, new DataLayout.Offset(1, 2, 3, 4), outputs, new Incremental(cw, getInputCount(), 5));
 
             mc.end();
         }
 
-        { // public void evaluate():
-            MethodCompiler mc = MethodCompiler.begin(cw, className, void.class, "evaluate");
+        if(numberType == NumberType.DOUBLE) {
+            // public void evaluateSelected(double[] inputs, int inputOffset, double[] outputs, int outputOffset,
+            //                              long[] outputMask):
+            MethodCompiler mc = beginMethod(
+                    cw, className, functions, numberType, "evaluateSelected",
+                    array, int.class, array, int.class, long[].class
+            );
 
-            compileMethod(mc);
+            compileMethod(mc, new DataLayout.Offset(1, 2, 3, 4), outputs, new Selection(outputs, 5));
 
             mc.end();
         }
 
         cw.visitEnd();
 
-        return loader.load(name, fields, getInputCount(), outputs.size(), cw.toByteArray());
+        byte[] bytes = cw.toByteArray();
+
+        if(loader == null)
+            return define(expressionType, isolation, name, functions, getInputCount(), outputs.size(), bytes);
+
+        return loader.load(expressionType, name, functions, getInputCount(), outputs.size(), bytes);
     }
 
-    private void compileMethod(MethodCompiler mc) {
-        Map<Node, Integer> subtreeFrequencies = new HashMap<>();
-        {
-            Queue<Node> toCheck = new LinkedBlockingQueue<>();
+    /**
+     * Define a class that was previously generated by a compiler, such as one restored from a cache on disk.
+     */
+    public static CompiledClass<CompiledExpression> define(ClassIsolation isolation,
+                                                           String name,
+                                                           List<Function> functions,
+                                                           int inputCount,
+                                                           int outputCount,
+                                                           byte[] bytes) {
+
+        return define(isolation, null, name, functions, inputCount, outputCount, bytes);
+    }
 
-            for(Expression output : outputs) {
-                toCheck.add(output.root);
-            }
+    /**
+     * Define a class that was previously generated by a compiler, such as one restored from a cache on disk.
+     *
+     * @param loader The loader to define the class in when {@param isolation} is {@link ClassIsolation#SHARED},
+     *               in which case the class is renamed to the next name of the loader. If null, the class is
+     *               defined in a new loader.
+     */
+    public static CompiledClass<CompiledExpression> define(ClassIsolation isolation,
+                                                           ExpressionLoader loader,
+                                                           String name,
+                                                           List<Function> functions,
+                                                           int inputCount,
+                                                           int outputCount,
+                                                           byte[] bytes) {
+
+        return define(CompiledExpression.class, isolation, loader, name, functions, inputCount, outputCount, bytes);
+    }
 
-            while(!toCheck.isEmpty()) {
-                Node check = toCheck.poll();
-                Integer count = subtreeFrequencies.get(check);
+    /**
+     * Define a class that was previously generated by a compiler as a subclass of {@param expressionType}.
+     */
+    public static <E> CompiledClass<E> define(Class<E> expressionType,
+                                              ClassIsolation isolation,
+                                              String name,
+                                              List<Function> functions,
+                                              int inputCount,
+                                              int outputCount,
+                                              byte[] bytes) {
+
+        return define(expressionType, isolation, null, name, functions, inputCount, outputCount, bytes);
+    }
 
-                if(count == null) {
-                    subtreeFrequencies.put(check, 1);
+    private static <E> CompiledClass<E> define(Class<E> expressionType,
+                                               ClassIsolation isolation,
+                                               ExpressionLoader loader,
+                                               String name,
+                                               List<Function> functions,
+                                               int inputCount,
+                                               int outputCount,
+                                               byte[] bytes) {
 
-                    if(check instanceof AbstractFunctionNode) {
-                        Collections.addAll(toCheck, ((AbstractFunctionNode) check).getArguments());
-                    }
-                } else {
-                    subtreeFrequencies.put(check, 1 + count);
-                }
+        // Hidden classes must be named for the package they are defined in
+        if(isolation == ClassIsolation.HIDDEN
+                && HiddenClassDefiner.isSupported()
+                && name.equals(HiddenClassDefiner.CLASS_NAME)) {
+
+            Class<?> hidden = HiddenClassDefiner.define(bytes);
+            ClassGauge.track(hidden);
+
+            return new CompiledClass<>(expressionType, hidden, functions, inputCount, outputCount, bytes);
+        }
+
+        if(isolation == ClassIsolation.SHARED && loader != null)
+            return loader.loadRenamed(expressionType, name, functions, inputCount, outputCount, bytes);
+
+        return new ExpressionLoader().load(expressionType, name, functions, inputCount, outputCount, bytes);
+    }
+
+    /**
+     * Begin a public void method that computes in {@param numberType},
+     * in which calls to {@param functions} are linked through {@link FunctionLinker}.
+     */
+    private MethodCompiler beginMethod(ClassWriter cw, String className, List<Function> functions,
+                                       NumberType numberType, String methodName, Class<?>... parameterTypes) {
+
+        MethodCompiler mc = MethodCompiler.begin(cw, className, void.class, methodName, parameterTypes);
+        mc.setNumberType(numberType);
+        mc.setOverflowChecked(overflowChecked);
+        mc.linkFunctions(functions);
+
+        return mc;
+    }
+
+    /**
+     * Compile a loop that evaluates every row from the variable {@param fromVariable} (inclusive)
+     * to the variable {@param toVariable} (exclusive), with the row loop kept inside the generated
+     * method so that the JIT can hoist the array loads out of it.
+     */
+    private void compileRowLoop(MethodCompiler mc, DataLayout layout, int fromVariable, int toVariable) {
+        Set<Integer> usedInputs = findUsedInputs(outputs);
+        UnitSchedule schedule = new UnitSchedule(outputs, usedInputs, costModel);
+
+        beginLayout(mc, layout, schedule, usedInputs);
+        int sharedTermsVariable = beginSharedTerms(mc, schedule);
+
+        Label loop = mc.newLabel();
+        Label end = mc.newLabel();
+
+        mc.mark(loop);
+        mc.locals.loadVariable(fromVariable);
+        mc.locals.loadVariable(toVariable);
+        mc.jump(IF_ICMPGE, end);
+
+        compileSchedule(mc, layout, schedule, null, sharedTermsVariable);
+
+        layout.endRow(mc);
+        mc.jump(GOTO, loop);
+
+        mc.mark(end);
+        endSharedTerms(mc, sharedTermsVariable);
+    }
+
+    private void compileMethod(MethodCompiler mc, DataLayout layout, List<Expression> outputs) {
+        compileMethod(mc, layout, outputs, null);
+    }
+
+    /**
+     * @param guard If not null, decides which units can be skipped.
+     */
+    private void compileMethod(MethodCompiler mc, DataLayout layout, List<Expression> outputs, UnitGuard guard) {
+        Set<Integer> usedInputs = findUsedInputs(outputs);
+        UnitSchedule schedule = new UnitSchedule(outputs, usedInputs, costModel);
+
+        beginLayout(mc, layout, schedule, usedInputs);
+        int sharedTermsVariable = beginSharedTerms(mc, schedule);
+
+        compileSchedule(mc, layout, schedule, guard, sharedTermsVariable);
+        endSharedTerms(mc, sharedTermsVariable);
+    }
+
+    private static void beginLayout(MethodCompiler mc, DataLayout layout, UnitSchedule schedule, Set<Integer> usedInputs) {
+        // When the units are split into other methods, this method only uses the layout to advance between rows
+        if(schedule.isSplit()) {
+            layout.begin(mc, Collections.emptySet(), Collections.emptySet());
+        } else {
+            layout.begin(mc, usedInputs, schedule.getUsedOutputs(0));
+        }
+    }
+
+    /**
+     * Take the array that terms are passed through between the methods that {@param schedule} is split between
+     * from {@link SharedTerms}, so that it is reused between evaluations rather than allocated by each.
+     *
+     * @return The variable holding the array, or -1 if {@param schedule} is not split.
+     */
+    private static int beginSharedTerms(MethodCompiler mc, UnitSchedule schedule) {
+        if(!schedule.isSplit())
+            return -1;
+
+        NumberType numberType = mc.getNumberType();
+        String name = "take" + getSharedTermsSuffix(numberType);
+        int variable = mc.locals.newReferenceVariable();
+
+        mc.loadConstant(schedule.getSharedTermCount());
+        mc.invokeStatic(SharedTerms.class, name, numberType.arrayType, int.class);
+        mc.locals.storeVariable(variable);
+
+        return variable;
+    }
+
+    /**
+     * Release the array taken by {@link #beginSharedTerms}, if there is one.
+     */
+    private static void endSharedTerms(MethodCompiler mc, int sharedTermsVariable) {
+        if(sharedTermsVariable < 0)
+            return;
+
+        NumberType numberType = mc.getNumberType();
+        String name = "release" + getSharedTermsSuffix(numberType);
+
+        mc.locals.loadVariable(sharedTermsVariable);
+        mc.invokeStatic(SharedTerms.class, name, void.class, numberType.arrayType);
+    }
+
+    private static String getSharedTermsSuffix(NumberType numberType) {
+        switch(numberType) {
+            case DOUBLE:
+                return "Doubles";
+            case FLOAT:
+                return "Floats";
+            case LONG:
+                return "Longs";
+            default:
+                throw new IllegalStateException("Unknown number type " + numberType);
+        }
+    }
+
+    private static Set<Integer> findUsedInputs(List<Expression> outputs) {
+        Set<Integer> usedInputs = new TreeSet<>();
+        Queue<Node> toCheck = new LinkedBlockingQueue<>();
+        Set<Node> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for(Expression output : outputs) {
+            toCheck.add(output.root);
+        }
+
+        while(!toCheck.isEmpty()) {
+            Node node = toCheck.poll();
+
+            if(!checked.add(node))
+                continue;
+
+            if(node instanceof VariableNode) {
+                usedInputs.add(((VariableNode) node).index);
+            } else {
+                Collections.addAll(toCheck, getChildren(node));
             }
         }
 
-        List<Node> commonTerms = new ArrayList<>();
-        {
-            for(Map.Entry<Node, Integer> entry : subtreeFrequencies.entrySet()) {
-                if(entry.getKey() instanceof ConstantNode)
-                    continue;
+        return usedInputs;
+    }
 
-                // It takes more uses of a variable to outweigh the cost of storing it as a local.
-                if(entry.getKey() instanceof VariableNode && entry.getValue() < 3)
-                    continue;
+    /**
+     * Compile the units of {@param schedule}. If it is split, each chunk of units is compiled into its own private
+     * method, which takes the parameters of {@param mc} followed by the array of shared terms, and is called from
+     * {@param mc} in order.
+     *
+     * @param guard               If not null, decides which units can be skipped.
+     * @param sharedTermsVariable The variable returned by {@link #beginSharedTerms}.
+     */
+    private void compileSchedule(MethodCompiler mc, DataLayout layout, UnitSchedule schedule,
+                                 UnitGuard guard, int sharedTermsVariable) {
+
+        if(!schedule.isSplit()) {
+            compileUnits(mc, layout, schedule, 0, guard, -1);
+            return;
+        }
 
-                if(entry.getValue() < 2)
-                    continue;
+        Class<?>[] parameterTypes = Arrays.copyOf(mc.parameterTypes, mc.parameterTypes.length + 1);
+        parameterTypes[mc.parameterTypes.length] = mc.getNumberType().arrayType;
+
+        for(int chunk = 0; chunk < schedule.getChunkCount(); ++chunk) {
+            String name = mc.methodName + "$" + chunk;
 
-                commonTerms.add(entry.getKey());
+            mc.loadThis();
+            for(int parameter = 1; parameter <= mc.parameterTypes.length; ++parameter) {
+                mc.locals.loadVariable(parameter);
             }
+            mc.locals.loadVariable(sharedTermsVariable);
+            mc.invokePrivateMethod(name, parameterTypes);
+
+            MethodCompiler chunkMc = mc.beginPrivateMethod(name, parameterTypes);
+            DataLayout chunkLayout = layout.copy();
+
+            chunkLayout.begin(chunkMc, schedule.getUsedInputs(chunk), schedule.getUsedOutputs(chunk));
+            compileUnits(chunkMc, chunkLayout, schedule, chunk, guard, parameterTypes.length);
+
+            chunkMc.end();
+        }
+    }
 
-            Collections.sort(commonTerms, new Node.NodeComparator(false));
+    /**
+     * Compile the units in the chunk {@param chunk} of {@param schedule}.
+     *
+     * @param guard               If not null, decides which units can be skipped.
+     * @param sharedTermsVariable The variable holding the array that terms are passed through
+     *                            between chunks, or -1 if {@param schedule} is not split.
+     */
+    private void compileUnits(MethodCompiler mc, DataLayout layout, UnitSchedule schedule,
+                              int chunk, UnitGuard guard, int sharedTermsVariable) {
+
+        if(guard != null) {
+            guard.begin(mc);
         }
 
         Map<Node, Integer> preComputedTerms = new HashMap<>();
-        {
-            for (Node term : commonTerms) {
-                visitNode(preComputedTerms, mc, term);
 
-                int index = mc.locals.newDoubleVariable();
-                mc.locals.storeVariable(index);
-                preComputedTerms.put(term, index);
-
-                // System.err.println("Pre-computed " + term);
+        // Terms computed by earlier chunks are read from the shared array, except inputs, which are loaded again
+        for(Node term : schedule.getImportedTerms(chunk)) {
+            if(term instanceof VariableNode) {
+                layout.loadInput(mc, ((VariableNode) term).index);
+            } else {
+                mc.locals.loadVariable(sharedTermsVariable);
+                mc.loadConstant(schedule.getSharedTermSlot(term));
+                mc.arrayLoad();
             }
+
+            int variable = mc.locals.newValueVariable();
+            mc.locals.storeVariable(variable);
+            preComputedTerms.put(term, variable);
         }
 
-        for(int index = 0; index < outputs.size(); ++index) {
-            Expression output = outputs.get(index);
+        for(int unit = schedule.getChunkStart(chunk); unit < schedule.getChunkStart(chunk + 1); ++unit) {
+            Node node = schedule.units.get(unit);
+            int outputIndex = schedule.unitOutputs.get(unit);
 
-            visitNode(preComputedTerms, mc, output.root);
+            if(outputIndex >= 0) {
+                // Outputs that are skipped keep their previous value
+                Label skipped = (guard != null ? guard.jumpIfSkipped(mc, node, outputIndex) : null);
+
+                layout.beginOutput(mc, outputIndex);
+                visitNode(preComputedTerms, mc, layout, node);
+                layout.endOutput(mc, outputIndex);
+
+                if(skipped != null) {
+                    mc.mark(skipped);
+                }
+            } else if(guard != null && !(node instanceof VariableNode)) {
+                int variable = mc.locals.newValueVariable();
+
+                guard.compileTerm(mc, node, variable, () -> visitNode(preComputedTerms, mc, layout, node));
+                preComputedTerms.put(node, variable);
+            } else {
+                if(node instanceof VariableNode) {
+                    layout.loadInput(mc, ((VariableNode) node).index);
+                } else {
+                    visitNode(preComputedTerms, mc, layout, node);
+                }
 
-            mc.loadField(Type.getInternalName(CompiledExpression.class), "outputs", "[D");
-            mc.insn(DUP_X2);
-            mc.insn(POP);
+                int variable = mc.locals.newValueVariable();
+                mc.locals.storeVariable(variable);
+                preComputedTerms.put(node, variable);
+            }
 
-            mc.loadConstant(index);
-            mc.insn(DUP_X2);
-            mc.insn(POP);
+            // Terms used by later chunks are passed to them through the shared array
+            if(outputIndex < 0 && schedule.isShared(node)) {
+                mc.locals.loadVariable(sharedTermsVariable);
+                mc.loadConstant(schedule.getSharedTermSlot(node));
+                mc.locals.loadVariable(preComputedTerms.get(node));
+                mc.arrayStore();
+            }
 
-            mc.insn(DASTORE);
+            for(Node term : schedule.freedAfterUnit.get(unit)) {
+                mc.locals.freeValueVariable(preComputedTerms.remove(term));
+            }
         }
     }
 
-    private void visitNode(Map<Node, Integer> preComputedTerms, MethodCompiler mc, Node node) {
-        if(preComputedTerms.containsKey(node)) {
-            mc.locals.loadVariable(preComputedTerms.get(node));
-            return;
+    /**
+     * Emit the code to push the value of {@param node}.
+     *
+     * The arguments of functions are visited using an explicit stack rather than recursion,
+     * so that deep chains of functions do not overflow the stack.
+     */
+    private void visitNode(Map<Node, Integer> preComputedTerms, MethodCompiler mc, DataLayout layout, Node node) {
+        Deque<Object> stack = new ArrayDeque<>();
+
+        stack.push(node);
+
+        while(!stack.isEmpty()) {
+            Object next = stack.pop();
+
+            if(next instanceof FunctionCall) {
+                ((FunctionCall) next).compile(mc);
+                continue;
+            }
+
+            if(next == WIDEN_ARGUMENT) {
+                mc.convert(NumberType.FLOAT, NumberType.DOUBLE);
+                continue;
+            }
+
+            node = (Node) next;
+
+            if(preComputedTerms.containsKey(node)) {
+                mc.locals.loadVariable(preComputedTerms.get(node));
+                continue;
+            }
+
+            if(node instanceof ConstantNode) {
+                ConstantNode constant = (ConstantNode) node;
+
+                if(mc.getNumberType() == NumberType.LONG) {
+                    mc.loadConstant(constant.longValue);
+                } else {
+                    mc.loadConstant(constant.value);
+                }
+                continue;
+            }
+
+            if(node instanceof VariableNode) {
+                layout.loadInput(mc, ((VariableNode) node).index);
+                continue;
+            }
+
+            if(node instanceof IfNode) {
+                visitIf(preComputedTerms, mc, layout, (IfNode) node);
+                continue;
+            }
+
+            FunctionNode functionNode = (FunctionNode) node;
+            Function function = functionNode.function;
+            Node[] arguments = functionNode.arguments;
+
+            NumberType numberType = mc.getNumberType();
+            boolean widen = (numberType == NumberType.FLOAT && function.getOptimiseOptions().isPrecisionSensitive);
+
+            // The function is called once all of its arguments have been pushed, in order
+            stack.push(new FunctionCall(function, widen));
+
+            for(int index = arguments.length - 1; index >= 0; --index) {
+                if(widen) {
+                    stack.push(WIDEN_ARGUMENT);
+                }
+
+                stack.push(arguments[index]);
+            }
         }
+    }
+
+    private void visitIf(Map<Node, Integer> preComputedTerms, MethodCompiler mc, DataLayout layout, IfNode node) {
+        Label elseLabel = mc.newLabel();
+        Label end = mc.newLabel();
 
-        if(node instanceof ConstantNode) {
-            mc.loadConstant(((ConstantNode) node).value);
+        NumberType numberType = mc.getNumberType();
+
+        if(!isCheap(preComputedTerms, numberType, overflowChecked, node.thenNode)
+                || !isCheap(preComputedTerms, numberType, overflowChecked, node.elseNode)) {
+            visitCondition(preComputedTerms, mc, layout, node.condition, elseLabel);
+            visitNode(preComputedTerms, mc, layout, node.thenNode);
+            mc.jump(GOTO, end);
+
+            mc.mark(elseLabel);
+            visitNode(preComputedTerms, mc, layout, node.elseNode);
+
+            mc.mark(end);
             return;
         }
 
-        if(node instanceof VariableNode) {
-            mc.loadArgument(((VariableNode) node).index);
-            return;
+        // Both branches are cheap enough that it is better to evaluate them both and then
+        // only select between their values, which the JIT can compile to a conditional move.
+        int thenVariable = mc.locals.newValueVariable();
+        int elseVariable = mc.locals.newValueVariable();
+
+        visitNode(preComputedTerms, mc, layout, node.thenNode);
+        mc.locals.storeVariable(thenVariable);
+
+        visitNode(preComputedTerms, mc, layout, node.elseNode);
+        mc.locals.storeVariable(elseVariable);
+
+        visitCondition(preComputedTerms, mc, layout, node.condition, elseLabel);
+        mc.locals.loadVariable(thenVariable);
+        mc.jump(GOTO, end);
+
+        mc.mark(elseLabel);
+        mc.locals.loadVariable(elseVariable);
+
+        mc.mark(end);
+
+        mc.locals.freeValueVariable(thenVariable);
+        mc.locals.freeValueVariable(elseVariable);
+    }
+
+    /**
+     * Evaluate {@param condition}, jumping to {@param ifFalse} if it is false, and falling through if it is true.
+     *
+     * This avoids converting comparisons and logical operators into 1.0 or 0.0 only to test them again.
+     */
+    private void visitCondition(Map<Node, Integer> preComputedTerms, MethodCompiler mc,
+                                DataLayout layout, Node condition, Label ifFalse) {
+
+        if(!preComputedTerms.containsKey(condition)) {
+            if(condition instanceof ConstantNode) {
+                if(((ConstantNode) condition).value == 0) {
+                    mc.jump(GOTO, ifFalse);
+                }
+                return;
+            }
+
+            if(condition instanceof FunctionNode && ((FunctionNode) condition).function instanceof Comparison) {
+                FunctionNode comparison = (FunctionNode) condition;
+
+                visitNode(preComputedTerms, mc, layout, comparison.arguments[0]);
+                visitNode(preComputedTerms, mc, layout, comparison.arguments[1]);
+                ((Comparison) comparison.function).compileJump(mc, ifFalse);
+                return;
+            }
+
+            if(condition instanceof IfNode) {
+                IfNode ifNode = (IfNode) condition;
+                Label elseLabel = mc.newLabel();
+                Label end = mc.newLabel();
+
+                visitCondition(preComputedTerms, mc, layout, ifNode.condition, elseLabel);
+                visitCondition(preComputedTerms, mc, layout, ifNode.thenNode, ifFalse);
+                mc.jump(GOTO, end);
+
+                mc.mark(elseLabel);
+                visitCondition(preComputedTerms, mc, layout, ifNode.elseNode, ifFalse);
+
+                mc.mark(end);
+                return;
+            }
         }
 
+        visitNode(preComputedTerms, mc, layout, condition);
+        mc.loadConstant(0.0d);
+        mc.compareL();
+        mc.jump(IFEQ, ifFalse);
+    }
+
+    /**
+     * Whether {@param node} is cheap enough to evaluate that it is not worth branching to avoid evaluating it.
+     *
+     * When arithmetic on longs is checked for overflow, the branch not taken must never be evaluated, as it may throw.
+     */
+    private static boolean isCheap(Map<Node, Integer> preComputedTerms, NumberType numberType,
+                                   boolean overflowChecked, Node node) {
+        if(numberType == NumberType.LONG && overflowChecked)
+            return false;
+
+        if(preComputedTerms.containsKey(node) || node instanceof ConstantNode || node instanceof VariableNode)
+            return true;
+
+        if(!(node instanceof FunctionNode))
+            return false;
+
         FunctionNode functionNode = (FunctionNode) node;
         Function function = functionNode.function;
-        Node[] arguments = functionNode.arguments;
 
-        boolean varArgs = !(function instanceof Compilable       ||
-                            function instanceof ThreeArgFunction ||
-                            function instanceof TwoArgFunction   ||
-                            function instanceof OneArgFunction   ||
-                            function instanceof NoArgFunction);
+        if(function != Add.fn && function != Subtract.fn && function != Multiply.fn)
+            return false;
 
-        if(!(function instanceof Compilable)) {
-            mc.loadField(function.getName(), getFunctionDesc(function));
+        for(Node argument : functionNode.arguments) {
+            if(!preComputedTerms.containsKey(argument)
+                    && !(argument instanceof ConstantNode)
+                    && !(argument instanceof VariableNode))
+                return false;
         }
 
-        if(varArgs) {
-            mc.loadConstant(arguments.length);
-            mc.intInsn(NEWARRAY, T_DOUBLE);
+        return true;
+    }
+
+    /**
+     * Marks that the value of the argument just visited must be widened from a float to a double.
+     */
+    private static final Object WIDEN_ARGUMENT = new Object();
+
+    /**
+     * A call of a function, to be emitted by {@link #visitNode} once its arguments have been pushed.
+     */
+    private static class FunctionCall {
+
+        private final Function function;
+
+        /**
+         * Whether the function is computed in double precision, as it is precision-sensitive and the
+         * expression is of floats. Its arguments are then widened, and its result is narrowed.
+         */
+        private final boolean widen;
+
+        public FunctionCall(Function function, boolean widen) {
+            this.function = function;
+            this.widen = widen;
         }
 
-        for(int index = 0; index < arguments.length; ++index) {
-            Node argument = arguments[index];
+        public void compile(MethodCompiler mc) {
+            NumberType numberType = mc.getNumberType();
 
-            if(varArgs) {
-                mc.insn(DUP);
-                mc.loadConstant(index);
+            if(widen) {
+                mc.setNumberType(NumberType.DOUBLE);
             }
 
-            visitNode(preComputedTerms, mc, argument);
+            if(function instanceof Compilable) {
+                ((Compilable) function).compile(mc);
+            } else {
+                mc.invokeFunction(function);
+            }
 
-            if(varArgs) {
-                mc.insn(DASTORE);
+            if(widen) {
+                mc.setNumberType(numberType);
+                mc.convert(NumberType.DOUBLE, numberType);
             }
         }
+    }
 
-        if(function instanceof Compilable) {
-            ((Compilable) function).compile(mc);
-        } else if(function instanceof ThreeArgFunction) {
-            mc.method(ThreeArgFunction.class, "evaluate", 3);
-        } else if(function instanceof TwoArgFunction) {
-            mc.method(TwoArgFunction.class, "evaluate", 2);
-        } else if(function instanceof OneArgFunction) {
-            mc.method(OneArgFunction.class, "evaluate", 1);
-        } else if(function instanceof NoArgFunction) {
-            mc.method(NoArgFunction.class, "evaluate", 0);
-        } else {
-            mc.method(Function.class, "evaluate", double[].class);
+    private static Node[] getChildren(Node node) {
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
         }
+
+        return new Node[0];
     }
 
-    protected static Class<?> getFunctionReferenceClass(Function function) {
-        if(function instanceof ThreeArgFunction)
-            return ThreeArgFunction.class;
+    /**
+     * Add every term in {@param terms} that {@param node} depends on, and that has
+     * not already been scheduled, to {@param units}, after the terms it depends on.
+     */
+    private static void scheduleTerms(Set<Node> terms, Set<Node> scheduled, Node node,
+                                      List<Node> units, List<Integer> unitOutputs) {
+
+        if(scheduled.contains(node))
+            return;
 
-        if(function instanceof TwoArgFunction)
-            return TwoArgFunction.class;
+        // Each node is scheduled after its children, which are walked using an explicit stack
+        Deque<Node> stack = new ArrayDeque<>();
+        Deque<Integer> nextChildren = new ArrayDeque<>();
 
-        if(function instanceof OneArgFunction)
-            return OneArgFunction.class;
+        stack.push(node);
+        nextChildren.push(0);
 
-        else return Function.class;
-    }
+        while(!stack.isEmpty()) {
+            Node current = stack.peek();
+            Node[] children = getChildren(current);
+            int nextChild = nextChildren.pop();
+
+            if(nextChild < children.length) {
+                nextChildren.push(nextChild + 1);
+
+                if(!scheduled.contains(children[nextChild])) {
+                    stack.push(children[nextChild]);
+                    nextChildren.push(0);
+                }
+                continue;
+            }
 
-    private static String getFunctionDesc(Function function) {
-        return "L" + Type.getInternalName(getFunctionReferenceClass(function)) + ";";
+            stack.pop();
+
+            if(terms.contains(current)) {
+                scheduled.add(current);
+                units.add(current);
+                unitOutputs.add(-1);
+            }
+        }
+    }
+
+    /**
+     * Add every term in {@param terms} that is used directly by {@param node} to {@param uses}, in the order
+     * that they are first used.
+     */
+    private static void findUses(Set<Node> terms, Node node, Set<Node> uses) {
+        Deque<Node> toCheck = new ArrayDeque<>();
+
+        toCheck.push(node);
+
+        while(!toCheck.isEmpty()) {
+            Node check = toCheck.pop();
+
+            if(terms.contains(check)) {
+                uses.add(check);
+                continue;
+            }
+
+            Node[] children = getChildren(check);
+
+            for(int index = children.length - 1; index >= 0; --index) {
+                toCheck.push(children[index]);
+            }
+        }
+    }
+
+    /**
+     * The order in which the terms and outputs of a method are computed, and how they are split between methods.
+     *
+     * The code is emitted as a sequence of units, each either a term or an output. Each term is scheduled
+     * directly before the first unit that uses it, so that it is live for as short a time as possible, and
+     * the local holding it is freed for reuse after the last unit that uses it.
+     *
+     * HotSpot does not JIT-compile methods of more than 8000 bytes of bytecode, and no method can have more
+     * than 64KB. When the units are estimated to be too large for one method, they are split into chunks that
+     * are each compiled into their own method. Large subtrees are promoted to terms so that no single unit is
+     * too large for a chunk, and the boundaries between chunks are chosen where few terms are live, as the
+     * terms used by later chunks are passed to them through an array.
+     */
+    private static class UnitSchedule {
+
+        /**
+         * The maximum estimated size in bytes of the code of each chunk.
+         * This leaves room for the estimates being low, as they are rough.
+         */
+        private static final int MAX_CHUNK_SIZE = 5000;
+
+        /**
+         * The maximum estimated size in bytes of the code of a unit, when the units are split into chunks.
+         */
+        private static final int MAX_UNIT_SIZE = MAX_CHUNK_SIZE / 4;
+
+        /**
+         * Estimates of the sizes in bytes of the code to load a value from a local or constant, to load an input,
+         * to apply an arithmetic operator, to call a function or choose between branches, to store a unit,
+         * and to pass a term between chunks.
+         */
+        private static final int LOAD_SIZE = 3;
+        private static final int INPUT_SIZE = 6;
+        private static final int OPERATOR_SIZE = 1;
+        private static final int FUNCTION_SIZE = 5;
+        private static final int IF_SIZE = 12;
+        private static final int UNIT_SIZE = 24;
+        private static final int SHARED_TERM_SIZE = 10;
+
+        /**
+         * The estimated cost of storing a term in a local variable, or of loading it again, relative to
+         * the {@link CostModel#getCost(Function)} of functions.
+         */
+        private static final double LOCAL_VARIABLE_COST = 1;
+
+        private final List<Expression> outputs;
+        private final Set<Node> terms = new HashSet<>();
+
+        private final List<Node> units = new ArrayList<>();
+        private final List<Integer> unitOutputs = new ArrayList<>();
+
+        /**
+         * The terms used directly by each unit, in the order they are first used.
+         */
+        private final List<Set<Node>> unitUses = new ArrayList<>();
+        private final List<List<Node>> freedAfterUnit = new ArrayList<>();
+        private final Map<Node, Integer> termUnits = new HashMap<>();
+        private final Map<Node, Integer> lastUses = new HashMap<>();
+
+        /**
+         * The first unit of each chunk, followed by the number of units.
+         */
+        private final List<Integer> chunkStarts = new ArrayList<>();
+
+        /**
+         * The index in the shared array of each term that is used by a chunk after the one that computes it.
+         */
+        private final Map<Node, Integer> sharedTermSlots = new HashMap<>();
+
+        /**
+         * Whether each node that has been checked by {@link #isPure} only uses pure functions.
+         */
+        private final Map<Node, Boolean> purity = new IdentityHashMap<>();
+
+        private final CostModel costModel;
+
+        /**
+         * The estimated cost of each node that has been checked by {@link #isWorthComputingOnce}.
+         */
+        private final Map<Node, Double> costs = new IdentityHashMap<>();
+
+        public UnitSchedule(List<Expression> outputs, Set<Integer> usedInputs, CostModel costModel) {
+            this.outputs = outputs;
+            this.costModel = costModel;
+
+            findTerms(usedInputs);
+            scheduleUnits();
+
+            int[] sizes = estimateUnitSizes();
+            if(sum(sizes) <= MAX_CHUNK_SIZE) {
+                chunkStarts.add(0);
+                chunkStarts.add(units.size());
+                return;
+            }
+
+            // Split any units that are too large to fit in a chunk by promoting their subtrees to terms
+            int termCount = terms.size();
+            for(Expression output : outputs) {
+                limitSize(output.root);
+            }
+
+            if(terms.size() != termCount) {
+                scheduleUnits();
+                sizes = estimateUnitSizes();
+            }
+
+            splitUnits(sizes);
+        }
+
+        public boolean isSplit() {
+            return getChunkCount() > 1;
+        }
+
+        public int getChunkCount() {
+            return chunkStarts.size() - 1;
+        }
+
+        public int getChunkStart(int chunk) {
+            return chunkStarts.get(chunk);
+        }
+
+        public int getSharedTermCount() {
+            return sharedTermSlots.size();
+        }
+
+        public boolean isShared(Node term) {
+            return sharedTermSlots.containsKey(term);
+        }
+
+        public int getSharedTermSlot(Node term) {
+            return sharedTermSlots.get(term);
+        }
+
+        /**
+         * @return The terms used in {@param chunk} that are computed by an earlier chunk.
+         */
+        public Set<Node> getImportedTerms(int chunk) {
+            Set<Node> imported = new LinkedHashSet<>();
+
+            for(int unit = getChunkStart(chunk); unit < getChunkStart(chunk + 1); ++unit) {
+                for(Node term : unitUses.get(unit)) {
+                    if(termUnits.get(term) < getChunkStart(chunk)) {
+                        imported.add(term);
+                    }
+                }
+            }
+
+            return imported;
+        }
+
+        /**
+         * @return The inputs that are loaded by {@param chunk}.
+         */
+        public Set<Integer> getUsedInputs(int chunk) {
+            Set<Integer> usedInputs = new TreeSet<>();
+
+            for(Node term : getImportedTerms(chunk)) {
+                if(term instanceof VariableNode) {
+                    usedInputs.add(((VariableNode) term).index);
+                }
+            }
+
+            for(int unit = getChunkStart(chunk); unit < getChunkStart(chunk + 1); ++unit) {
+                if(units.get(unit) instanceof VariableNode) {
+                    usedInputs.add(((VariableNode) units.get(unit)).index);
+                }
+            }
+
+            return usedInputs;
+        }
+
+        /**
+         * @return The outputs that are stored by {@param chunk}.
+         */
+        public Set<Integer> getUsedOutputs(int chunk) {
+            Set<Integer> usedOutputs = new TreeSet<>();
+
+            for(int unit = getChunkStart(chunk); unit < getChunkStart(chunk + 1); ++unit) {
+                if(unitOutputs.get(unit) >= 0) {
+                    usedOutputs.add(unitOutputs.get(unit));
+                }
+            }
+
+            return usedOutputs;
+        }
+
+        /**
+         * Each used input is loaded into a local once. Common terms are computed once and kept in a local
+         * when the estimated cost of evaluating them again is more than the cost of keeping them.
+         */
+        private void findTerms(Set<Integer> usedInputs) {
+            for(int index : usedInputs) {
+                terms.add(new VariableNode(null, index));
+            }
+
+            List<Node> nodes = new ArrayList<>();
+            {
+                Set<Node> checked = new HashSet<>();
+                Queue<Node> toCheck = new LinkedBlockingQueue<>();
+
+                for(Expression output : outputs) {
+                    toCheck.add(output.root);
+                }
+
+                while(!toCheck.isEmpty()) {
+                    Node check = toCheck.poll();
+
+                    if(check instanceof ConstantNode || check instanceof VariableNode || !checked.add(check))
+                        continue;
+
+                    nodes.add(check);
+
+                    if(check instanceof AbstractFunctionNode) {
+                        Collections.addAll(toCheck, ((AbstractFunctionNode) check).getArguments());
+                    } else if(check instanceof IfNode) {
+                        // Only the condition is always evaluated, so only it can be safely
+                        // pre-computed. Terms pre-computed elsewhere are still used within the branches.
+                        toCheck.add(((IfNode) check).condition);
+                    }
+                }
+            }
+
+            // Nodes are checked from the tallest down, so that the number of times each node is evaluated
+            // includes each evaluation of the parents that use it, unless they are computed once themselves
+            nodes.sort(Comparator.comparingInt(Node::getHeight).reversed());
+
+            Map<Node, Integer> evaluations = new HashMap<>();
+
+            for(Expression output : outputs) {
+                evaluations.merge(output.root, 1, Integer::sum);
+            }
+
+            for(Node node : nodes) {
+                int count = evaluations.get(node);
+                boolean isTerm = (count > 1 && isWorthComputingOnce(node, count));
+
+                if(isTerm) {
+                    terms.add(node);
+                }
+
+                int childEvaluations = (isTerm ? 1 : count);
+
+                if(node instanceof AbstractFunctionNode) {
+                    for(Node argument : ((AbstractFunctionNode) node).getArguments()) {
+                        evaluations.merge(argument, childEvaluations, Integer::sum);
+                    }
+                } else if(node instanceof IfNode) {
+                    evaluations.merge(((IfNode) node).condition, childEvaluations, Integer::sum);
+                }
+            }
+        }
+
+        /**
+         * Whether {@param node}, which is evaluated {@param count} times, should be computed once and kept in a local.
+         */
+        private boolean isWorthComputingOnce(Node node, int count) {
+            // Impure terms must be evaluated once, as evaluating them again could give a different value
+            if(!isPure(node))
+                return true;
+
+            double savedCost = (count - 1) * costModel.getCost(node, costs);
+            double localCost = (count + 1) * LOCAL_VARIABLE_COST;
+
+            return savedCost > localCost;
+        }
+
+        private void scheduleUnits() {
+            units.clear();
+            unitOutputs.clear();
+            unitUses.clear();
+            freedAfterUnit.clear();
+            termUnits.clear();
+            lastUses.clear();
+
+            // More complicated outputs are evaluated first, although they are still stored at their original index
+            List<Integer> outputOrder = new ArrayList<>();
+            {
+                for(int index = 0; index < outputs.size(); ++index) {
+                    outputOrder.add(index);
+                }
+
+                Collections.sort(outputOrder, (one, two) -> outputs.get(one).compareTo(outputs.get(two)));
+            }
+
+            Set<Node> scheduled = new HashSet<>();
+
+            for(int index : outputOrder) {
+                Node root = outputs.get(index).root;
+
+                scheduleTerms(terms, scheduled, root, units, unitOutputs);
+
+                units.add(root);
+                unitOutputs.add(index);
+            }
+
+            for(int unit = 0; unit < units.size(); ++unit) {
+                Node node = units.get(unit);
+                Set<Node> uses = new LinkedHashSet<>();
+
+                if(unitOutputs.get(unit) >= 0) {
+                    findUses(terms, node, uses);
+                } else {
+                    termUnits.put(node, unit);
+
+                    for(Node child : getChildren(node)) {
+                        findUses(terms, child, uses);
+                    }
+                }
+
+                for(Node term : uses) {
+                    lastUses.put(term, unit);
+                }
+
+                unitUses.add(uses);
+                freedAfterUnit.add(new ArrayList<>());
+            }
+
+            for(int unit = 0; unit < units.size(); ++unit) {
+                if(unitOutputs.get(unit) >= 0)
+                    continue;
+
+                // Terms that are never used can be freed as soon as they have been computed
+                Integer lastUse = lastUses.get(units.get(unit));
+                freedAfterUnit.get(lastUse != null ? lastUse : unit).add(units.get(unit));
+            }
+        }
+
+        /**
+         * Split the units into chunks of at most {@link #MAX_CHUNK_SIZE}, where {@param sizes} holds the
+         * estimated size of each unit. Of the boundaries that fill at least three quarters of a chunk, the
+         * one with the fewest terms that are computed before it and used after it is chosen.
+         */
+        private void splitUnits(int[] sizes) {
+            int[] liveTerms = new int[units.size()];
+            {
+                int[] liveChanges = new int[units.size() + 1];
+
+                for(Map.Entry<Node, Integer> entry : termUnits.entrySet()) {
+                    Integer lastUse = lastUses.get(entry.getKey());
+
+                    // Inputs are loaded again by each chunk that uses them, rather than being shared
+                    if(lastUse == null || entry.getKey() instanceof VariableNode)
+                        continue;
+
+                    liveChanges[entry.getValue()] += 1;
+                    liveChanges[lastUse] -= 1;
+                }
+
+                int live = 0;
+                for(int unit = 0; unit < units.size(); ++unit) {
+                    live += liveChanges[unit];
+                    liveTerms[unit] = live;
+                }
+            }
+
+            int start = 0;
+            while(start < units.size()) {
+                chunkStarts.add(start);
+
+                // The estimated size of the chunk ending before each unit, including the
+                // code to read the terms it uses from earlier chunks and to pass on its terms
+                List<Integer> chunkSizes = new ArrayList<>();
+                {
+                    Set<Node> imported = new HashSet<>();
+                    int size = 0;
+                    int exported = 0;
+
+                    for(int unit = start; unit < units.size(); ++unit) {
+                        size += sizes[unit];
+
+                        for(Node term : unitUses.get(unit)) {
+                            if(termUnits.get(term) < start) {
+                                if(imported.add(term)) {
+                                    size += SHARED_TERM_SIZE;
+                                }
+                            } else if(lastUses.get(term) == unit && !(term instanceof VariableNode)) {
+                                exported -= 1;
+                            }
+                        }
+
+                        Integer lastUse = lastUses.get(units.get(unit));
+                        if(unitOutputs.get(unit) < 0 && lastUse != null && !(units.get(unit) instanceof VariableNode)) {
+                            exported += 1;
+                        }
+
+                        int chunkSize = size + exported * SHARED_TERM_SIZE;
+                        if(unit > start && chunkSize > MAX_CHUNK_SIZE)
+                            break;
+
+                        chunkSizes.add(chunkSize);
+                    }
+                }
+
+                int end = start + chunkSizes.size();
+                if(end == units.size())
+                    break;
+
+                int best = end;
+                for(int cut = end - 1; cut > start; --cut) {
+                    if(chunkSizes.get(cut - start - 1) < MAX_CHUNK_SIZE * 3 / 4)
+                        break;
+
+                    if(liveTerms[cut - 1] < liveTerms[best - 1]) {
+                        best = cut;
+                    }
+                }
+
+                start = best;
+            }
+
+            chunkStarts.add(units.size());
+
+            for(int chunk = 0; chunk < getChunkCount(); ++chunk) {
+                for(int unit = getChunkStart(chunk); unit < getChunkStart(chunk + 1); ++unit) {
+                    Node node = units.get(unit);
+                    Integer lastUse = lastUses.get(node);
+
+                    if(unitOutputs.get(unit) >= 0 || node instanceof VariableNode || lastUse == null)
+                        continue;
+
+                    if(lastUse >= getChunkStart(chunk + 1)) {
+                        sharedTermSlots.put(node, sharedTermSlots.size());
+                    }
+                }
+            }
+        }
+
+        private int[] estimateUnitSizes() {
+            int[] sizes = new int[units.size()];
+
+            for(int unit = 0; unit < units.size(); ++unit) {
+                Node node = units.get(unit);
+
+                if(unitOutputs.get(unit) >= 0) {
+                    sizes[unit] = UNIT_SIZE + estimateSize(node);
+                } else {
+                    sizes[unit] = UNIT_SIZE + estimateComputeSize(node);
+                }
+            }
+
+            return sizes;
+        }
+
+        /**
+         * @return An estimate of the size of the code to push the value of {@param node}.
+         */
+        private int estimateSize(Node node) {
+            if(terms.contains(node) || node instanceof ConstantNode)
+                return LOAD_SIZE;
+
+            return estimateComputeSize(node);
+        }
+
+        /**
+         * @return An estimate of the size of the code to compute {@param node} from its children.
+         */
+        private int estimateComputeSize(Node node) {
+            if(node instanceof ConstantNode)
+                return LOAD_SIZE;
+            if(node instanceof VariableNode)
+                return INPUT_SIZE;
+
+            int size = getOwnSize(node);
+            Deque<Node> toEstimate = new ArrayDeque<>();
+            Collections.addAll(toEstimate, getChildren(node));
+
+            while(!toEstimate.isEmpty()) {
+                Node child = toEstimate.pop();
+
+                if(terms.contains(child) || child instanceof ConstantNode) {
+                    size += LOAD_SIZE;
+                } else if(child instanceof VariableNode) {
+                    size += INPUT_SIZE;
+                } else {
+                    size += getOwnSize(child);
+                    Collections.addAll(toEstimate, getChildren(child));
+                }
+            }
+            return size;
+        }
+
+        /**
+         * @return An estimate of the size of the code that {@param node} adds to that of its children.
+         */
+        private static int getOwnSize(Node node) {
+            if(node instanceof IfNode)
+                return IF_SIZE;
+
+            Function function = ((AbstractFunctionNode) node).getFunction();
+            if(function == Add.fn || function == Subtract.fn || function == Multiply.fn || function == Divide.fn)
+                return OPERATOR_SIZE;
+
+            return FUNCTION_SIZE;
+        }
+
+        /**
+         * Promote the largest subtrees of {@param node} to terms until the code to compute it is estimated to be
+         * at most {@link #MAX_UNIT_SIZE}. Only subtrees that are always evaluated, and that only use pure
+         * functions, are promoted, as terms are computed unconditionally and ahead of the rest of their unit.
+         *
+         * The subtrees are limited after their children, which are walked using an explicit stack, and in order,
+         * as the terms promoted within each child change the sizes of those after it.
+         *
+         * @return The estimated size of the code to compute {@param node}.
+         */
+        private int limitSize(Node node) {
+            if(!(node instanceof AbstractFunctionNode) && !(node instanceof IfNode))
+                return estimateComputeSize(node);
+
+            Deque<SizeLimit> stack = new ArrayDeque<>();
+            int size = 0;
+
+            stack.push(new SizeLimit(node));
+
+            while(true) {
+                SizeLimit limit = stack.peek();
+
+                if(limit.nextArgument < limit.arguments.length) {
+                    Node argument = limit.arguments[limit.nextArgument];
+
+                    if(terms.contains(argument) || argument instanceof ConstantNode) {
+                        limit.sizes[limit.nextArgument++] = LOAD_SIZE;
+                    } else if(!(argument instanceof AbstractFunctionNode) && !(argument instanceof IfNode)) {
+                        limit.sizes[limit.nextArgument++] = estimateComputeSize(argument);
+                    } else {
+                        stack.push(new SizeLimit(argument));
+                    }
+                    continue;
+                }
+
+                stack.pop();
+                size = limit(limit);
+
+                if(stack.isEmpty())
+                    return size;
+
+                SizeLimit parent = stack.peek();
+                parent.sizes[parent.nextArgument++] = size;
+            }
+        }
+
+        /**
+         * Promote the largest arguments of {@param limit}, whose sizes have each been limited, until it is
+         * estimated to be at most {@link #MAX_UNIT_SIZE}.
+         *
+         * @return The estimated size of the code to compute the node of {@param limit}.
+         */
+        private int limit(SizeLimit limit) {
+            Node node = limit.node;
+            Node[] arguments = limit.arguments;
+            int[] sizes = limit.sizes;
+
+            if(node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+
+                return IF_SIZE + sizes[0] + estimateSize(ifNode.thenNode) + estimateSize(ifNode.elseNode);
+            }
+
+            int size = getOwnSize(node);
+            for(int argumentSize : sizes) {
+                size += argumentSize;
+            }
+
+            while(size > MAX_UNIT_SIZE) {
+                int largest = -1;
+                for(int index = 0; index < arguments.length; ++index) {
+                    if(sizes[index] <= LOAD_SIZE || !isPure(arguments[index]))
+                        continue;
+
+                    if(largest < 0 || sizes[index] > sizes[largest]) {
+                        largest = index;
+                    }
+                }
+
+                if(largest < 0)
+                    break;
+
+                terms.add(arguments[largest]);
+                size -= sizes[largest] - LOAD_SIZE;
+                sizes[largest] = LOAD_SIZE;
+            }
+
+            return size;
+        }
+
+        /**
+         * Whether {@param node} only uses pure functions.
+         *
+         * The result for each node is remembered, as the subtrees of long chains are checked repeatedly.
+         */
+        private boolean isPure(Node node) {
+            Deque<Node> stack = new ArrayDeque<>();
+
+            stack.push(node);
+
+            while(!stack.isEmpty()) {
+                Node current = stack.peek();
+
+                if(purity.containsKey(current)) {
+                    stack.pop();
+                    continue;
+                }
+
+                boolean pure = !(current instanceof AbstractFunctionNode)
+                        || ((AbstractFunctionNode) current).getFunction().getOptimiseOptions().isPure;
+                boolean childrenChecked = true;
+
+                for(Node child : getChildren(current)) {
+                    Boolean childPure = purity.get(child);
+
+                    if(childPure == null) {
+                        stack.push(child);
+                        childrenChecked = false;
+                    } else {
+                        pure &= childPure;
+                    }
+                }
+
+                if(!childrenChecked)
+                    continue;
+
+                stack.pop();
+                purity.put(current, pure);
+            }
+
+            return purity.get(node);
+        }
+
+        private static int sum(int[] values) {
+            int sum = 0;
+            for(int value : values) {
+                sum += value;
+            }
+            return sum;
+        }
+
+        /**
+         * A node whose size is being limited by {@link #limitSize}, and the sizes of its arguments that
+         * have been limited so far. Only the condition of if statements is limited, as the branches are
+         * not always evaluated.
+         */
+        private static class SizeLimit {
+
+            public final Node node;
+            public final Node[] arguments;
+            public final int[] sizes;
+            public int nextArgument = 0;
+
+            public SizeLimit(Node node) {
+                this.node = node;
+
+                if(node instanceof IfNode) {
+                    this.arguments = new Node[] {((IfNode) node).condition};
+                } else {
+                    this.arguments = ((AbstractFunctionNode) node).getArguments();
+                }
+
+                this.sizes = new int[arguments.length];
+            }
+        }
+    }
+
+    /**
+     * Emits checks of whether each unit needs to be computed against a bitset passed to the method, such that
+     * units whose bits are all clear are skipped.
+     */
+    private static abstract class UnitGuard {
+
+        /**
+         * The parameter variable that holds the bitset.
+         */
+        private final int maskVariable;
+
+        /**
+         * The variables that the words of the bitset are loaded into.
+         */
+        private final int[] maskWordVariables;
+
+        public UnitGuard(int maskVariable, int maskLength) {
+            this.maskVariable = maskVariable;
+            this.maskWordVariables = new int[maskLength];
+        }
+
+        /**
+         * Load the words of the bitset into locals, so that the checks of each unit are kept small.
+         *
+         * This is called at the start of each method that the units are compiled into.
+         */
+        public void begin(MethodCompiler mc) {
+            for(int word = 0; word < maskWordVariables.length; ++word) {
+                maskWordVariables[word] = mc.locals.newValueVariable(NumberType.LONG);
+
+                mc.locals.loadVariable(maskVariable);
+                mc.loadConstant(word);
+                mc.insn(LALOAD);
+                mc.locals.storeVariable(maskWordVariables[word]);
+            }
+        }
+
+        /**
+         * @param outputIndex The index of the output that {@param node} is the root of, or -1 if it is a term.
+         *
+         * @return The bits of the bitset of which any being set means {@param node} has to be computed,
+         *         or null if it always has to be computed.
+         */
+        protected abstract long[] findMask(Node node, int outputIndex);
+
+        /**
+         * Jump to the returned label if {@param node} does not need to be computed.
+         *
+         * @return The label to mark after the code that computes {@param node}, or null if it is always computed.
+         */
+        public Label jumpIfSkipped(MethodCompiler mc, Node node, int outputIndex) {
+            long[] mask = findMask(node, outputIndex);
+            if(mask == null)
+                return null;
+
+            Label computed = mc.newLabel();
+            Label skipped = mc.newLabel();
+
+            int lastWord = mask.length - 1;
+            while(lastWord >= 0 && mask[lastWord] == 0) {
+                lastWord -= 1;
+            }
+
+            if(lastWord < 0) {
+                mc.jump(GOTO, skipped);
+                return skipped;
+            }
+
+            for(int word = 0; word <= lastWord; ++word) {
+                if(mask[word] == 0)
+                    continue;
+
+                mc.locals.loadVariable(maskWordVariables[word]);
+                mc.loadConstant(mask[word]);
+                mc.insn(LAND);
+                mc.insn(LCONST_0);
+                mc.insn(LCMP);
+
+                // Any of the words having a bit set means the unit has to be computed
+                if(word < lastWord) {
+                    mc.jump(IFNE, computed);
+                } else {
+                    mc.jump(IFEQ, skipped);
+                }
+            }
+
+            mc.mark(computed);
+
+            return skipped;
+        }
+
+        /**
+         * Compute {@param term} using {@param compute} into {@param variable}, unless it can be skipped.
+         */
+        public void compileTerm(MethodCompiler mc, Node term, int variable, Runnable compute) {
+            Label skipped = jumpIfSkipped(mc, term, -1);
+            Label end = mc.newLabel();
+
+            compute.run();
+            mc.locals.storeVariable(variable);
+            storeTerm(mc, variable);
+
+            if(skipped != null) {
+                mc.jump(GOTO, end);
+
+                // The variable is still assigned when the term is skipped, so that the method passes verification
+                mc.mark(skipped);
+                loadSkippedTerm(mc);
+                mc.locals.storeVariable(variable);
+            }
+
+            mc.mark(end);
+        }
+
+        /**
+         * Called after a term has been computed into {@param variable}.
+         */
+        protected abstract void storeTerm(MethodCompiler mc, int variable);
+
+        /**
+         * Load the value to use for the term last passed to {@link #storeTerm} when it is skipped.
+         */
+        protected abstract void loadSkippedTerm(MethodCompiler mc);
+    }
+
+    /**
+     * Skips the units of an incremental evaluation that do not depend on an input that has changed,
+     * and caches the values of terms in fields for when they are skipped.
+     */
+    private static class Incremental extends UnitGuard {
+
+        private final ClassWriter cw;
+        private final int inputCount;
+
+        private int termCount = 0;
+        private String termField = null;
+
+        public Incremental(ClassWriter cw, int inputCount, int changedVariable) {
+            super(changedVariable, inputCount / 64 + 1);
+
+            this.cw = cw;
+            this.inputCount = inputCount;
+        }
+
+        @Override
+        protected long[] findMask(Node node, int outputIndex) {
+            long[] mask = new long[inputCount / 64 + 1];
+
+            // The bit after the last input is only set before the first evaluation
+            mask[inputCount >> 6] |= 1L << inputCount;
+
+            if(!findDependencies(node, mask))
+                return null;
+
+            return mask;
+        }
+
+        @Override
+        protected void storeTerm(MethodCompiler mc, int variable) {
+            termField = "term" + (termCount++);
+
+            String desc = mc.getNumberType().getDescriptor();
+            cw.visitField(ACC_PRIVATE, termField, desc, null, null).visitEnd();
+
+            mc.loadThis();
+            mc.locals.loadVariable(variable);
+            mc.mv.visitFieldInsn(PUTFIELD, mc.className, termField, desc);
+        }
+
+        @Override
+        protected void loadSkippedTerm(MethodCompiler mc) {
+            mc.loadField(termField, mc.getNumberType().getDescriptor());
+        }
+
+        /**
+         * Set the bit in {@param mask} of every input that {@param node} depends on.
+         *
+         * @return Whether {@param node} only uses pure functions.
+         */
+        private static boolean findDependencies(Node node, long[] mask) {
+            Deque<Node> toCheck = new ArrayDeque<>();
+            Set<Node> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+
+            toCheck.push(node);
+
+            while(!toCheck.isEmpty()) {
+                Node check = toCheck.pop();
+
+                if(!checked.add(check))
+                    continue;
+
+                if(check instanceof VariableNode) {
+                    int index = ((VariableNode) check).index;
+
+                    mask[index >> 6] |= 1L << index;
+                    continue;
+                }
+
+                if(check instanceof AbstractFunctionNode
+                        && !((AbstractFunctionNode) check).getFunction().getOptimiseOptions().isPure)
+                    return false;
+
+                Collections.addAll(toCheck, getChildren(check));
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Skips the outputs that have not been selected, and the terms that are only used by them.
+     */
+    private static class Selection extends UnitGuard {
+
+        /**
+         * The outputs that use each node.
+         */
+        private final Map<Node, long[]> users = new HashMap<>();
+
+        public Selection(List<Expression> outputs, int outputMaskVariable) {
+            super(outputMaskVariable, CompiledExpression.getOutputMaskLength(outputs.size()));
+
+            for(int index = 0; index < outputs.size(); ++index) {
+                markUsers(outputs.get(index).root, index, outputs.size());
+            }
+        }
+
+        private void markUsers(Node root, int outputIndex, int outputCount) {
+            Deque<Node> toMark = new ArrayDeque<>();
+            long bit = 1L << outputIndex;
+
+            toMark.push(root);
+
+            while(!toMark.isEmpty()) {
+                Node node = toMark.pop();
+                long[] mask = users.computeIfAbsent(
+                        node, key -> new long[CompiledExpression.getOutputMaskLength(outputCount)]
+                );
+
+                if((mask[outputIndex >> 6] & bit) != 0)
+                    continue;
+
+                mask[outputIndex >> 6] |= bit;
+
+                Collections.addAll(toMark, getChildren(node));
+            }
+        }
+
+        @Override
+        protected long[] findMask(Node node, int outputIndex) {
+            if(outputIndex < 0)
+                return users.get(node);
+
+            long[] mask = new long[CompiledExpression.getOutputMaskLength(outputIndex + 1)];
+            mask[outputIndex >> 6] = 1L << outputIndex;
+
+            return mask;
+        }
+
+        @Override
+        protected void storeTerm(MethodCompiler mc, int variable) {}
+
+        @Override
+        protected void loadSkippedTerm(MethodCompiler mc) {
+            mc.loadConstant(0.0);
+        }
     }
 }
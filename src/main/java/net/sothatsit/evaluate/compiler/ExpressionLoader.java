@@ -1,13 +1,18 @@
 package net.sothatsit.evaluate.compiler;
 
+import jdk.internal.org.objectweb.asm.ClassReader;
+import jdk.internal.org.objectweb.asm.ClassWriter;
+import jdk.internal.org.objectweb.asm.commons.ClassRemapper;
+import jdk.internal.org.objectweb.asm.commons.SimpleRemapper;
 import net.sothatsit.evaluate.tree.function.Function;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.util.List;
 
+/**
+ * Defines the classes generated by {@link ExpressionCompiler}.
+ *
+ * Many compilers on different threads may share a loader, so naming and defining classes is synchronised.
+ */
 public class ExpressionLoader extends ClassLoader {
 
     private static final String PACKAGE = "net.sothatsit.evaluate.compiled";
@@ -15,7 +20,11 @@ public class ExpressionLoader extends ClassLoader {
 
     private long counter = 0;
 
-    public String getNextName() {
+    public ExpressionLoader() {
+        super(ExpressionLoader.class.getClassLoader());
+    }
+
+    public synchronized String getNextName() {
         do {
             counter += 1;
         } while(findLoadedClass(PACKAGE + "." + CLASS_NAME + "$" + counter) != null);
@@ -23,48 +32,61 @@ public class ExpressionLoader extends ClassLoader {
         return PACKAGE + "." + CLASS_NAME + "$" + counter;
     }
 
-    public void write(byte[] bytes) throws IOException {
-        File output = new File("/Users/159503/Desktop/compiled.class");
-
-        FileOutputStream fos = new FileOutputStream(output);
+    public CompiledClass<CompiledExpression> load(String name,
+                                                  List<Function> fields,
+                                                  int inputCount,
+                                                  int outputCount,
+                                                  byte[] bytes) {
 
-        fos.write(bytes);
-        fos.flush();
-        fos.close();
+        return load(CompiledExpression.class, name, fields, inputCount, outputCount, bytes);
     }
 
-    public CompiledExpression load(String name,
-                                   List<Function> fields,
-                                   int inputCount,
-                                   int outputCount,
-                                   byte[] bytes) {
+    public <E> CompiledClass<E> load(Class<E> expressionType,
+                                     String name,
+                                     List<Function> fields,
+                                     int inputCount,
+                                     int outputCount,
+                                     byte[] bytes) {
 
-        try {
-            write(bytes);
-        } catch (IOException e) {
-            e.printStackTrace();
+        return new CompiledClass<>(expressionType, define(name, bytes), fields, inputCount, outputCount, bytes);
+    }
+
+    /**
+     * Define {@param bytes}, a class that was generated as {@param name} for another loader, under the next name
+     * of this loader. Names are only unique within the loader they were taken from, and so a class restored
+     * from a cache on disk may have the same name as a class that was already defined in this loader.
+     */
+    public <E> CompiledClass<E> loadRenamed(Class<E> expressionType,
+                                            String name,
+                                            List<Function> fields,
+                                            int inputCount,
+                                            int outputCount,
+                                            byte[] bytes) {
+
+        String newName = getNextName();
+
+        if(!newName.equals(name)) {
+            bytes = rename(bytes, name, newName);
         }
 
-        Class<?> loaded = defineClass(name, bytes, 0, bytes.length);
-        Class<? extends CompiledExpression> clazz = loaded.asSubclass(CompiledExpression.class);
+        return load(expressionType, newName, fields, inputCount, outputCount, bytes);
+    }
 
-        try {
-            Class<?>[] argumentTypes = new Class<?>[2 + fields.size()];
+    private static byte[] rename(byte[] bytes, String name, String newName) {
+        ClassReader reader = new ClassReader(bytes);
+        ClassWriter writer = new ClassWriter(0);
 
-            argumentTypes[0] = int.class;
-            argumentTypes[1] = int.class;
-            for(int index = 0; index < fields.size(); ++index) {
-                argumentTypes[2 + index] = ExpressionCompiler.getFunctionReferenceClass(fields.get(index));
-            }
+        SimpleRemapper remapper = new SimpleRemapper(name.replace('.', '/'), newName.replace('.', '/'));
+        reader.accept(new ClassRemapper(writer, remapper), 0);
 
-            Object[] arguments = new Object[2 + fields.size()];
-            arguments[0] = inputCount;
-            arguments[1] = outputCount;
-            System.arraycopy(fields.toArray(), 0, arguments, 2, fields.size());
+        return writer.toByteArray();
+    }
 
-            return clazz.getConstructor(argumentTypes).newInstance(arguments);
-        } catch (InvocationTargetException | NoSuchMethodException | InstantiationException | IllegalAccessException e) {
-            throw new RuntimeException("Compilation failed", e);
-        }
+    public synchronized Class<?> define(String name, byte[] bytes) {
+        Class<?> loaded = defineClass(name, bytes, 0, bytes.length);
+
+        ClassGauge.track(loaded);
+
+        return loaded;
     }
 }
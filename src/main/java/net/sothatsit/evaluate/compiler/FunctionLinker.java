@@ -0,0 +1,84 @@
+package net.sothatsit.evaluate.compiler;
+
+import jdk.internal.org.objectweb.asm.Handle;
+import jdk.internal.org.objectweb.asm.Type;
+import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.LongFunction;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+import static jdk.internal.org.objectweb.asm.Opcodes.H_INVOKESTATIC;
+
+/**
+ * Links the invokedynamic call sites used by compiled classes to call functions that are not {@link Compilable}.
+ *
+ * Each call site is bound to a {@link ConstantCallSite} targeting the function, so that the
+ * JIT treats the function as a constant and can inline it into the compiled expression.
+ */
+public class FunctionLinker {
+
+    public static final Handle BOOTSTRAP = new Handle(
+            H_INVOKESTATIC,
+            Type.getInternalName(FunctionLinker.class),
+            "bootstrap",
+            MethodType.methodType(
+                    CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class, int.class
+            ).toMethodDescriptorString(),
+            false
+    );
+
+    /**
+     * Weakly keyed, so that registering a class does not prevent it from being unloaded.
+     */
+    private static final Map<Class<?>, List<Function>> registry = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Register the functions that are called by {@param clazz}. Must be called before the class is used.
+     */
+    public static void register(Class<?> clazz, List<Function> functions) {
+        registry.put(clazz, functions);
+    }
+
+    /**
+     * Called by the JVM the first time each call site of a compiled class is executed.
+     *
+     * @param index The index of the function in the list registered for the calling class.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, int index) {
+        List<Function> functions = registry.get(lookup.lookupClass());
+
+        if(functions == null)
+            throw new IllegalStateException("No functions have been registered for " + lookup.lookupClass());
+        if(index < 0 || index >= functions.size())
+            throw new IllegalStateException("Unknown function index " + index + " in " + lookup.lookupClass());
+
+        Function function = functions.get(index);
+        MethodHandle target;
+
+        if(type.returnType() == long.class && function instanceof LongFunction) {
+            target = getLongFunctionHandle((LongFunction) function);
+        } else {
+            target = MethodHandleCompiler.getFunctionHandle(function);
+        }
+
+        // Call sites in float code widen their arguments to doubles, and narrow the result
+        return new ConstantCallSite(MethodHandles.explicitCastArguments(target, type));
+    }
+
+    /**
+     * @return A handle that takes one long per argument of {@param function}, and returns a long.
+     */
+    private static MethodHandle getLongFunctionHandle(LongFunction function) {
+        MethodType type = MethodType.methodType(long.class, long[].class);
+        MethodHandle evaluate;
+
+        try {
+            evaluate = MethodHandles.publicLookup().findVirtual(LongFunction.class, "evaluateLong", type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Unable to find LongFunction.evaluateLong", e);
+        }
+
+        return evaluate.bindTo(function).asCollector(long[].class, function.getArgumentCount());
+    }
+}
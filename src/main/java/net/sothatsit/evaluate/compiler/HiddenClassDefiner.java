@@ -0,0 +1,61 @@
+package net.sothatsit.evaluate.compiler;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Defines hidden classes using {@code MethodHandles.Lookup#defineHiddenClass}.
+ *
+ * This is accessed reflectively so that the library can still be run on runtimes without hidden classes.
+ */
+public class HiddenClassDefiner {
+
+    /**
+     * Hidden classes must be in the same package as the lookup used to define them.
+     */
+    public static final String CLASS_NAME = "net.sothatsit.evaluate.compiler.CompiledExpression$Hidden";
+
+    private static final Method defineHiddenClass;
+    private static final Object noOptions;
+
+    static {
+        Method method = null;
+        Object options = null;
+
+        try {
+            Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(optionClass, 0);
+
+            method = MethodHandles.Lookup.class.getMethod(
+                    "defineHiddenClass", byte[].class, boolean.class, options.getClass()
+            );
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // Hidden classes are not supported by this runtime
+        }
+
+        defineHiddenClass = method;
+        noOptions = options;
+    }
+
+    public static boolean isSupported() {
+        return defineHiddenClass != null;
+    }
+
+    /**
+     * Define the class {@param bytes}, which must be named {@link #CLASS_NAME}, as a hidden class.
+     */
+    public static Class<?> define(byte[] bytes) {
+        if(!isSupported())
+            throw new UnsupportedOperationException("Hidden classes are not supported by this runtime");
+
+        try {
+            Object lookup = defineHiddenClass.invoke(MethodHandles.lookup(), bytes, true, noOptions);
+
+            return ((MethodHandles.Lookup) lookup).lookupClass();
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException("Unable to define hidden class", e);
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package net.sothatsit.evaluate.compiler;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import static jdk.internal.org.objectweb.asm.Opcodes.*;
 
@@ -15,12 +17,15 @@ public class Locals {
     private final List<Local> referenceTemporaries;
     private final List<Local> doubleTemporaries;
 
+    private final Map<NumberType, List<Integer>> freeValueVariables;
+
     public Locals(MethodCompiler mc) {
         this.mc = mc;
         this.locals = new ArrayList<>();
         this.variables = new ArrayList<>();
         this.referenceTemporaries = new ArrayList<>();
         this.doubleTemporaries = new ArrayList<>();
+        this.freeValueVariables = new EnumMap<>(NumberType.class);
 
         newReferenceVariable(); // Add the "this" local
     }
@@ -80,7 +85,74 @@ public class Locals {
     }
 
     public int newDoubleVariable() {
-        return newVariable(newDoubleLocal());
+        return newValueVariable(NumberType.DOUBLE);
+    }
+
+    /**
+     * Create a variable that holds a value of the method's number type.
+     */
+    public int newValueVariable() {
+        return newValueVariable(mc.getNumberType());
+    }
+
+    /**
+     * Create a variable of type {@param type}, reusing a variable released by {@link #freeValueVariable} if there is one.
+     */
+    public int newValueVariable(NumberType type) {
+        List<Integer> free = freeValueVariables.get(type);
+
+        if(free != null && !free.isEmpty())
+            return free.remove(free.size() - 1);
+
+        return newVariable(newValueLocal(type));
+    }
+
+    /**
+     * Release the variable {@param index} created by {@link #newValueVariable}, as its value will not be used again.
+     */
+    public void freeValueVariable(int index) {
+        Local local = variables.get(index);
+
+        if(!(local instanceof ValueLocal))
+            throw new IllegalArgumentException("Variable " + index + " is not a value variable");
+
+        List<Integer> free = freeValueVariables.computeIfAbsent(((ValueLocal) local).type, type -> new ArrayList<>());
+
+        if(free.contains(index))
+            throw new IllegalArgumentException("Variable " + index + " has already been freed");
+
+        free.add(index);
+    }
+
+    public int newIntVariable() {
+        return newVariable(newIntLocal());
+    }
+
+    /**
+     * Create a new variable to hold a parameter of type {@param type}.
+     */
+    public int newParameterVariable(Class<?> type) {
+        for(NumberType numberType : NumberType.values()) {
+            if(type.equals(numberType.type))
+                return newValueVariable(numberType);
+        }
+
+        if(type.equals(int.class))
+            return newIntVariable();
+
+        if(type.isPrimitive())
+            throw new IllegalArgumentException("Unsupported parameter type " + type);
+
+        return newReferenceVariable();
+    }
+
+    public void incrementVariable(int index, int amount) {
+        Local local = variables.get(index);
+
+        if(!(local instanceof IntLocal))
+            throw new IllegalArgumentException("Only int variables can be incremented");
+
+        mc.mv.visitIincInsn(findBytecodeIndex(local), amount);
     }
 
     public void loadReferenceTemporary(int index) {
@@ -147,22 +219,19 @@ public class Locals {
     }
 
     private Local newDoubleLocal() {
-        Local local = new Local(2) {
-            @Override
-            public void store(int bytecodeIndex) {
-                mc.varInsn(DSTORE, bytecodeIndex);
-            }
+        return newValueLocal(NumberType.DOUBLE);
+    }
 
-            @Override
-            public void load(int bytecodeIndex) {
-                mc.varInsn(DLOAD, bytecodeIndex);
-            }
+    private Local newValueLocal(NumberType type) {
+        Local local = new ValueLocal(type);
 
-            @Override
-            public String toString() {
-                return "{Double Local}";
-            }
-        };
+        locals.add(local);
+
+        return local;
+    }
+
+    private Local newIntLocal() {
+        Local local = new IntLocal();
 
         locals.add(local);
 
@@ -184,4 +253,58 @@ public class Locals {
 
         public abstract void load(int bytecodeIndex);
     }
+
+    /**
+     * A local variable slot holding an int.
+     */
+    private class IntLocal extends Local {
+
+        public IntLocal() {
+            super(1);
+        }
+
+        @Override
+        public void store(int bytecodeIndex) {
+            mc.varInsn(ISTORE, bytecodeIndex);
+        }
+
+        @Override
+        public void load(int bytecodeIndex) {
+            mc.varInsn(ILOAD, bytecodeIndex);
+        }
+
+        @Override
+        public String toString() {
+            return "{Int Local}";
+        }
+    }
+
+    /**
+     * A local variable slot holding a value of a {@link NumberType}.
+     */
+    private class ValueLocal extends Local {
+
+        public final NumberType type;
+
+        public ValueLocal(NumberType type) {
+            super(type.width);
+
+            this.type = type;
+        }
+
+        @Override
+        public void store(int bytecodeIndex) {
+            mc.varInsn(type.storeOpcode, bytecodeIndex);
+        }
+
+        @Override
+        public void load(int bytecodeIndex) {
+            mc.varInsn(type.loadOpcode, bytecodeIndex);
+        }
+
+        @Override
+        public String toString() {
+            return "{" + type + " Local}";
+        }
+    }
 }
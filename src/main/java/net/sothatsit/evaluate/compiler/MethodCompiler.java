@@ -1,25 +1,41 @@
 package net.sothatsit.evaluate.compiler;
 
 import jdk.internal.org.objectweb.asm.ClassVisitor;
+import jdk.internal.org.objectweb.asm.Label;
 import jdk.internal.org.objectweb.asm.MethodVisitor;
 import jdk.internal.org.objectweb.asm.Type;
+import net.sothatsit.evaluate.tree.function.Function;
 
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static jdk.internal.org.objectweb.asm.Opcodes.*;
 
 public class MethodCompiler {
 
     public final String className;
+    public final String methodName;
     public final Class<?> returnType;
+    public final Class<?>[] parameterTypes;
 
     public final MethodVisitor mv;
     public final Locals locals;
 
-    private MethodCompiler(String className, Class<?> returnType, MethodVisitor mv) {
+    private final ClassVisitor cv;
+
+    private List<Function> linkedFunctions = Collections.emptyList();
+    private NumberType numberType = NumberType.DOUBLE;
+    private boolean overflowChecked = false;
+
+    private MethodCompiler(ClassVisitor cv, String className, String methodName,
+                           Class<?> returnType, Class<?>[] parameterTypes, MethodVisitor mv) {
+        this.cv = cv;
         this.className = className;
+        this.methodName = methodName;
         this.returnType = returnType;
+        this.parameterTypes = parameterTypes;
 
         this.mv = mv;
         this.locals = new Locals(this);
@@ -33,22 +49,93 @@ public class MethodCompiler {
         return Type.getDescriptor(clazz);
     }
 
+    private static String getMethodDescriptor(Class<?> returnType, Class<?>... parameterTypes) {
+        StringBuilder desc = new StringBuilder();
+
+        desc.append("(");
+        for(Class<?> parameter : parameterTypes) {
+            desc.append(getDescriptor(parameter));
+        }
+        desc.append(")");
+        desc.append(getDescriptor(returnType));
+
+        return desc.toString();
+    }
+
     public static MethodCompiler begin(ClassVisitor cv, String className,
                                        Class<?> returnType, String methodName, Class<?>... parameterTypes) {
 
-        StringBuilder desc = new StringBuilder();
-        {
-            desc.append("(");
-            for(Class<?> parameter : parameterTypes) {
-                desc.append(getDescriptor(parameter));
-            }
-            desc.append(")");
-            desc.append(getDescriptor(returnType));
+        return begin(cv, ACC_PUBLIC, className, returnType, methodName, parameterTypes);
+    }
+
+    private static MethodCompiler begin(ClassVisitor cv, int access, String className,
+                                        Class<?> returnType, String methodName, Class<?>... parameterTypes) {
+
+        String desc = getMethodDescriptor(returnType, parameterTypes);
+
+        MethodVisitor mv = cv.visitMethod(access, methodName, desc, null, null);
+        MethodCompiler mc = new MethodCompiler(cv, className, methodName, returnType, parameterTypes.clone(), mv);
+
+        // Parameters occupy the local variables directly after "this"
+        for(Class<?> parameter : parameterTypes) {
+            mc.locals.newParameterVariable(parameter);
         }
 
-        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, methodName, desc.toString(), null, null);
+        return mc;
+    }
+
+    /**
+     * Begin a private void method in the same class, which computes in the same number
+     * type and can call the same linked functions as this method.
+     */
+    public MethodCompiler beginPrivateMethod(String methodName, Class<?>... parameterTypes) {
+        MethodCompiler mc = begin(cv, ACC_PRIVATE, className, void.class, methodName, parameterTypes);
+
+        mc.setNumberType(numberType);
+        mc.setOverflowChecked(overflowChecked);
+        mc.linkFunctions(linkedFunctions);
+
+        return mc;
+    }
+
+    /**
+     * Call the private void method {@param methodName} of this class, using the arguments on the stack after "this".
+     */
+    public void invokePrivateMethod(String methodName, Class<?>... parameterTypes) {
+        String desc = getMethodDescriptor(void.class, parameterTypes);
+
+        mv.visitMethodInsn(INVOKESPECIAL, className, methodName, desc, false);
+    }
+
+    /**
+     * Call the static method {@param name} of {@param owner}, using the arguments on the stack.
+     */
+    public void invokeStatic(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        String desc = getMethodDescriptor(returnType, parameterTypes);
 
-        return new MethodCompiler(className, returnType, mv);
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(owner), name, desc, false);
+    }
+
+    /**
+     * @return The type that values are computed in.
+     */
+    public NumberType getNumberType() {
+        return numberType;
+    }
+
+    /**
+     * Set the type that values are computed in by the instructions emitted after this call.
+     */
+    public void setNumberType(NumberType numberType) {
+        this.numberType = numberType;
+    }
+
+    /**
+     * Set whether long additions, subtractions and multiplications should throw an
+     * {@link ArithmeticException} when they overflow, instead of wrapping around.
+     */
+    public void setOverflowChecked(boolean overflowChecked) {
+        this.overflowChecked = overflowChecked;
     }
 
     public void end() {
@@ -87,23 +174,117 @@ public class MethodCompiler {
     }
 
     public void add() {
-        insn(DADD);
+        if(isOverflowChecked()) {
+            exactMethod("addExact");
+        } else {
+            insn(numberType.addOpcode);
+        }
     }
 
     public void subtract() {
-        insn(DSUB);
+        if(isOverflowChecked()) {
+            exactMethod("subtractExact");
+        } else {
+            insn(numberType.subtractOpcode);
+        }
     }
 
     public void multiply() {
-        insn(DMUL);
+        if(isOverflowChecked()) {
+            exactMethod("multiplyExact");
+        } else {
+            insn(numberType.multiplyOpcode);
+        }
+    }
+
+    private boolean isOverflowChecked() {
+        return overflowChecked && numberType == NumberType.LONG;
+    }
+
+    private void exactMethod(String name) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", name, "(JJ)J", false);
     }
 
     public void divide() {
-        insn(DDIV);
+        insn(numberType.divideOpcode);
     }
 
     public void remainder() {
-        insn(DREM);
+        insn(numberType.remainderOpcode);
+    }
+
+    /**
+     * Compare the two values on the stack, pushing -1 if either is NaN.
+     */
+    public void compareL() {
+        insn(numberType.compareLOpcode);
+    }
+
+    /**
+     * Compare the two values on the stack, pushing 1 if either is NaN.
+     */
+    public void compareG() {
+        insn(numberType.compareGOpcode);
+    }
+
+    /**
+     * Swap the two values on the top of the stack.
+     */
+    public void swap() {
+        if(numberType.width == 2) {
+            insn(DUP2_X2);
+            insn(POP2);
+        } else {
+            insn(SWAP);
+        }
+    }
+
+    public void arrayLoad() {
+        insn(numberType.arrayLoadOpcode);
+    }
+
+    public void arrayStore() {
+        insn(numberType.arrayStoreOpcode);
+    }
+
+    /**
+     * Convert the value on the top of the stack from {@param from} to {@param to}.
+     */
+    public void convert(NumberType from, NumberType to) {
+        convert(from.type, to.type);
+    }
+
+    private void convert(Class<?> from, Class<?> to) {
+        if(from.equals(to))
+            return;
+
+        int opcode;
+
+        if(from.equals(int.class)) {
+            opcode = (to.equals(long.class) ? I2L : to.equals(float.class) ? I2F : I2D);
+        } else if(from.equals(long.class)) {
+            opcode = (to.equals(float.class) ? L2F : L2D);
+        } else if(from.equals(float.class)) {
+            opcode = (to.equals(long.class) ? F2L : F2D);
+        } else if(from.equals(double.class)) {
+            opcode = (to.equals(long.class) ? D2L : D2F);
+        } else {
+            throw new IllegalArgumentException("Cannot convert from " + from + " to " + to);
+        }
+
+        insn(opcode);
+    }
+
+    public Label newLabel() {
+        return new Label();
+    }
+
+    public void mark(Label label) {
+        mv.visitLabel(label);
+    }
+
+    public void jump(int opcode, Label label) {
+        mv.visitJumpInsn(opcode, label);
     }
 
     public void perform(Compilable function) {
@@ -114,10 +295,20 @@ public class MethodCompiler {
         mv.visitLdcInsn(constant);
     }
 
-    public void loadConstant(double constant) {
+    public void loadConstant(long constant) {
         mv.visitLdcInsn(constant);
     }
 
+    public void loadConstant(double constant) {
+        if(numberType == NumberType.FLOAT) {
+            mv.visitLdcInsn((float) constant);
+        } else if(numberType == NumberType.LONG) {
+            mv.visitLdcInsn((long) constant);
+        } else {
+            mv.visitLdcInsn(constant);
+        }
+    }
+
 
 
     //
@@ -152,22 +343,78 @@ public class MethodCompiler {
         mv.visitFieldInsn(PUTFIELD, className, name, desc);
     }
 
+    /**
+     * Call the static method {@param name} in {@param clazz}, using the {@param argumentCount} values on the stack.
+     *
+     * An overload that takes and returns the number type is preferred. Otherwise, the arguments are widened
+     * to doubles, which is only supported for up to two arguments, and the result is converted back.
+     */
     public void staticMethod(Class<?> clazz, String name, int argumentCount) {
-        Class<?>[] parameterTypes = new Class<?>[argumentCount];
-        Arrays.fill(parameterTypes, double.class);
+        Method method = findStaticMethod(clazz, name, argumentCount, numberType.type);
 
-        Method method;
+        if(numberType != NumberType.DOUBLE && (method == null || !method.getReturnType().equals(numberType.type))) {
+            method = findStaticMethod(clazz, name, argumentCount, double.class);
+
+            if(method != null) {
+                if(argumentCount > 2)
+                    throw new IllegalArgumentException("Unable to widen the arguments of " + name + " in " + clazz);
+
+                if(argumentCount == 2) {
+                    swap();
+                    convert(numberType, NumberType.DOUBLE);
+                    insn(numberType.width == 2 ? DUP2_X2 : DUP2_X1);
+                    insn(POP2);
+                }
+
+                if(argumentCount >= 1) {
+                    convert(numberType, NumberType.DOUBLE);
+                }
+            }
+        }
+
+        if(method == null)
+            throw new IllegalArgumentException("Unable to find method " + name + " in " + clazz);
+
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(clazz), name, Type.getMethodDescriptor(method), false);
+
+        convert(method.getReturnType(), numberType.type);
+    }
+
+    private static Method findStaticMethod(Class<?> clazz, String name, int argumentCount, Class<?> type) {
+        Class<?>[] parameterTypes = new Class<?>[argumentCount];
+        Arrays.fill(parameterTypes, type);
 
         try {
-            method = clazz.getDeclaredMethod(name, parameterTypes);
+            return clazz.getDeclaredMethod(name, parameterTypes);
         } catch (NoSuchMethodException e) {
-            throw new IllegalArgumentException("Unable to find method " + name + " in " + clazz, e);
+            return null;
         }
+    }
 
-        if(!method.getReturnType().equals(double.class))
-            throw new IllegalArgumentException("Method " + name + " in " + clazz + " must return a double");
+    /**
+     * Set the functions that can be called using {@link #invokeFunction}, which must also
+     * be registered with {@link FunctionLinker} for the class being compiled.
+     */
+    public void linkFunctions(List<Function> functions) {
+        this.linkedFunctions = functions;
+    }
 
-        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(clazz), name, Type.getMethodDescriptor(method), false);
+    /**
+     * Call the linked function {@param function}, using the arguments on the stack.
+     *
+     * The call is made through invokedynamic, so that the JIT treats the function as a constant and can inline it.
+     */
+    public void invokeFunction(Function function) {
+        int index = linkedFunctions.indexOf(function);
+        if(index < 0)
+            throw new IllegalArgumentException("Function " + function.getName() + " has not been linked");
+
+        char[] argumentDescs = new char[function.getArgumentCount()];
+        Arrays.fill(argumentDescs, numberType.getDescriptor().charAt(0));
+
+        String desc = "(" + new String(argumentDescs) + ")" + numberType.getDescriptor();
+
+        mv.visitInvokeDynamicInsn("invoke", desc, FunctionLinker.BOOTSTRAP, index);
     }
 
     protected void method(Class<?> clazz, String name, int argumentCount) {
@@ -0,0 +1,440 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.tree.*;
+import net.sothatsit.evaluate.tree.function.*;
+import net.sothatsit.evaluate.tree.function.operator.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * Compiles expressions into a composition of {@link MethodHandle}s, instead of generating bytecode.
+ *
+ * This avoids defining any classes, which makes compilation much cheaper, and the JIT is still
+ * able to inline the whole composition once the expression becomes hot.
+ *
+ * Handles are nested as deeply as the trees they are compiled from, and cannot keep the value of a node
+ * shared by many parents, so each use of a shared node evaluates it again. Therefore, {@link #compile()}
+ * falls back to an {@link ExpressionCompiler} for outputs taller than {@link #MAX_HEIGHT}, or that would
+ * evaluate more than {@link #MAX_EVALUATIONS} nodes for each row.
+ */
+public class MethodHandleCompiler {
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    /**
+     * The tallest tree that is compiled into handles, as compiling and invoking
+     * the handles both use stack space in proportion to the height of the tree.
+     */
+    public static final int MAX_HEIGHT = 200;
+
+    /**
+     * The most nodes that the handles may evaluate for each row, counting a node once for each
+     * of its uses. This limits trees that share nodes, which are evaluated again for each use.
+     */
+    public static final long MAX_EVALUATIONS = 10_000;
+
+    /**
+     * The type of the handle that the whole expression is compiled into,
+     * (double[] inputs, int inputOffset, double[] outputs, int outputOffset) -> void.
+     */
+    public static final MethodType EXPRESSION_TYPE = MethodType.methodType(
+            void.class, double[].class, int.class, double[].class, int.class
+    );
+
+    private static final MethodHandle LOAD_INPUT = MethodHandles.arrayElementGetter(double[].class);
+    private static final MethodHandle STORE_OUTPUT = MethodHandles.arrayElementSetter(double[].class);
+    private static final MethodHandle ADD_OFFSET = findStatic("addOffset", int.class, int.class, int.class);
+    private static final MethodHandle IS_TRUE = findStatic("isTrue", boolean.class, double.class);
+    private static final MethodHandle NO_OP = findStatic("noOp", EXPRESSION_TYPE);
+
+    private static final Map<Function, MethodHandle> intrinsics = new HashMap<>();
+    static {
+        MethodType unary = MethodType.methodType(double.class, double.class);
+        MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+
+        intrinsics.put(Add.fn, findStatic("add", binary));
+        intrinsics.put(Subtract.fn, findStatic("subtract", binary));
+        intrinsics.put(Multiply.fn, findStatic("multiply", binary));
+        intrinsics.put(Divide.fn, findStatic("divide", binary));
+        intrinsics.put(Remainder.fn, findStatic("remainder", binary));
+        intrinsics.put(Power.fn, findMath("pow", binary));
+
+        intrinsics.put(MathFunctions.sin, findMath("sin", unary));
+        intrinsics.put(MathFunctions.cos, findMath("cos", unary));
+        intrinsics.put(MathFunctions.tan, findMath("tan", unary));
+        intrinsics.put(MathFunctions.sinh, findMath("sinh", unary));
+        intrinsics.put(MathFunctions.cosh, findMath("cosh", unary));
+        intrinsics.put(MathFunctions.tanh, findMath("tanh", unary));
+        intrinsics.put(MathFunctions.asin, findMath("asin", unary));
+        intrinsics.put(MathFunctions.acos, findMath("acos", unary));
+        intrinsics.put(MathFunctions.atan, findMath("atan", unary));
+        intrinsics.put(MathFunctions.atan2, findMath("atan2", binary));
+        intrinsics.put(MathFunctions.ln, findMath("log", unary));
+        intrinsics.put(MathFunctions.sqrt, findMath("sqrt", unary));
+        intrinsics.put(MathFunctions.cbrt, findMath("cbrt", unary));
+        intrinsics.put(MathFunctions.sign, findMath("signum", unary));
+        intrinsics.put(MathFunctions.abs, findMath("abs", unary));
+        intrinsics.put(MathFunctions.floor, findMath("floor", unary));
+        intrinsics.put(MathFunctions.ceil, findMath("ceil", unary));
+
+        if(MathFunctions.isFmaSupported()) {
+            MethodType ternary = MethodType.methodType(double.class, double.class, double.class, double.class);
+
+            intrinsics.put(MathFunctions.fma, findMath("fma", ternary));
+        }
+    }
+
+    private final List<Expression> outputs = new ArrayList<>();
+
+    public int addOutput(Expression expression) {
+        outputs.add(expression);
+
+        return outputs.size() - 1;
+    }
+
+    public List<Expression> getOutputs() {
+        return Collections.unmodifiableList(outputs);
+    }
+
+    public int getInputCount() {
+        int max = 0;
+        for(Expression expression : outputs) {
+            max = Math.max(max, expression.getArgumentCount());
+        }
+        return max;
+    }
+
+    /**
+     * Compile the outputs into handles, or into a class using an {@link ExpressionCompiler}
+     * if any of them are too large to be compiled into handles. See {@link #isSupported}.
+     */
+    public CompiledExpression compile() {
+        checkNumberTypes();
+
+        if(!isSupported()) {
+            ExpressionCompiler compiler = new ExpressionCompiler(ClassIsolation.HIDDEN);
+
+            for(Expression output : outputs) {
+                compiler.addOutput(output);
+            }
+
+            return compiler.compile();
+        }
+
+        return new MethodHandleExpression(getInputCount(), outputs.size(), compileHandle());
+    }
+
+    /**
+     * Whether every output can be compiled into handles, which requires each of them to be no taller than
+     * {@link #MAX_HEIGHT}, and to evaluate no more than {@link #MAX_EVALUATIONS} nodes in total.
+     */
+    public boolean isSupported() {
+        Map<Node, Long> evaluations = new IdentityHashMap<>();
+        long total = 0;
+
+        for(Expression output : outputs) {
+            if(output.root.getHeight() > MAX_HEIGHT)
+                return false;
+
+            total += countEvaluations(output.root, evaluations);
+
+            if(total > MAX_EVALUATIONS)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The number of nodes evaluated to evaluate {@param node}, counting shared nodes once per use,
+     *         which is at most {@link #MAX_EVALUATIONS} + 1. The recursion is bounded by {@link #MAX_HEIGHT}.
+     */
+    private static long countEvaluations(Node node, Map<Node, Long> evaluations) {
+        Long known = evaluations.get(node);
+        if(known != null)
+            return known;
+
+        long count = 1;
+
+        for(Node argument : getArguments(node)) {
+            count = Math.min(count + countEvaluations(argument, evaluations), MAX_EVALUATIONS + 1);
+        }
+
+        evaluations.put(node, count);
+        return count;
+    }
+
+    private static Node[] getArguments(Node node) {
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+        }
+
+        return new Node[0];
+    }
+
+    /**
+     * Compile all of the outputs into a single handle of type {@link #EXPRESSION_TYPE}.
+     *
+     * @throws IllegalStateException If any of the outputs are taller than {@link #MAX_HEIGHT}.
+     */
+    public MethodHandle compileHandle() {
+        checkNumberTypes();
+
+        // The handles of shared nodes are reused, including between outputs
+        Map<Node, MethodHandle> handles = new IdentityHashMap<>();
+        MethodHandle handle = NO_OP;
+
+        // Built back to front, as each output is folded in before the outputs after it
+        for(int index = outputs.size() - 1; index >= 0; --index) {
+            Node root = outputs.get(index).root;
+
+            checkHeight(root);
+            handle = MethodHandles.foldArguments(handle, compileOutput(index, root, handles));
+        }
+
+        return handle;
+    }
+
+    private static void checkHeight(Node root) {
+        if(root.getHeight() > MAX_HEIGHT) {
+            throw new IllegalStateException(
+                    "Cannot compile a tree of height " + root.getHeight() + " into handles, the most is " + MAX_HEIGHT
+            );
+        }
+    }
+
+    /**
+     * Expressions of longs have different semantics, such as integer division, which this backend does not support.
+     */
+    private void checkNumberTypes() {
+        for(Expression output : outputs) {
+            if(output.numberType != NumberType.DOUBLE) {
+                throw new IllegalStateException(
+                        "Cannot compile the " + output.numberType + " expression " + output + " as " + NumberType.DOUBLE
+                );
+            }
+        }
+    }
+
+    /**
+     * @return A handle of type {@link #EXPRESSION_TYPE} that stores the value of {@param node} into the output {@param index}.
+     */
+    private static MethodHandle compileOutput(int index, Node node, Map<Node, MethodHandle> handles) {
+        // (double[] outputs, int outputOffset, double value) -> void
+        MethodHandle store = MethodHandles.filterArguments(STORE_OUTPUT, 1, offsetBy(index));
+
+        // (double[] outputs, int outputOffset, double[] inputs, int inputOffset) -> void
+        store = MethodHandles.collectArguments(store, 2, compileNode(node, handles));
+
+        return MethodHandles.permuteArguments(store, EXPRESSION_TYPE, 2, 3, 0, 1);
+    }
+
+    /**
+     * Compile {@param node} into a handle of type (double[] inputs, int offset) -> double.
+     *
+     * @throws IllegalStateException If {@param node} is taller than {@link #MAX_HEIGHT}.
+     */
+    public static MethodHandle compileNode(Node node) {
+        checkHeight(node);
+
+        return compileNode(node, new IdentityHashMap<>());
+    }
+
+    /**
+     * Compile {@param node} into a handle, reusing the handles in {@param handles} of the nodes already compiled.
+     */
+    private static MethodHandle compileNode(Node node, Map<Node, MethodHandle> handles) {
+        MethodHandle handle = handles.get(node);
+
+        if(handle == null) {
+            handle = compileNewNode(node, handles);
+            handles.put(node, handle);
+        }
+
+        return handle;
+    }
+
+    private static MethodHandle compileNewNode(Node node, Map<Node, MethodHandle> handles) {
+        if(node instanceof ConstantNode)
+            return constant(((ConstantNode) node).value);
+
+        if(node instanceof VariableNode) {
+            int index = ((VariableNode) node).index;
+
+            if(index == 0)
+                return LOAD_INPUT;
+
+            return MethodHandles.filterArguments(LOAD_INPUT, 1, offsetBy(index));
+        }
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return MethodHandles.guardWithTest(
+                    compileCondition(ifNode.condition, handles),
+                    compileNode(ifNode.thenNode, handles),
+                    compileNode(ifNode.elseNode, handles)
+            );
+        }
+
+        if(node instanceof AbstractFunctionNode) {
+            AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
+
+            return apply(getFunctionHandle(functionNode.getFunction()), functionNode.getArguments(), handles);
+        }
+
+        throw new IllegalArgumentException("Unsupported node type " + node.getClass());
+    }
+
+    /**
+     * Compile {@param node} into a handle of type (double[] inputs, int offset) -> boolean.
+     */
+    private static MethodHandle compileCondition(Node node, Map<Node, MethodHandle> handles) {
+        if(node instanceof FunctionNode && ((FunctionNode) node).function instanceof Comparison) {
+            FunctionNode functionNode = (FunctionNode) node;
+            MethodHandle test = findVirtual(Comparison.class, "test", boolean.class, double.class, double.class);
+
+            return apply(test.bindTo(functionNode.function), functionNode.arguments, handles);
+        }
+
+        return MethodHandles.filterReturnValue(compileNode(node, handles), IS_TRUE);
+    }
+
+    /**
+     * Pass the values of {@param arguments} into {@param function}, which takes one double per argument.
+     *
+     * @return A handle of type (double[] inputs, int offset) -> R, where R is the return type of {@param function}.
+     */
+    private static MethodHandle apply(MethodHandle function, Node[] arguments, Map<Node, MethodHandle> handles) {
+        if(arguments.length == 0)
+            return MethodHandles.dropArguments(function, 0, double[].class, int.class);
+
+        MethodHandle[] filters = new MethodHandle[arguments.length];
+        int[] reorder = new int[2 * arguments.length];
+
+        for(int index = 0; index < arguments.length; ++index) {
+            filters[index] = compileNode(arguments[index], handles);
+        }
+
+        // Each filter expands its argument into (double[] inputs, int offset), so all of them need to be duplicated
+        MethodHandle handle = function;
+        for(int index = arguments.length - 1; index >= 0; --index) {
+            handle = MethodHandles.collectArguments(handle, index, filters[index]);
+
+            reorder[2 * index] = 0;
+            reorder[2 * index + 1] = 1;
+        }
+
+        MethodType type = MethodType.methodType(function.type().returnType(), double[].class, int.class);
+
+        return MethodHandles.permuteArguments(handle, type, reorder);
+    }
+
+    /**
+     * @return A handle that takes one double per argument of {@param function}, and returns a double.
+     */
+    public static MethodHandle getFunctionHandle(Function function) {
+        MethodHandle intrinsic = intrinsics.get(function);
+        if(intrinsic != null)
+            return intrinsic;
+
+        if(function instanceof NoArgFunction) {
+            MethodHandle evaluate = findVirtual(NoArgFunction.class, "evaluate", double.class, double.class);
+
+            return MethodHandles.insertArguments(evaluate.bindTo(function), 0, 0.0d);
+        }
+
+        if(function instanceof OneArgFunction)
+            return findVirtual(OneArgFunction.class, "evaluate", double.class, double.class).bindTo(function);
+
+        if(function instanceof TwoArgFunction)
+            return findVirtual(TwoArgFunction.class, "evaluate", double.class, double.class, double.class).bindTo(function);
+
+        if(function instanceof ThreeArgFunction) {
+            MethodHandle evaluate = findVirtual(
+                    ThreeArgFunction.class, "evaluate",
+                    double.class, double.class, double.class, double.class
+            );
+
+            return evaluate.bindTo(function);
+        }
+
+        MethodHandle evaluate = findVirtual(Function.class, "evaluate", double.class, double[].class);
+
+        return evaluate.bindTo(function).asCollector(double[].class, function.getArgumentCount());
+    }
+
+    private static MethodHandle constant(double value) {
+        return MethodHandles.dropArguments(MethodHandles.constant(double.class, value), 0, double[].class, int.class);
+    }
+
+    private static MethodHandle offsetBy(int amount) {
+        return MethodHandles.insertArguments(ADD_OFFSET, 1, amount);
+    }
+
+    private static MethodHandle findMath(String name, MethodType type) {
+        try {
+            return lookup.findStatic(Math.class, name, type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Unable to find Math." + name, e);
+        }
+    }
+
+    private static MethodHandle findStatic(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        return findStatic(name, MethodType.methodType(returnType, parameterTypes));
+    }
+
+    private static MethodHandle findStatic(String name, MethodType type) {
+        try {
+            return lookup.findStatic(MethodHandleCompiler.class, name, type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Unable to find " + name, e);
+        }
+    }
+
+    private static MethodHandle findVirtual(Class<?> clazz, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return lookup.findVirtual(clazz, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Unable to find " + clazz.getName() + "." + name, e);
+        }
+    }
+
+    private static int addOffset(int offset, int amount) {
+        return offset + amount;
+    }
+
+    private static boolean isTrue(double value) {
+        return value != 0;
+    }
+
+    private static void noOp(double[] inputs, int inputOffset, double[] outputs, int outputOffset) {}
+
+    private static double add(double arg1, double arg2) {
+        return arg1 + arg2;
+    }
+
+    private static double subtract(double arg1, double arg2) {
+        return arg1 - arg2;
+    }
+
+    private static double multiply(double arg1, double arg2) {
+        return arg1 * arg2;
+    }
+
+    private static double divide(double arg1, double arg2) {
+        return arg1 / arg2;
+    }
+
+    private static double remainder(double arg1, double arg2) {
+        return arg1 % arg2;
+    }
+}
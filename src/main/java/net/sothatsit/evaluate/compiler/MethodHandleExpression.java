@@ -0,0 +1,66 @@
+package net.sothatsit.evaluate.compiler;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * An expression compiled by {@link MethodHandleCompiler}.
+ */
+public class MethodHandleExpression extends CompiledExpression {
+
+    private final MethodHandle handle;
+
+    /**
+     * @param handle A handle of type {@link MethodHandleCompiler#EXPRESSION_TYPE} that evaluates every output.
+     */
+    public MethodHandleExpression(int inputCount, int outputCount, MethodHandle handle) {
+        super(inputCount, outputCount);
+
+        if(!handle.type().equals(MethodHandleCompiler.EXPRESSION_TYPE))
+            throw new IllegalArgumentException("Expected a handle of type " + MethodHandleCompiler.EXPRESSION_TYPE);
+
+        this.handle = handle;
+    }
+
+    public MethodHandle getHandle() {
+        return handle;
+    }
+
+    @Override
+    public void evaluate(double[] inputs, int inputOffset, double[] outputs, int outputOffset) {
+        try {
+            handle.invokeExact(inputs, inputOffset, outputs, outputOffset);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable);
+        }
+    }
+
+    @Override
+    public void evaluateBatch(double[][] inputColumns, double[][] outputColumns, int from, int to) {
+        double[] rowInputs = new double[inputs.length];
+        double[] rowOutputs = new double[outputs.length];
+
+        for(int row = from; row < to; ++row) {
+            for(int index = 0; index < rowInputs.length; ++index) {
+                rowInputs[index] = inputColumns[index][row];
+            }
+
+            evaluate(rowInputs, 0, rowOutputs, 0);
+
+            for(int index = 0; index < rowOutputs.length; ++index) {
+                outputColumns[index][row] = rowOutputs[index];
+            }
+        }
+    }
+
+    @Override
+    public void evaluateStrided(double[] inputs, int inputStride,
+                                double[] outputs, int outputStride,
+                                int from, int to) {
+
+        for(int row = from; row < to; ++row) {
+            evaluate(inputs, row * inputStride, outputs, row * outputStride);
+        }
+    }
+}
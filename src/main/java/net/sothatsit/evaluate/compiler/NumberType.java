@@ -0,0 +1,73 @@
+package net.sothatsit.evaluate.compiler;
+
+import jdk.internal.org.objectweb.asm.Type;
+
+import static jdk.internal.org.objectweb.asm.Opcodes.*;
+
+/**
+ * The primitive type that values are computed in by compiled code.
+ */
+public enum NumberType {
+
+    DOUBLE(double.class, double[].class, double[][].class, 2,
+           DADD, DSUB, DMUL, DDIV, DREM, DLOAD, DSTORE, DALOAD, DASTORE, DCMPL, DCMPG),
+
+    FLOAT(float.class, float[].class, float[][].class, 1,
+          FADD, FSUB, FMUL, FDIV, FREM, FLOAD, FSTORE, FALOAD, FASTORE, FCMPL, FCMPG),
+
+    /**
+     * Integer arithmetic, where division truncates towards zero as in Java.
+     */
+    LONG(long.class, long[].class, long[][].class, 2,
+         LADD, LSUB, LMUL, LDIV, LREM, LLOAD, LSTORE, LALOAD, LASTORE, LCMP, LCMP);
+
+    public final Class<?> type;
+    public final Class<?> arrayType;
+    public final Class<?> columnsType;
+
+    /**
+     * The number of local variable and stack slots taken by a value of this type.
+     */
+    public final int width;
+
+    final int addOpcode;
+    final int subtractOpcode;
+    final int multiplyOpcode;
+    final int divideOpcode;
+    final int remainderOpcode;
+    final int loadOpcode;
+    final int storeOpcode;
+    final int arrayLoadOpcode;
+    final int arrayStoreOpcode;
+    final int compareLOpcode;
+    final int compareGOpcode;
+
+    NumberType(Class<?> type, Class<?> arrayType, Class<?> columnsType, int width,
+               int addOpcode, int subtractOpcode, int multiplyOpcode, int divideOpcode, int remainderOpcode,
+               int loadOpcode, int storeOpcode, int arrayLoadOpcode, int arrayStoreOpcode,
+               int compareLOpcode, int compareGOpcode) {
+
+        this.type = type;
+        this.arrayType = arrayType;
+        this.columnsType = columnsType;
+        this.width = width;
+        this.addOpcode = addOpcode;
+        this.subtractOpcode = subtractOpcode;
+        this.multiplyOpcode = multiplyOpcode;
+        this.divideOpcode = divideOpcode;
+        this.remainderOpcode = remainderOpcode;
+        this.loadOpcode = loadOpcode;
+        this.storeOpcode = storeOpcode;
+        this.arrayLoadOpcode = arrayLoadOpcode;
+        this.arrayStoreOpcode = arrayStoreOpcode;
+        this.compareLOpcode = compareLOpcode;
+        this.compareGOpcode = compareGOpcode;
+    }
+
+    /**
+     * @return The type descriptor of this type.
+     */
+    public String getDescriptor() {
+        return Type.getDescriptor(type);
+    }
+}
@@ -0,0 +1,69 @@
+package net.sothatsit.evaluate.compiler;
+
+/**
+ * The arrays that terms are passed through between the methods that large expressions are split between,
+ * which are reused by each thread so that evaluating split expressions does not allocate.
+ *
+ * An array is taken from its thread while it is in use, so that an evaluation nested within another, such as by a
+ * function that evaluates another expression, is given a different array. If an evaluation throws, its array is not
+ * released, and a new array is allocated by the next evaluation on that thread.
+ */
+public class SharedTerms {
+
+    private static final ThreadLocal<double[]> doubles = new ThreadLocal<>();
+    private static final ThreadLocal<float[]> floats = new ThreadLocal<>();
+    private static final ThreadLocal<long[]> longs = new ThreadLocal<>();
+
+    private SharedTerms() {}
+
+    /**
+     * @return An array of at least {@param length} doubles, which should be passed to
+     *         {@link #releaseDoubles} once it is no longer used.
+     */
+    public static double[] takeDoubles(int length) {
+        double[] array = doubles.get();
+        if(array == null || array.length < length)
+            return new double[length];
+
+        doubles.set(null);
+        return array;
+    }
+
+    public static void releaseDoubles(double[] array) {
+        doubles.set(array);
+    }
+
+    /**
+     * @return An array of at least {@param length} floats, which should be passed to
+     *         {@link #releaseFloats} once it is no longer used.
+     */
+    public static float[] takeFloats(int length) {
+        float[] array = floats.get();
+        if(array == null || array.length < length)
+            return new float[length];
+
+        floats.set(null);
+        return array;
+    }
+
+    public static void releaseFloats(float[] array) {
+        floats.set(array);
+    }
+
+    /**
+     * @return An array of at least {@param length} longs, which should be passed to
+     *         {@link #releaseLongs} once it is no longer used.
+     */
+    public static long[] takeLongs(int length) {
+        long[] array = longs.get();
+        if(array == null || array.length < length)
+            return new long[length];
+
+        longs.set(null);
+        return array;
+    }
+
+    public static void releaseLongs(long[] array) {
+        longs.set(array);
+    }
+}
@@ -0,0 +1,204 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * An expression that is interpreted until it has been evaluated {@link #getThreshold()} times,
+ * after which it is compiled in the background and the compiled expression is swapped in.
+ *
+ * This avoids paying the cost of compilation for expressions that are only evaluated a few times.
+ */
+public class TieredExpression extends CompiledExpression {
+
+    private final Node[] roots;
+    private final int threshold;
+    private final Executor executor;
+    private final Supplier<CompiledExpression> compiler;
+
+    /**
+     * Evaluations may be counted from many threads at once, and compilation
+     * is claimed by the first thread to count past the threshold.
+     */
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicBoolean compilationStarted = new AtomicBoolean();
+
+    private volatile CompiledExpression compiled = null;
+    private volatile Throwable compilationError = null;
+
+    /**
+     * @param outputs   The expressions to be interpreted, in the same order as the outputs of {@param compiler}.
+     * @param threshold The number of evaluations after which {@param compiler} is called on {@param executor}.
+     */
+    public TieredExpression(List<Expression> outputs,
+                            int inputCount,
+                            int threshold,
+                            Executor executor,
+                            Supplier<CompiledExpression> compiler) {
+
+        super(inputCount, outputs.size());
+
+        if(threshold < 0)
+            throw new IllegalArgumentException("threshold cannot be negative");
+
+        this.roots = new Node[outputs.size()];
+        this.threshold = threshold;
+        this.executor = executor;
+        this.compiler = compiler;
+
+        for(int index = 0; index < roots.length; ++index) {
+            roots[index] = outputs.get(index).root;
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public long getInterpretedEvaluations() {
+        return evaluations.get();
+    }
+
+    public boolean isCompiled() {
+        return compiled != null;
+    }
+
+    /**
+     * @return The error that caused compilation to fail, or null if it has not failed.
+     */
+    public Throwable getCompilationError() {
+        return compilationError;
+    }
+
+    /**
+     * Count {@param rows} evaluations towards the threshold, starting compilation if it is crossed.
+     */
+    private void countEvaluations(int rows) {
+        if(evaluations.addAndGet(rows) < threshold)
+            return;
+
+        // Checked before the compareAndSet so that evaluations after compilation has started do not contend for it
+        if(compilationStarted.get() || !compilationStarted.compareAndSet(false, true))
+            return;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    compiled = compiler.get();
+                } catch (Throwable throwable) {
+                    // Continue interpreting the expression
+                    compilationError = throwable;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compilationError = e;
+        }
+    }
+
+    private void interpret(double[] inputs, double[] outputs, int outputOffset) {
+        for(int index = 0; index < roots.length; ++index) {
+            outputs[outputOffset + index] = roots[index].evaluate(inputs);
+        }
+    }
+
+    @Override
+    public void evaluate(double[] inputs, int inputOffset, double[] outputs, int outputOffset) {
+        CompiledExpression compiled = this.compiled;
+
+        if(compiled != null) {
+            compiled.evaluate(inputs, inputOffset, outputs, outputOffset);
+            return;
+        }
+
+        // The interpreter reads inputs from the start of the array
+        if(inputOffset != 0) {
+            inputs = Arrays.copyOfRange(inputs, inputOffset, inputOffset + this.inputs.length);
+        }
+
+        interpret(inputs, outputs, outputOffset);
+        countEvaluations(1);
+    }
+
+    @Override
+    public void evaluateSelected(double[] inputs, int inputOffset,
+                                 double[] outputs, int outputOffset,
+                                 long[] outputMask) {
+
+        CompiledExpression compiled = this.compiled;
+
+        if(compiled != null) {
+            compiled.evaluateSelected(inputs, inputOffset, outputs, outputOffset, outputMask);
+            return;
+        }
+
+        if(inputOffset != 0) {
+            inputs = Arrays.copyOfRange(inputs, inputOffset, inputOffset + this.inputs.length);
+        }
+
+        for(int index = 0; index < roots.length; ++index) {
+            if((outputMask[index >> 6] & (1L << index)) != 0) {
+                outputs[outputOffset + index] = roots[index].evaluate(inputs);
+            }
+        }
+
+        countEvaluations(1);
+    }
+
+    @Override
+    public void evaluateBatch(double[][] inputColumns, double[][] outputColumns, int from, int to) {
+        CompiledExpression compiled = this.compiled;
+
+        if(compiled != null) {
+            compiled.evaluateBatch(inputColumns, outputColumns, from, to);
+            return;
+        }
+
+        double[] rowInputs = new double[inputs.length];
+        double[] rowOutputs = new double[outputs.length];
+
+        for(int row = from; row < to; ++row) {
+            for(int index = 0; index < rowInputs.length; ++index) {
+                rowInputs[index] = inputColumns[index][row];
+            }
+
+            interpret(rowInputs, rowOutputs, 0);
+
+            for(int index = 0; index < rowOutputs.length; ++index) {
+                outputColumns[index][row] = rowOutputs[index];
+            }
+        }
+
+        countEvaluations(to - from);
+    }
+
+    @Override
+    public void evaluateStrided(double[] inputs, int inputStride,
+                                double[] outputs, int outputStride,
+                                int from, int to) {
+
+        CompiledExpression compiled = this.compiled;
+
+        if(compiled != null) {
+            compiled.evaluateStrided(inputs, inputStride, outputs, outputStride, from, to);
+            return;
+        }
+
+        double[] rowInputs = new double[this.inputs.length];
+
+        for(int row = from; row < to; ++row) {
+            System.arraycopy(inputs, row * inputStride, rowInputs, 0, rowInputs.length);
+
+            interpret(rowInputs, outputs, row * outputStride);
+        }
+
+        countEvaluations(to - from);
+    }
+}
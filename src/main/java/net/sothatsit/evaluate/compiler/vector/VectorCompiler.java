@@ -0,0 +1,627 @@
+package net.sothatsit.evaluate.compiler.vector;
+
+import jdk.internal.org.objectweb.asm.ClassWriter;
+import jdk.internal.org.objectweb.asm.Label;
+import jdk.internal.org.objectweb.asm.Type;
+import net.sothatsit.evaluate.compiler.*;
+import net.sothatsit.evaluate.tree.*;
+import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+import net.sothatsit.evaluate.tree.function.operator.*;
+
+import java.util.*;
+
+import static jdk.internal.org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles expressions into a loop over the lanes of {@code jdk.incubator.vector.DoubleVector}s,
+ * which is used to evaluate batches of rows.
+ *
+ * The Vector API is only referenced by the generated bytecode, and so is only needed at runtime,
+ * where it must be enabled using {@code --add-modules jdk.incubator.vector}. If it is not available,
+ * {@link #compile()} falls back to the scalar {@link ExpressionCompiler}.
+ *
+ * Operations without a lane-wise equivalent are evaluated one lane at a time using their scalar
+ * implementation. Both branches of if statements are evaluated, and then blended using the condition.
+ * The lane-wise transcendental functions, such as sin, may differ from {@link Math} by up to one ulp.
+ */
+public class VectorCompiler {
+
+    private static final String VECTOR = "jdk/incubator/vector/Vector";
+    private static final String DOUBLE_VECTOR = "jdk/incubator/vector/DoubleVector";
+    private static final String SPECIES = "jdk/incubator/vector/VectorSpecies";
+    private static final String MASK = "jdk/incubator/vector/VectorMask";
+    private static final String OPERATORS = "jdk/incubator/vector/VectorOperators";
+
+    private static final String DOUBLE_VECTOR_DESC = "L" + DOUBLE_VECTOR + ";";
+    private static final String SPECIES_DESC = "L" + SPECIES + ";";
+    private static final String UNARY_DESC = "L" + OPERATORS + "$Unary;";
+    private static final String BINARY_DESC = "L" + OPERATORS + "$Binary;";
+    private static final String COMPARISON_DESC = "L" + OPERATORS + "$Comparison;";
+
+    private static final boolean supported;
+    static {
+        boolean available;
+
+        try {
+            Class.forName("jdk.incubator.vector.DoubleVector", false, VectorCompiler.class.getClassLoader());
+            available = true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            available = false;
+        }
+
+        supported = available;
+    }
+
+    private static final Map<Function, String> laneWiseMethods = new HashMap<>();
+    private static final Map<Function, String> ternaryLaneWiseMethods = new HashMap<>();
+    private static final Map<Function, String> unaryOperators = new HashMap<>();
+    private static final Map<Function, String> binaryOperators = new HashMap<>();
+    private static final Map<Function, String> comparisonOperators = new HashMap<>();
+    static {
+        laneWiseMethods.put(Add.fn, "add");
+        laneWiseMethods.put(Subtract.fn, "sub");
+        laneWiseMethods.put(Multiply.fn, "mul");
+        laneWiseMethods.put(Divide.fn, "div");
+
+        ternaryLaneWiseMethods.put(MathFunctions.fma, "fma");
+
+        unaryOperators.put(MathFunctions.sqrt, "SQRT");
+        unaryOperators.put(MathFunctions.cbrt, "CBRT");
+        unaryOperators.put(MathFunctions.abs, "ABS");
+        unaryOperators.put(MathFunctions.sin, "SIN");
+        unaryOperators.put(MathFunctions.cos, "COS");
+        unaryOperators.put(MathFunctions.tan, "TAN");
+        unaryOperators.put(MathFunctions.sinh, "SINH");
+        unaryOperators.put(MathFunctions.cosh, "COSH");
+        unaryOperators.put(MathFunctions.tanh, "TANH");
+        unaryOperators.put(MathFunctions.asin, "ASIN");
+        unaryOperators.put(MathFunctions.acos, "ACOS");
+        unaryOperators.put(MathFunctions.atan, "ATAN");
+        unaryOperators.put(MathFunctions.ln, "LOG");
+
+        binaryOperators.put(Power.fn, "POW");
+        binaryOperators.put(MathFunctions.atan2, "ATAN2");
+
+        comparisonOperators.put(LessThan.fn, "LT");
+        comparisonOperators.put(LessThanOrEqual.fn, "LE");
+        comparisonOperators.put(GreaterThan.fn, "GT");
+        comparisonOperators.put(GreaterThanOrEqual.fn, "GE");
+        comparisonOperators.put(Equal.fn, "EQ");
+        comparisonOperators.put(NotEqual.fn, "NE");
+    }
+
+    private final List<Expression> outputs = new ArrayList<>();
+
+    /**
+     * Whether the Vector API is available, and so whether {@link #compile()} will produce a vectorised expression.
+     */
+    public static boolean isSupported() {
+        return supported;
+    }
+
+    public int addOutput(Expression expression) {
+        outputs.add(expression);
+
+        return outputs.size() - 1;
+    }
+
+    public List<Expression> getOutputs() {
+        return Collections.unmodifiableList(outputs);
+    }
+
+    public int getInputCount() {
+        int max = 0;
+        for(Expression expression : outputs) {
+            max = Math.max(max, expression.getArgumentCount());
+        }
+        return max;
+    }
+
+    /**
+     * @return A {@link VectorExpression}, or a scalar compiled expression if the Vector API is not available.
+     */
+    public CompiledExpression compile() {
+        checkNumberTypes();
+
+        ExpressionCompiler scalarCompiler = new ExpressionCompiler(ClassIsolation.PER_EXPRESSION);
+        for(Expression expression : outputs) {
+            scalarCompiler.addOutput(expression);
+        }
+
+        CompiledExpression scalar = scalarCompiler.compile();
+
+        if(!supported)
+            return scalar;
+
+        return new VectorExpression(scalar, compileKernel());
+    }
+
+    /**
+     * Expressions of longs have different semantics, such as integer division, which this backend does not support.
+     */
+    private void checkNumberTypes() {
+        for(Expression output : outputs) {
+            if(output.numberType != NumberType.DOUBLE) {
+                throw new IllegalStateException(
+                        "Cannot compile the " + output.numberType + " expression " + output + " as " + NumberType.DOUBLE
+                );
+            }
+        }
+    }
+
+    /**
+     * Generate the {@link VectorKernel} that evaluates the outputs a vector of rows at a time.
+     */
+    public VectorKernel compileKernel() {
+        if(!supported)
+            throw new UnsupportedOperationException("The Vector API is not available");
+
+        checkNumberTypes();
+
+        ExpressionLoader loader = new ExpressionLoader();
+        String name = loader.getNextName();
+        String className = name.replace('.', '/');
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        cw.visit(
+                V1_8, ACC_PUBLIC, className, null,
+                Type.getInternalName(Object.class),
+                new String[] {Type.getInternalName(VectorKernel.class)}
+        );
+
+        { // Constructor
+            MethodCompiler mc = MethodCompiler.begin(cw, className, void.class, "<init>");
+
+            mc.loadThis();
+            mc.mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
+
+            mc.end();
+        }
+
+        List<Function> functions = findLinkedFunctions();
+
+        { // public int evaluateLanes(double[][] inputColumns, double[][] outputColumns, int from, int to):
+            MethodCompiler mc = MethodCompiler.begin(
+                    cw, className, int.class, "evaluateLanes",
+                    double[][].class, double[][].class, int.class, int.class
+            );
+            mc.linkFunctions(functions);
+
+            new KernelCompiler(mc).compile();
+
+            mc.end();
+        }
+
+        cw.visitEnd();
+
+        Class<?> clazz = loader.define(name, cw.toByteArray());
+        FunctionLinker.register(clazz, functions);
+
+        try {
+            return (VectorKernel) clazz.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Compilation failed", e);
+        }
+    }
+
+    /**
+     * @return The functions that are evaluated by calling their scalar implementation for each lane.
+     */
+    private List<Function> findLinkedFunctions() {
+        Set<Function> functions = new LinkedHashSet<>();
+        Deque<Node> toCheck = new ArrayDeque<>();
+        Set<Node> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for(Expression expression : outputs) {
+            toCheck.add(expression.root);
+        }
+
+        while(!toCheck.isEmpty()) {
+            Node node = toCheck.poll();
+
+            // Nodes may be shared by many parents, and so are only checked the first time they are reached
+            if(!checked.add(node))
+                continue;
+
+            Collections.addAll(toCheck, getChildren(node));
+
+            if(node instanceof AbstractFunctionNode) {
+                Function function = ((AbstractFunctionNode) node).getFunction();
+
+                if(!(function instanceof Compilable)) {
+                    functions.add(function);
+                }
+            }
+        }
+
+        return new ArrayList<>(functions);
+    }
+
+    private static Node[] getChildren(Node node) {
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+        }
+
+        return new Node[0];
+    }
+
+    private static boolean isLaneWise(Function function) {
+        return laneWiseMethods.containsKey(function)
+                || ternaryLaneWiseMethods.containsKey(function)
+                || unaryOperators.containsKey(function)
+                || binaryOperators.containsKey(function)
+                || comparisonOperators.containsKey(function);
+    }
+
+    /**
+     * Generates the body of evaluateLanes.
+     */
+    private class KernelCompiler {
+
+        private static final int INPUT_COLUMNS = 1;
+        private static final int OUTPUT_COLUMNS = 2;
+        private static final int ROW = 3;
+        private static final int TO = 4;
+
+        private final MethodCompiler mc;
+        private final Map<Node, Integer> preComputedTerms = new HashMap<>();
+
+        private int lanesVariable;
+        private int laneVariable;
+        private int[] laneArgumentVariables;
+        private int laneResultVariable;
+
+        public KernelCompiler(MethodCompiler mc) {
+            this.mc = mc;
+        }
+
+        public void compile() {
+            lanesVariable = mc.locals.newIntVariable();
+            loadSpecies();
+            mc.mv.visitMethodInsn(INVOKEINTERFACE, SPECIES, "length", "()I", true);
+            mc.locals.storeVariable(lanesVariable);
+
+            // The last row that a whole vector can start at
+            int limitVariable = mc.locals.newIntVariable();
+            mc.locals.loadVariable(TO);
+            mc.locals.loadVariable(lanesVariable);
+            mc.insn(ISUB);
+            mc.locals.storeVariable(limitVariable);
+
+            compileLaneScratch();
+
+            Set<Integer> usedInputs = new TreeSet<>();
+            Map<Node, Integer> subtreeFrequencies = new HashMap<>();
+            {
+                Deque<Node> toCheck = new ArrayDeque<>();
+                for(Expression output : outputs) {
+                    toCheck.add(output.root);
+                }
+
+                // Every branch of an if statement is evaluated, so every subtree can be shared
+                while(!toCheck.isEmpty()) {
+                    Node node = toCheck.poll();
+                    Integer count = subtreeFrequencies.get(node);
+
+                    if(node instanceof VariableNode) {
+                        usedInputs.add(((VariableNode) node).index);
+                    }
+
+                    if(count == null) {
+                        subtreeFrequencies.put(node, 1);
+                        Collections.addAll(toCheck, getChildren(node));
+                    } else {
+                        subtreeFrequencies.put(node, count + 1);
+                    }
+                }
+            }
+
+            Map<Integer, Integer> inputColumnVariables = new TreeMap<>();
+            for(int index : usedInputs) {
+                inputColumnVariables.put(index, loadColumn(INPUT_COLUMNS, index));
+            }
+
+            int[] outputColumnVariables = new int[outputs.size()];
+            for(int index = 0; index < outputs.size(); ++index) {
+                outputColumnVariables[index] = loadColumn(OUTPUT_COLUMNS, index);
+            }
+
+            List<Node> commonTerms = new ArrayList<>();
+            for(Map.Entry<Node, Integer> entry : subtreeFrequencies.entrySet()) {
+                Node node = entry.getKey();
+
+                if(entry.getValue() >= 2 && (node instanceof AbstractFunctionNode || node instanceof IfNode)) {
+                    commonTerms.add(node);
+                }
+            }
+            Collections.sort(commonTerms, new Node.NodeComparator(false));
+
+            Label loop = mc.newLabel();
+            Label end = mc.newLabel();
+
+            mc.mark(loop);
+            mc.locals.loadVariable(ROW);
+            mc.locals.loadVariable(limitVariable);
+            mc.jump(IF_ICMPGT, end);
+
+            preComputedTerms.clear();
+
+            for(Map.Entry<Integer, Integer> entry : inputColumnVariables.entrySet()) {
+                loadSpecies();
+                mc.locals.loadVariable(entry.getValue());
+                mc.locals.loadVariable(ROW);
+                invokeFromArray();
+
+                preComputedTerms.put(new VariableNode(null, entry.getKey()), storeVector());
+            }
+
+            for(Node term : commonTerms) {
+                visitNode(term);
+                preComputedTerms.put(term, storeVector());
+            }
+
+            for(int index = 0; index < outputs.size(); ++index) {
+                visitNode(outputs.get(index).root);
+
+                mc.locals.loadVariable(outputColumnVariables[index]);
+                mc.locals.loadVariable(ROW);
+                mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, "intoArray", "([DI)V", false);
+            }
+
+            mc.locals.loadVariable(ROW);
+            mc.locals.loadVariable(lanesVariable);
+            mc.insn(IADD);
+            mc.locals.storeVariable(ROW);
+            mc.jump(GOTO, loop);
+
+            mc.mark(end);
+            mc.locals.loadVariable(ROW);
+        }
+
+        /**
+         * Allocate the arrays used to evaluate functions without a lane-wise equivalent one lane at a time.
+         */
+        private void compileLaneScratch() {
+            int maxArguments = 0;
+            {
+                Deque<Node> toCheck = new ArrayDeque<>();
+                Set<Node> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+                for(Expression output : outputs) {
+                    toCheck.add(output.root);
+                }
+
+                while(!toCheck.isEmpty()) {
+                    Node node = toCheck.poll();
+                    if(!checked.add(node))
+                        continue;
+
+                    Collections.addAll(toCheck, getChildren(node));
+
+                    if(node instanceof AbstractFunctionNode && !isLaneWise(((AbstractFunctionNode) node).getFunction())) {
+                        maxArguments = Math.max(maxArguments, ((AbstractFunctionNode) node).getArguments().length);
+                    }
+                }
+            }
+
+            laneVariable = mc.locals.newIntVariable();
+            laneResultVariable = newLaneArray();
+            laneArgumentVariables = new int[maxArguments];
+            for(int index = 0; index < maxArguments; ++index) {
+                laneArgumentVariables[index] = newLaneArray();
+            }
+        }
+
+        private int newLaneArray() {
+            int variable = mc.locals.newReferenceVariable();
+
+            mc.locals.loadVariable(lanesVariable);
+            mc.intInsn(NEWARRAY, T_DOUBLE);
+            mc.locals.storeVariable(variable);
+
+            return variable;
+        }
+
+        private int loadColumn(int columnsVariable, int index) {
+            int variable = mc.locals.newReferenceVariable();
+
+            mc.locals.loadVariable(columnsVariable);
+            mc.loadConstant(index);
+            mc.insn(AALOAD);
+            mc.locals.storeVariable(variable);
+
+            return variable;
+        }
+
+        private int storeVector() {
+            int variable = mc.locals.newReferenceVariable();
+            mc.locals.storeVariable(variable);
+
+            return variable;
+        }
+
+        private void loadSpecies() {
+            mc.mv.visitFieldInsn(GETSTATIC, DOUBLE_VECTOR, "SPECIES_PREFERRED", SPECIES_DESC);
+        }
+
+        private void invokeFromArray() {
+            String desc = "(" + SPECIES_DESC + "[DI)" + DOUBLE_VECTOR_DESC;
+
+            mc.mv.visitMethodInsn(INVOKESTATIC, DOUBLE_VECTOR, "fromArray", desc, false);
+        }
+
+        private void broadcast(double value) {
+            loadSpecies();
+            mc.loadConstant(value);
+            mc.mv.visitMethodInsn(INVOKESTATIC, DOUBLE_VECTOR, "broadcast", "(" + SPECIES_DESC + "D)" + DOUBLE_VECTOR_DESC, false);
+        }
+
+        /**
+         * Blend the two vectors on the stack using the mask on the stack, selecting the second vector where it is set.
+         */
+        private void blend() {
+            String desc = "(L" + VECTOR + ";L" + MASK + ";)" + DOUBLE_VECTOR_DESC;
+
+            mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, "blend", desc, false);
+        }
+
+        private void visitNode(Node node) {
+            if(preComputedTerms.containsKey(node)) {
+                mc.locals.loadVariable(preComputedTerms.get(node));
+                return;
+            }
+
+            if(node instanceof ConstantNode) {
+                broadcast(((ConstantNode) node).value);
+                return;
+            }
+
+            if(node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+
+                visitNode(ifNode.elseNode);
+                visitNode(ifNode.thenNode);
+                visitMask(ifNode.condition);
+                blend();
+                return;
+            }
+
+            if(!(node instanceof AbstractFunctionNode))
+                throw new IllegalArgumentException("Unsupported node type " + node.getClass());
+
+            AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
+            Function function = functionNode.getFunction();
+            Node[] arguments = functionNode.getArguments();
+
+            if(laneWiseMethods.containsKey(function)) {
+                visitNode(arguments[0]);
+                visitNode(arguments[1]);
+
+                String desc = "(L" + VECTOR + ";)" + DOUBLE_VECTOR_DESC;
+                mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, laneWiseMethods.get(function), desc, false);
+                return;
+            }
+
+            if(ternaryLaneWiseMethods.containsKey(function)) {
+                visitNode(arguments[0]);
+                visitNode(arguments[1]);
+                visitNode(arguments[2]);
+
+                String desc = "(L" + VECTOR + ";L" + VECTOR + ";)" + DOUBLE_VECTOR_DESC;
+                mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, ternaryLaneWiseMethods.get(function), desc, false);
+                return;
+            }
+
+            if(unaryOperators.containsKey(function)) {
+                visitNode(arguments[0]);
+
+                mc.mv.visitFieldInsn(GETSTATIC, OPERATORS, unaryOperators.get(function), UNARY_DESC);
+                mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, "lanewise", "(" + UNARY_DESC + ")" + DOUBLE_VECTOR_DESC, false);
+                return;
+            }
+
+            if(binaryOperators.containsKey(function)) {
+                visitNode(arguments[0]);
+                mc.mv.visitFieldInsn(GETSTATIC, OPERATORS, binaryOperators.get(function), BINARY_DESC);
+                visitNode(arguments[1]);
+
+                String desc = "(" + BINARY_DESC + "L" + VECTOR + ";)" + DOUBLE_VECTOR_DESC;
+                mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, "lanewise", desc, false);
+                return;
+            }
+
+            if(comparisonOperators.containsKey(function)) {
+                broadcast(0.0d);
+                broadcast(1.0d);
+                visitMask(node);
+                blend();
+                return;
+            }
+
+            visitEachLane(function, arguments);
+        }
+
+        /**
+         * Push a mask of the lanes in which {@param condition} is true.
+         */
+        private void visitMask(Node condition) {
+            String desc = "(" + COMPARISON_DESC + "L" + VECTOR + ";)L" + MASK + ";";
+
+            if(condition instanceof AbstractFunctionNode && !preComputedTerms.containsKey(condition)) {
+                AbstractFunctionNode functionNode = (AbstractFunctionNode) condition;
+                String operator = comparisonOperators.get(functionNode.getFunction());
+
+                if(operator != null) {
+                    visitNode(functionNode.getArguments()[0]);
+                    mc.mv.visitFieldInsn(GETSTATIC, OPERATORS, operator, COMPARISON_DESC);
+                    visitNode(functionNode.getArguments()[1]);
+                    mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, "compare", desc, false);
+                    return;
+                }
+            }
+
+            visitNode(condition);
+            mc.mv.visitFieldInsn(GETSTATIC, OPERATORS, "NE", COMPARISON_DESC);
+            broadcast(0.0d);
+            mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, "compare", desc, false);
+        }
+
+        /**
+         * Evaluate {@param function} using its scalar implementation, one lane at a time.
+         */
+        private void visitEachLane(Function function, Node[] arguments) {
+            for(Node argument : arguments) {
+                visitNode(argument);
+            }
+
+            // The last argument is on the top of the stack
+            for(int index = arguments.length - 1; index >= 0; --index) {
+                mc.locals.loadVariable(laneArgumentVariables[index]);
+                mc.loadConstant(0);
+                mc.mv.visitMethodInsn(INVOKEVIRTUAL, DOUBLE_VECTOR, "intoArray", "([DI)V", false);
+            }
+
+            Label loop = mc.newLabel();
+            Label end = mc.newLabel();
+
+            mc.loadConstant(0);
+            mc.locals.storeVariable(laneVariable);
+
+            mc.mark(loop);
+            mc.locals.loadVariable(laneVariable);
+            mc.locals.loadVariable(lanesVariable);
+            mc.jump(IF_ICMPGE, end);
+
+            mc.locals.loadVariable(laneResultVariable);
+            mc.locals.loadVariable(laneVariable);
+
+            for(int index = 0; index < arguments.length; ++index) {
+                mc.locals.loadVariable(laneArgumentVariables[index]);
+                mc.locals.loadVariable(laneVariable);
+                mc.insn(DALOAD);
+            }
+
+            if(function instanceof Compilable) {
+                ((Compilable) function).compile(mc);
+            } else {
+                mc.invokeFunction(function);
+            }
+
+            mc.insn(DASTORE);
+
+            mc.locals.incrementVariable(laneVariable, 1);
+            mc.jump(GOTO, loop);
+
+            mc.mark(end);
+            loadSpecies();
+            mc.locals.loadVariable(laneResultVariable);
+            mc.loadConstant(0);
+            invokeFromArray();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package net.sothatsit.evaluate.compiler.vector;
+
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+
+/**
+ * An expression whose batches are evaluated a vector of rows at a time by a {@link VectorKernel}.
+ *
+ * Single rows, strided batches, and the rows left over at the end of a batch
+ * that do not fill a whole vector are evaluated by a scalar compiled expression.
+ */
+public class VectorExpression extends CompiledExpression {
+
+    private final CompiledExpression scalar;
+    private final VectorKernel kernel;
+
+    public VectorExpression(CompiledExpression scalar, VectorKernel kernel) {
+        super(scalar.inputs.length, scalar.outputs.length);
+
+        this.scalar = scalar;
+        this.kernel = kernel;
+    }
+
+    @Override
+    public void evaluate(double[] inputs, int inputOffset, double[] outputs, int outputOffset) {
+        scalar.evaluate(inputs, inputOffset, outputs, outputOffset);
+    }
+
+    @Override
+    public void evaluateBatch(double[][] inputColumns, double[][] outputColumns, int from, int to) {
+        int row = kernel.evaluateLanes(inputColumns, outputColumns, from, to);
+
+        if(row < to) {
+            scalar.evaluateBatch(inputColumns, outputColumns, row, to);
+        }
+    }
+
+    @Override
+    public void evaluateStrided(double[] inputs, int inputStride,
+                                double[] outputs, int outputStride,
+                                int from, int to) {
+
+        scalar.evaluateStrided(inputs, inputStride, outputs, outputStride, from, to);
+    }
+}
@@ -0,0 +1,16 @@
+package net.sothatsit.evaluate.compiler.vector;
+
+/**
+ * Implemented by the classes generated by {@link VectorCompiler}.
+ */
+public interface VectorKernel {
+
+    /**
+     * Evaluate as many whole vectors of rows as fit between {@param from} (inclusive)
+     * and {@param to} (exclusive), using the same column layout as
+     * {@link net.sothatsit.evaluate.compiler.CompiledExpression#evaluateBatch}.
+     *
+     * @return The first row that was not evaluated.
+     */
+    public int evaluateLanes(double[][] inputColumns, double[][] outputColumns, int from, int to);
+}
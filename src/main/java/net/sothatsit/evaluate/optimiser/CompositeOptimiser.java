@@ -29,14 +29,40 @@ public class CompositeOptimiser extends Optimiser {
         return node;
     }
 
+    @Override
+    public String toString() {
+        return super.toString() + optimisers;
+    }
+
     public static CompositeOptimiser none() {
         return new CompositeOptimiser();
     }
 
     public static CompositeOptimiser all() {
+        return all(PrecisionPolicy.STRICT);
+    }
+
+    public static CompositeOptimiser all(PrecisionPolicy precisionPolicy) {
+        CompositeOptimiser optimiser = new CompositeOptimiser();
+
+        optimiser.add(new SimpleOptimiser(optimiser, precisionPolicy));
+
+        return optimiser;
+    }
+
+    public static CompositeOptimiser saturating() {
+        return saturating(PrecisionPolicy.STRICT);
+    }
+
+    /**
+     * Optimise expressions with an {@link EGraphOptimiser} before the usual optimisations, which can find
+     * much cheaper forms of large expressions, but can take tens of milliseconds for each expression.
+     */
+    public static CompositeOptimiser saturating(PrecisionPolicy precisionPolicy) {
         CompositeOptimiser optimiser = new CompositeOptimiser();
 
-        optimiser.add(new SimpleOptimiser(optimiser));
+        optimiser.add(new EGraphOptimiser(optimiser, precisionPolicy));
+        optimiser.add(new SimpleOptimiser(optimiser, precisionPolicy));
 
         return optimiser;
     }
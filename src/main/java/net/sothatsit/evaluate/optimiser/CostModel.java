@@ -0,0 +1,158 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.tree.AbstractFunctionNode;
+import net.sothatsit.evaluate.tree.IfNode;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.Function;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The estimated costs of functions, which optimisers and the compiler use to choose
+ * between equivalent ways to evaluate an expression.
+ *
+ * The cost of each function defaults to its {@link OptimiseOptions#cost}, which can be overridden,
+ * such as to calibrate the costs of the built-in functions for the machine that expressions are run on.
+ */
+public class CostModel {
+
+    private final Map<Function, Double> overrides = new HashMap<>();
+
+    /**
+     * Override the estimated cost of evaluating {@param function} once, which must be positive.
+     */
+    public void setCost(Function function, double cost) {
+        if(!(cost > 0))
+            throw new IllegalArgumentException("The cost of a function must be positive, not " + cost);
+
+        overrides.put(function, cost);
+    }
+
+    /**
+     * Remove the override of the cost of {@param function}, so that the cost from its options is used again.
+     */
+    public void resetCost(Function function) {
+        overrides.remove(function);
+    }
+
+    /**
+     * @return The estimated cost of evaluating {@param function} once.
+     */
+    public double getCost(Function function) {
+        Double cost = overrides.get(function);
+
+        return (cost != null ? cost : function.getOptimiseOptions().cost);
+    }
+
+    /**
+     * @return The estimated cost of evaluating the tree {@param root}, as given by {@link Node#getCost}
+     *         but using the overridden costs of functions.
+     */
+    public double getCost(Node root) {
+        return getCost(root, new IdentityHashMap<>());
+    }
+
+    /**
+     * @param costs The costs of the nodes already estimated, to which the costs of the nodes of {@param root} are added.
+     *              This allows many overlapping trees to be estimated without estimating their shared nodes again.
+     */
+    public double getCost(Node root, Map<Node, Double> costs) {
+        if(overrides.isEmpty())
+            return root.getCost();
+
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while(!stack.isEmpty()) {
+            Node node = stack.peek();
+
+            if(costs.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+
+            boolean ready = true;
+
+            for(Node child : getChildren(node)) {
+                if(!costs.containsKey(child)) {
+                    stack.push(child);
+                    ready = false;
+                }
+            }
+
+            if(!ready)
+                continue;
+
+            stack.pop();
+            costs.put(node, computeCost(node, costs));
+        }
+
+        return costs.get(root);
+    }
+
+    private double computeCost(Node node, Map<Node, Double> costs) {
+        if(node instanceof AbstractFunctionNode) {
+            AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
+            Function function = functionNode.getFunction();
+            Node[] arguments = functionNode.getArguments();
+
+            double cost = getCost(function) * (arguments.length - function.getArgumentCount() + 1);
+
+            for(Node argument : arguments) {
+                cost += costs.get(argument);
+            }
+
+            return cost;
+        }
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return IfNode.BRANCH_COST + costs.get(ifNode.condition)
+                    + Math.max(costs.get(ifNode.thenNode), costs.get(ifNode.elseNode));
+        }
+
+        return node.getCost();
+    }
+
+    private static Node[] getChildren(Node node) {
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+        }
+
+        return new Node[0];
+    }
+
+    /**
+     * Describes the overridden costs, such that models with equal descriptions give the same costs.
+     */
+    @Override
+    public String toString() {
+        List<Map.Entry<Function, Double>> entries = new ArrayList<>(overrides.entrySet());
+        entries.sort(Comparator.comparing(entry -> entry.getKey().getName()));
+
+        StringBuilder builder = new StringBuilder("CostModel{");
+
+        for(int index = 0; index < entries.size(); ++index) {
+            if(index > 0) {
+                builder.append(", ");
+            }
+
+            builder.append(entries.get(index).getKey().getName()).append('=').append(entries.get(index).getValue());
+        }
+
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,731 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.tree.*;
+import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.LongFunction;
+
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * An e-graph, which stores many equivalent versions of an expression at once.
+ *
+ * Each e-class is a set of e-nodes that are known to evaluate to the same value, and each e-node is a function
+ * whose arguments are e-classes rather than nodes. Rewrites add e-nodes to e-classes and merge the e-classes
+ * that they prove to be equal, without removing the versions that they rewrite, and so the result does not
+ * depend on the order in which they are applied. The cheapest version of the expression is then extracted.
+ *
+ * Merging e-classes can make the e-nodes that use them equal to each other, and these are only merged in turn
+ * when the e-graph is rebuilt. The e-graph must therefore be rebuilt after a batch of merges, before it is searched.
+ *
+ * The value of each e-class is also computed when all of its arguments are constant, so that constants are folded
+ * as soon as they appear, and if statements with constant conditions are merged with the branch that they select.
+ */
+class EGraph {
+
+    /**
+     * The operator of the e-nodes of if statements, whose arguments are the condition, then, and else e-classes.
+     */
+    private static final Object IF = new Object() {
+        @Override
+        public String toString() {
+            return "if";
+        }
+    };
+
+    private final OptimiseContext context;
+    private final NumberType numberType;
+    private final NodeFactory nodeFactory;
+
+    /**
+     * The union-find forest of e-class ids, where each e-class id maps to the id of the e-class it was merged into.
+     */
+    private int[] parents = new int[64];
+
+    /**
+     * The e-classes by id, where e-classes that have been merged into another are null.
+     */
+    private final List<EClass> classes = new ArrayList<>();
+
+    /**
+     * The e-class of each e-node, keyed by e-nodes whose arguments were canonical when they were last rebuilt.
+     */
+    private final Map<ENode, Integer> memo = new HashMap<>();
+
+    /**
+     * The e-classes that have been merged into since the e-graph was last rebuilt.
+     */
+    private final List<Integer> pending = new ArrayList<>();
+
+    public EGraph(OptimiseContext context) {
+        this.context = context;
+        this.numberType = context.getNumberType();
+        this.nodeFactory = context.getNodeFactory();
+    }
+
+    /**
+     * @return The number of distinct e-nodes in this e-graph.
+     */
+    public int size() {
+        return memo.size();
+    }
+
+    /**
+     * @return The ids of every e-class that has not been merged into another.
+     */
+    public List<Integer> getClassIds() {
+        List<Integer> ids = new ArrayList<>();
+
+        for(int id = 0; id < classes.size(); ++id) {
+            if(classes.get(id) != null) {
+                ids.add(id);
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * @return The e-nodes of the e-class {@param id}, which must not be modified.
+     */
+    public List<ENode> getNodes(int id) {
+        return classes.get(find(id)).nodes;
+    }
+
+    /**
+     * @return The value of the e-class {@param id}, or null if it is not known to be constant.
+     */
+    public ConstantNode getConstant(int id) {
+        return classes.get(find(id)).constant;
+    }
+
+    /**
+     * Whether {@param id} is known to be the constant {@param value}.
+     */
+    public boolean isConstantOfValue(int id, double value) {
+        ConstantNode constant = getConstant(id);
+
+        if(constant == null)
+            return false;
+
+        return (numberType == NumberType.LONG ? constant.longValue == value : constant.value == value);
+    }
+
+    /**
+     * Whether {@param id} is known to be the constant {@param value}, where -0 does not equal 0.
+     */
+    public boolean isConstantIdenticalTo(int id, double value) {
+        ConstantNode constant = getConstant(id);
+
+        if(constant == null)
+            return false;
+
+        if(numberType == NumberType.LONG)
+            return constant.longValue == value;
+
+        return Double.doubleToLongBits(constant.value) == Double.doubleToLongBits(value);
+    }
+
+    /**
+     * Whether the e-class {@param id} only uses pure functions, and so can be evaluated any number of times.
+     */
+    public boolean isPure(int id) {
+        return classes.get(find(id)).isPure;
+    }
+
+    /**
+     * @return The id of the e-class that {@param id} has been merged into.
+     */
+    public int find(int id) {
+        int root = id;
+
+        while(parents[root] != root) {
+            root = parents[root];
+        }
+
+        // Compress the path, so that the e-classes on it are found directly next time
+        while(parents[id] != root) {
+            int next = parents[id];
+            parents[id] = root;
+            id = next;
+        }
+
+        return root;
+    }
+
+    /**
+     * Add the tree {@param root}, and each of the trees below it.
+     *
+     * @return The id of the e-class of {@param root}.
+     */
+    public int add(Node root) {
+        Map<Node, Integer> added = new IdentityHashMap<>();
+        Deque<Node> stack = new ArrayDeque<>();
+
+        stack.push(root);
+
+        while(!stack.isEmpty()) {
+            Node node = stack.peek();
+
+            if(added.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+
+            Node[] children = getChildren(node);
+            boolean childrenAdded = true;
+
+            for(Node child : children) {
+                if(!added.containsKey(child)) {
+                    stack.push(child);
+                    childrenAdded = false;
+                }
+            }
+
+            if(!childrenAdded)
+                continue;
+
+            stack.pop();
+
+            int[] arguments = new int[children.length];
+
+            for(int index = 0; index < children.length; ++index) {
+                arguments[index] = added.get(children[index]);
+            }
+
+            added.put(node, add(node, arguments));
+        }
+
+        return find(added.get(root));
+    }
+
+    /**
+     * Add {@param node}, whose children have been added as the e-classes {@param arguments}.
+     */
+    private int add(Node node, int[] arguments) {
+        if(node instanceof ConstantNode || node instanceof VariableNode)
+            return add(new ENode(node, arguments));
+
+        if(node instanceof IfNode)
+            return add(new ENode(IF, arguments));
+
+        Function function = ((AbstractFunctionNode) node).getFunction();
+
+        if(!function.getOptimiseOptions().isPure)
+            return add(new ENode(new Impure(function), arguments));
+
+        if(!(node instanceof MultiFunctionNode))
+            return add(new ENode(function, arguments));
+
+        // The arguments of a streak of an order-independent function are re-combined in pairs
+        int id = arguments[0];
+
+        for(int index = 1; index < arguments.length; ++index) {
+            id = add(new ENode(function, new int[] {id, arguments[index]}));
+        }
+
+        return id;
+    }
+
+    /**
+     * Add the pure {@param function} applied to the e-classes {@param arguments}.
+     *
+     * @return The id of the e-class of the function.
+     */
+    public int add(Function function, int... arguments) {
+        if(!function.getOptimiseOptions().isPure)
+            throw new IllegalArgumentException("Only pure functions can be added by id, not " + function.getName());
+
+        return add(new ENode(function, arguments));
+    }
+
+    /**
+     * Add a constant with value {@param value}, with the semantics of the expression being optimised.
+     *
+     * @return The id of the e-class of the constant.
+     */
+    public int addConstant(double value) {
+        if(numberType == NumberType.LONG)
+            return add(new ENode(nodeFactory.constantLong((long) value), new int[0]));
+
+        return add(new ENode(nodeFactory.constant(value), new int[0]));
+    }
+
+    private int add(ENode node) {
+        node = canonicalise(node);
+
+        Integer existing = memo.get(node);
+
+        if(existing != null)
+            return find(existing);
+
+        int id = classes.size();
+
+        if(id == parents.length) {
+            parents = Arrays.copyOf(parents, 2 * parents.length);
+        }
+
+        EClass eClass = new EClass(node, isPure(node), evaluate(node));
+
+        parents[id] = id;
+        classes.add(eClass);
+        memo.put(node, id);
+
+        for(int argument : node.arguments) {
+            classes.get(argument).uses.add(new Use(node, id));
+        }
+
+        // Constants are merged with the e-class of their value, so that they are extracted in its place
+        if(eClass.constant != null && !(node.operator instanceof ConstantNode)) {
+            merge(id, add(new ENode(eClass.constant, new int[0])));
+        }
+
+        // If statements with constant conditions always evaluate the same branch
+        if(node.operator == IF && getConstant(node.arguments[0]) != null) {
+            ConstantNode condition = getConstant(node.arguments[0]);
+            boolean isTrue = (numberType == NumberType.LONG ? condition.longValue != 0 : condition.value != 0);
+
+            merge(id, node.arguments[isTrue ? 1 : 2]);
+        }
+
+        return find(id);
+    }
+
+    /**
+     * Record that the e-classes {@param one} and {@param two} are equal.
+     *
+     * E-classes with different constant values are never merged, as a rewrite that would merge them does not hold
+     * for every input. Folding constants through the merged e-class would otherwise give either value.
+     *
+     * @return Whether the e-classes were not already known to be equal, and have been merged.
+     */
+    public boolean merge(int one, int two) {
+        one = find(one);
+        two = find(two);
+
+        if(one == two)
+            return false;
+
+        EClass first = classes.get(one);
+        EClass second = classes.get(two);
+
+        if(first.constant != null && second.constant != null && !isSameConstant(first.constant, second.constant))
+            return false;
+
+        // The smaller e-class is merged into the larger one, so that fewer e-nodes are moved
+        if(first.nodes.size() + first.uses.size() < second.nodes.size() + second.uses.size()) {
+            int swapId = one;
+            one = two;
+            two = swapId;
+
+            EClass swap = first;
+            first = second;
+            second = swap;
+        }
+
+        parents[two] = one;
+        classes.set(two, null);
+
+        first.nodes.addAll(second.nodes);
+        first.uses.addAll(second.uses);
+        first.isPure &= second.isPure;
+
+        if(first.constant == null) {
+            first.constant = second.constant;
+        }
+
+        pending.add(one);
+
+        return true;
+    }
+
+    /**
+     * Whether {@param one} and {@param two} have the same value, where NaN equals NaN and -0 does not equal 0.
+     */
+    private boolean isSameConstant(ConstantNode one, ConstantNode two) {
+        if(numberType == NumberType.LONG)
+            return one.longValue == two.longValue;
+
+        return Double.doubleToLongBits(one.value) == Double.doubleToLongBits(two.value);
+    }
+
+    /**
+     * Merge the e-nodes that have become equal since the e-graph was last rebuilt, until none remain.
+     */
+    public void rebuild() {
+        while(!pending.isEmpty()) {
+            Set<Integer> toRepair = new LinkedHashSet<>();
+
+            for(int id : pending) {
+                toRepair.add(find(id));
+            }
+
+            pending.clear();
+
+            for(int id : toRepair) {
+                repair(find(id));
+            }
+        }
+
+        for(EClass eClass : classes) {
+            if(eClass == null)
+                continue;
+
+            Set<ENode> nodes = new LinkedHashSet<>();
+
+            for(ENode node : eClass.nodes) {
+                nodes.add(canonicalise(node));
+            }
+
+            eClass.nodes = new ArrayList<>(nodes);
+        }
+    }
+
+    /**
+     * Re-canonicalise the e-nodes that use the e-class {@param id}, and merge those that have become equal.
+     */
+    private void repair(int id) {
+        EClass eClass = classes.get(id);
+        List<int[]> merges = new ArrayList<>();
+        Map<ENode, Integer> uses = new LinkedHashMap<>();
+
+        for(Use use : eClass.uses) {
+            memo.remove(use.node);
+        }
+
+        for(Use use : eClass.uses) {
+            ENode node = canonicalise(use.node);
+            int useId = find(use.id);
+
+            Integer existing = uses.get(node);
+
+            if(existing == null) {
+                existing = memo.get(node);
+            }
+
+            if(existing != null && find(existing) != useId) {
+                merges.add(new int[] {existing, useId});
+            }
+
+            uses.put(node, useId);
+            memo.put(node, useId);
+
+            // The arguments of the e-node may have only just become constant
+            if(getConstant(useId) == null) {
+                ConstantNode constant = evaluate(node);
+
+                if(constant != null) {
+                    merges.add(new int[] {useId, add(new ENode(constant, new int[0]))});
+                }
+            }
+        }
+
+        // The e-class may have been merged into another while its uses were being repaired
+        EClass current = classes.get(find(id));
+        List<Use> repaired = new ArrayList<>();
+
+        for(Map.Entry<ENode, Integer> entry : uses.entrySet()) {
+            repaired.add(new Use(entry.getKey(), entry.getValue()));
+        }
+
+        if(current == eClass) {
+            eClass.uses = repaired;
+        } else {
+            current.uses.addAll(repaired);
+        }
+
+        for(int[] merge : merges) {
+            merge(merge[0], merge[1]);
+        }
+    }
+
+    /**
+     * Extract the cheapest tree from the e-class {@param root}, where the cost of a tree is the sum of
+     * {@param functionCost} for each of the functions it uses, and if statements, constants and variables are free.
+     */
+    public Node extract(int root, ToDoubleFunction<Function> functionCost) {
+        double[] costs = new double[classes.size()];
+        ENode[] cheapest = new ENode[classes.size()];
+
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+
+        // E-classes usually depend on e-classes with lower ids, and so few passes are needed to settle the costs
+        boolean changed = true;
+
+        while(changed) {
+            changed = false;
+
+            for(int id = 0; id < classes.size(); ++id) {
+                EClass eClass = classes.get(id);
+
+                if(eClass == null)
+                    continue;
+
+                for(ENode node : eClass.nodes) {
+                    double cost = getCost(node, functionCost);
+
+                    for(int argument : node.arguments) {
+                        cost += costs[find(argument)];
+                    }
+
+                    if(cost < costs[id]) {
+                        costs[id] = cost;
+                        cheapest[id] = node;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        // Each function has a positive cost, and so the arguments of the cheapest e-nodes never form a cycle
+        Map<Integer, Node> extracted = new HashMap<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+
+        stack.push(find(root));
+
+        while(!stack.isEmpty()) {
+            int id = stack.peek();
+
+            if(extracted.containsKey(id)) {
+                stack.pop();
+                continue;
+            }
+
+            ENode node = cheapest[id];
+            boolean argumentsExtracted = true;
+
+            for(int argument : node.arguments) {
+                if(!extracted.containsKey(find(argument))) {
+                    stack.push(find(argument));
+                    argumentsExtracted = false;
+                }
+            }
+
+            if(!argumentsExtracted)
+                continue;
+
+            stack.pop();
+
+            Node[] arguments = new Node[node.arguments.length];
+
+            for(int index = 0; index < arguments.length; ++index) {
+                arguments[index] = extracted.get(find(node.arguments[index]));
+            }
+
+            extracted.put(id, toNode(node, arguments));
+        }
+
+        return extracted.get(find(root));
+    }
+
+    private static double getCost(ENode node, ToDoubleFunction<Function> functionCost) {
+        if(node.operator instanceof Function)
+            return functionCost.applyAsDouble((Function) node.operator);
+
+        if(node.operator instanceof Impure)
+            return functionCost.applyAsDouble(((Impure) node.operator).function);
+
+        // An if statement costs at least as much as one of its functions, so that it never depends on itself
+        return (node.operator == IF ? 1 : 0);
+    }
+
+    private Node toNode(ENode node, Node[] arguments) {
+        if(node.operator instanceof Function)
+            return nodeFactory.function((Function) node.operator, arguments);
+
+        if(node.operator instanceof Impure)
+            return nodeFactory.function(((Impure) node.operator).function, arguments);
+
+        if(node.operator == IF)
+            return nodeFactory.ifNode(arguments[0], arguments[1], arguments[2]);
+
+        return (Node) node.operator;
+    }
+
+    private ENode canonicalise(ENode node) {
+        int[] arguments = null;
+
+        for(int index = 0; index < node.arguments.length; ++index) {
+            int argument = find(node.arguments[index]);
+
+            if(argument == node.arguments[index])
+                continue;
+
+            if(arguments == null) {
+                arguments = node.arguments.clone();
+            }
+
+            arguments[index] = argument;
+        }
+
+        return (arguments != null ? new ENode(node.operator, arguments) : node);
+    }
+
+    private boolean isPure(ENode node) {
+        if(node.operator instanceof Impure)
+            return false;
+
+        for(int argument : node.arguments) {
+            if(!isPure(argument))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Evaluate {@param node} with the semantics of the expression being optimised.
+     *
+     * @return The value of {@param node}, or null if it is not constant, or if evaluating it throws.
+     */
+    private ConstantNode evaluate(ENode node) {
+        if(node.operator instanceof ConstantNode)
+            return (ConstantNode) node.operator;
+
+        if(!(node.operator instanceof Function))
+            return null;
+
+        Function function = (Function) node.operator;
+        Node[] arguments = new Node[node.arguments.length];
+
+        for(int index = 0; index < arguments.length; ++index) {
+            arguments[index] = getConstant(node.arguments[index]);
+
+            if(arguments[index] == null)
+                return null;
+        }
+
+        Node constant = new FunctionNode(function, arguments);
+
+        if(numberType != NumberType.LONG)
+            return nodeFactory.constant(constant.evaluate(new double[0]));
+
+        if(!(function instanceof LongFunction))
+            return null;
+
+        try {
+            return nodeFactory.constantLong(context.evaluateLong(constant));
+        } catch(ArithmeticException e) {
+            // Leave the error, or the overflow when it is checked, to be thrown when the expression is evaluated
+            return null;
+        }
+    }
+
+    private static Node[] getChildren(Node node) {
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+        }
+
+        return new Node[0];
+    }
+
+    /**
+     * A function applied to e-classes, or a constant or variable.
+     */
+    public static final class ENode {
+
+        /**
+         * A pure Function, a ConstantNode, a VariableNode, an Impure function, or {@link #IF}.
+         */
+        private final Object operator;
+        private final int[] arguments;
+        private final int hashCode;
+
+        private ENode(Object operator, int[] arguments) {
+            this.operator = operator;
+            this.arguments = arguments;
+            this.hashCode = 31 * operator.hashCode() + Arrays.hashCode(arguments);
+        }
+
+        /**
+         * @return The pure function of this e-node, or null if it is not a pure function.
+         */
+        public Function getFunction() {
+            return (operator instanceof Function ? (Function) operator : null);
+        }
+
+        /**
+         * @return The id of the e-class of the argument {@param index}, which may have since been merged into another.
+         */
+        public int getArgument(int index) {
+            return arguments[index];
+        }
+
+        public int getArgumentCount() {
+            return arguments.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof ENode))
+                return false;
+
+            ENode other = (ENode) obj;
+
+            return hashCode == other.hashCode
+                    && operator.equals(other.operator)
+                    && Arrays.equals(arguments, other.arguments);
+        }
+
+        @Override
+        public String toString() {
+            return operator + Arrays.toString(arguments);
+        }
+    }
+
+    /**
+     * The operator of a call to an impure function, which is only equal to itself so that separate calls are kept.
+     */
+    private static final class Impure {
+
+        private final Function function;
+
+        private Impure(Function function) {
+            this.function = function;
+        }
+
+        @Override
+        public String toString() {
+            return function.getName();
+        }
+    }
+
+    /**
+     * An e-node that uses an e-class, and the e-class that the e-node belongs to.
+     */
+    private static final class Use {
+
+        private final ENode node;
+        private final int id;
+
+        private Use(ENode node, int id) {
+            this.node = node;
+            this.id = id;
+        }
+    }
+
+    private static final class EClass {
+
+        private List<ENode> nodes = new ArrayList<>();
+        private List<Use> uses = new ArrayList<>();
+        private boolean isPure;
+        private ConstantNode constant;
+
+        private EClass(ENode node, boolean isPure, ConstantNode constant) {
+            this.nodes.add(node);
+            this.isPure = isPure;
+            this.constant = constant;
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.tree.*;
+import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.TwoArgFunction;
+import net.sothatsit.evaluate.tree.function.operator.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimises trees by applying algebraic rewrites to an {@link EGraph} until no more apply, and then
+ * extracting the cheapest equivalent tree using the estimated cost of each function from {@link #getCost}.
+ *
+ * Unlike {@link SimpleOptimiser}, every rewrite keeps the version of the expression that it rewrites, and so
+ * rewrites do not depend on the order they are applied in. This finds forms that only appear after several
+ * rewrites, such as terms that cancel or can be factored after re-associating a sum. The number of versions
+ * can grow exponentially, and so the rewrites are stopped when the e-graph reaches {@link #getMaxNodes()}
+ * e-nodes, or after {@link #getMaxMillis()} milliseconds. Trees larger than the limit are not optimised.
+ *
+ * Under {@link PrecisionPolicy#STRICT}, only rewrites that give identical results for every input are applied to
+ * doubles, including for infinities, NaN and the sign of zeroes. Re-associating, factoring and rewriting divisions
+ * as multiplications also require {@link PrecisionPolicy#RELAXED}, and terms are only cancelled for longs. Longs are
+ * only re-associated and factored when their overflow is not checked. The other optimisations of
+ * {@link SimpleOptimiser} are not performed, and so it is best followed by one.
+ */
+public class EGraphOptimiser extends Optimiser {
+
+    public static final int DEFAULT_MAX_NODES = 10_000;
+    public static final long DEFAULT_MAX_MILLIS = 50;
+
+    /**
+     * The most times the rewrites are applied to the whole e-graph, which saturates far sooner for most trees.
+     */
+    private static final int MAX_ITERATIONS = 64;
+
+    private final PrecisionPolicy precisionPolicy;
+    private final int maxNodes;
+    private final long maxMillis;
+
+    public EGraphOptimiser() {
+        this(null);
+    }
+
+    public EGraphOptimiser(CompositeOptimiser parent) {
+        this(parent, PrecisionPolicy.STRICT);
+    }
+
+    public EGraphOptimiser(CompositeOptimiser parent, PrecisionPolicy precisionPolicy) {
+        this(parent, precisionPolicy, DEFAULT_MAX_NODES, DEFAULT_MAX_MILLIS);
+    }
+
+    public EGraphOptimiser(CompositeOptimiser parent, PrecisionPolicy precisionPolicy, int maxNodes, long maxMillis) {
+        super(parent);
+
+        this.precisionPolicy = precisionPolicy;
+        this.maxNodes = maxNodes;
+        this.maxMillis = maxMillis;
+    }
+
+    public PrecisionPolicy getPrecisionPolicy() {
+        return precisionPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "(" + precisionPolicy + ", " + maxNodes + ", " + maxMillis + ")";
+    }
+
+    /**
+     * @return The most e-nodes that rewrites can add to the e-graph before they are stopped.
+     */
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    /**
+     * @return The most time that rewrites are applied for before they are stopped.
+     */
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public Node optimise(Node node) {
+        if(countNodes(node) > maxNodes)
+            return node;
+
+        long deadline = System.nanoTime() + maxMillis * 1_000_000L;
+        EGraph graph = new EGraph(getContext());
+        int root = graph.add(node);
+
+        graph.rebuild();
+
+        for(int iteration = 0; iteration < MAX_ITERATIONS; ++iteration) {
+            List<Match> matches = new ArrayList<>();
+
+            // Each match adds at least one e-node if it is new, and so the search stops once
+            // there are enough matches to exceed the limit, rather than finding every match
+            search:
+            for(int id : graph.getClassIds()) {
+                for(EGraph.ENode eNode : graph.getNodes(id)) {
+                    search(graph, id, eNode, matches);
+
+                    if(matches.size() > maxNodes || System.nanoTime() > deadline)
+                        break search;
+                }
+            }
+
+            boolean changed = false;
+            int previousSize = graph.size();
+
+            for(Match match : matches) {
+                changed |= graph.merge(match.id, match.term.add(graph));
+
+                if(graph.size() > maxNodes || System.nanoTime() > deadline)
+                    break;
+            }
+
+            graph.rebuild();
+
+            // The e-graph is saturated once no rewrite adds an e-node or merges two e-classes
+            if(!changed && graph.size() == previousSize)
+                break;
+
+            if(graph.size() > maxNodes || System.nanoTime() > deadline)
+                break;
+        }
+
+        return graph.extract(root, this::getCost);
+    }
+
+    /**
+     * @return The estimated cost of evaluating {@param function} once, which must be positive.
+     *         By default, this is the cost of the function from {@link #getCostModel()}.
+     */
+    protected double getCost(Function function) {
+        return getCostModel().getCost(function);
+    }
+
+    /**
+     * Find the rewrites of {@param node}, which belongs to the e-class {@param id}, and add them to {@param matches}.
+     */
+    private void search(EGraph graph, int id, EGraph.ENode node, List<Match> matches) {
+        Function function = node.getFunction();
+
+        // Rewrites could evaluate impure functions a different number of times, or in a different order
+        if(function == null || !graph.isPure(id))
+            return;
+
+        // Integer division cannot be re-written as a multiplication by a reciprocal
+        boolean isLong = (getNumberType() == NumberType.LONG);
+
+        // Integer arithmetic wraps exactly, and so it can be re-associated and factored without changing results,
+        // unless overflow is checked, where that could change whether the intermediate results overflow
+        boolean isExact = (isLong ? !getContext().isOverflowChecked() : precisionPolicy == PrecisionPolicy.RELAXED);
+
+        if(function instanceof TwoArgFunction && !function.getOptimiseOptions().isOrderDependant) {
+            searchOrderIndependent(graph, id, node, isExact, matches);
+        }
+
+        if(function == Add.fn) {
+            searchAdd(graph, id, node, isLong, isExact, matches);
+        } else if(function == Subtract.fn) {
+            searchSubtract(graph, id, node, isLong, isExact, matches);
+        } else if(function == Multiply.fn) {
+            searchMultiply(graph, id, node, isLong, isExact, matches);
+        } else if(function == Divide.fn && !isLong) {
+            searchDivide(graph, id, node, isExact, matches);
+        } else if(function == Power.fn && !isLong) {
+            searchPower(graph, id, node, matches);
+        }
+    }
+
+    /**
+     * fn(a, b) -> fn(b, a)
+     *
+     * When exact:
+     * fn(fn(a, b), c) -> fn(a, fn(b, c))
+     * fn(a, fn(b, c)) -> fn(fn(a, b), c)
+     */
+    private void searchOrderIndependent(EGraph graph, int id, EGraph.ENode node,
+                                        boolean isExact, List<Match> matches) {
+
+        Function function = node.getFunction();
+        int one = graph.find(node.getArgument(0));
+        int two = graph.find(node.getArgument(1));
+
+        matches.add(new Match(id, call(function, ref(two), ref(one))));
+
+        // Re-associating changes how the intermediate results are rounded
+        if(!isExact)
+            return;
+
+        for(EGraph.ENode argument : graph.getNodes(one)) {
+            if(argument.getFunction() != function)
+                continue;
+
+            Term inner = call(function, ref(argument.getArgument(1)), ref(two));
+
+            matches.add(new Match(id, call(function, ref(argument.getArgument(0)), inner)));
+        }
+
+        for(EGraph.ENode argument : graph.getNodes(two)) {
+            if(argument.getFunction() != function)
+                continue;
+
+            Term inner = call(function, ref(one), ref(argument.getArgument(0)));
+
+            matches.add(new Match(id, call(function, inner, ref(argument.getArgument(1)))));
+        }
+    }
+
+    /**
+     * a + -0 -> a
+     * a + a -> 2 * a
+     * a + (-1 * b) -> a - b
+     *
+     * When exact:
+     * a + 0 -> a
+     * (a * b) + (a * c) -> a * (b + c)
+     * (a * b) + a -> a * (b + 1)
+     *
+     * When long:
+     * a + (-1 * a) -> 0
+     */
+    private void searchAdd(EGraph graph, int id, EGraph.ENode node,
+                           boolean isLong, boolean isExact, List<Match> matches) {
+
+        int one = graph.find(node.getArgument(0));
+        int two = graph.find(node.getArgument(1));
+
+        // -0 + 0 is 0, and so only adding -0 leaves every value unchanged
+        if(isExact ? graph.isConstantOfValue(two, 0) : graph.isConstantIdenticalTo(two, -0.0)) {
+            matches.add(new Match(id, ref(one)));
+        }
+
+        if(one == two) {
+            matches.add(new Match(id, call(Multiply.fn, constant(2), ref(one))));
+        }
+
+        for(EGraph.ENode negation : graph.getNodes(two)) {
+            if(negation.getFunction() != Multiply.fn || !graph.isConstantOfValue(negation.getArgument(0), -1))
+                continue;
+
+            int negated = graph.find(negation.getArgument(1));
+
+            matches.add(new Match(id, call(Subtract.fn, ref(one), ref(negated))));
+
+            // Infinities and NaN do not cancel, and so terms only cancel in integer arithmetic
+            if(isLong && negated == one) {
+                matches.add(new Match(id, constant(0)));
+            }
+        }
+
+        if(!isExact)
+            return;
+
+        // The products in the second argument are grouped by their first factor, so that they are not all compared
+        Map<Integer, List<Integer>> otherFactors = new HashMap<>();
+
+        for(EGraph.ENode other : graph.getNodes(two)) {
+            if(other.getFunction() != Multiply.fn)
+                continue;
+
+            int factor = graph.find(other.getArgument(0));
+
+            otherFactors.computeIfAbsent(factor, key -> new ArrayList<>()).add(other.getArgument(1));
+        }
+
+        for(EGraph.ENode product : graph.getNodes(one)) {
+            if(product.getFunction() != Multiply.fn)
+                continue;
+
+            int factor = graph.find(product.getArgument(0));
+
+            if(factor == two) {
+                Term sum = call(Add.fn, ref(product.getArgument(1)), constant(1));
+
+                matches.add(new Match(id, call(Multiply.fn, ref(factor), sum)));
+            }
+
+            for(int otherFactor : otherFactors.getOrDefault(factor, Collections.emptyList())) {
+                Term sum = call(Add.fn, ref(product.getArgument(1)), ref(otherFactor));
+
+                matches.add(new Match(id, call(Multiply.fn, ref(factor), sum)));
+            }
+
+            if(matches.size() > maxNodes)
+                return;
+        }
+    }
+
+    /**
+     * a - 0 -> a
+     *
+     * When exact:
+     * a - -0 -> a
+     * a - b -> a + (-1 * b)
+     *
+     * When long:
+     * a - a -> 0
+     */
+    private void searchSubtract(EGraph graph, int id, EGraph.ENode node,
+                                boolean isLong, boolean isExact, List<Match> matches) {
+
+        int one = graph.find(node.getArgument(0));
+        int two = graph.find(node.getArgument(1));
+
+        if(isExact ? graph.isConstantOfValue(two, 0) : graph.isConstantIdenticalTo(two, 0.0)) {
+            matches.add(new Match(id, ref(one)));
+        }
+
+        if(isLong && one == two) {
+            matches.add(new Match(id, constant(0)));
+        }
+
+        // This allows the sum to be re-associated, which could change the sign of zeroes
+        if(isExact) {
+            matches.add(new Match(id, call(Add.fn, ref(one), call(Multiply.fn, constant(-1), ref(two)))));
+        }
+    }
+
+    /**
+     * a * 1 -> a
+     *
+     * When exact:
+     * a * (b / c) -> (a * b) / c
+     *
+     * When long:
+     * a * 0 -> 0
+     */
+    private void searchMultiply(EGraph graph, int id, EGraph.ENode node,
+                                boolean isLong, boolean isExact, List<Match> matches) {
+
+        int one = graph.find(node.getArgument(0));
+        int two = graph.find(node.getArgument(1));
+
+        if(graph.isConstantOfValue(two, 1)) {
+            matches.add(new Match(id, ref(one)));
+        }
+
+        // Infinity and NaN times zero is NaN, and so only integers are always zero when multiplied by zero
+        if(isLong && graph.isConstantOfValue(two, 0)) {
+            matches.add(new Match(id, constant(0)));
+        }
+
+        if(isLong || !isExact)
+            return;
+
+        for(EGraph.ENode quotient : graph.getNodes(two)) {
+            if(quotient.getFunction() != Divide.fn)
+                continue;
+
+            Term product = call(Multiply.fn, ref(one), ref(quotient.getArgument(0)));
+
+            matches.add(new Match(id, call(Divide.fn, product, ref(quotient.getArgument(1)))));
+        }
+    }
+
+    /**
+     * a / 1 -> a
+     *
+     * When exact:
+     * a / b -> a * (1 / b)
+     * (a / b) / c -> a / (b * c)
+     * a / (b / c) -> (a * c) / b
+     */
+    private void searchDivide(EGraph graph, int id, EGraph.ENode node, boolean isExact, List<Match> matches) {
+        int one = graph.find(node.getArgument(0));
+        int two = graph.find(node.getArgument(1));
+
+        if(graph.isConstantOfValue(two, 1)) {
+            matches.add(new Match(id, ref(one)));
+        }
+
+        // Multiplying by a reciprocal rounds twice
+        if(!isExact)
+            return;
+
+        if(!graph.isConstantOfValue(one, 1)) {
+            matches.add(new Match(id, call(Multiply.fn, ref(one), call(Divide.fn, constant(1), ref(two)))));
+        }
+
+        for(EGraph.ENode quotient : graph.getNodes(one)) {
+            if(quotient.getFunction() != Divide.fn)
+                continue;
+
+            Term product = call(Multiply.fn, ref(quotient.getArgument(1)), ref(two));
+
+            matches.add(new Match(id, call(Divide.fn, ref(quotient.getArgument(0)), product)));
+        }
+
+        for(EGraph.ENode quotient : graph.getNodes(two)) {
+            if(quotient.getFunction() != Divide.fn)
+                continue;
+
+            Term product = call(Multiply.fn, ref(one), ref(quotient.getArgument(1)));
+
+            matches.add(new Match(id, call(Divide.fn, product, ref(quotient.getArgument(0)))));
+        }
+    }
+
+    /**
+     * a ^ 1 -> a
+     * a ^ 2 -> a * a
+     */
+    private void searchPower(EGraph graph, int id, EGraph.ENode node, List<Match> matches) {
+        int base = graph.find(node.getArgument(0));
+        int exponent = graph.find(node.getArgument(1));
+
+        if(graph.isConstantOfValue(exponent, 1)) {
+            matches.add(new Match(id, ref(base)));
+        }
+
+        if(graph.isConstantOfValue(exponent, 2)) {
+            matches.add(new Match(id, call(Multiply.fn, ref(base), ref(base))));
+        }
+    }
+
+    /**
+     * @return The number of distinct nodes in the tree {@param root}.
+     */
+    private static int countNodes(Node root) {
+        Set<Node> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> toCount = new ArrayDeque<>();
+
+        toCount.push(root);
+
+        while(!toCount.isEmpty()) {
+            Node node = toCount.pop();
+
+            if(!counted.add(node))
+                continue;
+
+            if(node instanceof AbstractFunctionNode) {
+                Collections.addAll(toCount, ((AbstractFunctionNode) node).getArguments());
+            } else if(node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+
+                toCount.push(ifNode.condition);
+                toCount.push(ifNode.thenNode);
+                toCount.push(ifNode.elseNode);
+            }
+        }
+
+        return counted.size();
+    }
+
+    private static Term ref(int id) {
+        return new Term(id, null, null, null);
+    }
+
+    private static Term constant(double value) {
+        return new Term(-1, null, value, null);
+    }
+
+    private static Term call(Function function, Term... arguments) {
+        return new Term(-1, function, null, arguments);
+    }
+
+    /**
+     * A tree to be added to the e-graph, whose leaves are either existing e-classes or constants.
+     */
+    private static final class Term {
+
+        private final int id;
+        private final Function function;
+        private final Double constant;
+        private final Term[] arguments;
+
+        private Term(int id, Function function, Double constant, Term[] arguments) {
+            this.id = id;
+            this.function = function;
+            this.constant = constant;
+            this.arguments = arguments;
+        }
+
+        /**
+         * @return The id of the e-class of this term after adding it to {@param graph}.
+         */
+        private int add(EGraph graph) {
+            if(id >= 0)
+                return graph.find(id);
+
+            if(constant != null)
+                return graph.addConstant(constant);
+
+            int[] argumentIds = new int[arguments.length];
+
+            for(int index = 0; index < arguments.length; ++index) {
+                argumentIds[index] = arguments[index].add(graph);
+            }
+
+            return graph.add(function, argumentIds);
+        }
+    }
+
+    /**
+     * A rewrite that is found to apply to the e-class {@link #id}, to be applied after the whole e-graph is searched.
+     */
+    private static final class Match {
+
+        private final int id;
+        private final Term term;
+
+        private Match(int id, Term term) {
+            this.id = id;
+            this.term = term;
+        }
+    }
+}
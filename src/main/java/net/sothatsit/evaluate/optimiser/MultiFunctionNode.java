@@ -4,6 +4,7 @@ import net.sothatsit.evaluate.tree.AbstractFunctionNode;
 import net.sothatsit.evaluate.tree.Node;
 import net.sothatsit.evaluate.tree.FunctionNode;
 import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.LongFunction;
 import net.sothatsit.evaluate.tree.function.TwoArgFunction;
 
 import java.util.Arrays;
@@ -15,7 +16,10 @@ import java.util.HashSet;
 public class MultiFunctionNode extends AbstractFunctionNode {
 
     public final TwoArgFunction function;
-    public Node[] arguments;
+    public final Node[] arguments;
+
+    private final int height;
+    private final double cost;
 
     public MultiFunctionNode(TwoArgFunction function, Node... arguments) {
         if(arguments.length < function.getArgumentCount()) {
@@ -36,6 +40,18 @@ public class MultiFunctionNode extends AbstractFunctionNode {
 
         this.function = function;
         this.arguments = arguments;
+        this.height = computeHeight(arguments);
+        this.cost = computeCost(function, arguments);
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public double getCost() {
+        return cost;
     }
 
     @Override
@@ -59,6 +75,25 @@ public class MultiFunctionNode extends AbstractFunctionNode {
         return value;
     }
 
+    @Override
+    public long evaluateLong(long[] inputs) {
+        LongFunction function = getLongFunction();
+        long value = arguments[0].evaluateLong(inputs);
+
+        // The same array is passed to each call, rather than allocating one for every argument folded
+        long[] pair = new long[2];
+
+        for(int index = 1; index < arguments.length; ++index) {
+            long argument = arguments[index].evaluateLong(inputs);
+
+            pair[0] = value;
+            pair[1] = argument;
+            value = function.evaluateLong(pair);
+        }
+
+        return value;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(!(obj instanceof FunctionNode))
@@ -0,0 +1,87 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.tree.AbstractFunctionNode;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.NodeFactory;
+import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.operator.Add;
+import net.sothatsit.evaluate.tree.function.operator.Multiply;
+import net.sothatsit.evaluate.tree.function.operator.Subtract;
+
+/**
+ * The state of one call to {@link Optimiser#optimise(Expression)}, which is shared by the optimiser and its
+ * children until the call returns. Each call has its own context, so an optimiser can be used by many threads.
+ */
+public final class OptimiseContext {
+
+    private final NumberType numberType;
+    private final boolean overflowChecked;
+
+    /**
+     * Shares the nodes created while optimising with the nodes of the expression. It is
+     * created for each call, so that the nodes can be collected once the call returns.
+     */
+    private final NodeFactory nodeFactory = new NodeFactory();
+
+    public OptimiseContext(Expression expression) {
+        this.numberType = expression.numberType;
+        this.overflowChecked = (expression.numberType == NumberType.LONG && expression.overflowChecked);
+    }
+
+    /**
+     * @return The type of the expression being optimised, which determines the semantics of its operations.
+     */
+    public NumberType getNumberType() {
+        return numberType;
+    }
+
+    /**
+     * @return The factory used to create nodes, which may be shared with the nodes of the tree being optimised.
+     */
+    public NodeFactory getNodeFactory() {
+        return nodeFactory;
+    }
+
+    /**
+     * Whether the expression being optimised is of longs, and throws when an addition, subtraction or
+     * multiplication overflows. These operations then cannot be re-associated, and constants that
+     * overflow are left to be evaluated at run time.
+     */
+    public boolean isOverflowChecked() {
+        return overflowChecked;
+    }
+
+    /**
+     * Evaluate {@param node}, whose arguments are all constants, with the integer semantics of the expression.
+     *
+     * @throws ArithmeticException If evaluating {@param node} throws, or if it overflows when overflow is checked.
+     */
+    public long evaluateLong(Node node) {
+        if(!overflowChecked || !(node instanceof AbstractFunctionNode))
+            return node.evaluateLong(new long[0]);
+
+        Function function = ((AbstractFunctionNode) node).getFunction();
+
+        if(function != Add.fn && function != Subtract.fn && function != Multiply.fn)
+            return node.evaluateLong(new long[0]);
+
+        Node[] arguments = ((AbstractFunctionNode) node).getArguments();
+        long value = arguments[0].evaluateLong(new long[0]);
+
+        for(int index = 1; index < arguments.length; ++index) {
+            long argument = arguments[index].evaluateLong(new long[0]);
+
+            if(function == Add.fn) {
+                value = Math.addExact(value, argument);
+            } else if(function == Subtract.fn) {
+                value = Math.subtractExact(value, argument);
+            } else {
+                value = Math.multiplyExact(value, argument);
+            }
+        }
+
+        return value;
+    }
+}
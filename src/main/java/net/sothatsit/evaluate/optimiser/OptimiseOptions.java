@@ -4,6 +4,11 @@ public class OptimiseOptions {
 
     public static final OptimiseOptions DEFAULT = new OptimiseOptions();
 
+    /**
+     * The estimated cost of functions that do not give their own, such as a call to an unknown method.
+     */
+    public static final double DEFAULT_COST = 20;
+
     /**
      * Whether this is a pure function.
      *
@@ -21,20 +26,62 @@ public class OptimiseOptions {
      */
     public final boolean isOrderDependant;
 
+    /**
+     * Whether this function must be computed in double precision, even when an
+     * expression is compiled to compute in a lower precision such as float.
+     *
+     * The arguments of the function are widened to doubles, and its result is narrowed again.
+     */
+    public final boolean isPrecisionSensitive;
+
+    /**
+     * The estimated cost of evaluating this function once, in approximate cycles of latency.
+     *
+     * Optimisers and the compiler use the cost to choose the cheapest of equivalent ways to evaluate an
+     * expression, and whether common terms are worth computing once. e.g. an addition costs 4, and a power 100.
+     */
+    public final double cost;
+
     public OptimiseOptions() {
         this(true, true);
     }
 
     public OptimiseOptions(boolean isPure, boolean isOrderDependant) {
+        this(isPure, isOrderDependant, false);
+    }
+
+    public OptimiseOptions(boolean isPure, boolean isOrderDependant, boolean isPrecisionSensitive) {
+        this(isPure, isOrderDependant, isPrecisionSensitive, DEFAULT_COST);
+    }
+
+    public OptimiseOptions(boolean isPure, boolean isOrderDependant, boolean isPrecisionSensitive, double cost) {
+        if(!(cost > 0))
+            throw new IllegalArgumentException("The cost of a function must be positive, not " + cost);
+
         this.isPure = isPure;
         this.isOrderDependant = isOrderDependant;
+        this.isPrecisionSensitive = isPrecisionSensitive;
+        this.cost = cost;
     }
 
     public OptimiseOptions withIsPure(boolean isPure) {
-        return new OptimiseOptions(isPure, isOrderDependant);
+        return new OptimiseOptions(isPure, isOrderDependant, isPrecisionSensitive, cost);
     }
 
     public OptimiseOptions withIsOrderDependant(boolean isOrderDependant) {
-        return new OptimiseOptions(isPure, isOrderDependant);
+        return new OptimiseOptions(isPure, isOrderDependant, isPrecisionSensitive, cost);
+    }
+
+    public OptimiseOptions withIsPrecisionSensitive(boolean isPrecisionSensitive) {
+        return new OptimiseOptions(isPure, isOrderDependant, isPrecisionSensitive, cost);
+    }
+
+    public OptimiseOptions withCost(double cost) {
+        return new OptimiseOptions(isPure, isOrderDependant, isPrecisionSensitive, cost);
+    }
+
+    @Override
+    public String toString() {
+        return "OptimiseOptions(" + isPure + ", " + isOrderDependant + ", " + isPrecisionSensitive + ", " + cost + ")";
     }
 }
@@ -1,12 +1,25 @@
 package net.sothatsit.evaluate.optimiser;
 
+import net.sothatsit.evaluate.compiler.NumberType;
 import net.sothatsit.evaluate.tree.Expression;
 import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.NodeFactory;
 
+/**
+ * Optimisers may be shared between threads, as the state of each optimisation is kept
+ * in an {@link OptimiseContext} that is only visible to the thread optimising the expression.
+ */
 public abstract class Optimiser {
 
     private final CompositeOptimiser parent;
 
+    /**
+     * The context of the expression being optimised by each thread, which is only kept by optimisers without a parent.
+     */
+    private final ThreadLocal<OptimiseContext> context = new ThreadLocal<>();
+
+    private CostModel costModel = new CostModel();
+
     public Optimiser() {
         this(null);
     }
@@ -15,8 +28,66 @@ public abstract class Optimiser {
         this.parent = parent;
     }
 
+    /**
+     * Optimise the tree of {@param expression}, which is first interned so that the nodes created while
+     * optimising it are shared with its existing nodes. The interned nodes are only kept while optimising.
+     */
     public void optimise(Expression expression) {
-        expression.root = optimise(expression.root);
+        ThreadLocal<OptimiseContext> context = getRoot().context;
+        OptimiseContext previousContext = context.get();
+        OptimiseContext newContext = new OptimiseContext(expression);
+        context.set(newContext);
+
+        try {
+            expression.root = optimise(newContext.getNodeFactory().intern(expression.root));
+        } finally {
+            context.set(previousContext);
+        }
+    }
+
+    private Optimiser getRoot() {
+        return (parent != null ? ((Optimiser) parent).getRoot() : this);
+    }
+
+    /**
+     * @return The context of the expression being optimised by this thread.
+     * @throws IllegalStateException If this thread is not optimising an expression with {@link #optimise(Expression)}.
+     */
+    public OptimiseContext getContext() {
+        OptimiseContext context = getRoot().context.get();
+
+        if(context == null)
+            throw new IllegalStateException("Trees can only be optimised by optimise(Expression)");
+
+        return context;
+    }
+
+    /**
+     * @return The type of the expression being optimised, which determines the semantics of its operations.
+     */
+    public NumberType getNumberType() {
+        return getContext().getNumberType();
+    }
+
+    /**
+     * @return The factory used to create nodes, which may be shared with the nodes of the tree being optimised.
+     */
+    public NodeFactory getNodeFactory() {
+        return getContext().getNodeFactory();
+    }
+
+    /**
+     * @return The estimated costs of functions used to choose between rewrites, which are shared with the parent.
+     */
+    public CostModel getCostModel() {
+        return (parent != null ? parent.getCostModel() : costModel);
+    }
+
+    public void setCostModel(CostModel costModel) {
+        if(parent != null)
+            throw new IllegalStateException("The cost model of an optimiser with a parent is set on its parent");
+
+        this.costModel = costModel;
     }
 
     public Node fullyOptimise(Node node) {
@@ -24,4 +95,13 @@ public abstract class Optimiser {
     }
 
     public abstract Node optimise(Node node);
+
+    /**
+     * Describes this optimiser and its settings, such that optimisers with equal
+     * descriptions optimise each expression the same way.
+     */
+    @Override
+    public String toString() {
+        return getClass().getName() + (parent != null ? "" : "[" + costModel + "]");
+    }
 }
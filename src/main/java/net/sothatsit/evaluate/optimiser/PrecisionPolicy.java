@@ -0,0 +1,18 @@
+package net.sothatsit.evaluate.optimiser;
+
+/**
+ * Controls which optimisations are allowed to change the results of floating point expressions.
+ */
+public enum PrecisionPolicy {
+
+    /**
+     * Only perform rewrites that keep results close to those of the original expression.
+     */
+    STRICT,
+
+    /**
+     * Also perform rewrites that change how results are rounded, such as fusing
+     * multiplications and additions, in exchange for faster evaluation.
+     */
+    RELAXED
+}
@@ -1,60 +1,224 @@
 package net.sothatsit.evaluate.optimiser;
 
+import net.sothatsit.evaluate.compiler.NumberType;
 import net.sothatsit.evaluate.tree.*;
 import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.LongFunction;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
 import net.sothatsit.evaluate.tree.function.TwoArgFunction;
 import net.sothatsit.evaluate.tree.function.operator.*;
 
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
-
+import java.util.function.UnaryOperator;
+
+/**
+ * Optimises trees using a sequence of passes, each of which rewrites every node of the tree after its arguments.
+ *
+ * The trees are walked using an explicit stack rather than recursion, so that very deep trees, such as long
+ * machine-generated sums, do not overflow the stack. Passes whose rewrites do not depend on the changes made
+ * by each other below a node are applied together in the same walk of the tree.
+ */
 public class SimpleOptimiser extends Optimiser {
 
+    /**
+     * The largest magnitude of integer exponents that {@link #reducePowers} replaces with multiplications.
+     * The error of the result grows with the exponent, and so larger powers are left to {@link Math#pow}.
+     */
+    private static final int MAX_REDUCED_EXPONENT = 16;
+
+    private final PrecisionPolicy precisionPolicy;
+
     public SimpleOptimiser() {
-        super();
+        this(null);
     }
 
     public SimpleOptimiser(CompositeOptimiser parent) {
+        this(parent, PrecisionPolicy.STRICT);
+    }
+
+    public SimpleOptimiser(CompositeOptimiser parent, PrecisionPolicy precisionPolicy) {
         super(parent);
+
+        this.precisionPolicy = precisionPolicy;
+    }
+
+    public PrecisionPolicy getPrecisionPolicy() {
+        return precisionPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "(" + precisionPolicy + ")";
     }
 
     public Node optimise(Node node) {
-        node = transformSubtractions(node);
-        node = transformDivides(node);
+        // Integer division cannot be re-written as a multiplication by a reciprocal
+        boolean isLong = (getNumberType() == NumberType.LONG);
+        boolean isRelaxed = (precisionPolicy == PrecisionPolicy.RELAXED);
+
+        node = rewrite(node, subtree -> transformSubtraction(optimiseConditional(subtree)));
+        if(!isLong) {
+            node = rewrite(node, this::transformDivide);
+        }
         node = placeMultiFunctions(node);
-        node = collapseConstants(node);
-        node = collectDivides(node);
+        node = rewrite(node, subtree -> {
+            subtree = collapseConstant(subtree);
+
+            return (isLong ? subtree : collectDivide(subtree));
+        });
         node = reorderArguments(node);
-        node = removeNoOps(node);
-        node = removeMultiFunctions(node);
+        node = rewrite(node, subtree -> {
+            subtree = removeNoOp(subtree);
+
+            if(!isLong) {
+                subtree = reducePower(subtree);
+            }
+            if(!isLong && isRelaxed) {
+                subtree = fuseMultiplyAdd(subtree);
+            }
+
+            return subtree;
+        });
+        node = rewrite(node, this::removeMultiFunction);
 
         return node;
     }
 
     /**
-     * Remove multi-functions and replaces them with multiple single functions.
+     * Rewrite each function node in the tree {@param root} using {@param rule}, after its arguments.
      *
-     * e.g. (a * b * c * d * e) -> (((a * b) * (c * d)) * e)
+     * The rule is given each node with its arguments already replaced by their rewritten versions,
+     * and if statements as opaque values. Constants and variables are never rewritten.
+     */
+    private Node rewrite(Node root, UnaryOperator<Node> rule) {
+        return rewrite(root, new Rewrite() {
+            @Override
+            public Node[] getInputs(Node node) {
+                if(!(node instanceof AbstractFunctionNode))
+                    return new Node[0];
+
+                return ((AbstractFunctionNode) node).getArguments();
+            }
+
+            @Override
+            public Node rewrite(Node node, Node[] inputs) {
+                if(node instanceof AbstractFunctionNode) {
+                    node = withArguments((AbstractFunctionNode) node, inputs);
+                }
+
+                return rule.apply(node);
+            }
+        });
+    }
+
+    /**
+     * Rewrite the tree {@param root} in post-order using {@param rewrite}.
      *
-     * This is to simplify the compilation process.
+     * The tree is walked using an explicit stack so that deep trees do not overflow the stack, and the
+     * result for each node is remembered so that nodes shared by multiple parents are only rewritten once.
      */
-    protected Node removeMultiFunctions(Node node) {
-        if(!(node instanceof AbstractFunctionNode))
-            return node;
+    private Node rewrite(Node root, Rewrite rewrite) {
+        if(isLeaf(root))
+            return root;
 
-        AbstractFunctionNode functionNode = ((AbstractFunctionNode) node);
-        Function function = functionNode.getFunction();
-        Node[] argumentArray = functionNode.getArguments();
+        Map<Node, Node> results = new IdentityHashMap<>();
+        Map<Node, Node[]> pendingInputs = new IdentityHashMap<>();
+        Deque<Node> stack = new ArrayDeque<>();
 
-        {// Call removeMultiFunctions for all children of this node
-            for(int index = 0; index < argumentArray.length; ++index) {
-                argumentArray[index] = removeMultiFunctions(argumentArray[index]);
+        stack.push(root);
+
+        while(!stack.isEmpty()) {
+            Node node = stack.peek();
+
+            if(results.containsKey(node)) {
+                stack.pop();
+                continue;
             }
+
+            // The inputs of a node are pushed above it, and so have all been rewritten when it is next reached
+            Node[] inputs = pendingInputs.remove(node);
+
+            if(inputs == null) {
+                inputs = rewrite.getInputs(node);
+                boolean pushed = false;
+
+                for(int index = inputs.length - 1; index >= 0; --index) {
+                    Node input = inputs[index];
+
+                    if(!isLeaf(input) && !results.containsKey(input)) {
+                        stack.push(input);
+                        pushed = true;
+                    }
+                }
+
+                if(pushed) {
+                    pendingInputs.put(node, inputs);
+                    continue;
+                }
+            }
+
+            stack.pop();
+
+            Node[] rewrittenInputs = new Node[inputs.length];
+
+            for(int index = 0; index < inputs.length; ++index) {
+                Node input = inputs[index];
+
+                rewrittenInputs[index] = (isLeaf(input) ? input : results.get(input));
+            }
+
+            results.put(node, rewrite.rewrite(node, rewrittenInputs));
+        }
+
+        return results.get(root);
+    }
+
+    /**
+     * Optimises the condition and branches of if statements as their own units, and replaces
+     * if statements that have a constant condition with the branch that would be taken.
+     *
+     * The other passes treat if statements as opaque values.
+     *
+     * e.g. if(a < 1 + 2, b * 2 * 3, c) -> if(a < 3, b * 6, c)
+     *      if(2 < 1, b, c) -> c
+     */
+    protected Node optimiseConditionals(Node node) {
+        return rewrite(node, this::optimiseConditional);
+    }
+
+    private Node optimiseConditional(Node node) {
+        if(!(node instanceof IfNode))
+            return node;
+
+        IfNode ifNode = (IfNode) node;
+        Node condition = fullyOptimise(ifNode.condition);
+
+        if(condition instanceof ConstantNode) {
+            boolean isTrue = (((ConstantNode) condition).value != 0);
+
+            return fullyOptimise(isTrue ? ifNode.thenNode : ifNode.elseNode);
         }
 
+        return getNodeFactory().ifNode(condition, fullyOptimise(ifNode.thenNode), fullyOptimise(ifNode.elseNode));
+    }
+
+    /**
+     * Remove multi-functions and replaces them with multiple single functions.
+     *
+     * e.g. (a * b * c * d * e) -> (((a * b) * (c * d)) * e)
+     *
+     * This is to simplify the compilation process.
+     */
+    protected Node removeMultiFunctions(Node node) {
+        return rewrite(node, this::removeMultiFunction);
+    }
+
+    private Node removeMultiFunction(Node node) {
         if(!(node instanceof MultiFunctionNode))
             return node;
 
+        Function function = ((MultiFunctionNode) node).function;
+        Node[] argumentArray = ((MultiFunctionNode) node).arguments;
         List<Node> arguments = new ArrayList<>();
 
         while(argumentArray.length > 1) {
@@ -64,7 +228,7 @@ public class SimpleOptimiser extends Optimiser {
                 Node left = argumentArray[index];
                 Node right = argumentArray[index + 1];
 
-                arguments.add(new FunctionNode(function, left, right));
+                arguments.add(getNodeFactory().function(function, left, right));
             }
 
             if((argumentArray.length & 1) == 1) {
@@ -86,6 +250,10 @@ public class SimpleOptimiser extends Optimiser {
      *      (a ^ 1) -> a
      */
     protected Node removeNoOps(Node node) {
+        return rewrite(node, this::removeNoOp);
+    }
+
+    private Node removeNoOp(Node node) {
         if(!(node instanceof AbstractFunctionNode))
             return node;
 
@@ -93,12 +261,6 @@ public class SimpleOptimiser extends Optimiser {
         Function function = functionNode.getFunction();
         Node[] arguments = functionNode.getArguments();
 
-        {// Call removeNoOps for all children of this node
-            for(int index = 0; index < arguments.length; ++index) {
-                arguments[index] = removeNoOps(arguments[index]);
-            }
-        }
-
         if(function instanceof Add) {
             Node lastArgument = arguments[arguments.length - 1];
 
@@ -127,44 +289,217 @@ public class SimpleOptimiser extends Optimiser {
             if(!isConstantOfValue(arguments[1], 1.0))
                 return node;
 
-            return arguments[1];
+            return arguments[0];
         }
 
         if(function instanceof Power) {
             if(!isConstantOfValue(arguments[1], 1.0))
                 return node;
 
-            return arguments[1];
+            return arguments[0];
         }
 
         return node;
     }
 
+    /**
+     * Replace powers with constant exponents by operations with a lower estimated cost.
+     *
+     * Squaring is exact, and so is performed under either policy. The other replacements can change the results
+     * slightly, or differ for special values such as negative bases, and so are only performed under
+     * {@link PrecisionPolicy#RELAXED}. The base of integer powers is repeated within the result, and so
+     * will be computed once as a common term when compiled.
+     *
+     * e.g. (a ^ 2) -> (a * a)
+     *      (a ^ 5) -> (a * ((a * a) * (a * a)))
+     *      (a ^ -2) -> (1 / (a * a))
+     *      (a ^ 0.5) -> sqrt(a)
+     *      (a ^ (1 / 3)) -> cbrt(a)
+     */
+    protected Node reducePowers(Node node) {
+        return rewrite(node, this::reducePower);
+    }
+
+    private Node reducePower(Node node) {
+        if(!isFunction(node, Power.fn))
+            return node;
+
+        Node[] arguments = ((AbstractFunctionNode) node).getArguments();
+
+        if(!(arguments[1] instanceof ConstantNode))
+            return node;
+
+        Node base = arguments[0];
+        double exponent = ((ConstantNode) arguments[1]).value;
+        double powerCost = getCost(Power.fn);
+
+        // Impure bases cannot be repeated, as they would then be evaluated more than once
+        if(exponent == 2 && isPure(base) && getCost(Multiply.fn) < powerCost)
+            return getNodeFactory().function(Multiply.fn, base, base);
+
+        if(precisionPolicy != PrecisionPolicy.RELAXED)
+            return node;
+
+        if(exponent == 0.5 && getCost(MathFunctions.sqrt) < powerCost)
+            return getNodeFactory().function(MathFunctions.sqrt, base);
+
+        if(exponent == 1.0 / 3.0 && getCost(MathFunctions.cbrt) < powerCost)
+            return getNodeFactory().function(MathFunctions.cbrt, base);
+
+        if(exponent != (int) exponent || exponent == 0 || Math.abs(exponent) > MAX_REDUCED_EXPONENT)
+            return node;
+
+        if(Math.abs(exponent) != 1 && !isPure(base))
+            return node;
+
+        int magnitude = (int) Math.abs(exponent);
+        double cost = getMultiplyPowersCost(magnitude) + (exponent < 0 ? getCost(Divide.fn) : 0);
+
+        if(cost >= powerCost)
+            return node;
+
+        Node product = multiplyPowers(base, magnitude);
+
+        if(exponent < 0)
+            return getNodeFactory().function(Divide.fn, getNodeFactory().constant(1.0), product);
+
+        return product;
+    }
+
+    /**
+     * @return The estimated cost of the multiplications used by {@link #multiplyPowers} for {@param exponent}.
+     */
+    private double getMultiplyPowersCost(int exponent) {
+        int squarings = 31 - Integer.numberOfLeadingZeros(exponent);
+        int multiplications = squarings + Integer.bitCount(exponent) - 1;
+
+        return multiplications * getCost(Multiply.fn);
+    }
+
+    /**
+     * Multiply {@param base} by itself {@param exponent} times, by repeated squaring.
+     */
+    private Node multiplyPowers(Node base, int exponent) {
+        NodeFactory factory = getNodeFactory();
+        Node result = null;
+        Node square = base;
+
+        while(true) {
+            if((exponent & 1) != 0) {
+                result = (result == null ? square : factory.function(Multiply.fn, result, square));
+            }
+
+            exponent >>= 1;
+
+            if(exponent == 0)
+                return result;
+
+            square = factory.function(Multiply.fn, square, square);
+        }
+    }
+
+    /**
+     * Replace multiplications that are added to another value with fused multiply-adds, which
+     * are computed with a single rounding step. This changes the results slightly, and so is only
+     * performed under {@link PrecisionPolicy#RELAXED}. They are also only performed when a fused
+     * multiply-add is estimated to be cheaper than the multiplication and addition that it replaces.
+     *
+     * e.g. (a * b + c) -> fma(a, b, c)
+     *      (a * b + c * d + e) -> fma(a, b, fma(c, d, e))
+     *      (a * b * c + d) -> fma(a, (b * c), d)
+     */
+    protected Node fuseMultiplyAdds(Node node) {
+        return rewrite(node, this::fuseMultiplyAdd);
+    }
+
+    private Node fuseMultiplyAdd(Node node) {
+        if(!isFunction(node, Add.fn))
+            return node;
+
+        if(getCost(MathFunctions.fma) >= getCost(Multiply.fn) + getCost(Add.fn))
+            return node;
+
+        Node[] arguments = ((AbstractFunctionNode) node).getArguments();
+        List<Node> products = new ArrayList<>();
+        List<Node> others = new ArrayList<>();
+
+        for(Node argument : arguments) {
+            if(isFunction(argument, Multiply.fn)) {
+                products.add(argument);
+            } else {
+                others.add(argument);
+            }
+        }
+
+        if(products.isEmpty())
+            return node;
+
+        // At least one value is needed to add the products to
+        if(others.isEmpty()) {
+            others.add(products.remove(products.size() - 1));
+
+            if(products.isEmpty())
+                return node;
+        }
+
+        Node sum;
+
+        if(others.size() == 1) {
+            sum = others.get(0);
+        } else {
+            sum = new MultiFunctionNode(Add.fn, others.toArray(new Node[others.size()]));
+        }
+
+        for(int index = products.size() - 1; index >= 0; --index) {
+            Node[] factors = ((AbstractFunctionNode) products.get(index)).getArguments();
+            Node rest;
+
+            if(factors.length == 2) {
+                rest = factors[1];
+            } else {
+                rest = new MultiFunctionNode(Multiply.fn, Arrays.copyOfRange(factors, 1, factors.length));
+            }
+
+            sum = getNodeFactory().function(MathFunctions.fma, factors[0], rest, sum);
+        }
+
+        return sum;
+    }
+
     /**
      * Re-orders the arguments of order-independent functions within the equation stored
-     * in {@param node} such that more complicated sub-expressions are evaluated first.
+     * in {@param node} such that more expensive sub-expressions are evaluated first.
      *
-     * This helps to reduce the maximum stack size required for compiled functions.
+     * The cheapest arguments are then combined last, where they do not delay the expensive ones, and
+     * arguments of equal cost are ordered by height to reduce the maximum stack size of compiled functions.
      *
      * e.g. (a * (b * b)) -> ((b * b) * a)
+     *      ((a * b * c) + sin(a)) -> (sin(a) + (a * b * c))
      */
     protected Node reorderArguments(Node node) {
+        // The order is by descending cost from the cost model, and then by descending height
+        CostModel costModel = getCostModel();
+        Map<Node, Double> costs = new IdentityHashMap<>();
+        Comparator<Node> order = Comparator
+                .<Node>comparingDouble(argument -> costModel.getCost(argument, costs)).reversed()
+                .thenComparing(new Node.NodeComparator());
+
+        return rewrite(node, subtree -> reorderArgumentsOf(subtree, order));
+    }
+
+    private Node reorderArgumentsOf(Node node, Comparator<Node> order) {
         if(!(node instanceof AbstractFunctionNode))
             return node;
 
         AbstractFunctionNode functionNode = ((AbstractFunctionNode) node);
-        Function function = functionNode.getFunction();
-        Node[] arguments = functionNode.getArguments();
 
-        if(!function.getOptimiseOptions().isOrderDependant) {
-            Collections.sort(Arrays.asList(arguments), new Node.NodeComparator());
-        }
+        if(functionNode.getFunction().getOptimiseOptions().isOrderDependant)
+            return node;
 
-        for(Node argument : arguments) {
-            reorderArguments(argument);
-        }
+        Node[] sorted = functionNode.getArguments().clone();
+        Arrays.sort(sorted, order);
 
-        return node;
+        return withArguments(functionNode, sorted);
     }
 
     /**
@@ -174,20 +509,19 @@ public class SimpleOptimiser extends Optimiser {
      *      (2 * a * b * 3) -> (a * b * 6)
      */
     protected Node collapseConstants(Node node) {
-        if(node instanceof ConstantNode)
-            return node;
-
-        if(isConstant(node))
-            return new ConstantNode(node.evaluate(new double[0]));
-
-        if(node instanceof FunctionNode) {
-            Node[] arguments = ((FunctionNode) node).arguments;
+        return rewrite(node, this::collapseConstant);
+    }
 
-            for(int index = 0; index < arguments.length; ++index) {
-                arguments[index] = collapseConstants(arguments[index]);
-            }
+    /**
+     * As the arguments of {@param node} have already been collapsed, it is
+     * constant only if they are all constant nodes and its function is pure.
+     */
+    private Node collapseConstant(Node node) {
+        if(hasConstantArguments(node)) {
+            ConstantNode constant = evaluateConstant(node);
 
-            return node;
+            if(constant != null)
+                return constant;
         }
 
         if(!(node instanceof MultiFunctionNode))
@@ -198,8 +532,6 @@ public class SimpleOptimiser extends Optimiser {
         List<Node> nonConstants = new ArrayList<>();
 
         for(Node argument : ((MultiFunctionNode) node).arguments) {
-            argument = collapseConstants(argument);
-
             if(argument instanceof ConstantNode) {
                 constants.add((ConstantNode) argument);
             } else {
@@ -207,21 +539,78 @@ public class SimpleOptimiser extends Optimiser {
             }
         }
 
-        if(constants.size() > 1) {
+        if(constants.size() > 1 && getNumberType() == NumberType.LONG) {
+            long value = constants.get(0).longValue;
+
+            for(int index = 1; index < constants.size(); ++index) {
+                value = ((LongFunction) function).evaluateLong(new long[] {value, constants.get(index).longValue});
+            }
+
+            nonConstants.add(getNodeFactory().constantLong(value));
+        } else if(constants.size() > 1) {
             double value = constants.get(0).value;
 
             for(int index = 1; index < constants.size(); ++index) {
                 value = function.evaluate(value, constants.get(index).value);
             }
 
-            nonConstants.add(new ConstantNode(value));
+            nonConstants.add(getNodeFactory().constant(value));
         } else {
             nonConstants.addAll(constants);
         }
 
-        ((MultiFunctionNode) node).arguments = nonConstants.toArray(new Node[nonConstants.size()]);
+        if(nonConstants.size() == 1)
+            return nonConstants.get(0);
 
-        return node;
+        if(nonConstants.size() == ((MultiFunctionNode) node).arguments.length)
+            return withArguments((MultiFunctionNode) node, nonConstants.toArray(new Node[nonConstants.size()]));
+
+        return new MultiFunctionNode(function, nonConstants.toArray(new Node[nonConstants.size()]));
+    }
+
+    /**
+     * Whether {@param node} uses a pure function, and all of its arguments are constant nodes.
+     */
+    private static boolean hasConstantArguments(Node node) {
+        Node[] arguments;
+
+        if(node instanceof AbstractFunctionNode) {
+            if(!((AbstractFunctionNode) node).getFunction().getOptimiseOptions().isPure)
+                return false;
+
+            arguments = ((AbstractFunctionNode) node).getArguments();
+        } else if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            arguments = new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+        } else {
+            return false;
+        }
+
+        for(Node argument : arguments) {
+            if(!(argument instanceof ConstantNode))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Evaluate the constant {@param node} with the semantics of the expression being optimised.
+     *
+     * @return The value of {@param node}, or null if evaluating it throws, such as for an integer division by zero
+     *         or an overflow that is checked.
+     */
+    protected ConstantNode evaluateConstant(Node node) {
+        if(getNumberType() != NumberType.LONG)
+            return getNodeFactory().constant(node.evaluate(new double[0]));
+
+        try {
+            return getNodeFactory().constantLong(getContext().evaluateLong(node));
+        } catch(ArithmeticException e) {
+            // Leave the error, or the overflow when it is checked, to be thrown when the expression is evaluated
+            return null;
+        }
     }
 
     /**
@@ -234,22 +623,25 @@ public class SimpleOptimiser extends Optimiser {
         if(node instanceof VariableNode)
             return false;
 
-        Node[] arguments;
+        Deque<Node> toCheck = new ArrayDeque<>();
+        Set<Node> checked = Collections.newSetFromMap(new IdentityHashMap<>());
 
-        if(node instanceof FunctionNode) {
-            if(!((FunctionNode) node).function.getOptimiseOptions().isPure)
-                return false;
+        toCheck.push(node);
 
-            arguments = ((FunctionNode) node).arguments;
-        } else if(node instanceof MultiFunctionNode) {
-            arguments = ((MultiFunctionNode) node).arguments;
-        } else {
-            throw new IllegalArgumentException("Unknown type of Node " + node + " (" + node.getClass() + ")");
-        }
+        while(!toCheck.isEmpty()) {
+            Node check = toCheck.pop();
 
-        for(Node argument : arguments) {
-            if(!isConstant(argument))
+            if(check instanceof ConstantNode || !checked.add(check))
+                continue;
+
+            if(check instanceof VariableNode)
+                return false;
+
+            if(check instanceof AbstractFunctionNode
+                    && !((AbstractFunctionNode) check).getFunction().getOptimiseOptions().isPure)
                 return false;
+
+            Collections.addAll(toCheck, getChildren(check));
         }
 
         return true;
@@ -262,42 +654,65 @@ public class SimpleOptimiser extends Optimiser {
      *      ((a * b) * (c * d)) -> (a * b * c * d)
      */
     protected Node placeMultiFunctions(Node node) {
-        if(!(node instanceof AbstractFunctionNode))
-            return node;
+        // The arguments of each streak are collected breadth-first, and are then rewritten before the streak
+        return rewrite(node, new Rewrite() {
+            @Override
+            public Node[] getInputs(Node node) {
+                if(!(node instanceof AbstractFunctionNode))
+                    return new Node[0];
 
-        AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
-        Function function = functionNode.getFunction();
+                AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
+                Function function = functionNode.getFunction();
 
-        if(!(function instanceof TwoArgFunction) || function.getOptimiseOptions().isOrderDependant) {
-            Node[] arguments = functionNode.getArguments();
-            for(int index = 0; index < arguments.length; ++index) {
-                arguments[index] = placeMultiFunctions(arguments[index]);
-            }
-            return node;
-        }
+                if(!isReassociable(function))
+                    return functionNode.getArguments();
 
-        List<Node> arguments = new ArrayList<>();
-        Queue<Node> nodeQueue = new LinkedBlockingQueue<>();
+                List<Node> arguments = new ArrayList<>();
+                Queue<Node> nodeQueue = new ArrayDeque<>();
 
-        nodeQueue.add(node);
+                nodeQueue.add(node);
 
-        while(!nodeQueue.isEmpty()) {
-            Node argument = nodeQueue.poll();
+                while(!nodeQueue.isEmpty()) {
+                    Node argument = nodeQueue.poll();
 
-            if(!isFunction(argument, function)) {
-                arguments.add(argument);
-                continue;
+                    if(!isFunction(argument, function)) {
+                        arguments.add(argument);
+                        continue;
+                    }
+
+                    Collections.addAll(nodeQueue, ((AbstractFunctionNode) argument).getArguments());
+                }
+
+                return arguments.toArray(new Node[arguments.size()]);
             }
 
-            Collections.addAll(nodeQueue, ((AbstractFunctionNode) argument).getArguments());
-        }
+            @Override
+            public Node rewrite(Node node, Node[] inputs) {
+                if(!(node instanceof AbstractFunctionNode))
+                    return node;
 
-        for(int index = 0; index < arguments.size(); ++index) {
-            arguments.set(index, placeMultiFunctions(arguments.get(index)));
-        }
+                AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
+                Function function = functionNode.getFunction();
+
+                if(!isReassociable(function))
+                    return withArguments(functionNode, inputs);
+
+                return new MultiFunctionNode((TwoArgFunction) function, inputs);
+            }
+        });
+    }
+
+    /**
+     * Whether streaks of {@param function} can be placed into a {@link MultiFunctionNode}, which re-associates them.
+     *
+     * When overflow is checked, re-associating additions or multiplications of longs could change whether
+     * their intermediate results overflow, and so which expressions throw.
+     */
+    private boolean isReassociable(Function function) {
+        if(!(function instanceof TwoArgFunction) || function.getOptimiseOptions().isOrderDependant)
+            return false;
 
-        Node[] argumentArray = arguments.toArray(new Node[arguments.size()]);
-        return new MultiFunctionNode((TwoArgFunction) function, argumentArray);
+        return !getContext().isOverflowChecked() || (function != Add.fn && function != Multiply.fn);
     }
 
     /**
@@ -308,18 +723,12 @@ public class SimpleOptimiser extends Optimiser {
      *      (a * (1.0 / b) * c * (1.0 / d)) -> ((a * c) / (b * d))
      */
     protected Node collectDivides(Node node) {
-        if(!(node instanceof AbstractFunctionNode))
-            return node;
-
-        { // Recursively run this for every child of this node.
-            Node[] arguments = ((AbstractFunctionNode) node).getArguments();
-
-            for(int index = 0; index < arguments.length; ++index) {
-                arguments[index] = collectDivides(arguments[index]);
-            }
-        }
+        return rewrite(node, this::collectDivide);
+    }
 
-        if(!(node instanceof MultiFunctionNode))
+    private Node collectDivide(Node node) {
+        // Divides can only be collected out of multiplications
+        if(!(node instanceof MultiFunctionNode) || ((MultiFunctionNode) node).function != Multiply.fn)
             return node;
 
         MultiFunctionNode functionNode = (MultiFunctionNode) node;
@@ -359,7 +768,7 @@ public class SimpleOptimiser extends Optimiser {
         Node numeratorNode;
 
         if(numerator.size() == 0) {
-            numeratorNode = new ConstantNode(1.0);
+            numeratorNode = getNodeFactory().constant(1.0);
         } else if(numerator.size() == 1) {
             numeratorNode = numerator.get(0);
         } else {
@@ -367,7 +776,7 @@ public class SimpleOptimiser extends Optimiser {
             numeratorNode = new MultiFunctionNode(Multiply.fn, nodes);
         }
 
-        return new FunctionNode(Divide.fn, numeratorNode, denominatorNode);
+        return getNodeFactory().function(Divide.fn, numeratorNode, denominatorNode);
     }
 
     /**
@@ -381,22 +790,15 @@ public class SimpleOptimiser extends Optimiser {
      *      (a / (b / c)) -> ((1 / ((1 / c) * b)) * a)
      */
     protected Node transformDivides(Node node) {
-        if(!(node instanceof AbstractFunctionNode))
-            return node;
-
-        AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
-        Function function = functionNode.getFunction();
-        Node[] arguments = functionNode.getArguments();
+        return rewrite(node, this::transformDivide);
+    }
 
-        if(!(function instanceof Divide)) {
-            for(int index = 0; index < arguments.length; ++index) {
-                arguments[index] = transformDivides(arguments[index]);
-            }
+    private Node transformDivide(Node node) {
+        if(!isFunction(node, Divide.fn))
             return node;
-        }
 
-        arguments[0] = transformDivides(arguments[0]);
-        arguments[1] = transformDivides(arguments[1]);
+        NodeFactory factory = getNodeFactory();
+        Node[] arguments = ((AbstractFunctionNode) node).getArguments();
 
         /**
          * (a / (b / c))
@@ -404,12 +806,10 @@ public class SimpleOptimiser extends Optimiser {
          *   -> (c * ((1.0 / b) * a))
          */
         if(isFunction(arguments[1], Divide.fn)) {
-            AbstractFunctionNode divide = (AbstractFunctionNode) arguments[1];
-
-            FunctionNode multiply = new FunctionNode(Multiply.fn, divide.getArguments()[1], node);
-            arguments[1] = divide.getArguments()[0];
+            Node[] divideArguments = ((AbstractFunctionNode) arguments[1]).getArguments();
+            Node divide = transformDivide(factory.function(Divide.fn, arguments[0], divideArguments[0]));
 
-            return transformDivides(multiply);
+            return factory.function(Multiply.fn, divideArguments[1], divide);
         }
 
         /**
@@ -418,41 +818,120 @@ public class SimpleOptimiser extends Optimiser {
         if(isConstantOfValue(arguments[0], 1.0))
             return node;
 
-        FunctionNode multiply = new FunctionNode(Multiply.fn, node, arguments[0]);
-        arguments[0] = new ConstantNode(1.0);
+        Node reciprocal = factory.function(Divide.fn, factory.constant(1.0), arguments[1]);
 
-        return multiply;
+        return factory.function(Multiply.fn, reciprocal, arguments[0]);
     }
 
     /**
      * Transform subtractions of a constant into additions of a negative constant.
      *
      * This simplifies the optimisation of chains of additions and subtractions.
+     * When overflow is checked, only constant nodes other than the minimum long are negated,
+     * as the negation of the minimum long overflows.
      *
      * e.g. (a - 2) -> (a + (-2))
      */
     protected Node transformSubtractions(Node node) {
-        if(!(node instanceof AbstractFunctionNode))
-            return node;
+        return rewrite(node, this::transformSubtraction);
+    }
 
-        AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
-        Function function = functionNode.getFunction();
-        Node[] arguments = functionNode.getArguments();
+    private Node transformSubtraction(Node node) {
+        if(!isFunction(node, Subtract.fn))
+            return node;
 
-        if(!(function instanceof Subtract)) {
-            for(int index = 0; index < arguments.length; ++index) {
-                arguments[index] = transformSubtractions(arguments[index]);
-            }
+        Node[] arguments = ((AbstractFunctionNode) node).getArguments();
 
+        if(!isConstant(arguments[1]))
             return node;
+
+        Node negated;
+
+        if(getContext().isOverflowChecked()) {
+            // The constant would otherwise be evaluated with wrapping arithmetic
+            if(!(arguments[1] instanceof ConstantNode) || ((ConstantNode) arguments[1]).longValue == Long.MIN_VALUE)
+                return node;
+
+            negated = getNodeFactory().constantLong(-((ConstantNode) arguments[1]).longValue);
+        } else if(getNumberType() == NumberType.LONG) {
+            ConstantNode constant = evaluateConstant(arguments[1]);
+
+            if(constant == null)
+                return node;
+
+            negated = getNodeFactory().constantLong(-constant.longValue);
+        } else {
+            negated = getNodeFactory().constant((-1) * arguments[1].evaluate(new double[0]));
         }
 
-        if(!isConstant(arguments[1]))
+        return getNodeFactory().function(Add.fn, arguments[0], negated);
+    }
+
+    /**
+     * Copy {@param node} with the arguments {@param arguments}, as nodes may be shared and so are never modified.
+     *
+     * @return {@param node} itself if it already has the same instances as its arguments.
+     */
+    private Node withArguments(AbstractFunctionNode node, Node[] arguments) {
+        Node[] currentArguments = node.getArguments();
+        boolean changed = (arguments.length != currentArguments.length);
+
+        for(int index = 0; !changed && index < arguments.length; ++index) {
+            changed = (arguments[index] != currentArguments[index]);
+        }
+
+        if(!changed)
             return node;
 
-        arguments[1] = new ConstantNode((-1) * arguments[1].evaluate(new double[0]));
+        if(node instanceof MultiFunctionNode)
+            return new MultiFunctionNode(((MultiFunctionNode) node).function, arguments);
+
+        return getNodeFactory().function(node.getFunction(), arguments);
+    }
+
+    /**
+     * Whether {@param node} only uses pure functions, and so can be evaluated more than once.
+     */
+    private static boolean isPure(Node node) {
+        if(isLeaf(node))
+            return true;
+
+        Deque<Node> toCheck = new ArrayDeque<>();
+        Set<Node> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        toCheck.push(node);
+
+        while(!toCheck.isEmpty()) {
+            Node check = toCheck.pop();
+
+            if(isLeaf(check) || !checked.add(check))
+                continue;
+
+            if(check instanceof AbstractFunctionNode
+                    && !((AbstractFunctionNode) check).getFunction().getOptimiseOptions().isPure)
+                return false;
+
+            Collections.addAll(toCheck, getChildren(check));
+        }
+
+        return true;
+    }
+
+    private static Node[] getChildren(Node node) {
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+        }
+
+        return new Node[0];
+    }
 
-        return new FunctionNode(Add.fn, arguments);
+    private static boolean isLeaf(Node node) {
+        return (node instanceof ConstantNode || node instanceof VariableNode);
     }
 
     /**
@@ -462,10 +941,33 @@ public class SimpleOptimiser extends Optimiser {
         return (node instanceof AbstractFunctionNode && ((AbstractFunctionNode) node).getFunction() == function);
     }
 
+    /**
+     * @return The estimated cost of evaluating {@param function} once, from the cost model of this optimiser.
+     */
+    private double getCost(Function function) {
+        return getCostModel().getCost(function);
+    }
+
     /**
      * If {@param node} is a constant with value {@param value}.
      */
     private static boolean isConstantOfValue(Node node, double value) {
         return (node instanceof ConstantNode && ((ConstantNode) node).value == value);
     }
+
+    /**
+     * A rewrite of each node of a tree, which is applied to a node after the nodes it depends on.
+     */
+    private interface Rewrite {
+
+        /**
+         * @return The nodes that must be rewritten before {@param node}, which are usually its arguments.
+         */
+        public Node[] getInputs(Node node);
+
+        /**
+         * @return The replacement for {@param node}, given the results of rewriting each of its {@param inputs}.
+         */
+        public Node rewrite(Node node, Node[] inputs);
+    }
 }
@@ -1,16 +1,20 @@
 package net.sothatsit.evaluate.parser;
 
 import net.sothatsit.evaluate.PrefixTree;
+import net.sothatsit.evaluate.compiler.Compilable;
+import net.sothatsit.evaluate.compiler.NumberType;
 import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
 import net.sothatsit.evaluate.optimiser.Optimiser;
 import net.sothatsit.evaluate.tree.*;
 import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.LongFunction;
 import net.sothatsit.evaluate.tree.function.MathFunctions;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class ExpressionParser {
 
@@ -26,7 +30,7 @@ public class ExpressionParser {
         Node expression;
 
         try {
-            expression = parser.parseNode(new StringStream(equation));
+            expression = parser.parseTree(new StringStream(equation));
         } catch(ParseException e) {
             e.printError();
             return;
@@ -48,10 +52,20 @@ public class ExpressionParser {
     private final Map<String, Function> functions = new HashMap<>();
     private final Map<String, Double> constants = new HashMap<>();
     private final PrefixTree<Operator> operators = new PrefixTree<>();
+    private final Map<String, Operator> operatorStrings = new HashMap<>();
     private final List<String> arguments = new ArrayList<>();
 
     private final Map<String, Node> intermediateVariables = new HashMap<>();
 
+    /**
+     * Shares the structurally equal nodes of the equation being parsed, including those of the intermediate
+     * variables it uses. It is replaced for each equation, so that the nodes of previous equations can be collected.
+     */
+    private NodeFactory nodeFactory;
+
+    private NumberType numberType = NumberType.DOUBLE;
+    private boolean overflowChecked = false;
+
     public ExpressionParser() {
         this(CompositeOptimiser.all());
     }
@@ -63,6 +77,32 @@ public class ExpressionParser {
         addOperators(Operator.all());
     }
 
+    public NumberType getNumberType() {
+        return numberType;
+    }
+
+    /**
+     * Set the type of the inputs of the expressions parsed after this call.
+     *
+     * When this is {@link NumberType#LONG}, numbers must be integers, only functions that
+     * implement {@link LongFunction} can be used, and the expressions are optimised with integer semantics.
+     */
+    public void setNumberType(NumberType numberType) {
+        this.numberType = numberType;
+    }
+
+    public boolean isOverflowChecked() {
+        return overflowChecked;
+    }
+
+    /**
+     * Set whether the expressions of longs parsed after this call should be optimised for compilation with
+     * {@link net.sothatsit.evaluate.compiler.ExpressionCompiler#setOverflowChecked}, which requires it.
+     */
+    public void setOverflowChecked(boolean overflowChecked) {
+        this.overflowChecked = overflowChecked;
+    }
+
     public int addArgument(String name) {
         int index = arguments.size();
         arguments.add(name);
@@ -78,6 +118,13 @@ public class ExpressionParser {
         }
     }
 
+    /**
+     * Get the function with the name or alias {@param name}, or null if there is no such function.
+     */
+    public Function getFunction(String name) {
+        return functions.get(name);
+    }
+
     public void addFunctions(Function... functions) {
         for(Function function : functions) {
             addFunction(function);
@@ -90,6 +137,7 @@ public class ExpressionParser {
 
     public void addOperator(Operator operator) {
         operators.add(operator.getOperatorString(), operator);
+        operatorStrings.put(operator.getOperatorString(), operator);
     }
 
     public void addOperators(Operator... operators) {
@@ -101,18 +149,70 @@ public class ExpressionParser {
     public void addIntermediateVariable(String name, String equation) {
         StringStream stream = new StringStream(equation);
 
-        intermediateVariables.put(name, parseNode(stream));
+        intermediateVariables.put(name, parseTree(stream));
+    }
+
+    /**
+     * Describe everything other than the arguments that decides how equations are parsed and optimised:
+     * the number type and overflow checking, the optimiser, and the constants, intermediate variables, operators and functions.
+     *
+     * Functions are described by their class, and so functions of the same class must behave the same.
+     */
+    public String getConfiguration() {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(numberType).append(' ').append(overflowChecked).append('\n').append(optimiser);
+
+        for(Map.Entry<String, Double> entry : new TreeMap<>(constants).entrySet()) {
+            builder.append("\nconstant ").append(entry.getKey())
+                   .append(' ').append(Double.doubleToRawLongBits(entry.getValue()));
+        }
+
+        for(Map.Entry<String, Node> entry : new TreeMap<>(intermediateVariables).entrySet()) {
+            builder.append("\nvariable ").append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+
+        for(Map.Entry<String, Operator> entry : new TreeMap<>(operatorStrings).entrySet()) {
+            Operator operator = entry.getValue();
+
+            builder.append("\noperator ").append(entry.getKey()).append(' ').append(operator.getName())
+                   .append(' ').append(operator.getPrecedence()).append(' ').append(operator.getClass().getName());
+        }
+
+        for(Map.Entry<String, Function> entry : new TreeMap<>(functions).entrySet()) {
+            Function function = entry.getValue();
+
+            builder.append("\nfunction ").append(entry.getKey()).append(' ').append(function.getName())
+                   .append(' ').append(function.getClass().getName())
+                   .append(function instanceof Compilable ? " compiled " : " linked ")
+                   .append(function.getOptimiseOptions());
+        }
+
+        return builder.toString();
     }
 
     public Expression parse(String equation) {
         StringStream stream = new StringStream(equation);
-        Expression expression = new Expression(parseNode(stream), arguments);
+        Expression expression = new Expression(parseTree(stream), arguments, numberType, overflowChecked);
 
         optimiser.optimise(expression);
 
         return expression;
     }
 
+    /**
+     * Parse the whole equation in {@param stream}, using a new {@link NodeFactory} to share its nodes.
+     */
+    private Node parseTree(StringStream stream) {
+        nodeFactory = new NodeFactory();
+
+        try {
+            return parseNode(stream);
+        } finally {
+            nodeFactory = null;
+        }
+    }
+
     private Node parseNode(StringStream stream) {
         int fromIndex = stream.getCurrentIndex();
         List<Token> tokens = tokenize(stream);
@@ -133,7 +233,6 @@ public class ExpressionParser {
             String operatorString = "\"" + operator.getOperatorString() + "\"";
 
             Token[] arguments = new Token[operator.getArgumentCount()];
-            int argumentIndex = 0;
             int insertIndex = index;
 
             if(operator.requiresRight()) {
@@ -145,7 +244,7 @@ public class ExpressionParser {
                 if(right.isOperator())
                     throw token.error(stream, "Operator " + operatorString + " requires a value to its right");
 
-                arguments[argumentIndex++] = tokens.remove(index);
+                arguments[arguments.length - 1] = tokens.remove(index);
             }
 
             if(operator.requiresLeft()) {
@@ -157,11 +256,19 @@ public class ExpressionParser {
                 if(left.isOperator())
                     throw token.error(stream, "Operator " + operatorString + " requires a value to its left");
 
-                arguments[argumentIndex] = tokens.remove(index - 1);
+                arguments[0] = tokens.remove(index - 1);
                 insertIndex -= 1;
             }
 
-            Token newToken = operator.getToken(token, arguments);
+            Token newToken = operator.getToken(nodeFactory, token, arguments);
+
+            if(numberType == NumberType.LONG && newToken.getNode() instanceof AbstractFunctionNode) {
+                Function function = ((AbstractFunctionNode) newToken.getNode()).getFunction();
+
+                if(!(function instanceof LongFunction))
+                    throw token.error(stream, "Operator " + operatorString + " cannot be used with longs");
+            }
+
             tokens.add(insertIndex, newToken);
         }
 
@@ -177,7 +284,7 @@ public class ExpressionParser {
 
     private int findHighestPrecedence(List<Token> tokens) {
         int highestIndex = -1;
-        int highestPrecedence = -1;
+        int highestPrecedence = Integer.MIN_VALUE;
         boolean highestRequiresRightOnly = false;
 
         for(int index = 0; index < tokens.size(); ++index) {
@@ -247,19 +354,28 @@ public class ExpressionParser {
         int fromIndex = stream.getCurrentIndex();
 
         PrefixTree<Operator> tree = operators;
+        Operator longest = null;
+        int longestToIndex = fromIndex;
 
-        while(tree != null) {
+        // Find the longest operator that matches, so that e.g. "<=" is not read as "<"
+        while(tree != null && stream.hasNext()) {
             char ch = stream.consume();
             Operator operator = tree.get(ch);
 
-            if(operator != null)
-                return Token.operator(operator, fromIndex, stream.getCurrentIndex());
+            if(operator != null) {
+                longest = operator;
+                longestToIndex = stream.getCurrentIndex();
+            }
 
             tree = tree.getSubTree(ch);
         }
 
-        stream.returnTo(fromIndex);
-        return null;
+        stream.returnTo(longestToIndex);
+
+        if(longest == null)
+            return null;
+
+        return Token.operator(longest, fromIndex, longestToIndex);
     }
 
     private Token parseBrackets(StringStream stream) {
@@ -272,10 +388,18 @@ public class ExpressionParser {
 
     private Token parseNumber(StringStream stream) {
         int fromIndex = stream.getCurrentIndex();
+
+        if(numberType == NumberType.LONG) {
+            long number = stream.consumeLong();
+            int toIndex = stream.getCurrentIndex();
+
+            return Token.constant(nodeFactory.constantLong(number), fromIndex, toIndex);
+        }
+
         double number = stream.consumeNumber();
         int toIndex = stream.getCurrentIndex();
 
-        return Token.constant(number, fromIndex, toIndex);
+        return Token.constant(nodeFactory, number, fromIndex, toIndex);
     }
 
     private Token parseIdentifier(StringStream stream) {
@@ -291,12 +415,20 @@ public class ExpressionParser {
         if(constants.containsKey(identifier)) {
             double value = constants.get(identifier);
 
-            return Token.constant(identifier, value, fromIndex, toIndex);
+            if(numberType == NumberType.LONG) {
+                if(value != Math.rint(value) || Double.isInfinite(value))
+                    throw stream.error("The constant " + identifier + " is not an integer", fromIndex, toIndex);
+
+                return Token.constant(nodeFactory.constantLong(identifier, (long) value), fromIndex, toIndex);
+            }
+
+            return Token.constant(nodeFactory, identifier, value, fromIndex, toIndex);
         }
 
         // Intermediate variables
         if(intermediateVariables.containsKey(identifier)) {
-            Node intermediate = intermediateVariables.get(identifier);
+            // Intermediate variables were built by the NodeFactory of another equation
+            Node intermediate = nodeFactory.intern(intermediateVariables.get(identifier));
 
             return Token.node(intermediate, fromIndex, toIndex);
         }
@@ -305,7 +437,7 @@ public class ExpressionParser {
         if(arguments.contains(identifier)) {
             int varIndex = arguments.indexOf(identifier);
 
-            return Token.variable(identifier, varIndex, fromIndex, toIndex);
+            return Token.variable(nodeFactory, identifier, varIndex, fromIndex, toIndex);
         }
 
         throw stream.error("Unknown variable or constant \"" + identifier + "\"", fromIndex, toIndex);
@@ -324,7 +456,7 @@ public class ExpressionParser {
             if(arguments.length != 3)
                 throw stream.error("if statements require 3 arguments", fromIndex, toIndex);
 
-            return Token.ifStatement(arguments[0], arguments[1], arguments[2], fromIndex, toIndex);
+            return Token.ifStatement(nodeFactory, arguments[0], arguments[1], arguments[2], fromIndex, toIndex);
         }
 
         Function function = functions.get(identifier);
@@ -332,8 +464,11 @@ public class ExpressionParser {
         if(function == null)
             throw stream.error("Unknown function " + identifier, fromIndex, toIndex);
 
+        if(numberType == NumberType.LONG && !(function instanceof LongFunction))
+            throw stream.error("The function " + identifier + " cannot be used with longs", fromIndex, toIndex);
+
         try {
-            return Token.function(function, arguments, fromIndex, toIndex);
+            return Token.function(nodeFactory, function, arguments, fromIndex, toIndex);
         } catch(IllegalArgumentException e) {
             throw stream.error(e.getMessage(), fromIndex, toIndex);
         }
@@ -1,6 +1,7 @@
 package net.sothatsit.evaluate.parser;
 
 import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.NodeFactory;
 import net.sothatsit.evaluate.tree.function.Function;
 import net.sothatsit.evaluate.tree.function.operator.*;
 
@@ -8,15 +9,32 @@ public interface Operator {
 
     public static Operator[] all() {
         return new Operator[] {
-                add, subtract, multiply, divide, power
+                add, subtract, multiply, divide, remainder, power,
+                shiftLeft, shiftRight,
+                lessThan, lessThanOrEqual, greaterThan, greaterThanOrEqual, equal, notEqual,
+                and, or
         };
     }
 
-    public static final Operator add      = new TwoOperator("add",      "+", 0,  Add.fn);
-    public static final Operator subtract = new TwoOperator("subtract", "-", 0,  Subtract.fn);
-    public static final Operator multiply = new TwoOperator("multiply", "*", 5,  Multiply.fn);
-    public static final Operator divide   = new TwoOperator("divide",   "/", 5,  Divide.fn);
-    public static final Operator power    = new TwoOperator("power",    "^", 10, Power.fn);
+    public static final Operator add       = new TwoOperator("add",       "+", 0,  Add.fn);
+    public static final Operator subtract  = new TwoOperator("subtract",  "-", 0,  Subtract.fn);
+    public static final Operator multiply  = new TwoOperator("multiply",  "*", 5,  Multiply.fn);
+    public static final Operator divide    = new TwoOperator("divide",    "/", 5,  Divide.fn);
+    public static final Operator remainder = new TwoOperator("remainder", "%", 5,  Remainder.fn);
+    public static final Operator power     = new TwoOperator("power",     "^", 10, Power.fn);
+
+    public static final Operator shiftLeft  = new TwoOperator("shiftLeft",  "<<", -2, ShiftLeft.fn);
+    public static final Operator shiftRight = new TwoOperator("shiftRight", ">>", -2, ShiftRight.fn);
+
+    public static final Operator lessThan           = new TwoOperator("lessThan",           "<",  -5, LessThan.fn);
+    public static final Operator lessThanOrEqual    = new TwoOperator("lessThanOrEqual",    "<=", -5, LessThanOrEqual.fn);
+    public static final Operator greaterThan        = new TwoOperator("greaterThan",        ">",  -5, GreaterThan.fn);
+    public static final Operator greaterThanOrEqual = new TwoOperator("greaterThanOrEqual", ">=", -5, GreaterThanOrEqual.fn);
+    public static final Operator equal              = new TwoOperator("equal",              "==", -5, Equal.fn);
+    public static final Operator notEqual           = new TwoOperator("notEqual",           "!=", -5, NotEqual.fn);
+
+    public static final Operator and = new LogicalOperator("and", "&&", -10, true);
+    public static final Operator or  = new LogicalOperator("or",  "||", -15, false);
 
     public String getName();
 
@@ -30,7 +48,10 @@ public interface Operator {
 
     public int getArgumentCount();
 
-    public Token getToken(Token operatorToken, Token[] arguments);
+    /**
+     * Create the token of this operator applied to {@param arguments}, building its nodes using {@param factory}.
+     */
+    public Token getToken(NodeFactory factory, Token operatorToken, Token[] arguments);
 
     public static abstract class AbstractOperator implements Operator {
 
@@ -67,7 +88,7 @@ public interface Operator {
         }
 
         @Override
-        public Token getToken(Token operatorToken, Token[] arguments) {
+        public Token getToken(NodeFactory factory, Token operatorToken, Token[] arguments) {
             int minStart = operatorToken.startIndex;
             int maxEnd = operatorToken.endIndex;
 
@@ -82,7 +103,7 @@ public interface Operator {
                 nodes[index] = token.getNode();
             }
 
-            return Token.function(function, nodes, minStart, maxEnd);
+            return Token.function(factory, function, nodes, minStart, maxEnd);
         }
     }
 
@@ -136,4 +157,39 @@ public interface Operator {
             return true;
         }
     }
+
+    /**
+     * A short-circuiting logical operator, which is converted into if statements.
+     *
+     * e.g. (a && b) -> if(a, if(b, 1, 0), 0)
+     *      (a || b) -> if(a, 1, if(b, 1, 0))
+     */
+    public static class LogicalOperator extends TwoOperator {
+
+        private final boolean isAnd;
+
+        public LogicalOperator(String name, String operatorString, int precedence, boolean isAnd) {
+            super(name, operatorString, precedence, null);
+
+            this.isAnd = isAnd;
+        }
+
+        @Override
+        public Token getToken(NodeFactory factory, Token operatorToken, Token[] arguments) {
+            Token left = arguments[0];
+            Token right = arguments[1];
+
+            int minStart = Math.min(operatorToken.startIndex, Math.min(left.startIndex, right.startIndex));
+            int maxEnd = Math.max(operatorToken.endIndex, Math.max(left.endIndex, right.endIndex));
+
+            Node one = factory.constant(1.0);
+            Node zero = factory.constant(0.0);
+            Node rightBoolean = factory.ifNode(right.getNode(), one, zero);
+
+            if(isAnd)
+                return Token.ifStatement(factory, left.getNode(), rightBoolean, zero, minStart, maxEnd);
+
+            return Token.ifStatement(factory, left.getNode(), one, rightBoolean, minStart, maxEnd);
+        }
+    }
 }
@@ -191,6 +191,33 @@ public class StringStream {
         }
     }
 
+    /**
+     * Consume an integer, which cannot have a decimal point or an exponent.
+     */
+    public long consumeLong() {
+        char first = next("parsing integer");
+
+        if(first < '0' || first > '9')
+            throw new IllegalStateException("Attempted to consume integer when not positioned over an integer");
+
+        int fromIndex = index;
+
+        while(hasNext() && '0' <= next() && next() <= '9') {
+            index += 1;
+        }
+
+        if(hasNext() && (next() == '.' || next() == 'e' || next() == 'E'))
+            throw error("Expected an integer, but found a decimal number", fromIndex, index + 1);
+
+        String number = input.substring(fromIndex, index);
+
+        try {
+            return Long.parseLong(number);
+        } catch(NumberFormatException e) {
+            throw error("Unable to parse integer \"" + number + "\", it is too large", fromIndex, index);
+        }
+    }
+
     public StringStream consumeBrackets() {
         char first = next("parsing brackets");
 
@@ -57,27 +57,33 @@ public class Token {
         return new Token(node, startIndex, endIndex);
     }
 
-    public static Token ifStatement(Node condition, Node thenNode, Node elseNode, int startIndex, int endIndex) {
-        return new Token(new IfNode(condition, thenNode, elseNode), startIndex, endIndex);
+    public static Token ifStatement(NodeFactory factory, Node condition, Node thenNode, Node elseNode,
+                                    int startIndex, int endIndex) {
+        return new Token(factory.ifNode(condition, thenNode, elseNode), startIndex, endIndex);
     }
 
-    public static Token function(Function function, Node[] arguments, int startIndex, int endIndex) {
-        return new Token(new FunctionNode(function, arguments), startIndex, endIndex);
+    public static Token function(NodeFactory factory, Function function, Node[] arguments,
+                                 int startIndex, int endIndex) {
+        return new Token(factory.function(function, arguments), startIndex, endIndex);
     }
 
     public static Token operator(Operator operator, int startIndex, int endIndex) {
         return new Token(operator, startIndex, endIndex);
     }
 
-    public static Token variable(String name, int varIndex, int startIndex, int endIndex) {
-        return new Token(new VariableNode(name, varIndex), startIndex, endIndex);
+    public static Token variable(NodeFactory factory, String name, int varIndex, int startIndex, int endIndex) {
+        return new Token(factory.variable(name, varIndex), startIndex, endIndex);
     }
 
-    public static Token constant(double value, int startIndex, int endIndex) {
-        return new Token(new ConstantNode(value), startIndex, endIndex);
+    public static Token constant(ConstantNode constant, int startIndex, int endIndex) {
+        return new Token(constant, startIndex, endIndex);
     }
 
-    public static Token constant(String name, double value, int startIndex, int endIndex) {
-        return new Token(new ConstantNode(name, value), startIndex, endIndex);
+    public static Token constant(NodeFactory factory, double value, int startIndex, int endIndex) {
+        return new Token(factory.constant(value), startIndex, endIndex);
+    }
+
+    public static Token constant(NodeFactory factory, String name, double value, int startIndex, int endIndex) {
+        return new Token(factory.constant(name, value), startIndex, endIndex);
     }
 }
@@ -1,21 +1,60 @@
 package net.sothatsit.evaluate.tree;
 
 import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.LongFunction;
 
 public abstract class AbstractFunctionNode implements Node {
 
     @Override
     public int getHeight() {
+        return computeHeight(getArguments());
+    }
+
+    /**
+     * @return The height of a function node with the arguments {@param arguments}.
+     */
+    protected static int computeHeight(Node[] arguments) {
         int max = 0;
 
-        for(Node argument : getArguments()) {
+        for(Node argument : arguments) {
             max = Math.max(max, argument.getHeight());
         }
 
         return max + 1;
     }
 
+    @Override
+    public double getCost() {
+        return computeCost(getFunction(), getArguments());
+    }
+
+    /**
+     * @return The cost of a function node of {@param function} with the arguments {@param arguments}, where
+     *         functions with more arguments than they take are applied between each pair of adjacent arguments.
+     */
+    protected static double computeCost(Function function, Node[] arguments) {
+        double cost = function.getOptimiseOptions().cost * (arguments.length - function.getArgumentCount() + 1);
+
+        for(Node argument : arguments) {
+            cost += argument.getCost();
+        }
+
+        return cost;
+    }
+
     public abstract Function getFunction();
 
+    /**
+     * @return {@link #getFunction()} as a {@link LongFunction}, for evaluating with integer semantics.
+     */
+    protected LongFunction getLongFunction() {
+        Function function = getFunction();
+
+        if(!(function instanceof LongFunction))
+            throw new UnsupportedOperationException("The function " + function.getName() + " does not support longs");
+
+        return (LongFunction) function;
+    }
+
     public abstract Node[] getArguments();
 }
@@ -5,13 +5,37 @@ public final class ConstantNode implements Node {
     public final String name;
     public final double value;
 
+    /**
+     * The exact value of this constant in expressions of longs.
+     */
+    public final long longValue;
+
+    private final boolean isLong;
+
     public ConstantNode(double value) {
         this(null, value);
     }
 
     public ConstantNode(String name, double value) {
+        this(name, value, (long) value, false);
+    }
+
+    private ConstantNode(String name, double value, long longValue, boolean isLong) {
         this.name = name;
         this.value = value;
+        this.longValue = longValue;
+        this.isLong = isLong;
+    }
+
+    /**
+     * Create a constant for use in expressions of longs, whose value may not be exactly representable as a double.
+     */
+    public static ConstantNode ofLong(long value) {
+        return ofLong(null, value);
+    }
+
+    public static ConstantNode ofLong(String name, long value) {
+        return new ConstantNode(name, (double) value, value, true);
     }
 
     @Override
@@ -19,11 +43,21 @@ public final class ConstantNode implements Node {
         return 1;
     }
 
+    @Override
+    public double getCost() {
+        return 0;
+    }
+
     @Override
     public double evaluate(double[] inputs) {
         return value;
     }
 
+    @Override
+    public long evaluateLong(long[] inputs) {
+        return longValue;
+    }
+
     @Override
     public int hashCode() {
         return Double.hashCode(value);
@@ -31,12 +65,20 @@ public final class ConstantNode implements Node {
 
     @Override
     public boolean equals(Object obj) {
-        return obj instanceof ConstantNode && ((ConstantNode) obj).value == value;
+        if(!(obj instanceof ConstantNode))
+            return false;
 
+        ConstantNode other = (ConstantNode) obj;
+
+        // Compared by their bits so that 0.0 and -0.0 differ, and NaN is equal to itself, consistent with hashCode
+        return Double.doubleToLongBits(other.value) == Double.doubleToLongBits(value) && other.longValue == longValue;
     }
 
     @Override
     public String toString() {
-        return (name != null ? name : Double.toString(value));
+        if(name != null)
+            return name;
+
+        return (isLong ? Long.toString(longValue) : Double.toString(value));
     }
 }
@@ -0,0 +1,259 @@
+package net.sothatsit.evaluate.tree;
+
+import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.operator.Add;
+import net.sothatsit.evaluate.tree.function.operator.Divide;
+import net.sothatsit.evaluate.tree.function.operator.Multiply;
+import net.sothatsit.evaluate.tree.function.operator.Subtract;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Symbolically differentiates expression trees in reverse mode.
+ *
+ * The adjoint of the root, the derivative of the output with respect to itself, is 1. It is then pushed
+ * down the tree, where the adjoint of each argument is the adjoint of its function multiplied by the
+ * partial derivative of the function with respect to that argument, as given by {@link Function#differentiate}.
+ * The adjoints that reach each input are summed to give the derivative of the output with respect to that input.
+ *
+ * Nodes may be shared by many parents, and so the nodes are visited in topological order, parents first. The
+ * adjoints from all of the parents of a node are summed before it is visited, so that each node is only visited
+ * once. The derivatives are built using a {@link NodeFactory}, so that they share nodes with the tree.
+ *
+ * Derivatives are represented as null where they are known to be zero, so that they can be skipped.
+ */
+public class Differentiator {
+
+    private final NodeFactory factory;
+
+    /**
+     * The sum of the adjoints that have been pushed to each node from its parents so far.
+     */
+    private final Map<Node, Node> adjoints = new IdentityHashMap<>();
+
+    private Differentiator(NodeFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return The derivative of {@param root} with respect to each of the {@param inputCount} inputs,
+     *         or null for the inputs that it does not depend on.
+     */
+    public static Node[] gradient(Node root, int inputCount) {
+        return gradient(root, inputCount, new NodeFactory());
+    }
+
+    /**
+     * @return The derivative of {@param root} with respect to each of the {@param inputCount} inputs,
+     *         or null for the inputs that it does not depend on, built using {@param factory}.
+     */
+    public static Node[] gradient(Node root, int inputCount, NodeFactory factory) {
+        return new Differentiator(factory).differentiate(factory.intern(root), inputCount);
+    }
+
+    private Node[] differentiate(Node root, int inputCount) {
+        Node[] gradient = new Node[inputCount];
+        List<Node> order = sortTopologically(root);
+
+        adjoints.put(root, factory.constant(1.0));
+
+        for(int index = order.size() - 1; index >= 0; --index) {
+            Node node = order.get(index);
+            Node adjoint = adjoints.remove(node);
+
+            if(adjoint == null)
+                continue;
+
+            if(node instanceof VariableNode) {
+                int input = ((VariableNode) node).index;
+
+                gradient[input] = sum(gradient[input], adjoint);
+            } else if(node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+                Node zero = factory.constant(0.0);
+
+                // The condition only selects between the branches, so it does not contribute to the derivative
+                push(ifNode.thenNode, factory.ifNode(ifNode.condition, adjoint, zero));
+                push(ifNode.elseNode, factory.ifNode(ifNode.condition, zero, adjoint));
+            } else if(node instanceof AbstractFunctionNode) {
+                AbstractFunctionNode functionNode = (AbstractFunctionNode) node;
+                Function function = functionNode.getFunction();
+                Node[] arguments = functionNode.getArguments();
+
+                for(int argument = 0; argument < arguments.length; ++argument) {
+                    if(arguments[argument] instanceof ConstantNode)
+                        continue;
+
+                    Node partial = function.differentiate(arguments, argument);
+
+                    if(partial == null)
+                        continue;
+
+                    push(arguments[argument], product(adjoint, factory.intern(partial)));
+                }
+            } else if(!(node instanceof ConstantNode)) {
+                throw new IllegalArgumentException("Unknown type of Node " + node + " (" + node.getClass() + ")");
+            }
+        }
+
+        return gradient;
+    }
+
+    /**
+     * Add {@param adjoint} to the adjoint of {@param node}.
+     */
+    private void push(Node node, Node adjoint) {
+        if(node instanceof ConstantNode)
+            return;
+
+        adjoints.put(node, sum(adjoints.get(node), adjoint));
+    }
+
+    /**
+     * @return {@param one} + {@param two}, where either may be null to represent zero.
+     */
+    private Node sum(Node one, Node two) {
+        if(one == null || isConstantOfValue(one, 0.0))
+            return two;
+        if(two == null || isConstantOfValue(two, 0.0))
+            return one;
+
+        // Adjoints from the same branch of an if statement are summed within the branch
+        if(one instanceof IfNode && two instanceof IfNode && ((IfNode) one).condition == ((IfNode) two).condition) {
+            IfNode ifOne = (IfNode) one;
+            IfNode ifTwo = (IfNode) two;
+
+            return factory.ifNode(
+                    ifOne.condition,
+                    sum(ifOne.thenNode, ifTwo.thenNode),
+                    sum(ifOne.elseNode, ifTwo.elseNode)
+            );
+        }
+
+        return factory.function(Add.fn, one, two);
+    }
+
+    /**
+     * @return {@param adjoint} * {@param partial}, where the partial derivative is only evaluated
+     *         within the branches of the if statements in {@param adjoint} where the adjoint is not zero.
+     */
+    private Node product(Node adjoint, Node partial) {
+        if(adjoint instanceof IfNode) {
+            IfNode ifNode = (IfNode) adjoint;
+
+            return factory.ifNode(
+                    ifNode.condition,
+                    product(ifNode.thenNode, partial),
+                    product(ifNode.elseNode, partial)
+            );
+        }
+
+        if(isConstantOfValue(adjoint, 0.0))
+            return adjoint;
+        if(isConstantOfValue(adjoint, 1.0))
+            return partial;
+        if(isConstantOfValue(partial, 1.0))
+            return adjoint;
+
+        return factory.function(Multiply.fn, adjoint, partial);
+    }
+
+    /**
+     * @return The nodes of the tree {@param root} that can receive an adjoint, each after all of its arguments.
+     */
+    private static List<Node> sortTopologically(Node root) {
+        List<Node> order = new ArrayList<>();
+        Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Node> sorted = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> stack = new ArrayDeque<>();
+
+        stack.push(root);
+
+        while(!stack.isEmpty()) {
+            Node node = stack.peek();
+
+            // The arguments of a node are pushed above it, and so have all been sorted when it is next reached
+            if(visited.add(node)) {
+                for(Node argument : getDifferentiableArguments(node)) {
+                    if(!visited.contains(argument)) {
+                        stack.push(argument);
+                    }
+                }
+                continue;
+            }
+
+            stack.pop();
+
+            if(sorted.add(node)) {
+                order.add(node);
+            }
+        }
+
+        return order;
+    }
+
+    private static Node[] getDifferentiableArguments(Node node) {
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.thenNode, ifNode.elseNode};
+        }
+
+        return new Node[0];
+    }
+
+    public static Node constant(double value) {
+        return new ConstantNode(value);
+    }
+
+    /**
+     * @return {@param one} + {@param two}, where either may be null to represent zero.
+     */
+    public static Node add(Node one, Node two) {
+        if(one == null)
+            return two;
+        if(two == null)
+            return one;
+
+        return new FunctionNode(Add.fn, one, two);
+    }
+
+    public static Node subtract(Node one, Node two) {
+        return new FunctionNode(Subtract.fn, one, two);
+    }
+
+    public static Node multiply(Node one, Node two) {
+        if(isConstantOfValue(one, 1.0))
+            return two;
+        if(isConstantOfValue(two, 1.0))
+            return one;
+
+        return new FunctionNode(Multiply.fn, one, two);
+    }
+
+    public static Node divide(Node one, Node two) {
+        return new FunctionNode(Divide.fn, one, two);
+    }
+
+    public static Node negate(Node node) {
+        return multiply(constant(-1.0), node);
+    }
+
+    public static Node square(Node node) {
+        return multiply(node, node);
+    }
+
+    private static boolean isConstantOfValue(Node node, double value) {
+        return (node instanceof ConstantNode && ((ConstantNode) node).value == value);
+    }
+}
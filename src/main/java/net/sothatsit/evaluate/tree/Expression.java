@@ -1,8 +1,17 @@
 package net.sothatsit.evaluate.tree;
 
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.optimiser.MultiFunctionNode;
+import net.sothatsit.evaluate.optimiser.Optimiser;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Expression implements Comparable<Expression> {
 
@@ -11,9 +20,31 @@ public class Expression implements Comparable<Expression> {
     public Node root;
     public final List<String> arguments;
 
+    /**
+     * The type of the inputs and outputs of this expression, which determines the semantics of its operations.
+     */
+    public final NumberType numberType;
+
+    /**
+     * Whether the additions, subtractions and multiplications of this expression of longs throw an
+     * {@link ArithmeticException} when they overflow, rather than wrapping around. The optimisers then
+     * only fold constants that do not overflow, and do not re-associate these operations.
+     */
+    public final boolean overflowChecked;
+
     public Expression(Node root, List<String> arguments) {
+        this(root, arguments, NumberType.DOUBLE);
+    }
+
+    public Expression(Node root, List<String> arguments, NumberType numberType) {
+        this(root, arguments, numberType, false);
+    }
+
+    public Expression(Node root, List<String> arguments, NumberType numberType, boolean overflowChecked) {
         this.root = root;
         this.arguments = new ArrayList<>(arguments);
+        this.numberType = numberType;
+        this.overflowChecked = overflowChecked;
     }
 
     public int getArgumentCount() {
@@ -27,10 +58,184 @@ public class Expression implements Comparable<Expression> {
         return arguments.indexOf(name);
     }
 
+    /**
+     * Create a copy of this expression with the input {@param argumentIndex} fixed to {@param value},
+     * which is then re-optimised so that the sub-expressions that only depend on constants are folded away.
+     *
+     * The argument is kept, so the indices of the other inputs are unchanged, but its value is ignored.
+     */
+    public Expression bind(int argumentIndex, double value) {
+        return bind(new int[] {argumentIndex}, new double[] {value}, CompositeOptimiser.all());
+    }
+
+    public Expression bind(String argument, double value) {
+        return bind(getArgumentIndex(argument), value);
+    }
+
+    /**
+     * Create a copy of this expression with each input in {@param argumentIndices} fixed to the
+     * value at the same index in {@param values}, and re-optimise it using {@param optimiser}.
+     *
+     * This expression is not modified.
+     */
+    public Expression bind(int[] argumentIndices, double[] values, Optimiser optimiser) {
+        if(argumentIndices.length != values.length)
+            throw new IllegalArgumentException("Expected " + argumentIndices.length + " values, got " + values.length);
+
+        NodeFactory factory = new NodeFactory();
+        Node[] bound = new Node[arguments.size()];
+
+        for(int index = 0; index < argumentIndices.length; ++index) {
+            int argumentIndex = argumentIndices[index];
+            double value = values[index];
+
+            if(argumentIndex < 0 || argumentIndex >= bound.length)
+                throw new IllegalArgumentException("Unknown argument index " + argumentIndex);
+
+            if(numberType == NumberType.LONG) {
+                if(value != (long) value) {
+                    throw new IllegalArgumentException(
+                            "Cannot bind the non-integer " + value + " in a LONG expression"
+                    );
+                }
+
+                bound[argumentIndex] = factory.constantLong((long) value);
+            } else {
+                bound[argumentIndex] = factory.constant(value);
+            }
+        }
+
+        Expression expression = new Expression(bind(root, bound, factory), arguments, numberType, overflowChecked);
+
+        optimiser.optimise(expression);
+
+        return expression;
+    }
+
+    /**
+     * Symbolically differentiate this expression with respect to each of its inputs.
+     *
+     * @return The derivative with respect to each input, in the order of the arguments.
+     * @throws UnsupportedOperationException If this expression uses a function that cannot be differentiated.
+     */
+    public Expression[] gradient() {
+        return gradient(CompositeOptimiser.all());
+    }
+
+    /**
+     * Symbolically differentiate this expression with respect to each of its inputs,
+     * optimising each of the derivatives with {@param optimiser}.
+     */
+    public Expression[] gradient(Optimiser optimiser) {
+        if(numberType == NumberType.LONG)
+            throw new IllegalStateException("Cannot differentiate the LONG expression " + this);
+
+        Node[] gradient = Differentiator.gradient(root, arguments.size());
+        Expression[] expressions = new Expression[gradient.length];
+
+        for(int index = 0; index < gradient.length; ++index) {
+            // The derivatives share nodes with this expression and each other, which the optimisers leave unmodified
+            Node derivative = (gradient[index] != null ? gradient[index] : new ConstantNode(0.0));
+
+            expressions[index] = new Expression(derivative, arguments, numberType);
+            optimiser.optimise(expressions[index]);
+        }
+
+        return expressions;
+    }
+
+    /**
+     * Replace each variable in the tree {@param root} that has a non-null node in {@param bound} with that node.
+     *
+     * The nodes that change are re-created using {@param factory}, as nodes may be shared and so are never modified.
+     * The tree is walked in post-order using an explicit stack so that deep trees do not overflow the stack, and
+     * the result for each node is remembered so that nodes shared by multiple parents are only bound once.
+     */
+    private static Node bind(Node root, Node[] bound, NodeFactory factory) {
+        Map<Node, Node> results = new IdentityHashMap<>();
+        Deque<Node> stack = new ArrayDeque<>();
+
+        stack.push(root);
+
+        while(!stack.isEmpty()) {
+            Node node = stack.peek();
+
+            if(results.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+
+            // The arguments of a node are pushed above it, and so have all been bound when it is next reached
+            Node[] arguments = getArguments(node);
+            boolean pushed = false;
+
+            for(int index = arguments.length - 1; index >= 0; --index) {
+                if(!results.containsKey(arguments[index])) {
+                    stack.push(arguments[index]);
+                    pushed = true;
+                }
+            }
+
+            if(pushed)
+                continue;
+
+            stack.pop();
+
+            Node[] boundArguments = new Node[arguments.length];
+
+            for(int index = 0; index < arguments.length; ++index) {
+                boundArguments[index] = results.get(arguments[index]);
+            }
+
+            results.put(node, bind(node, boundArguments, bound, factory));
+        }
+
+        return results.get(root);
+    }
+
+    /**
+     * @return {@param node} with its arguments replaced by {@param arguments}, which have already been bound.
+     */
+    private static Node bind(Node node, Node[] arguments, Node[] bound, NodeFactory factory) {
+        if(node instanceof VariableNode) {
+            Node replacement = bound[((VariableNode) node).index];
+
+            return (replacement != null ? replacement : node);
+        }
+
+        if(node instanceof IfNode)
+            return factory.ifNode(arguments[0], arguments[1], arguments[2]);
+
+        if(node instanceof FunctionNode)
+            return factory.function(((FunctionNode) node).function, arguments);
+
+        if(node instanceof MultiFunctionNode)
+            return new MultiFunctionNode(((MultiFunctionNode) node).function, arguments);
+
+        return node;
+    }
+
+    private static Node[] getArguments(Node node) {
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            return new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+        }
+
+        if(node instanceof AbstractFunctionNode)
+            return ((AbstractFunctionNode) node).getArguments();
+
+        return new Node[0];
+    }
+
     public double evaluate(double[] inputs) {
         return root.evaluate(inputs);
     }
 
+    public long evaluateLong(long[] inputs) {
+        return root.evaluateLong(inputs);
+    }
+
     @Override
     public String toString() {
         return root.toString();
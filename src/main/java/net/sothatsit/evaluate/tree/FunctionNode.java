@@ -1,12 +1,32 @@
 package net.sothatsit.evaluate.tree;
 
 import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.LongFunction;
 
 public final class FunctionNode extends AbstractFunctionNode {
 
     public final Function function;
+
+    /**
+     * The arguments of this function, which must not be modified, as nodes may be shared between trees.
+     */
     public final Node[] arguments;
 
+    /**
+     * The hash code of this node is computed once, as it depends on the whole tree below it.
+     */
+    private final int hashCode;
+
+    /**
+     * The height of this node is computed once, as the optimiser compares the heights of nodes repeatedly.
+     */
+    private final int height;
+
+    /**
+     * The cost of this node is computed once, as the optimiser and compiler compare the costs of nodes repeatedly.
+     */
+    private final double cost;
+
     public FunctionNode(Function function, Node... arguments) {
         if(arguments.length != function.getArgumentCount()) {
             throw new IllegalArgumentException(
@@ -16,6 +36,19 @@ public final class FunctionNode extends AbstractFunctionNode {
 
         this.function = function;
         this.arguments = arguments;
+        this.hashCode = computeHashCode(function, arguments);
+        this.height = computeHeight(arguments);
+        this.cost = computeCost(function, arguments);
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public double getCost() {
+        return cost;
     }
 
     @Override
@@ -39,8 +72,24 @@ public final class FunctionNode extends AbstractFunctionNode {
         return function.evaluate(argumentValues);
     }
 
+    @Override
+    public long evaluateLong(long[] inputs) {
+        LongFunction function = getLongFunction();
+        long[] argumentValues = new long[arguments.length];
+
+        for(int index = 0; index < arguments.length; ++index) {
+            argumentValues[index] = arguments[index].evaluateLong(inputs);
+        }
+
+        return function.evaluateLong(argumentValues);
+    }
+
     @Override
     public int hashCode() {
+        return hashCode;
+    }
+
+    private static int computeHashCode(Function function, Node[] arguments) {
         int hashCode = 29;
 
         hashCode *= 37;
@@ -51,11 +100,16 @@ public final class FunctionNode extends AbstractFunctionNode {
             hashCode += argument.hashCode();
         }
 
-        return hashCode;
+        // Mixed so that nested functions do not collide when only their order differs, and so
+        // that trees that only differ by small values differ in the low bits used by hash tables
+        return Integer.rotateLeft(hashCode * 0x9E3779B9, 16);
     }
 
     @Override
     public boolean equals(Object obj) {
+        if(obj == this)
+            return true;
+
         if(!function.getOptimiseOptions().isPure)
             return false;
 
@@ -64,11 +118,12 @@ public final class FunctionNode extends AbstractFunctionNode {
 
         FunctionNode other = (FunctionNode) obj;
 
-        if(function != other.function || arguments.length != other.arguments.length)
+        if(hashCode != other.hashCode || function != other.function || arguments.length != other.arguments.length)
             return false;
 
+        // Arguments created by the same NodeFactory are only equal if they are the same instance
         for(int index = 0; index < arguments.length; ++index) {
-            if(!arguments[index].equals(other.arguments[index]))
+            if(arguments[index] != other.arguments[index] && !arguments[index].equals(other.arguments[index]))
                 return false;
         }
 
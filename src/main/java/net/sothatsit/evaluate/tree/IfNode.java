@@ -2,19 +2,36 @@ package net.sothatsit.evaluate.tree;
 
 public final class IfNode implements Node {
 
+    /**
+     * The cost of choosing a branch, which is cheap when the branch is predicted correctly.
+     */
+    public static final double BRANCH_COST = 2;
+
     public final Node condition;
     public final Node thenNode;
     public final Node elseNode;
 
+    private final int hashCode;
+    private final int height;
+    private final double cost;
+
     public IfNode(Node condition, Node thenNode, Node elseNode) {
         this.condition = condition;
         this.thenNode = thenNode;
         this.elseNode = elseNode;
+        this.hashCode = 37 * condition.hashCode() + 359 * thenNode.hashCode() + 953 * elseNode.hashCode();
+        this.height = 1 + Math.max(condition.getHeight(), Math.max(thenNode.getHeight(), elseNode.getHeight()));
+        this.cost = BRANCH_COST + condition.getCost() + Math.max(thenNode.getCost(), elseNode.getCost());
     }
 
     @Override
     public int getHeight() {
-        return 1 + Math.max(condition.getHeight(), Math.max(thenNode.getHeight(), elseNode.getHeight()));
+        return height;
+    }
+
+    @Override
+    public double getCost() {
+        return cost;
     }
 
     @Override
@@ -26,19 +43,40 @@ public final class IfNode implements Node {
         }
     }
 
+    @Override
+    public long evaluateLong(long[] inputs) {
+        if(condition.evaluateLong(inputs) != 0) {
+            return thenNode.evaluateLong(inputs);
+        } else {
+            return elseNode.evaluateLong(inputs);
+        }
+    }
+
     @Override
     public int hashCode() {
-        return 37 * condition.hashCode() + 359 * thenNode.hashCode() + 953 * elseNode.hashCode();
+        return hashCode;
     }
 
     @Override
     public boolean equals(Object obj) {
+        if(obj == this)
+            return true;
+
         if(!(obj instanceof IfNode))
             return false;
 
         IfNode other = (IfNode) obj;
 
-        return condition.equals(other.condition) && thenNode.equals(other.thenNode) && elseNode.equals(other.elseNode);
+        if(hashCode != other.hashCode)
+            return false;
+
+        return isSame(condition, other.condition)
+                && isSame(thenNode, other.thenNode)
+                && isSame(elseNode, other.elseNode);
+    }
+
+    private static boolean isSame(Node one, Node two) {
+        return one == two || one.equals(two);
     }
 
     @Override
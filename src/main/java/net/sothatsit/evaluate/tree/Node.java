@@ -1,5 +1,8 @@
 package net.sothatsit.evaluate.tree;
 
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.function.LongFunction;
+
 import java.util.Comparator;
 
 public interface Node {
@@ -9,8 +12,21 @@ public interface Node {
      */
     public int getHeight();
 
+    /**
+     * Get the estimated cost of evaluating the tree below this node once, which is the sum of the
+     * {@link OptimiseOptions#cost} of each function that it evaluates. Shared subtrees are counted each time.
+     */
+    public double getCost();
+
     public double evaluate(double[] inputs);
 
+    /**
+     * Evaluate this node with integer semantics, for expressions of longs.
+     *
+     * @throws UnsupportedOperationException If this node uses a function that is not a {@link LongFunction}.
+     */
+    public long evaluateLong(long[] inputs);
+
     public static class NodeComparator implements Comparator<Node> {
 
         private final int heightMultiplier;
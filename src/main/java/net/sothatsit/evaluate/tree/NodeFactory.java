@@ -0,0 +1,232 @@
+package net.sothatsit.evaluate.tree;
+
+import net.sothatsit.evaluate.tree.function.Function;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Creates nodes, sharing a single instance between all of the structurally equal pure nodes that it creates.
+ *
+ * As a node is only created after its arguments, the arguments of two interned nodes are only equal if they
+ * are the same instance, and so comparing interned nodes is constant time. Repeated sub-expressions, such as
+ * those from intermediate variables, are stored once, turning trees into directed acyclic graphs.
+ *
+ * Interned nodes are shared, and so they must never be modified.
+ */
+public class NodeFactory {
+
+    private final Map<Node, Node> nodes = new HashMap<>();
+
+    public ConstantNode constant(double value) {
+        return intern(new ConstantNode(value));
+    }
+
+    /**
+     * Create a named constant, which is never shared so that it is printed by its name.
+     */
+    public ConstantNode constant(String name, double value) {
+        return intern(new ConstantNode(name, value));
+    }
+
+    /**
+     * Create a constant for use in expressions of longs.
+     */
+    public ConstantNode constantLong(long value) {
+        return intern(ConstantNode.ofLong(value));
+    }
+
+    /**
+     * Create a named constant for use in expressions of longs, which is never shared.
+     */
+    public ConstantNode constantLong(String name, long value) {
+        return intern(ConstantNode.ofLong(name, value));
+    }
+
+    public VariableNode variable(String name, int index) {
+        return intern(new VariableNode(name, index));
+    }
+
+    public FunctionNode function(Function function, Node... arguments) {
+        return intern(new FunctionNode(function, arguments));
+    }
+
+    public IfNode ifNode(Node condition, Node thenNode, Node elseNode) {
+        return intern(new IfNode(condition, thenNode, elseNode));
+    }
+
+    /**
+     * @return The number of distinct nodes that have been interned.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Intern the tree {@param root}, and each of the trees below it.
+     *
+     * The tree is traversed iteratively, so that very deep trees do not overflow the stack.
+     *
+     * @return The shared instance that is equal to {@param root}, which may be {@param root} itself.
+     */
+    public Node intern(Node root) {
+        // Nodes built from interned arguments, such as those built by the parser, do not need to be traversed
+        if(root instanceof FunctionNode && isInterned(((FunctionNode) root).arguments))
+            return intern((FunctionNode) root);
+
+        if(root instanceof IfNode) {
+            IfNode ifNode = (IfNode) root;
+
+            if(isInterned(ifNode.condition) && isInterned(ifNode.thenNode) && isInterned(ifNode.elseNode))
+                return intern(ifNode);
+        }
+
+        Map<Node, Node> interned = new IdentityHashMap<>();
+        Deque<Node> stack = new ArrayDeque<>();
+
+        stack.push(root);
+
+        while(!stack.isEmpty()) {
+            Node node = stack.peek();
+
+            if(interned.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+
+            // Trees that have already been interned do not need to be traversed again
+            Node existing = (node instanceof ConstantNode ? null : nodes.get(node));
+
+            if(existing != null) {
+                stack.pop();
+                interned.put(node, existing);
+                continue;
+            }
+
+            Node[] arguments;
+
+            if(node instanceof FunctionNode) {
+                arguments = ((FunctionNode) node).arguments;
+            } else if(node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+
+                arguments = new Node[] {ifNode.condition, ifNode.thenNode, ifNode.elseNode};
+            } else {
+                stack.pop();
+                interned.put(node, internLeaf(node));
+                continue;
+            }
+
+            boolean argumentsInterned = true;
+
+            for(Node argument : arguments) {
+                if(!interned.containsKey(argument)) {
+                    stack.push(argument);
+                    argumentsInterned = false;
+                }
+            }
+
+            if(!argumentsInterned)
+                continue;
+
+            stack.pop();
+            interned.put(node, intern(node, arguments, interned));
+        }
+
+        return interned.get(root);
+    }
+
+    /**
+     * Intern {@param node}, whose {@param arguments} have each been interned into {@param interned}.
+     */
+    private Node intern(Node node, Node[] arguments, Map<Node, Node> interned) {
+        boolean changed = false;
+        Node[] internedArguments = new Node[arguments.length];
+
+        for(int index = 0; index < arguments.length; ++index) {
+            internedArguments[index] = interned.get(arguments[index]);
+            changed |= (internedArguments[index] != arguments[index]);
+        }
+
+        if(node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+
+            if(changed) {
+                ifNode = new IfNode(internedArguments[0], internedArguments[1], internedArguments[2]);
+            }
+
+            return intern(ifNode);
+        }
+
+        FunctionNode functionNode = (FunctionNode) node;
+
+        if(changed) {
+            functionNode = new FunctionNode(functionNode.function, internedArguments);
+        }
+
+        return intern(functionNode);
+    }
+
+    private boolean isInterned(Node[] nodes) {
+        for(Node node : nodes) {
+            if(!isInterned(node))
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean isInterned(Node node) {
+        if(node instanceof ConstantNode && ((ConstantNode) node).name != null)
+            return true;
+
+        return nodes.get(node) == node;
+    }
+
+    private Node internLeaf(Node node) {
+        if(node instanceof ConstantNode)
+            return intern((ConstantNode) node);
+
+        if(node instanceof VariableNode)
+            return intern((VariableNode) node);
+
+        return node;
+    }
+
+    private ConstantNode intern(ConstantNode node) {
+        // Named constants are only equal to unnamed constants by value, and so are kept to be printed by name
+        if(node.name != null)
+            return node;
+
+        return share(node);
+    }
+
+    private VariableNode intern(VariableNode node) {
+        return share(node);
+    }
+
+    private FunctionNode intern(FunctionNode node) {
+        // Impure functions are never equal to each other, as they may produce different values each time
+        if(!node.function.getOptimiseOptions().isPure)
+            return node;
+
+        return share(node);
+    }
+
+    private IfNode intern(IfNode node) {
+        return share(node);
+    }
+
+    /**
+     * @return The node already stored that is equal to {@param node}, or {@param node} after storing it.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Node> T share(T node) {
+        Node existing = nodes.putIfAbsent(node, node);
+
+        return (existing != null ? (T) existing : node);
+    }
+}
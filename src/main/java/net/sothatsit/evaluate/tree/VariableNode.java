@@ -15,11 +15,21 @@ public class VariableNode implements Node {
         return 1;
     }
 
+    @Override
+    public double getCost() {
+        return 0;
+    }
+
     @Override
     public double evaluate(double[] inputs) {
         return inputs[index];
     }
 
+    @Override
+    public long evaluateLong(long[] inputs) {
+        return inputs[index];
+    }
+
     @Override
     public int hashCode() {
         return Integer.hashCode(index);
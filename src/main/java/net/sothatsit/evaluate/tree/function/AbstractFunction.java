@@ -1,6 +1,7 @@
 package net.sothatsit.evaluate.tree.function;
 
 import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.Node;
 
 public abstract class AbstractFunction implements Function {
 
@@ -26,4 +27,9 @@ public abstract class AbstractFunction implements Function {
     public OptimiseOptions getOptimiseOptions() {
         return OptimiseOptions.DEFAULT;
     }
+
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        throw new UnsupportedOperationException("The function " + name + " cannot be differentiated");
+    }
 }
@@ -0,0 +1,18 @@
+package net.sothatsit.evaluate.tree.function;
+
+/**
+ * A compilable one argument function that can also be evaluated with integer semantics.
+ */
+public abstract class CompilableLongOneArgFunction extends CompilableOneArgFunction implements LongFunction {
+
+    public CompilableLongOneArgFunction(String name, String... aliases) {
+        super(name, aliases);
+    }
+
+    @Override
+    public final long evaluateLong(long[] arguments) {
+        return evaluateLong(arguments[0]);
+    }
+
+    public abstract long evaluateLong(long arg);
+}
@@ -0,0 +1,18 @@
+package net.sothatsit.evaluate.tree.function;
+
+/**
+ * A compilable two argument function that can also be evaluated with integer semantics.
+ */
+public abstract class CompilableLongTwoArgFunction extends CompilableTwoArgFunction implements LongFunction {
+
+    public CompilableLongTwoArgFunction(String name, String... aliases) {
+        super(name, aliases);
+    }
+
+    @Override
+    public final long evaluateLong(long[] arguments) {
+        return evaluateLong(arguments[0], arguments[1]);
+    }
+
+    public abstract long evaluateLong(long arg1, long arg2);
+}
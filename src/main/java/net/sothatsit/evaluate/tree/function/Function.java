@@ -1,6 +1,7 @@
 package net.sothatsit.evaluate.tree.function;
 
 import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.Node;
 
 public interface Function {
 
@@ -13,4 +14,13 @@ public interface Function {
     public OptimiseOptions getOptimiseOptions();
 
     public double evaluate(double[] arguments);
+
+    /**
+     * Get the partial derivative of this function with respect to its argument {@param argumentIndex},
+     * when it is applied to {@param arguments}. The argument nodes may be used within the derivative.
+     *
+     * @return The derivative, or null if it is always zero.
+     * @throws UnsupportedOperationException If this function cannot be differentiated.
+     */
+    public Node differentiate(Node[] arguments, int argumentIndex);
 }
@@ -0,0 +1,9 @@
+package net.sothatsit.evaluate.tree.function;
+
+/**
+ * A function that can also be evaluated with integer semantics, so that it can be used in expressions of longs.
+ */
+public interface LongFunction extends Function {
+
+    public long evaluateLong(long[] arguments);
+}
@@ -1,9 +1,17 @@
 package net.sothatsit.evaluate.tree.function;
 
 import net.sothatsit.evaluate.compiler.MethodCompiler;
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.FunctionNode;
+import net.sothatsit.evaluate.tree.Node;
 import net.sothatsit.evaluate.tree.function.operator.*;
 
-import static jdk.internal.org.objectweb.asm.Opcodes.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static net.sothatsit.evaluate.tree.Differentiator.*;
 
 public class MathFunctions {
 
@@ -11,43 +19,103 @@ public class MathFunctions {
         return new Function[] {
                 Add.fn, Subtract.fn, Multiply.fn,
                 Divide.fn, Remainder.fn, Power.fn,
+                ShiftLeft.fn, ShiftRight.fn,
+
+                LessThan.fn, LessThanOrEqual.fn,
+                GreaterThan.fn, GreaterThanOrEqual.fn,
+                Equal.fn, NotEqual.fn,
 
                 sin, cos, tan,
                 sinh, cosh, tanh,
                 asin, acos, atan, atan2,
                 csc, sec, cot,
 
-                sqrt,
+                sqrt, cbrt,
                 ln, log2, log10,
                 sign, abs,
+                min, max,
+
+                floor, ceil, round,
+                floorDiv, floorMod,
 
-                floor, ceil, round
+                fma
         };
     }
 
+    /**
+     * Math.fma was added in Java 9, so it is looked up reflectively.
+     */
+    private static final MethodHandle FMA;
+    static {
+        MethodHandle fma;
+
+        try {
+            MethodType type = MethodType.methodType(double.class, double.class, double.class, double.class);
+            fma = MethodHandles.publicLookup().findStatic(Math.class, "fma", type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            fma = null;
+        }
+
+        FMA = fma;
+    }
+
+    /**
+     * @return Whether fused multiply-adds are computed with a single rounding step, rather than emulated.
+     */
+    public static boolean isFmaSupported() {
+        return FMA != null;
+    }
+
     public static final CompilableOneArgFunction sin = new CompilableOneArgFunction("sin") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(60);
+        }
+
         public double evaluate(double arg) {
             return Math.sin(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return new FunctionNode(cos, arguments[0]);
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "sin", 1);
         }
     };
 
     public static final CompilableOneArgFunction cos = new CompilableOneArgFunction("cos") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(60);
+        }
+
         public double evaluate(double arg) {
             return Math.cos(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return negate(new FunctionNode(sin, arguments[0]));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "cos", 1);
         }
     };
 
     public static final CompilableOneArgFunction tan = new CompilableOneArgFunction("tan") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(70);
+        }
+
         public double evaluate(double arg) {
-            return Math.sin(arg);
+            return Math.tan(arg);
+        }
+
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(1.0), square(new FunctionNode(cos, arguments[0])));
         }
 
         public void compile(MethodCompiler mc) {
@@ -56,137 +124,246 @@ public class MathFunctions {
     };
 
     public static final CompilableOneArgFunction sinh = new CompilableOneArgFunction("sinh") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(80);
+        }
+
         public double evaluate(double arg) {
             return Math.sinh(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return new FunctionNode(cosh, arguments[0]);
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "sinh", 1);
         }
     };
 
     public static final CompilableOneArgFunction cosh = new CompilableOneArgFunction("cosh") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(80);
+        }
+
         public double evaluate(double arg) {
             return Math.cosh(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return new FunctionNode(sinh, arguments[0]);
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "cosh", 1);
         }
     };
 
     public static final CompilableOneArgFunction tanh = new CompilableOneArgFunction("tanh") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(80);
+        }
+
         public double evaluate(double arg) {
             return Math.tanh(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return subtract(constant(1.0), square(new FunctionNode(this, arguments[0])));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "tanh", 1);
         }
     };
 
     public static final CompilableOneArgFunction asin = new CompilableOneArgFunction("asin", "arcsin") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(60);
+        }
+
         public double evaluate(double arg) {
             return Math.asin(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(1.0), new FunctionNode(sqrt, subtract(constant(1.0), square(arguments[0]))));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "asin", 1);
         }
     };
 
     public static final CompilableOneArgFunction acos = new CompilableOneArgFunction("acos", "arccos") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(60);
+        }
+
         public double evaluate(double arg) {
             return Math.acos(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(-1.0), new FunctionNode(sqrt, subtract(constant(1.0), square(arguments[0]))));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "acos", 1);
         }
     };
 
     public static final CompilableOneArgFunction atan = new CompilableOneArgFunction("atan", "arctan") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(60);
+        }
+
         public double evaluate(double arg) {
             return Math.atan(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(1.0), add(constant(1.0), square(arguments[0])));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "atan", 1);
         }
     };
 
     public static final CompilableTwoArgFunction atan2 = new CompilableTwoArgFunction("atan2", "arctan2") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(80);
+        }
+
         public double evaluate(double y, double x) {
             return Math.atan2(y, x);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            Node y = arguments[0];
+            Node x = arguments[1];
+            Node denominator = add(square(x), square(y));
+
+            return (argumentIndex == 0 ? divide(x, denominator) : negate(divide(y, denominator)));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "atan2", 2);
         }
     };
 
     public static final CompilableOneArgFunction csc = new CompilableOneArgFunction("csc", "cosec") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(75);
+        }
+
         public double evaluate(double arg) {
             return 1.0 / Math.sin(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return negate(multiply(new FunctionNode(this, arguments[0]), new FunctionNode(cot, arguments[0])));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "sin", 1);
             mc.loadConstant(1.0d);
-            mc.insn(DUP2_X2);
-            mc.insn(POP2);
+            mc.swap();
 
             mc.divide();
         }
     };
 
     public static final CompilableOneArgFunction sec = new CompilableOneArgFunction("sec") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(75);
+        }
+
         public double evaluate(double arg) {
             return 1.0 / Math.cos(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return multiply(new FunctionNode(this, arguments[0]), new FunctionNode(tan, arguments[0]));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "cos", 1);
             mc.loadConstant(1.0d);
-            mc.insn(DUP2_X2);
-            mc.insn(POP2);
+            mc.swap();
 
             mc.divide();
         }
     };
 
     public static final CompilableOneArgFunction cot = new CompilableOneArgFunction("cot") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(85);
+        }
+
         public double evaluate(double arg) {
             return 1.0 / Math.tan(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return negate(square(new FunctionNode(csc, arguments[0])));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "tan", 1);
             mc.loadConstant(1.0d);
-            mc.insn(DUP2_X2);
-            mc.insn(POP2);
+            mc.swap();
 
             mc.divide();
         }
     };
 
     public static final CompilableOneArgFunction ln = new CompilableOneArgFunction("ln", "log") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(40);
+        }
+
         public double evaluate(double arg) {
             return Math.log(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(1.0), arguments[0]);
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "log", 1);
         }
     };
 
     public static final CompilableOneArgFunction log2 = new CompilableOneArgFunction("log2") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(45);
+        }
+
         private final double LOG2 = Math.log(2);
 
         public double evaluate(double arg) {
             return Math.log(arg) / LOG2;
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(1.0), multiply(arguments[0], constant(Math.log(2))));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.perform(ln);
             mc.loadConstant(LOG2);
@@ -195,12 +372,21 @@ public class MathFunctions {
     };
 
     public static final CompilableOneArgFunction log10 = new CompilableOneArgFunction("log10") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(40);
+        }
+
         private final double LOG10 = Math.log(10);
 
         public double evaluate(double arg) {
             return Math.log(arg) / LOG10;
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(1.0), multiply(arguments[0], constant(Math.log(10))));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.perform(ln);
             mc.loadConstant(LOG10);
@@ -209,62 +395,311 @@ public class MathFunctions {
     };
 
     public static final CompilableOneArgFunction sqrt = new CompilableOneArgFunction("sqrt") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(18);
+        }
+
         public double evaluate(double arg) {
             return Math.sqrt(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(0.5), new FunctionNode(this, arguments[0]));
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "sqrt", 1);
         }
     };
 
+    public static final CompilableOneArgFunction cbrt = new CompilableOneArgFunction("cbrt") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(40);
+        }
+
+        public double evaluate(double arg) {
+            return Math.cbrt(arg);
+        }
+
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return divide(constant(1.0), multiply(constant(3.0), square(new FunctionNode(this, arguments[0]))));
+        }
+
+        public void compile(MethodCompiler mc) {
+            mc.staticMethod(Math.class, "cbrt", 1);
+        }
+    };
+
     public static final CompilableOneArgFunction sign = new CompilableOneArgFunction("sign", "signum") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(3);
+        }
+
         public double evaluate(double arg) {
             return Math.signum(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return null;
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "signum", 1);
         }
     };
 
-    public static final CompilableOneArgFunction abs = new CompilableOneArgFunction("abs") {
+    public static final CompilableLongOneArgFunction abs = new CompilableLongOneArgFunction("abs") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(1);
+        }
+
         public double evaluate(double arg) {
             return Math.abs(arg);
         }
 
+        public long evaluateLong(long arg) {
+            return Math.abs(arg);
+        }
+
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return new FunctionNode(sign, arguments[0]);
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "abs", 1);
         }
     };
 
+    public static final CompilableLongTwoArgFunction min = new CompilableLongTwoArgFunction("min") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(3);
+        }
+
+        public double evaluate(double arg1, double arg2) {
+            return Math.min(arg1, arg2);
+        }
+
+        public long evaluateLong(long arg1, long arg2) {
+            return Math.min(arg1, arg2);
+        }
+
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            // Math.min returns its first argument when they are equal
+            if(argumentIndex == 0)
+                return new FunctionNode(LessThanOrEqual.fn, arguments[0], arguments[1]);
+
+            return new FunctionNode(GreaterThan.fn, arguments[0], arguments[1]);
+        }
+
+        public void compile(MethodCompiler mc) {
+            mc.staticMethod(Math.class, "min", 2);
+        }
+    };
+
+    public static final CompilableLongTwoArgFunction max = new CompilableLongTwoArgFunction("max") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(3);
+        }
+
+        public double evaluate(double arg1, double arg2) {
+            return Math.max(arg1, arg2);
+        }
+
+        public long evaluateLong(long arg1, long arg2) {
+            return Math.max(arg1, arg2);
+        }
+
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            // Math.max returns its first argument when they are equal
+            if(argumentIndex == 0)
+                return new FunctionNode(GreaterThanOrEqual.fn, arguments[0], arguments[1]);
+
+            return new FunctionNode(LessThan.fn, arguments[0], arguments[1]);
+        }
+
+        public void compile(MethodCompiler mc) {
+            mc.staticMethod(Math.class, "max", 2);
+        }
+    };
+
     public static final CompilableOneArgFunction floor = new CompilableOneArgFunction("floor") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(6);
+        }
+
         public double evaluate(double arg) {
             return Math.floor(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return null;
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "floor", 1);
         }
     };
 
     public static final CompilableOneArgFunction ceil = new CompilableOneArgFunction("ceil") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(6);
+        }
+
         public double evaluate(double arg) {
             return Math.ceil(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return null;
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "ceil", 1);
         }
     };
 
     public static final CompilableOneArgFunction round = new CompilableOneArgFunction("round") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(10);
+        }
+
         public double evaluate(double arg) {
             return Math.round(arg);
         }
 
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return null;
+        }
+
         public void compile(MethodCompiler mc) {
             mc.staticMethod(Math.class, "round", 1);
         }
     };
+
+    /**
+     * Division rounded towards negative infinity, instead of towards zero.
+     */
+    public static final CompilableLongTwoArgFunction floorDiv = new CompilableLongTwoArgFunction("floorDiv") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(40);
+        }
+
+        public double evaluate(double arg1, double arg2) {
+            return floorDivide(arg1, arg2);
+        }
+
+        public long evaluateLong(long arg1, long arg2) {
+            return Math.floorDiv(arg1, arg2);
+        }
+
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            return null;
+        }
+
+        public void compile(MethodCompiler mc) {
+            if(mc.getNumberType() == NumberType.LONG) {
+                mc.staticMethod(Math.class, "floorDiv", 2);
+            } else {
+                mc.staticMethod(MathFunctions.class, "floorDivide", 2);
+            }
+        }
+    };
+
+    /**
+     * The remainder of {@link #floorDiv}, which has the same sign as the divisor.
+     */
+    public static final CompilableLongTwoArgFunction floorMod = new CompilableLongTwoArgFunction("floorMod") {
+        public OptimiseOptions getOptimiseOptions() {
+            return super.getOptimiseOptions()
+                        .withCost(45);
+        }
+
+        public double evaluate(double arg1, double arg2) {
+            return floorModulo(arg1, arg2);
+        }
+
+        public long evaluateLong(long arg1, long arg2) {
+            return Math.floorMod(arg1, arg2);
+        }
+
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            if(argumentIndex == 0)
+                return constant(1.0);
+
+            return negate(new FunctionNode(floorDiv, arguments[0], arguments[1]));
+        }
+
+        public void compile(MethodCompiler mc) {
+            if(mc.getNumberType() == NumberType.LONG) {
+                mc.staticMethod(Math.class, "floorMod", 2);
+            } else {
+                mc.staticMethod(MathFunctions.class, "floorModulo", 2);
+            }
+        }
+    };
+
+    public static double floorDivide(double arg1, double arg2) {
+        return Math.floor(arg1 / arg2);
+    }
+
+    public static double floorModulo(double arg1, double arg2) {
+        return arg1 - Math.floor(arg1 / arg2) * arg2;
+    }
+
+    /**
+     * A fused multiply-add, fma(a, b, c) = a * b + c, computed with a single rounding step where supported.
+     */
+    public static final CompilableThreeArgFunction fma = new CompilableThreeArgFunction("fma") {
+        public OptimiseOptions getOptimiseOptions() {
+            // Emulated fused multiply-adds cost a multiplication and an addition
+            return super.getOptimiseOptions()
+                        .withCost(FMA != null ? 5 : 8);
+        }
+
+        public double evaluate(double arg1, double arg2, double arg3) {
+            if(FMA == null)
+                return arg1 * arg2 + arg3;
+
+            try {
+                return (double) FMA.invokeExact(arg1, arg2, arg3);
+            } catch (Throwable throwable) {
+                throw new IllegalStateException(throwable);
+            }
+        }
+
+        public Node differentiate(Node[] arguments, int argumentIndex) {
+            switch(argumentIndex) {
+                case 0: return arguments[1];
+                case 1: return arguments[0];
+                default: return constant(1.0);
+            }
+        }
+
+        public void compile(MethodCompiler mc) {
+            if(FMA != null) {
+                mc.staticMethod(Math.class, "fma", 3);
+                return;
+            }
+
+            // Move the addend out of the way of the multiplication
+            int addend = mc.locals.newValueVariable();
+
+            mc.locals.storeVariable(addend);
+            mc.multiply();
+            mc.locals.loadVariable(addend);
+            mc.add();
+
+            mc.locals.freeValueVariable(addend);
+        }
+    };
 }
@@ -2,9 +2,12 @@ package net.sothatsit.evaluate.tree.function.operator;
 
 import net.sothatsit.evaluate.compiler.MethodCompiler;
 import net.sothatsit.evaluate.optimiser.OptimiseOptions;
-import net.sothatsit.evaluate.tree.function.CompilableTwoArgFunction;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.CompilableLongTwoArgFunction;
 
-public class Add extends CompilableTwoArgFunction {
+import static net.sothatsit.evaluate.tree.Differentiator.*;
+
+public class Add extends CompilableLongTwoArgFunction {
 
     public static final Add fn = new Add();
 
@@ -15,7 +18,8 @@ public class Add extends CompilableTwoArgFunction {
     @Override
     public OptimiseOptions getOptimiseOptions() {
         return super.getOptimiseOptions()
-                    .withIsOrderDependant(false);
+                    .withIsOrderDependant(false)
+                    .withCost(4);
     }
 
     @Override
@@ -23,6 +27,16 @@ public class Add extends CompilableTwoArgFunction {
         return arg1 + arg2;
     }
 
+    @Override
+    public long evaluateLong(long arg1, long arg2) {
+        return arg1 + arg2;
+    }
+
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        return constant(1.0);
+    }
+
     @Override
     public void compile(MethodCompiler mc) {
         mc.add();
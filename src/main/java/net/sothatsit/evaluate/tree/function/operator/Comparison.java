@@ -0,0 +1,70 @@
+package net.sothatsit.evaluate.tree.function.operator;
+
+import jdk.internal.org.objectweb.asm.Label;
+import net.sothatsit.evaluate.compiler.MethodCompiler;
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.CompilableLongTwoArgFunction;
+
+import static jdk.internal.org.objectweb.asm.Opcodes.*;
+
+/**
+ * A comparison between two values, which evaluates to 1.0 when true and 0.0 when false.
+ */
+public abstract class Comparison extends CompilableLongTwoArgFunction {
+
+    public Comparison(String name, String... aliases) {
+        super(name, aliases);
+    }
+
+    @Override
+    public OptimiseOptions getOptimiseOptions() {
+        return super.getOptimiseOptions()
+                    .withCost(3);
+    }
+
+    @Override
+    public final double evaluate(double arg1, double arg2) {
+        return test(arg1, arg2) ? 1.0 : 0.0;
+    }
+
+    @Override
+    public final long evaluateLong(long arg1, long arg2) {
+        return test(arg1, arg2) ? 1 : 0;
+    }
+
+    /**
+     * Comparisons are piecewise constant, so their derivatives are zero wherever they are defined.
+     */
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        return null;
+    }
+
+    public abstract boolean test(double arg1, double arg2);
+
+    public abstract boolean test(long arg1, long arg2);
+
+    /**
+     * Compare the two values on the stack, jumping to {@param ifFalse} if the comparison is false.
+     *
+     * {@link MethodCompiler#compareG} or {@link MethodCompiler#compareL} should be chosen
+     * such that comparisons involving NaN behave as they do in Java.
+     */
+    public abstract void compileJump(MethodCompiler mc, Label ifFalse);
+
+    @Override
+    public void compile(MethodCompiler mc) {
+        Label ifFalse = mc.newLabel();
+        Label end = mc.newLabel();
+
+        compileJump(mc, ifFalse);
+        mc.loadConstant(1.0d);
+        mc.jump(GOTO, end);
+
+        mc.mark(ifFalse);
+        mc.loadConstant(0.0d);
+
+        mc.mark(end);
+    }
+}
@@ -1,9 +1,13 @@
 package net.sothatsit.evaluate.tree.function.operator;
 
 import net.sothatsit.evaluate.compiler.MethodCompiler;
-import net.sothatsit.evaluate.tree.function.CompilableTwoArgFunction;
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.CompilableLongTwoArgFunction;
 
-public class Divide extends CompilableTwoArgFunction {
+import static net.sothatsit.evaluate.tree.Differentiator.*;
+
+public class Divide extends CompilableLongTwoArgFunction {
 
     public static final Divide fn = new Divide();
 
@@ -11,11 +15,31 @@ public class Divide extends CompilableTwoArgFunction {
         super("divide");
     }
 
+    @Override
+    public OptimiseOptions getOptimiseOptions() {
+        // A division takes several times as long as a multiplication
+        return super.getOptimiseOptions()
+                    .withCost(14);
+    }
+
     @Override
     public double evaluate(double arg1, double arg2) {
         return arg1 / arg2;
     }
 
+    @Override
+    public long evaluateLong(long arg1, long arg2) {
+        return arg1 / arg2;
+    }
+
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        if(argumentIndex == 0)
+            return divide(constant(1.0), arguments[1]);
+
+        return negate(divide(arguments[0], square(arguments[1])));
+    }
+
     @Override
     public void compile(MethodCompiler mc) {
         mc.divide();
@@ -0,0 +1,31 @@
+package net.sothatsit.evaluate.tree.function.operator;
+
+import jdk.internal.org.objectweb.asm.Label;
+import net.sothatsit.evaluate.compiler.MethodCompiler;
+
+import static jdk.internal.org.objectweb.asm.Opcodes.*;
+
+public class LessThanOrEqual extends Comparison {
+
+    public static final LessThanOrEqual fn = new LessThanOrEqual();
+
+    private LessThanOrEqual() {
+        super("lessThanOrEqual");
+    }
+
+    @Override
+    public boolean test(double arg1, double arg2) {
+        return arg1 <= arg2;
+    }
+
+    @Override
+    public boolean test(long arg1, long arg2) {
+        return arg1 <= arg2;
+    }
+
+    @Override
+    public void compileJump(MethodCompiler mc, Label ifFalse) {
+        mc.compareG();
+        mc.jump(IFGT, ifFalse);
+    }
+}
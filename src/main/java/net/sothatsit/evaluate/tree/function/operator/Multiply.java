@@ -2,9 +2,12 @@ package net.sothatsit.evaluate.tree.function.operator;
 
 import net.sothatsit.evaluate.compiler.MethodCompiler;
 import net.sothatsit.evaluate.optimiser.OptimiseOptions;
-import net.sothatsit.evaluate.tree.function.CompilableTwoArgFunction;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.CompilableLongTwoArgFunction;
 
-public class Multiply extends CompilableTwoArgFunction {
+import static net.sothatsit.evaluate.tree.Differentiator.*;
+
+public class Multiply extends CompilableLongTwoArgFunction {
 
     public static final Multiply fn = new Multiply();
 
@@ -15,7 +18,8 @@ public class Multiply extends CompilableTwoArgFunction {
     @Override
     public OptimiseOptions getOptimiseOptions() {
         return super.getOptimiseOptions()
-                    .withIsOrderDependant(false);
+                    .withIsOrderDependant(false)
+                    .withCost(4);
     }
 
     @Override
@@ -23,6 +27,26 @@ public class Multiply extends CompilableTwoArgFunction {
         return arg1 * arg2;
     }
 
+    @Override
+    public long evaluateLong(long arg1, long arg2) {
+        return arg1 * arg2;
+    }
+
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        // The product of all of the other arguments, as optimisers may multiply more than two values at once
+        Node product = null;
+
+        for(int index = 0; index < arguments.length; ++index) {
+            if(index == argumentIndex)
+                continue;
+
+            product = (product == null ? arguments[index] : multiply(product, arguments[index]));
+        }
+
+        return product;
+    }
+
     @Override
     public void compile(MethodCompiler mc) {
         mc.multiply();
@@ -1,7 +1,14 @@
 package net.sothatsit.evaluate.tree.function.operator;
 
 import net.sothatsit.evaluate.compiler.MethodCompiler;
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.ConstantNode;
+import net.sothatsit.evaluate.tree.FunctionNode;
+import net.sothatsit.evaluate.tree.Node;
 import net.sothatsit.evaluate.tree.function.CompilableTwoArgFunction;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+
+import static net.sothatsit.evaluate.tree.Differentiator.*;
 
 public class Power extends CompilableTwoArgFunction {
 
@@ -11,11 +18,38 @@ public class Power extends CompilableTwoArgFunction {
         super("power");
     }
 
+    @Override
+    public OptimiseOptions getOptimiseOptions() {
+        // The relative error of the base is multiplied by the exponent
+        return super.getOptimiseOptions()
+                    .withIsPrecisionSensitive(true)
+                    .withCost(100);
+    }
+
     @Override
     public double evaluate(double arg1, double arg2) {
         return Math.pow(arg1, arg2);
     }
 
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        Node base = arguments[0];
+        Node exponent = arguments[1];
+
+        if(argumentIndex == 1)
+            return multiply(new FunctionNode(this, base, exponent), new FunctionNode(MathFunctions.ln, base));
+
+        if(exponent instanceof ConstantNode) {
+            double value = ((ConstantNode) exponent).value;
+
+            return multiply(exponent, new FunctionNode(this, base, constant(value - 1)));
+        }
+
+        Node exponentMinusOne = new FunctionNode(Subtract.fn, exponent, constant(1.0));
+
+        return multiply(exponent, new FunctionNode(this, base, exponentMinusOne));
+    }
+
     @Override
     public void compile(MethodCompiler mc) {
         mc.staticMethod(Math.class, "pow", 2);
@@ -1,9 +1,14 @@
 package net.sothatsit.evaluate.tree.function.operator;
 
 import net.sothatsit.evaluate.compiler.MethodCompiler;
-import net.sothatsit.evaluate.tree.function.CompilableTwoArgFunction;
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.FunctionNode;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.CompilableLongTwoArgFunction;
 
-public class Remainder extends CompilableTwoArgFunction {
+import static net.sothatsit.evaluate.tree.Differentiator.*;
+
+public class Remainder extends CompilableLongTwoArgFunction {
 
     public static final Remainder fn = new Remainder();
 
@@ -11,11 +16,34 @@ public class Remainder extends CompilableTwoArgFunction {
         super("remainder");
     }
 
+    @Override
+    public OptimiseOptions getOptimiseOptions() {
+        // The remainder of doubles is computed in software
+        return super.getOptimiseOptions()
+                    .withCost(30);
+    }
+
     @Override
     public double evaluate(double arg1, double arg2) {
         return arg1 % arg2;
     }
 
+    @Override
+    public long evaluateLong(long arg1, long arg2) {
+        return arg1 % arg2;
+    }
+
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        if(argumentIndex == 0)
+            return constant(1.0);
+
+        // (a % b) = a - b * trunc(a / b), where trunc(a / b) = (a - a % b) / b
+        Node remainder = new FunctionNode(this, arguments[0], arguments[1]);
+
+        return negate(divide(new FunctionNode(Subtract.fn, arguments[0], remainder), arguments[1]));
+    }
+
     @Override
     public void compile(MethodCompiler mc) {
         mc.remainder();
@@ -0,0 +1,61 @@
+package net.sothatsit.evaluate.tree.function.operator;
+
+import net.sothatsit.evaluate.compiler.MethodCompiler;
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.CompilableLongTwoArgFunction;
+
+import static jdk.internal.org.objectweb.asm.Opcodes.*;
+
+/**
+ * An arithmetic shift right of a long value by a number of bits.
+ *
+ * Outside of expressions of longs, both arguments are truncated to longs first.
+ */
+public class ShiftRight extends CompilableLongTwoArgFunction {
+
+    public static final ShiftRight fn = new ShiftRight();
+
+    private ShiftRight() {
+        super("shiftRight");
+    }
+
+    @Override
+    public OptimiseOptions getOptimiseOptions() {
+        return super.getOptimiseOptions()
+                    .withCost(1);
+    }
+
+    @Override
+    public double evaluate(double arg1, double arg2) {
+        return shiftRight(arg1, arg2);
+    }
+
+    @Override
+    public long evaluateLong(long arg1, long arg2) {
+        return arg1 >> arg2;
+    }
+
+    /**
+     * Both arguments are truncated, so the result is piecewise constant.
+     */
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        return null;
+    }
+
+    @Override
+    public void compile(MethodCompiler mc) {
+        if(mc.getNumberType() == NumberType.LONG) {
+            mc.insn(L2I);
+            mc.insn(LSHR);
+        } else {
+            mc.staticMethod(ShiftRight.class, "shiftRight", 2);
+        }
+    }
+
+    public static double shiftRight(double arg1, double arg2) {
+        return (double) ((long) arg1 >> (long) arg2);
+    }
+}
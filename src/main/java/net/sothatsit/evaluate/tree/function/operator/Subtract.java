@@ -1,9 +1,13 @@
 package net.sothatsit.evaluate.tree.function.operator;
 
 import net.sothatsit.evaluate.compiler.MethodCompiler;
-import net.sothatsit.evaluate.tree.function.CompilableTwoArgFunction;
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.CompilableLongTwoArgFunction;
 
-public class Subtract extends CompilableTwoArgFunction {
+import static net.sothatsit.evaluate.tree.Differentiator.*;
+
+public class Subtract extends CompilableLongTwoArgFunction {
 
     public static final Subtract fn = new Subtract();
 
@@ -11,11 +15,27 @@ public class Subtract extends CompilableTwoArgFunction {
         super("subtract");
     }
 
+    @Override
+    public OptimiseOptions getOptimiseOptions() {
+        return super.getOptimiseOptions()
+                    .withCost(4);
+    }
+
     @Override
     public double evaluate(double arg1, double arg2) {
         return arg1 - arg2;
     }
 
+    @Override
+    public long evaluateLong(long arg1, long arg2) {
+        return arg1 - arg2;
+    }
+
+    @Override
+    public Node differentiate(Node[] arguments, int argumentIndex) {
+        return constant(argumentIndex == 0 ? 1.0 : -1.0);
+    }
+
     @Override
     public void compile(MethodCompiler mc) {
         mc.subtract();
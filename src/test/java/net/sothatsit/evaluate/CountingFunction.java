@@ -0,0 +1,25 @@
+package net.sothatsit.evaluate;
+
+import net.sothatsit.evaluate.tree.function.OneArgFunction;
+
+/**
+ * Returns its argument, counting its calls to check which terms a compiled expression evaluates.
+ */
+public class CountingFunction extends OneArgFunction {
+
+    public int calls = 0;
+
+    public CountingFunction() {
+        this("count");
+    }
+
+    public CountingFunction(String name) {
+        super(name);
+    }
+
+    @Override
+    public double evaluate(double arg) {
+        calls += 1;
+        return arg;
+    }
+}
@@ -0,0 +1,183 @@
+package net.sothatsit.evaluate;
+
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.optimiser.Optimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+
+import java.util.Random;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Generates random equations over the arguments {@code a0, a1, ...}, and random inputs to evaluate them with.
+ */
+public class RandomExpressions {
+
+    private final Random random;
+    private final int argumentCount;
+    private final NumberType numberType;
+
+    public RandomExpressions(long seed, int argumentCount) {
+        this(seed, argumentCount, NumberType.DOUBLE);
+    }
+
+    /**
+     * When {@param numberType} is {@link NumberType#LONG}, only integer constants and operators
+     * that cannot throw are used, so that every equation generated can be evaluated with any inputs.
+     */
+    public RandomExpressions(long seed, int argumentCount, NumberType numberType) {
+        this.random = new Random(seed);
+        this.argumentCount = argumentCount;
+        this.numberType = numberType;
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    public int getArgumentCount() {
+        return argumentCount;
+    }
+
+    /**
+     * Create a parser that knows the arguments of the equations generated.
+     */
+    public ExpressionParser parser(Optimiser optimiser) {
+        ExpressionParser parser = new ExpressionParser(optimiser);
+
+        parser.setNumberType(numberType);
+
+        for(int index = 0; index < argumentCount; ++index) {
+            parser.addArgument("a" + index);
+        }
+
+        return parser;
+    }
+
+    public double[] inputs() {
+        double[] inputs = new double[argumentCount];
+
+        for(int index = 0; index < argumentCount; ++index) {
+            inputs[index] = (random.nextInt(5) == 0 ? random.nextInt(5) - 2 : random.nextDouble() * 8 - 4);
+        }
+
+        return inputs;
+    }
+
+    public long[] longInputs() {
+        long[] inputs = new long[argumentCount];
+
+        for(int index = 0; index < argumentCount; ++index) {
+            inputs[index] = (random.nextInt(8) == 0 ? random.nextLong() : random.nextInt(41) - 20);
+        }
+
+        return inputs;
+    }
+
+    /**
+     * Generate an equation whose tree is at most {@param depth} operations deep.
+     */
+    public String generate(int depth) {
+        if(depth <= 0 || random.nextInt(6) == 0)
+            return leaf();
+
+        if(numberType == NumberType.LONG)
+            return generateLong(depth - 1);
+
+        switch(random.nextInt(14)) {
+            case 0:  return "(" + generate(depth - 1) + " + " + generate(depth - 1) + ")";
+            case 1:  return "(" + generate(depth - 1) + " - " + generate(depth - 1) + ")";
+            case 2:  return "(" + generate(depth - 1) + " * " + generate(depth - 1) + ")";
+            case 3:  return "(" + generate(depth - 1) + " / " + generate(depth - 1) + ")";
+            case 4:  return "(" + generate(depth - 1) + " % " + generate(depth - 1) + ")";
+            case 5:  return "(" + generate(depth - 1) + " ^ " + exponent() + ")";
+            case 6:  return "(" + generate(depth - 1) + " " + comparison() + " " + generate(depth - 1) + ")";
+            case 7:  return "(" + generate(depth - 1) + " " + logical() + " " + generate(depth - 1) + ")";
+            case 8:  return "if(" + generate(depth - 1) + ", " + generate(depth - 1) + ", " + generate(depth - 1) + ")";
+            case 9:  return "sin(" + generate(depth - 1) + ")";
+            case 10: return "sqrt(" + generate(depth - 1) + ")";
+            case 11: return minOrMax() + "(" + generate(depth - 1) + ", " + generate(depth - 1) + ")";
+            case 12: return "abs(" + generate(depth - 1) + ")";
+            default: {
+                // Repeat a term so that the optimisers and compilers have common terms to share
+                String term = generate(depth - 1);
+                return "(" + term + " * " + term + " + " + term + ")";
+            }
+        }
+    }
+
+    private String generateLong(int depth) {
+        switch(random.nextInt(9)) {
+            case 0:  return "(" + generate(depth) + " + " + generate(depth) + ")";
+            case 1:  return "(" + generate(depth) + " - " + generate(depth) + ")";
+            case 2:  return "(" + generate(depth) + " * " + generate(depth) + ")";
+            case 3:  return "(" + generate(depth) + " " + comparison() + " " + generate(depth) + ")";
+            case 4:  return "(" + generate(depth) + " " + logical() + " " + generate(depth) + ")";
+            case 5:  return "if(" + generate(depth) + ", " + generate(depth) + ", " + generate(depth) + ")";
+            case 6:  return minOrMax() + "(" + generate(depth) + ", " + generate(depth) + ")";
+            case 7:  return "abs(" + generate(depth) + ")";
+            default: {
+                String term = generate(depth);
+                return "(" + term + " * " + term + " + " + term + ")";
+            }
+        }
+    }
+
+    private String leaf() {
+        int kind = random.nextInt(numberType == NumberType.LONG ? 4 : 5);
+
+        if(kind < 2)
+            return "a" + random.nextInt(argumentCount);
+        if(kind == 2)
+            return Integer.toString(random.nextInt(4));
+        if(kind == 3)
+            return Integer.toString(random.nextInt(1000));
+
+        return (1 + random.nextInt(9)) + "." + random.nextInt(100);
+    }
+
+    private String exponent() {
+        switch(random.nextInt(4)) {
+            case 0:  return "0.5";
+            case 1:  return "(0 - " + (1 + random.nextInt(3)) + ")";
+            default: return Integer.toString(random.nextInt(6));
+        }
+    }
+
+    private String comparison() {
+        String[] comparisons = {"<", "<=", ">", ">=", "==", "!="};
+
+        return comparisons[random.nextInt(comparisons.length)];
+    }
+
+    private String logical() {
+        return random.nextBoolean() ? "&&" : "||";
+    }
+
+    private String minOrMax() {
+        return random.nextBoolean() ? "min" : "max";
+    }
+
+    /**
+     * Fail unless {@param expected} and {@param actual} are identical, including the sign of zeroes.
+     */
+    public static void assertIdentical(String message, double expected, double actual) {
+        if(Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)) {
+            fail(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Fail unless {@param expected} and {@param actual} are identical,
+     * or are both finite and differ by no more than a relative {@param tolerance}.
+     */
+    public static void assertClose(String message, double expected, double actual, double tolerance) {
+        if(Double.doubleToLongBits(expected) == Double.doubleToLongBits(actual))
+            return;
+
+        if(Double.isFinite(expected) && Math.abs(expected - actual) <= tolerance * Math.max(1, Math.abs(expected)))
+            return;
+
+        fail(message + ": expected " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,50 @@
+package net.sothatsit.evaluate;
+
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.tree.Expression;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Helpers shared by the tests that compile expressions, or that check trees too deep to recurse over.
+ */
+public class TestSupport {
+
+    /**
+     * The size of the stack of the threads used by {@link #runWithSmallStack}.
+     */
+    public static final long SMALL_STACK_SIZE = 256 * 1024;
+
+    private TestSupport() {}
+
+    /**
+     * Compile {@param expression} with the default settings of an {@link ExpressionCompiler}.
+     */
+    public static CompiledExpression compile(Expression expression) {
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        return compiler.compile();
+    }
+
+    /**
+     * Run {@param task} on a thread with a stack too small to recurse over deep trees, and rethrow anything it throws.
+     */
+    public static void runWithSmallStack(Runnable task) throws Throwable {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                task.run();
+            } catch (Throwable throwable) {
+                error.set(throwable);
+            }
+        }, "small-stack", SMALL_STACK_SIZE);
+
+        thread.start();
+        thread.join();
+
+        if(error.get() != null)
+            throw error.get();
+    }
+}
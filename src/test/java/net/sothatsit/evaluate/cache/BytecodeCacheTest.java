@@ -0,0 +1,332 @@
+package net.sothatsit.evaluate.cache;
+
+import net.sothatsit.evaluate.compiler.ClassIsolation;
+import net.sothatsit.evaluate.compiler.CompiledClass;
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.optimiser.Optimiser;
+import net.sothatsit.evaluate.optimiser.PrecisionPolicy;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+import net.sothatsit.evaluate.tree.function.OneArgFunction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BytecodeCacheTest {
+
+    private static final String SOURCE = "twice(a) * b + sin(a - b)";
+    private static final List<String> ARGUMENTS = Arrays.asList("a", "b");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Twice extends OneArgFunction {
+
+        public Twice() {
+            super("twice");
+        }
+
+        @Override
+        public double evaluate(double arg) {
+            return 2 * arg;
+        }
+    }
+
+    private static ExpressionParser createParser(boolean withTwice) {
+        return createParser(withTwice, CompositeOptimiser.none());
+    }
+
+    private static ExpressionParser createParser(boolean withTwice, Optimiser optimiser) {
+        ExpressionParser parser = new ExpressionParser(optimiser);
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        if(withTwice) {
+            parser.addFunction(new Twice());
+        }
+
+        return parser;
+    }
+
+    /**
+     * Compile and store {@link #SOURCE} in a cache in {@param directory}, as a previous run would have.
+     */
+    private static String store(Path directory) throws Exception {
+        String key = createKey(SOURCE, createParser(true));
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(createParser(true).parse(SOURCE));
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            cache.store(key, compiler.compileClass()).get();
+        }
+
+        return key;
+    }
+
+    private static String createKey(String source, ExpressionParser parser) {
+        return BytecodeCache.createKey(source, ARGUMENTS, parser);
+    }
+
+    private static List<Path> listEntries(Path directory) throws IOException {
+        try(Stream<Path> stream = Files.list(directory)) {
+            return stream.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testStoredClassMatchesInterpreter() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        String key = store(directory);
+
+        ExpressionParser parser = createParser(true);
+        Expression expression = parser.parse(SOURCE);
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            for(ClassIsolation isolation : ClassIsolation.values()) {
+                CompiledClass<CompiledExpression> loaded = cache.load(key, parser, isolation);
+                assertNotNull(isolation.name(), loaded);
+
+                double[] inputs = {0.3, -2.5};
+                double[] outputs = new double[1];
+
+                loaded.newInstance().evaluate(inputs, 0, outputs, 0);
+                assertIdentical(isolation.name(), expression.evaluate(inputs), outputs[0]);
+            }
+        }
+    }
+
+    /**
+     * Classes restored by a SHARED cache must be defined in its one loader, even though each was
+     * compiled in a different run, and so they were given the same name in different loaders.
+     */
+    @Test
+    public void testSharedClassesAreRestoredInOneLoader() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Twice twice = new Twice();
+        Supplier<ExpressionParser> parserFactory = () -> {
+            ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+            parser.addFunction(twice);
+            return parser;
+        };
+
+        String[] sources = {SOURCE, "twice(b) - a"};
+
+        for(String source : sources) {
+            try(BytecodeCache cache = new BytecodeCache(directory)) {
+                ExpressionCache run = new ExpressionCache(parserFactory, 1000, 1_000_000, ClassIsolation.SHARED);
+                run.setPersistentCache(cache);
+                run.compileClass(source, "a", "b");
+            }
+        }
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            ExpressionCache run = new ExpressionCache(parserFactory, 1000, 1_000_000, ClassIsolation.SHARED);
+            run.setPersistentCache(cache);
+
+            CompiledClass<CompiledExpression> first = run.compileClass(sources[0], "a", "b");
+            CompiledClass<CompiledExpression> second = run.compileClass(sources[1], "a", "b");
+
+            // Both classes were restored, rather than compiled again
+            assertEquals(0, run.getParseStatistics().missCount);
+            assertSame(first.clazz.getClassLoader(), second.clazz.getClassLoader());
+
+            double[] inputs = {0.3, -2.5};
+
+            for(int index = 0; index < sources.length; ++index) {
+                CompiledClass<CompiledExpression> restored = (index == 0 ? first : second);
+                double[] outputs = new double[1];
+
+                restored.newInstance().evaluate(inputs, 0, outputs, 0);
+                assertIdentical(sources[index], run.parse(sources[index], "a", "b").evaluate(inputs), outputs[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testMissingEntryIsNotLoaded() throws Exception {
+        try(BytecodeCache cache = new BytecodeCache(folder.getRoot().toPath())) {
+            String key = createKey(SOURCE, createParser(true));
+
+            assertNull(cache.load(key, createParser(true), ClassIsolation.SHARED));
+        }
+    }
+
+    @Test
+    public void testEntryWithUnknownFunctionIsDeleted() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        String key = store(directory);
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            assertNull(cache.load(key, createParser(false), ClassIsolation.SHARED));
+            assertEquals(0, listEntries(directory).size());
+        }
+    }
+
+    @Test
+    public void testCorruptEntryIsDeleted() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        String key = store(directory);
+
+        Path entry = listEntries(directory).get(0);
+        byte[] bytes = Files.readAllBytes(entry);
+
+        bytes[bytes.length / 2] ^= 0x10;
+        Files.write(entry, bytes);
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            assertNull(cache.load(key, createParser(true), ClassIsolation.SHARED));
+            assertEquals(0, listEntries(directory).size());
+        }
+    }
+
+    @Test
+    public void testPurgeStaleKeepsValidEntries() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        String key = store(directory);
+
+        Files.write(directory.resolve("truncated.evc"), new byte[] {0x45, 0x56});
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            assertEquals(1, cache.purgeStale());
+            assertEquals(1, listEntries(directory).size());
+            assertNotNull(cache.load(key, createParser(true), ClassIsolation.SHARED));
+        }
+    }
+
+    /**
+     * Anything that changes the compiled class must change the key, so that stale classes are never restored.
+     */
+    @Test
+    public void testKeyIncludesParserConfiguration() {
+        String key = createKey(SOURCE, createParser(true));
+
+        assertEquals(key, createKey(SOURCE, createParser(true)));
+        assertNotEquals(key, createKey(SOURCE, createParser(false)));
+        assertNotEquals(key, createKey(SOURCE, createParser(true, CompositeOptimiser.all())));
+
+        ExpressionParser strict = createParser(true, CompositeOptimiser.all(PrecisionPolicy.STRICT));
+        ExpressionParser relaxed = createParser(true, CompositeOptimiser.all(PrecisionPolicy.RELAXED));
+        assertNotEquals(createKey(SOURCE, strict), createKey(SOURCE, relaxed));
+
+        CompositeOptimiser calibrated = CompositeOptimiser.all();
+        calibrated.getCostModel().setCost(MathFunctions.sin, 200);
+        assertNotEquals(createKey(SOURCE, createParser(true, CompositeOptimiser.all())),
+                        createKey(SOURCE, createParser(true, calibrated)));
+
+        ExpressionParser withConstant = createParser(true);
+        withConstant.addConstant("k", 2);
+        ExpressionParser withOtherConstant = createParser(true);
+        withOtherConstant.addConstant("k", 3);
+        assertNotEquals(createKey(SOURCE, withConstant), createKey(SOURCE, withOtherConstant));
+
+        ExpressionParser longs = createParser(true);
+        longs.setNumberType(NumberType.LONG);
+        assertNotEquals(key, createKey(SOURCE, longs));
+    }
+
+    /**
+     * The key holds the whole source, which may be longer than a modified UTF-8 string can be written.
+     */
+    @Test
+    public void testLongSourcesAreStored() throws Exception {
+        StringBuilder source = new StringBuilder("a");
+
+        for(int index = 0; index < 20000; ++index) {
+            source.append(index % 2 == 0 ? " + b" : " - a");
+        }
+
+        ExpressionParser parser = createParser(true);
+        Expression expression = parser.parse(source.toString());
+        String key = createKey(source.toString(), parser);
+
+        assertTrue(key.length() > 65535);
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        Path directory = folder.getRoot().toPath();
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            cache.store(key, compiler.compileClass()).get();
+        }
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            CompiledClass<CompiledExpression> loaded = cache.load(key, parser, ClassIsolation.SHARED);
+            assertNotNull(loaded);
+
+            double[] outputs = new double[1];
+
+            // The chain is too deep to interpret, but adds b and subtracts a 10000 times each
+            loaded.newInstance().evaluate(new double[] {0.5, 1.25}, 0, outputs, 0);
+            assertIdentical("loaded", 0.5 + 10000 * 1.25 - 10000 * 0.5, outputs[0]);
+        }
+    }
+
+    @Test
+    public void testWriteFailuresAreReported() throws Exception {
+        Path directory = folder.newFolder("removed").toPath();
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(createParser(true).parse(SOURCE));
+
+        try(BytecodeCache cache = new BytecodeCache(directory)) {
+            Files.delete(directory);
+
+            try {
+                cache.store(createKey(SOURCE, createParser(true)), compiler.compileClass()).get();
+                fail("The write should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof UncheckedIOException);
+            }
+
+            assertEquals(1, cache.getWriteFailureCount());
+        }
+    }
+
+    /**
+     * The expression cache does not wait for its writes, and so their failures must still be counted.
+     */
+    @Test
+    public void testExpressionCacheWriteFailuresAreCounted() throws Exception {
+        Path directory = folder.newFolder("removed").toPath();
+
+        try(BytecodeCache persistentCache = new BytecodeCache(directory)) {
+            ExpressionCache cache = new ExpressionCache(() -> createParser(true), 1000, Long.MAX_VALUE);
+            cache.setPersistentCache(persistentCache);
+
+            Files.delete(directory);
+
+            CompiledExpression compiled = cache.compile(SOURCE, "a", "b");
+            persistentCache.flush();
+
+            double[] outputs = new double[1];
+            compiled.evaluate(new double[] {0.5, 1.25}, 0, outputs, 0);
+
+            assertIdentical("compiled", 2 * 0.5 * 1.25 + Math.sin(0.5 - 1.25), outputs[0]);
+            assertEquals(1, persistentCache.getWriteFailureCount());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package net.sothatsit.evaluate.cache;
+
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.optimiser.OptimiseOptions;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.NodeFactory;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+import net.sothatsit.evaluate.tree.function.NoArgFunction;
+import net.sothatsit.evaluate.tree.function.OneArgFunction;
+import net.sothatsit.evaluate.tree.function.operator.Add;
+import net.sothatsit.evaluate.tree.function.operator.Subtract;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CanonicalFormTest {
+
+    private static String formOf(NumberType numberType, String equation) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.setNumberType(numberType);
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        return CanonicalForm.of(parser.parse(equation));
+    }
+
+    private static String formOf(String equation) {
+        return formOf(NumberType.DOUBLE, equation);
+    }
+
+    @Test
+    public void testEquivalentTreesHaveEqualForms() {
+        assertEquals(formOf("a + b"), formOf("b + a"));
+        assertEquals(formOf("2 * a"), formOf("a * 2.0"));
+        assertEquals(formOf("sin(a) * (b + a)"), formOf("(a + b) * sin(a)"));
+        assertEquals(formOf("if(a > b, a * b, 1)"), formOf("if(a > b, b * a, 1.0)"));
+    }
+
+    @Test
+    public void testDifferentTreesHaveDifferentForms() {
+        assertNotEquals(formOf("a - b"), formOf("b - a"));
+        assertNotEquals(formOf("a + 0.0"), formOf("a + (0 * (0 - 1))"));
+        assertNotEquals(formOf("sin(a) + sin(a)"), formOf("sin(a) + sin(b)"));
+        assertNotEquals(formOf("if(a > b, a, b)"), formOf("if(a > b, b, a)"));
+    }
+
+    @Test
+    public void testLongConstantsAreExact() {
+        // Both constants round to the same double, 2^53
+        String one = formOf(NumberType.LONG, "a + 9007199254740993");
+        String two = formOf(NumberType.LONG, "a + 9007199254740992");
+
+        assertNotEquals(one, two);
+    }
+
+    @Test
+    public void testNumberTypeIsPartOfForm() {
+        assertNotEquals(formOf(NumberType.DOUBLE, "a + 1"), formOf(NumberType.LONG, "a + 1"));
+        assertNotEquals(formOf(NumberType.DOUBLE, "a / b"), formOf(NumberType.LONG, "a / b"));
+    }
+
+    /**
+     * Each x_i = sin(x_(i-1)) + cos(x_(i-1)) uses x_(i-1) twice, and
+     * so the expression has an exponential number of paths.
+     */
+    @Test(timeout = 10000)
+    public void testSharedNodesAreWrittenOnce() {
+        NodeFactory factory = new NodeFactory();
+        Node node = factory.variable("x", 0);
+
+        for(int index = 0; index < 200; ++index) {
+            node = factory.function(
+                    Add.fn,
+                    factory.function(MathFunctions.sin, node),
+                    factory.function(MathFunctions.cos, node)
+            );
+        }
+
+        String form = CanonicalForm.of(node);
+
+        assertTrue(form.length() + " characters", form.length() < 200 * 100);
+    }
+
+    @Test
+    public void testOutputsAreSeparate() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+
+        Expression sin = parser.parse("sin(a)");
+        Expression cos = parser.parse("cos(a)");
+
+        assertNotEquals(CanonicalForm.of(sin, cos), CanonicalForm.of(cos, sin));
+        assertEquals(CanonicalForm.of(sin, cos), CanonicalForm.of(parser.parse("sin(a)"), parser.parse("cos(a)")));
+    }
+
+    @Test
+    public void testFunctionsWithEqualNamesHaveDifferentForms() {
+        ExpressionParser one = new ExpressionParser(CompositeOptimiser.none());
+        ExpressionParser two = new ExpressionParser(CompositeOptimiser.none());
+
+        one.addArgument("a");
+        two.addArgument("a");
+        one.addFunction(new Scale(2));
+        two.addFunction(new Scale(10));
+
+        assertNotEquals(CanonicalForm.of(one.parse("f(a)")), CanonicalForm.of(two.parse("f(a)")));
+        assertEquals(CanonicalForm.of(one.parse("f(a) + 1")), CanonicalForm.of(one.parse("1 + f(a)")));
+    }
+
+    @Test
+    public void testImpureNodesAreNeverMerged() {
+        NodeFactory factory = new NodeFactory();
+        NoArgFunction random = new NoArgFunction("rand") {
+            @Override
+            public OptimiseOptions getOptimiseOptions() {
+                return super.getOptimiseOptions().withIsPure(false);
+            }
+
+            @Override
+            public double evaluate(double arg) {
+                return Math.random();
+            }
+        };
+
+        Node one = factory.function(random);
+        Node two = factory.function(random);
+        Node subtractDistinct = factory.function(Subtract.fn, one, two);
+        Node subtractShared = factory.function(Subtract.fn, one, one);
+
+        assertNotEquals(CanonicalForm.of(subtractDistinct), CanonicalForm.of(subtractShared));
+        assertEquals(CanonicalForm.of(subtractShared), CanonicalForm.of(factory.function(Subtract.fn, two, two)));
+    }
+
+    private static class Scale extends OneArgFunction {
+
+        private final double factor;
+
+        public Scale(double factor) {
+            super("f");
+            this.factor = factor;
+        }
+
+        @Override
+        public double evaluate(double arg) {
+            return arg * factor;
+        }
+    }
+}
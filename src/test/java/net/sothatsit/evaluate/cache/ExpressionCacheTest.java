@@ -0,0 +1,125 @@
+package net.sothatsit.evaluate.cache;
+
+import net.sothatsit.evaluate.compiler.ClassIsolation;
+import net.sothatsit.evaluate.compiler.CompiledClass;
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.function.OneArgFunction;
+import org.junit.Test;
+
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ExpressionCacheTest {
+
+    private static class Scale extends OneArgFunction {
+
+        private final double factor;
+
+        public Scale(double factor) {
+            super("f");
+            this.factor = factor;
+        }
+
+        @Override
+        public double evaluate(double arg) {
+            return arg * factor;
+        }
+    }
+
+    /**
+     * Functions are identified by instance, so each parser created must share the same instance of f.
+     */
+    private static Supplier<ExpressionParser> parserFactory(double factor) {
+        Scale scale = new Scale(factor);
+
+        return () -> {
+            ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+            parser.addFunction(scale);
+
+            return parser;
+        };
+    }
+
+    private static double evaluate(CompiledClass<CompiledExpression> compiledClass, double... inputs) {
+        double[] outputs = new double[1];
+
+        compiledClass.newInstance().evaluate(inputs, 0, outputs, 0);
+
+        return outputs[0];
+    }
+
+    @Test
+    public void testEquivalentExpressionsShareAClass() {
+        ExpressionCache cache = new ExpressionCache(parserFactory(2), 1000, Long.MAX_VALUE);
+
+        CompiledClass<CompiledExpression> one = cache.compileClass(cache.parse("a * f(b) + 1", "a", "b"));
+        CompiledClass<CompiledExpression> two = cache.compileClass(cache.parse("1 + f(b) * a", "a", "b"));
+
+        assertSame(one, two);
+        assertEquals(7, evaluate(one, 1.5, 2), 0);
+        assertEquals(1, cache.getCompileStatistics().hitCount);
+    }
+
+    /**
+     * Functions with the same name defined by different parsers must not share a class.
+     */
+    @Test
+    public void testFunctionsWithEqualNamesAreDistinct() {
+        ExpressionCache cache = new ExpressionCache(parserFactory(2), 1000, Long.MAX_VALUE);
+        ExpressionParser parser = parserFactory(10).get();
+        parser.addArgument("x");
+
+        Expression doubled = cache.parse("f(x)", "x");
+        Expression multiplied = parser.parse("f(x)");
+
+        assertEquals(6, evaluate(cache.compileClass(doubled), 3), 0);
+        assertEquals(30, evaluate(cache.compileClass(multiplied), 3), 0);
+    }
+
+    /**
+     * Classes compiled from source are only held by the cache of compiled classes, and so share its maximum size.
+     */
+    @Test
+    public void testSourcesShareCompiledClasses() {
+        ExpressionCache unbounded = new ExpressionCache(parserFactory(2), 1000, Long.MAX_VALUE);
+        long classSize = unbounded.compileClass("a + 1", "a").getBytecodeSize();
+
+        ExpressionCache cache = new ExpressionCache(parserFactory(2), 1000, classSize);
+        CompiledClass<CompiledExpression> one = cache.compileClass("a + 1", "a");
+
+        assertSame(one, cache.compileClass(cache.parse("1 + a", "a")));
+        assertSame(one, cache.compileClass("a + 1", "a"));
+        assertEquals(classSize, cache.getCompileStatistics().totalWeight);
+
+        // Compiling another class evicts the first, which is then compiled again from its source
+        assertEquals(4, evaluate(cache.compileClass("a + 2", "a"), 2), 0);
+        assertEquals(1, cache.getCompileStatistics().entryCount);
+
+        CompiledClass<CompiledExpression> recompiled = cache.compileClass("a + 1", "a");
+
+        assertNotSame(one, recompiled);
+        assertEquals(3, evaluate(recompiled, 2), 0);
+    }
+
+    @Test
+    public void testSharedClassesUseOneLoader() {
+        for(ClassIsolation isolation : new ClassIsolation[] {ClassIsolation.SHARED, ClassIsolation.PER_EXPRESSION}) {
+            ExpressionCache cache = new ExpressionCache(parserFactory(2), 1000, Long.MAX_VALUE, isolation);
+
+            ClassLoader one = cache.compileClass("a + 1", "a").clazz.getClassLoader();
+            ClassLoader two = cache.compileClass("a * 2", "a").clazz.getClassLoader();
+
+            if(isolation == ClassIsolation.SHARED) {
+                assertSame(one, two);
+            } else {
+                assertNotSame(one, two);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package net.sothatsit.evaluate.cache;
+
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SpecialisationCacheTest {
+
+    private static Expression createExpression() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+        parser.addArgument("x");
+        parser.addArgument("c0");
+        parser.addArgument("c1");
+
+        return parser.parse("c0 * x ^ 2 + sin(c1) * x + sqrt(c0 + c1)");
+    }
+
+    @Test
+    public void testSpecialisationsMatchInterpreter() {
+        Expression expression = createExpression();
+        SpecialisationCache cache = new SpecialisationCache(expression, new int[] {1, 2}, Long.MAX_VALUE);
+        double[] outputs = new double[1];
+
+        for(double c0 = 0.5; c0 < 3; c0 += 0.5) {
+            CompiledExpression compiled = cache.compile(c0, c0 * 2);
+
+            for(double x = -2; x <= 2; x += 0.5) {
+                // The bound inputs are ignored by the specialisation
+                compiled.evaluate(new double[] {x, 0, 0}, 0, outputs, 0);
+
+                assertClose("c0 = " + c0 + ", x = " + x, expression.evaluate(new double[] {x, c0, c0 * 2}),
+                            outputs[0], 1e-14);
+            }
+        }
+    }
+
+    @Test
+    public void testSpecialisationsAreCached() {
+        SpecialisationCache cache = new SpecialisationCache(createExpression(), new int[] {1}, Long.MAX_VALUE);
+
+        assertSame(cache.compileClass(1.5), cache.compileClass(1.5));
+        assertSame(cache.compileClass(2.5), cache.compileClass(2.5));
+
+        CacheStatistics statistics = cache.getStatistics();
+
+        assertEquals(2, statistics.missCount);
+        assertEquals(2, statistics.hitCount);
+        assertEquals(2, statistics.entryCount);
+
+        cache.invalidateAll();
+        cache.compileClass(1.5);
+
+        assertEquals(3, cache.getStatistics().missCount);
+    }
+
+    @Test
+    public void testSpecialisationsAreEvicted() {
+        SpecialisationCache cache = new SpecialisationCache(createExpression(), new int[] {1}, 1);
+
+        cache.compileClass(1.5);
+        cache.compileClass(2.5);
+
+        assertEquals(2, cache.getStatistics().evictionCount);
+        assertEquals(0, cache.getStatistics().entryCount);
+        assertEquals(0, cache.getStatistics().totalWeight);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongValueCountThrows() {
+        new SpecialisationCache(createExpression(), new int[] {1}, Long.MAX_VALUE).compile(1, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownArgumentThrows() {
+        new SpecialisationCache(createExpression(), new int[] {3}, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,72 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+
+public class BatchEvaluationTest {
+
+    private static final int OUTPUTS = 3;
+    private static final int ROWS = 37;
+
+    @Test
+    public void testLayoutsMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(1, 4);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+
+        for(int trial = 0; trial < 100; ++trial) {
+            Expression[] expressions = new Expression[OUTPUTS];
+            ExpressionCompiler compiler = new ExpressionCompiler();
+
+            for(int output = 0; output < OUTPUTS; ++output) {
+                expressions[output] = parser.parse(random.generate(5));
+                compiler.addOutput(expressions[output]);
+            }
+
+            CompiledExpression compiled = compiler.compile();
+
+            int inputCount = random.getArgumentCount();
+            double[][] rows = new double[ROWS][];
+            double[][] inputColumns = new double[inputCount][ROWS];
+            double[] strided = new double[ROWS * (inputCount + 1)];
+
+            for(int row = 0; row < ROWS; ++row) {
+                rows[row] = random.inputs();
+
+                for(int input = 0; input < inputCount; ++input) {
+                    inputColumns[input][row] = rows[row][input];
+                    strided[row * (inputCount + 1) + input] = rows[row][input];
+                }
+            }
+
+            // Leave rows out at each end to check that only the rows from and to are evaluated
+            int from = 2;
+            int to = ROWS - 3;
+
+            double[][] outputColumns = new double[OUTPUTS][ROWS];
+            double[] stridedOutputs = new double[ROWS * (OUTPUTS + 2)];
+            double[] outputs = new double[OUTPUTS + 1];
+
+            compiled.evaluateBatch(inputColumns, outputColumns, from, to);
+            compiled.evaluateStrided(strided, inputCount + 1, stridedOutputs, OUTPUTS + 2, from, to);
+
+            for(int row = 0; row < ROWS; ++row) {
+                compiled.evaluate(rows[row], 0, outputs, 1);
+
+                for(int output = 0; output < OUTPUTS; ++output) {
+                    String message = expressions[output] + " of row " + row;
+                    boolean evaluated = (row >= from && row < to);
+                    double expected = expressions[output].evaluate(rows[row]);
+
+                    assertIdentical(message, expected, outputs[output + 1]);
+                    assertIdentical(message, evaluated ? expected : 0, outputColumns[output][row]);
+                    assertIdentical(message, evaluated ? expected : 0, stridedOutputs[row * (OUTPUTS + 2) + output]);
+                }
+            }
+        }
+    }
+}
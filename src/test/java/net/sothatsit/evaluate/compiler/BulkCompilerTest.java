@@ -0,0 +1,115 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.parser.ParseException;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkCompilerTest {
+
+    private static final int EQUATIONS = 100;
+
+    private final RandomExpressions random = new RandomExpressions(8, 3);
+    private final ExpressionParser parser = random.parser(CompositeOptimiser.all());
+
+    private ExpressionParser createParser() {
+        return random.parser(CompositeOptimiser.all());
+    }
+
+    private List<String> generateEquations() {
+        List<String> equations = new ArrayList<>();
+
+        for(int index = 0; index < EQUATIONS; ++index) {
+            equations.add(random.generate(4));
+        }
+
+        return equations;
+    }
+
+    private void assertMatchesInterpreter(List<String> equations, List<CompiledExpression> compiled) {
+        assertEquals(equations.size(), compiled.size());
+
+        double[] outputs = new double[1];
+
+        for(int index = 0; index < equations.size(); ++index) {
+            Expression expression = parser.parse(equations.get(index));
+
+            for(int row = 0; row < 3; ++row) {
+                double[] inputs = random.inputs();
+
+                compiled.get(index).evaluate(inputs, 0, outputs, 0);
+                assertIdentical(equations.get(index), expression.evaluate(inputs), outputs[0]);
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testCompileAllMatchesInterpreter() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for(ClassIsolation isolation : ClassIsolation.values()) {
+                BulkCompiler compiler = new BulkCompiler(this::createParser, isolation, pool);
+                List<String> equations = generateEquations();
+
+                assertMatchesInterpreter(equations, compiler.compileAll(equations));
+                assertMatchesInterpreter(equations, compiler.compileAllAsync(equations).join());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testParseErrorsFailTheFuture() {
+        BulkCompiler compiler = new BulkCompiler(this::createParser);
+
+        try {
+            compiler.compileAllAsync(Arrays.asList("a0 + 1", "a0 +", "a1 * 2")).join();
+            fail("Expected the parse error to fail the future");
+        } catch (CompletionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof ParseException);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testCompileAsyncUsesOutputsWhenCalled() throws InterruptedException, ExecutionException {
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        Expression expression = parser.parse("a0 * a1 + sin(a2)");
+
+        compiler.addOutput(expression);
+
+        ForkJoinPool pool = new ForkJoinPool(1);
+
+        try {
+            CompiledExpression compiled = compiler.compileAsync(pool).get();
+
+            // Outputs added after compileAsync is called are not compiled
+            compiler.addOutput(expression);
+
+            double[] inputs = random.inputs();
+            double[] outputs = new double[2];
+
+            compiled.evaluate(inputs, 0, outputs, 0);
+
+            assertIdentical("output", expression.evaluate(inputs), outputs[0]);
+            assertIdentical("unused output", 0, outputs[1]);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ClassIsolationTest {
+
+    private static Expression parse(String equation) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        return parser.parse(equation);
+    }
+
+    private static CompiledExpression compile(ClassIsolation isolation,
+                                              ExpressionLoader loader,
+                                              Expression expression) {
+
+        ExpressionCompiler compiler = new ExpressionCompiler(isolation, loader);
+        compiler.addOutput(expression);
+
+        return compiler.compile();
+    }
+
+    @Test
+    public void testEachIsolationMatchesInterpreter() {
+        Expression expression = parse("sin(a) * b + if(a > b, atan2(a, b), b % 3)");
+        double[] inputs = {0.7, -1.3};
+        double[] outputs = new double[1];
+
+        for(ClassIsolation isolation : ClassIsolation.values()) {
+            compile(isolation, new ExpressionLoader(), expression).evaluate(inputs, 0, outputs, 0);
+
+            assertIdentical(isolation.name(), expression.evaluate(inputs), outputs[0]);
+        }
+    }
+
+    @Test
+    public void testSharedClassesUseOneLoader() {
+        ExpressionLoader loader = new ExpressionLoader();
+
+        CompiledExpression first = compile(ClassIsolation.SHARED, loader, parse("a + b"));
+        CompiledExpression second = compile(ClassIsolation.SHARED, loader, parse("a * b"));
+
+        assertSame(loader, first.getClass().getClassLoader());
+        assertSame(loader, second.getClass().getClassLoader());
+    }
+
+    @Test
+    public void testPerExpressionClassesUseTheirOwnLoaders() {
+        ExpressionLoader loader = new ExpressionLoader();
+
+        CompiledExpression first = compile(ClassIsolation.PER_EXPRESSION, loader, parse("a + b"));
+        CompiledExpression second = compile(ClassIsolation.PER_EXPRESSION, loader, parse("a * b"));
+
+        assertNotSame(loader, first.getClass().getClassLoader());
+        assertNotSame(first.getClass().getClassLoader(), second.getClass().getClassLoader());
+    }
+
+    @Test(timeout = 20000)
+    public void testIsolatedClassesAreUnloaded() throws InterruptedException {
+        for(ClassIsolation isolation : new ClassIsolation[] {ClassIsolation.PER_EXPRESSION, ClassIsolation.HIDDEN}) {
+            WeakReference<Class<?>> compiledClass = new WeakReference<>(
+                    compile(isolation, new ExpressionLoader(), parse("a * b - 1")).getClass()
+            );
+
+            while(compiledClass.get() != null) {
+                System.gc();
+                Thread.sleep(10);
+            }
+
+            assertNull(isolation.name(), compiledClass.get());
+        }
+    }
+}
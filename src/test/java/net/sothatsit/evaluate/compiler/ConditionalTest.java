@@ -0,0 +1,130 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * If statements, comparisons and logical operators must be compiled with the same semantics
+ * as they are interpreted, including for NaN and signed zeroes.
+ */
+public class ConditionalTest {
+
+    private static final String[] EQUATIONS = {
+            "a < b", "a <= b", "a > b", "a >= b", "a == b", "a != b",
+            "a && b", "a || b", "(a < b) && (b != 0)", "(a == a) || (b > 1)",
+            "if(a, b, 2)", "if(a > b, a - b, b - a)", "if(a == b, 1, if(a < b, 2, 3))",
+            "if(a && b, a * b, a + b) * (a >= 0)"
+    };
+
+    private static final double[] SPECIAL_VALUES = {
+            Double.NaN, -0.0, 0.0, 1, -1, 0.5, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+
+    private static ExpressionParser createParser(NumberType numberType) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.setNumberType(numberType);
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        return parser;
+    }
+
+    @Test
+    public void testSpecialValuesMatchInterpreter() {
+        ExpressionParser parser = createParser(NumberType.DOUBLE);
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        Expression[] expressions = new Expression[EQUATIONS.length];
+
+        for(int index = 0; index < EQUATIONS.length; ++index) {
+            expressions[index] = parser.parse(EQUATIONS[index]);
+            compiler.addOutput(expressions[index]);
+        }
+
+        CompiledExpression compiled = compiler.compile();
+        CompiledFloatExpression compiledFloat = compiler.compileFloat();
+
+        double[] outputs = new double[EQUATIONS.length];
+        float[] floatOutputs = new float[EQUATIONS.length];
+
+        for(double a : SPECIAL_VALUES) {
+            for(double b : SPECIAL_VALUES) {
+                double[] inputs = {a, b};
+
+                compiled.evaluate(inputs, 0, outputs, 0);
+                compiledFloat.evaluate(new float[] {(float) a, (float) b}, 0, floatOutputs, 0);
+
+                for(int index = 0; index < EQUATIONS.length; ++index) {
+                    String message = EQUATIONS[index] + " of " + a + ", " + b;
+                    double expected = expressions[index].evaluate(inputs);
+
+                    assertIdentical(message, expected, outputs[index]);
+                    assertIdentical(message + " as floats", expected, floatOutputs[index]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLongsMatchInterpreter() {
+        ExpressionParser parser = createParser(NumberType.LONG);
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        Expression[] expressions = new Expression[EQUATIONS.length];
+
+        for(int index = 0; index < EQUATIONS.length; ++index) {
+            expressions[index] = parser.parse(EQUATIONS[index]);
+            compiler.addOutput(expressions[index]);
+        }
+
+        CompiledLongExpression compiled = compiler.compileLong();
+        long[] values = {Long.MIN_VALUE, -2, -1, 0, 1, 2, Long.MAX_VALUE};
+        long[] outputs = new long[EQUATIONS.length];
+
+        for(long a : values) {
+            for(long b : values) {
+                long[] inputs = {a, b};
+
+                compiled.evaluate(inputs, 0, outputs, 0);
+
+                for(int index = 0; index < EQUATIONS.length; ++index) {
+                    String message = EQUATIONS[index] + " of " + a + ", " + b;
+
+                    assertEquals(message, expressions[index].evaluateLong(inputs), outputs[index]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRandomConditionalsMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(2, 3);
+        ExpressionParser parser = random.parser(CompositeOptimiser.none());
+
+        for(int trial = 0; trial < 200; ++trial) {
+            String equation = random.generate(5);
+            Expression expression = parser.parse(equation);
+            ExpressionCompiler compiler = new ExpressionCompiler();
+            compiler.addOutput(expression);
+
+            CompiledExpression compiled = compiler.compile();
+            double[] outputs = new double[1];
+
+            for(int row = 0; row < 10; ++row) {
+                double[] inputs = random.inputs();
+
+                // Include special values, which compare differently to other values
+                if(row < 3) {
+                    inputs[random.getRandom().nextInt(inputs.length)] = SPECIAL_VALUES[row];
+                }
+
+                compiled.evaluate(inputs, 0, outputs, 0);
+                assertIdentical(equation, expression.evaluate(inputs), outputs[0]);
+            }
+        }
+    }
+}
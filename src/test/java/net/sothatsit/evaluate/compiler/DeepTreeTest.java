@@ -0,0 +1,131 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.NodeFactory;
+import net.sothatsit.evaluate.tree.function.operator.Add;
+import net.sothatsit.evaluate.tree.function.operator.Multiply;
+import net.sothatsit.evaluate.tree.function.operator.Subtract;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static net.sothatsit.evaluate.TestSupport.compile;
+import static net.sothatsit.evaluate.TestSupport.runWithSmallStack;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Machine-generated chains can be far deeper than the stack allows to be walked recursively.
+ */
+public class DeepTreeTest {
+
+    private static final int DEPTH = 50000;
+    private static final int INPUTS = 4;
+
+    private static final double[] INPUT_VALUES = {1.5, -0.25, 3, 0.75};
+
+    /**
+     * @return A chain of {@param depth} operations that alternately halve the sum of the chain
+     *         and an input, and subtract an input from the chain.
+     */
+    private static Expression createChain(int depth) {
+        NodeFactory factory = new NodeFactory();
+        Node half = factory.constant(0.5);
+        Node chain = factory.variable("x0", 0);
+
+        for(int index = 1; index <= depth; ++index) {
+            Node input = factory.variable("x" + index % INPUTS, index % INPUTS);
+
+            if(index % 2 == 0) {
+                chain = factory.function(Subtract.fn, chain, input);
+            } else {
+                chain = factory.function(Multiply.fn, factory.function(Add.fn, chain, input), half);
+            }
+        }
+
+        return new Expression(chain, Arrays.asList("x0", "x1", "x2", "x3"));
+    }
+
+    /**
+     * @return The value of {@link #createChain} of {@param depth}, computed with a loop.
+     */
+    private static double evaluateChain(int depth, double[] inputs) {
+        double chain = inputs[0];
+
+        for(int index = 1; index <= depth; ++index) {
+            double input = inputs[index % INPUTS];
+
+            chain = (index % 2 == 0 ? chain - input : (chain + input) * 0.5);
+        }
+
+        return chain;
+    }
+
+    private static double evaluate(CompiledExpression compiled, double[] inputs) {
+        double[] outputs = new double[1];
+
+        compiled.evaluate(inputs, 0, outputs, 0);
+
+        return outputs[0];
+    }
+
+    @Test
+    public void testDeepChainCompiles() throws Throwable {
+        runWithSmallStack(() -> {
+            Expression expression = createChain(DEPTH);
+
+            assertTrue(expression.root.getHeight() > DEPTH);
+
+            CompiledExpression compiled = compile(expression);
+
+            assertIdentical("compiled", evaluateChain(DEPTH, INPUT_VALUES), evaluate(compiled, INPUT_VALUES));
+        });
+    }
+
+    @Test
+    public void testDeepChainOptimises() throws Throwable {
+        runWithSmallStack(() -> {
+            for(CompositeOptimiser optimiser : new CompositeOptimiser[] {
+                    CompositeOptimiser.all(), CompositeOptimiser.saturating()
+            }) {
+                Expression expression = createChain(DEPTH);
+                optimiser.optimise(expression);
+
+                double expected = evaluateChain(DEPTH, INPUT_VALUES);
+
+                assertClose("optimised", expected, evaluate(compile(expression), INPUT_VALUES), 1e-12);
+            }
+        });
+    }
+
+    /**
+     * The interpreter still recurses, so it is compared at a depth that fits on the default stack.
+     */
+    @Test
+    public void testParsedChainMatchesInterpreter() {
+        StringBuilder equation = new StringBuilder("x0");
+
+        for(int index = 1; index <= 2000; ++index) {
+            equation.append(index % 2 == 0 ? " - " : " + ").append("x").append(index % INPUTS);
+        }
+
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+
+        for(int index = 0; index < INPUTS; ++index) {
+            parser.addArgument("x" + index);
+        }
+
+        Expression expression = parser.parse(equation.toString());
+        Expression optimised = parser.parse(equation.toString());
+        CompositeOptimiser.all().optimise(optimised);
+
+        double expected = expression.evaluate(INPUT_VALUES);
+
+        assertIdentical("compiled", expected, evaluate(compile(expression), INPUT_VALUES));
+        assertClose("optimised", expected, evaluate(compile(optimised), INPUT_VALUES), 1e-12);
+    }
+}
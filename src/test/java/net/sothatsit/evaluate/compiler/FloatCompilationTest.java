@@ -0,0 +1,126 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FloatCompilationTest {
+
+    /**
+     * Each of these is rounded once, either by a float instruction or by narrowing the result of a
+     * double method. Rounding the exact result of these to a double and then to a float is the
+     * same as rounding it to a float once, so they must equal the narrowed interpreted result.
+     */
+    private static final String[] SINGLE_OPERATIONS = {
+            "a + b", "a - b", "a * b", "a / b", "a % b", "sqrt(a)", "abs(a)", "min(a, b)", "max(a, b)",
+            "floor(a)", "ceil(a)", "a < b", "a == b", "sin(a)", "atan2(a, b)", "a ^ 7", "a ^ b"
+    };
+
+    private static ExpressionParser createParser() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        return parser;
+    }
+
+    private static void assertSameFloat(String message, float expected, float actual) {
+        assertEquals(message, Float.floatToIntBits(expected), Float.floatToIntBits(actual));
+    }
+
+    @Test
+    public void testSingleOperationsAreRoundedOnce() {
+        ExpressionParser parser = createParser();
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        Expression[] expressions = new Expression[SINGLE_OPERATIONS.length];
+
+        for(int index = 0; index < SINGLE_OPERATIONS.length; ++index) {
+            expressions[index] = parser.parse(SINGLE_OPERATIONS[index]);
+            compiler.addOutput(expressions[index]);
+        }
+
+        CompiledFloatExpression compiled = compiler.compileFloat();
+        Random random = new Random(13);
+
+        float[] specials = {Float.NaN, -0.0f, 0.0f, Float.POSITIVE_INFINITY, Float.MAX_VALUE, Float.MIN_VALUE};
+        float[] outputs = new float[SINGLE_OPERATIONS.length];
+
+        for(int trial = 0; trial < 1000; ++trial) {
+            float a = (trial < 36 ? specials[trial % 6] : (float) (random.nextGaussian() * 100));
+            float b = (trial < 36 ? specials[trial / 6] : (float) (random.nextGaussian() * 4));
+
+            compiled.evaluate(new float[] {a, b}, 0, outputs, 0);
+
+            for(int index = 0; index < SINGLE_OPERATIONS.length; ++index) {
+                float expected = (float) expressions[index].evaluate(new double[] {a, b});
+
+                assertSameFloat(SINGLE_OPERATIONS[index] + " of " + a + ", " + b, expected, outputs[index]);
+            }
+        }
+    }
+
+    @Test
+    public void testLayoutsAgree() {
+        RandomExpressions random = new RandomExpressions(14, 3);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+
+        int rows = 11;
+
+        for(int trial = 0; trial < 50; ++trial) {
+            Expression expression = parser.parse(random.generate(5));
+            ExpressionCompiler compiler = new ExpressionCompiler();
+            compiler.addOutput(expression);
+
+            CompiledFloatExpression compiled = compiler.compileFloat();
+
+            float[][] inputColumns = new float[3][rows];
+            float[][] outputColumns = new float[1][rows];
+            float[] strided = new float[rows * 3];
+            float[] stridedOutputs = new float[rows];
+
+            for(int row = 0; row < rows; ++row) {
+                double[] inputs = random.inputs();
+
+                for(int input = 0; input < 3; ++input) {
+                    inputColumns[input][row] = (float) inputs[input];
+                    strided[row * 3 + input] = (float) inputs[input];
+                }
+            }
+
+            compiled.evaluateBatch(inputColumns, outputColumns, 0, rows);
+            compiled.evaluateStrided(strided, 3, stridedOutputs, 1, 0, rows);
+
+            float[] outputs = new float[1];
+
+            for(int row = 0; row < rows; ++row) {
+                compiled.evaluate(strided, row * 3, outputs, 0);
+
+                assertSameFloat(expression + " batch", outputs[0], outputColumns[0][row]);
+                assertSameFloat(expression + " strided", outputs[0], stridedOutputs[row]);
+            }
+        }
+    }
+
+    @Test
+    public void testWellConditionedExpressionsAreClose() {
+        ExpressionParser parser = createParser();
+        Expression expression = parser.parse("sqrt(a * a + b * b) * cos(b) + a / (1 + b * b) - a ^ 2");
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        CompiledFloatExpression compiled = compiler.compileFloat();
+        float[] outputs = new float[1];
+
+        for(float a = 0.5f; a < 4; a += 0.25f) {
+            compiled.evaluate(new float[] {a, 0.75f}, 0, outputs, 0);
+
+            RandomExpressions.assertClose("a = " + a, expression.evaluate(new double[] {a, 0.75}), outputs[0], 1e-5);
+        }
+    }
+}
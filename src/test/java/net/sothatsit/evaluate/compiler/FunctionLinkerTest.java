@@ -0,0 +1,164 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.function.AbstractFunction;
+import net.sothatsit.evaluate.tree.function.LongFunction;
+import net.sothatsit.evaluate.tree.function.OneArgFunction;
+import net.sothatsit.evaluate.tree.function.ThreeArgFunction;
+import net.sothatsit.evaluate.tree.function.TwoArgFunction;
+import org.junit.Test;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static net.sothatsit.evaluate.TestSupport.compile;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Functions that are not Compilable are called through invokedynamic call sites, which are linked to the
+ * functions registered for the class being compiled.
+ */
+public class FunctionLinkerTest {
+
+    private static class Scale extends OneArgFunction {
+
+        private final double factor;
+
+        public Scale(double factor) {
+            super("scale");
+            this.factor = factor;
+        }
+
+        @Override
+        public double evaluate(double arg) {
+            return arg * factor;
+        }
+    }
+
+    private static class Blend extends TwoArgFunction implements LongFunction {
+
+        public Blend() {
+            super("blend");
+        }
+
+        @Override
+        public double evaluate(double arg1, double arg2) {
+            return 0.25 * arg1 + 0.75 * arg2;
+        }
+
+        @Override
+        public long evaluateLong(long[] arguments) {
+            return (arguments[0] + 3 * arguments[1]) / 4;
+        }
+    }
+
+    private static class Clamp extends ThreeArgFunction {
+
+        public Clamp() {
+            super("clamp");
+        }
+
+        @Override
+        public double evaluate(double value, double min, double max) {
+            return Math.max(min, Math.min(max, value));
+        }
+    }
+
+    private static class Sum4 extends AbstractFunction {
+
+        public Sum4() {
+            super("sum4");
+        }
+
+        @Override
+        public int getArgumentCount() {
+            return 4;
+        }
+
+        @Override
+        public double evaluate(double[] arguments) {
+            return arguments[0] + 2 * arguments[1] + 3 * arguments[2] + 4 * arguments[3];
+        }
+    }
+
+    private static final String EQUATION = "scale(a) + blend(a, b) * clamp(a - b, 0 - 1, 1) + sum4(a, b, scale(b), 2)";
+
+    private static ExpressionParser createParser(double factor, NumberType numberType) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.setNumberType(numberType);
+        parser.addArgument("a");
+        parser.addArgument("b");
+        parser.addFunctions(new Scale(factor), new Blend(), new Clamp(), new Sum4());
+
+        return parser;
+    }
+
+    @Test
+    public void testFunctionsMatchInterpreter() {
+        Expression expression = createParser(1.5, NumberType.DOUBLE).parse(EQUATION);
+        CompiledExpression compiled = compile(expression);
+
+        double[] outputs = new double[1];
+
+        for(double a = -3; a <= 3; a += 0.75) {
+            for(double b = -2; b <= 2; b += 0.5) {
+                double[] inputs = {a, b};
+
+                compiled.evaluate(inputs, 0, outputs, 0);
+                assertIdentical(a + ", " + b, expression.evaluate(inputs), outputs[0]);
+            }
+        }
+    }
+
+    /**
+     * Each compiled class must call the instances of the functions that it was compiled with.
+     */
+    @Test
+    public void testEachClassCallsItsOwnFunctions() {
+        CompiledExpression half = compile(createParser(0.5, NumberType.DOUBLE).parse("scale(a)"));
+        CompiledExpression triple = compile(createParser(3, NumberType.DOUBLE).parse("scale(a)"));
+
+        double[] outputs = new double[2];
+
+        half.evaluate(new double[] {4, 0}, 0, outputs, 0);
+        triple.evaluate(new double[] {4, 0}, 0, outputs, 1);
+
+        assertIdentical("half", 2, outputs[0]);
+        assertIdentical("triple", 12, outputs[1]);
+    }
+
+    @Test
+    public void testFloatFunctionsMatchInterpreter() {
+        Expression expression = createParser(1.5, NumberType.DOUBLE).parse(EQUATION);
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        CompiledFloatExpression compiled = compiler.compileFloat();
+        float[] outputs = new float[1];
+
+        for(float a = -3; a <= 3; a += 0.75f) {
+            compiled.evaluate(new float[] {a, 0.5f}, 0, outputs, 0);
+            assertClose("a = " + a, expression.evaluate(new double[] {a, 0.5}), outputs[0], 1e-5);
+        }
+    }
+
+    @Test
+    public void testLongFunctionsMatchInterpreter() {
+        Expression expression = createParser(1, NumberType.LONG).parse("blend(a, b) * 3 + blend(b, a)");
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        CompiledLongExpression compiled = compiler.compileLong();
+        long[] outputs = new long[1];
+
+        for(long a = -20; a <= 20; a += 3) {
+            for(long b = -20; b <= 20; b += 7) {
+                long[] inputs = {a, b};
+
+                compiled.evaluate(inputs, 0, outputs, 0);
+                assertEquals(a + ", " + b, expression.evaluateLong(inputs), outputs[0]);
+            }
+        }
+    }
+}
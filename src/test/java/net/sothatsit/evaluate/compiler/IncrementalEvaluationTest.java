@@ -0,0 +1,151 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.CountingFunction;
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+
+public class IncrementalEvaluationTest {
+
+    /**
+     * More than 64 inputs, so that the changed inputs span more than one word of the bitset.
+     */
+    private static final int INPUTS = 70;
+    private static final int OUTPUTS = 12;
+
+    private static void assertOutputsMatch(String message, Expression[] expressions, CompiledExpression compiled) {
+        for(int output = 0; output < expressions.length; ++output) {
+            double expected = expressions[output].evaluate(compiled.inputs);
+
+            assertIdentical(message + ", " + expressions[output], expected, compiled.getOutput(output));
+        }
+    }
+
+    @Test
+    public void testSparseChangesMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(19, INPUTS);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+        Random changes = random.getRandom();
+
+        for(int trial = 0; trial < 20; ++trial) {
+            ExpressionCompiler compiler = new ExpressionCompiler();
+            Expression[] expressions = new Expression[OUTPUTS];
+
+            for(int output = 0; output < OUTPUTS; ++output) {
+                expressions[output] = parser.parse(random.generate(4));
+                compiler.addOutput(expressions[output]);
+            }
+
+            CompiledIncrementalExpression compiled = compiler.compileIncremental();
+            double[] inputs = random.inputs();
+
+            for(int index = 0; index < INPUTS; ++index) {
+                compiled.setVariable(index, inputs[index]);
+            }
+
+            compiled.evaluate();
+            assertOutputsMatch("initial", expressions, compiled);
+
+            for(int step = 0; step < 50; ++step) {
+                int changeCount = 1 + changes.nextInt(2);
+
+                for(int change = 0; change < changeCount; ++change) {
+                    compiled.setVariable(changes.nextInt(INPUTS), changes.nextDouble() * 8 - 4);
+                }
+
+                compiled.evaluate();
+                assertOutputsMatch("step " + step, expressions, compiled);
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyAffectedOutputsAreRecomputed() {
+        CountingFunction count = new CountingFunction();
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+        parser.addFunction(count);
+
+        for(int index = 0; index < INPUTS; ++index) {
+            parser.addArgument("x" + index);
+        }
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(parser.parse("count(x0) + x1"));
+        compiler.addOutput(parser.parse("count(x66) * 2"));
+        compiler.addOutput(parser.parse("count(x1 + x66) - 1"));
+
+        CompiledIncrementalExpression compiled = compiler.compileIncremental();
+
+        // The first evaluation computes everything, even though no input has been set
+        compiled.evaluate();
+        assertEquals(3, count.calls);
+        assertEquals(-1, compiled.getOutput(2), 0);
+
+        count.calls = 0;
+        compiled.evaluate();
+        assertEquals(0, count.calls);
+
+        // Setting an input to its current value does not mark it as changed
+        compiled.setVariable(66, 0);
+        compiled.evaluate();
+        assertEquals(0, count.calls);
+
+        // An output that is not recomputed keeps whatever value it holds
+        compiled.outputs[0] = Double.NaN;
+        compiled.setVariable(66, 3);
+        compiled.evaluate();
+
+        assertEquals(2, count.calls);
+        assertIdentical("unaffected", Double.NaN, compiled.getOutput(0));
+        assertEquals(6, compiled.getOutput(1), 0);
+        assertEquals(2, compiled.getOutput(2), 0);
+
+        count.calls = 0;
+        compiled.inputs[0] = 5;
+        compiled.markChanged(0);
+        compiled.evaluate();
+
+        assertEquals(1, count.calls);
+        assertEquals(5, compiled.getOutput(0), 0);
+
+        count.calls = 0;
+        compiled.markAllChanged();
+        compiled.evaluate();
+
+        assertEquals(3, count.calls);
+    }
+
+    @Test
+    public void testInstancesAreIndependent() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(parser.parse("sqrt(a * a + b * b)"));
+        compiler.addOutput(parser.parse("a * a - b"));
+
+        CompiledClass<CompiledIncrementalExpression> compiledClass = compiler.compileIncrementalClass();
+        CompiledIncrementalExpression one = compiledClass.newInstance();
+        CompiledIncrementalExpression two = compiledClass.newInstance();
+
+        one.setVariable(0, 3);
+        one.setVariable(1, 4);
+        one.evaluate();
+
+        two.setVariable(0, 3);
+        two.evaluate();
+
+        assertEquals(5, one.getOutput(0), 0);
+        assertEquals(5, one.getOutput(1), 0);
+        assertEquals(3, two.getOutput(0), 0);
+        assertEquals(9, two.getOutput(1), 0);
+    }
+}
@@ -0,0 +1,183 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Inputs and common terms are held in locals, which are reused once the values they hold are no longer needed.
+ * These expressions have many values live at once, and many values with short lives, of every number type.
+ */
+public class LocalAllocationTest {
+
+    private static final int INPUTS = 40;
+    private static final int TERMS = 30;
+
+    private static ExpressionParser createParser(NumberType numberType) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.setNumberType(numberType);
+
+        for(int input = 0; input < INPUTS; ++input) {
+            parser.addArgument("a" + input);
+        }
+
+        return parser;
+    }
+
+    /**
+     * @return Equations that use every input, and terms that are all live at once, or that each live briefly.
+     */
+    private static Expression[] parseEquations(ExpressionParser parser, boolean isLong) {
+        StringBuilder sum = new StringBuilder("0");
+        StringBuilder product = new StringBuilder("1");
+        StringBuilder reversed = new StringBuilder("0");
+
+        for(int term = 0; term < TERMS; ++term) {
+            String a = "a" + term;
+            String b = "a" + (term + 7) % INPUTS;
+
+            String equation = (isLong ? "max(" + a + ", " + b + ") * 3" : "sin(" + a + ") * " + b);
+
+            parser.addIntermediateVariable("t" + term, equation);
+
+            sum.append(" + t").append(term);
+            product.append(" * (t").append(term).append(" - t").append((term + 1) % TERMS).append(")");
+            reversed.append(" + t").append(TERMS - 1 - term).append(" * ").append(term);
+        }
+
+        StringBuilder inputs = new StringBuilder("0");
+
+        for(int input = 0; input < INPUTS; ++input) {
+            inputs.append(" + a").append(input).append(" * ").append(input % 5);
+        }
+
+        // Each link of the chain is used three times by the next, but only lives until then
+        parser.addIntermediateVariable("c0", "a0");
+        for(int link = 1; link <= 6; ++link) {
+            String previous = "c" + (link - 1);
+
+            parser.addIntermediateVariable("c" + link, previous + " * " + previous + " - " + previous + " + a" + link);
+        }
+
+        return new Expression[] {
+                parser.parse(sum.toString()),
+                parser.parse(product.toString()),
+                parser.parse(reversed.toString()),
+                parser.parse(inputs.toString()),
+                parser.parse("c6 + t0"),
+                parser.parse("(" + sum + ") * (c6 - " + reversed + ")")
+        };
+    }
+
+    private static ExpressionCompiler createCompiler(Expression[] expressions) {
+        ExpressionCompiler compiler = new ExpressionCompiler();
+
+        for(Expression expression : expressions) {
+            compiler.addOutput(expression);
+        }
+
+        return compiler;
+    }
+
+    @Test
+    public void testDoublesMatchInterpreter() {
+        Expression[] expressions = parseEquations(createParser(NumberType.DOUBLE), false);
+        CompiledExpression compiled = createCompiler(expressions).compile();
+        Random random = new Random(10);
+
+        for(int trial = 0; trial < 20; ++trial) {
+            double[] inputs = new double[INPUTS];
+            double[] outputs = new double[expressions.length];
+
+            for(int input = 0; input < INPUTS; ++input) {
+                inputs[input] = random.nextDouble() * 2 - 1;
+            }
+
+            compiled.evaluate(inputs, 0, outputs, 0);
+
+            for(int output = 0; output < expressions.length; ++output) {
+                assertIdentical("output " + output, expressions[output].evaluate(inputs), outputs[output]);
+            }
+        }
+    }
+
+    @Test
+    public void testFloatsMatchInterpreter() {
+        Expression[] expressions = parseEquations(createParser(NumberType.DOUBLE), false);
+        CompiledFloatExpression compiled = createCompiler(expressions).compileFloat();
+        Random random = new Random(11);
+
+        for(int trial = 0; trial < 20; ++trial) {
+            float[] inputs = new float[INPUTS];
+            double[] doubleInputs = new double[INPUTS];
+            float[] outputs = new float[expressions.length];
+
+            for(int input = 0; input < INPUTS; ++input) {
+                inputs[input] = random.nextFloat() * 2 - 1;
+                doubleInputs[input] = inputs[input];
+            }
+
+            compiled.evaluate(inputs, 0, outputs, 0);
+
+            // Only the sums are compared, as the products lose too much precision as floats
+            for(int output : new int[] {0, 2, 3}) {
+                double expected = expressions[output].evaluate(doubleInputs);
+
+                RandomExpressions.assertClose("output " + output, expected, outputs[output], 1e-4);
+            }
+        }
+    }
+
+    @Test
+    public void testLongsMatchInterpreter() {
+        Expression[] expressions = parseEquations(createParser(NumberType.LONG), true);
+        CompiledLongExpression compiled = createCompiler(expressions).compileLong();
+        Random random = new Random(12);
+
+        for(int trial = 0; trial < 20; ++trial) {
+            long[] inputs = new long[INPUTS];
+            long[] outputs = new long[expressions.length];
+
+            for(int input = 0; input < INPUTS; ++input) {
+                inputs[input] = random.nextInt(2001) - 1000;
+            }
+
+            compiled.evaluate(inputs, 0, outputs, 0);
+
+            for(int output = 0; output < expressions.length; ++output) {
+                assertEquals("output " + output, expressions[output].evaluateLong(inputs), outputs[output]);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomSharedTermsMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(10, 6);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+
+        for(int trial = 0; trial < 50; ++trial) {
+            Expression[] expressions = new Expression[8];
+
+            for(int output = 0; output < expressions.length; ++output) {
+                expressions[output] = parser.parse(random.generate(6));
+            }
+
+            CompiledExpression compiled = createCompiler(expressions).compile();
+            double[] inputs = random.inputs();
+            double[] outputs = new double[expressions.length];
+
+            compiled.evaluate(inputs, 0, outputs, 0);
+
+            for(int output = 0; output < expressions.length; ++output) {
+                assertIdentical(expressions[output].toString(), expressions[output].evaluate(inputs), outputs[output]);
+            }
+        }
+    }
+}
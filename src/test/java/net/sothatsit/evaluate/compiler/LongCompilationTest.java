@@ -0,0 +1,228 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.compiler.vector.VectorCompiler;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LongCompilationTest {
+
+    private static final String[] DIVISIONS = {
+            "a / b", "a % b", "floorDiv(a, b)", "floorMod(a, b)", "a << 3", "a >> 2", "(a * 7) / (b + 8)"
+    };
+
+    private static ExpressionParser createParser() {
+        return createParser(CompositeOptimiser.none(), false);
+    }
+
+    private static ExpressionParser createParser(CompositeOptimiser optimiser, boolean overflowChecked) {
+        ExpressionParser parser = new ExpressionParser(optimiser);
+        parser.setNumberType(NumberType.LONG);
+        parser.setOverflowChecked(overflowChecked);
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        return parser;
+    }
+
+    private static CompiledLongExpression compile(Expression expression, boolean overflowChecked) {
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.setOverflowChecked(overflowChecked);
+        compiler.addOutput(expression);
+
+        return compiler.compileLong();
+    }
+
+    private static long evaluate(CompiledLongExpression compiled, long... inputs) {
+        long[] outputs = new long[1];
+
+        compiled.evaluate(inputs, 0, outputs, 0);
+
+        return outputs[0];
+    }
+
+    @Test
+    public void testRandomExpressionsMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(15, 3, NumberType.LONG);
+        ExpressionParser unoptimised = random.parser(CompositeOptimiser.none());
+        ExpressionParser optimised = random.parser(CompositeOptimiser.all());
+
+        for(int trial = 0; trial < 300; ++trial) {
+            String equation = random.generate(5);
+            Expression expression = unoptimised.parse(equation);
+            CompiledLongExpression compiled = compile(optimised.parse(equation), false);
+
+            for(int row = 0; row < 5; ++row) {
+                long[] inputs = random.longInputs();
+
+                assertEquals(equation, expression.evaluateLong(inputs), evaluate(compiled, inputs));
+            }
+        }
+    }
+
+    @Test
+    public void testDivisionsMatchInterpreter() {
+        ExpressionParser parser = createParser();
+        long[] values = {Long.MIN_VALUE, -7, -2, -1, 1, 2, 3, 7, Long.MAX_VALUE};
+
+        for(String equation : DIVISIONS) {
+            Expression expression = parser.parse(equation);
+            CompiledLongExpression compiled = compile(expression, false);
+
+            for(long a : values) {
+                for(long b : values) {
+                    assertEquals(equation + " of " + a + ", " + b, expression.evaluateLong(new long[] {a, b}),
+                                 evaluate(compiled, a, b));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDivisionByZeroThrows() {
+        ExpressionParser parser = createParser();
+
+        for(String equation : new String[] {"a / b", "a % b", "floorDiv(a, b)", "floorMod(a, b)"}) {
+            CompiledLongExpression compiled = compile(parser.parse(equation), false);
+
+            try {
+                evaluate(compiled, 5, 0);
+                fail(equation + " should throw");
+            } catch (ArithmeticException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testLiteralsAreExact() {
+        Expression expression = createParser().parse("a + 9007199254740993");
+
+        assertEquals(9007199254740994L, evaluate(compile(expression, false), 1, 0));
+    }
+
+    @Test
+    public void testOverflowIsChecked() {
+        ExpressionParser parser = createParser();
+        ExpressionParser checkedParser = createParser(CompositeOptimiser.none(), true);
+
+        for(String equation : new String[] {"a + b", "a - b", "a * b"}) {
+            Expression expression = parser.parse(equation);
+            Expression checked = checkedParser.parse(equation);
+            long b = (equation.contains("-") ? -2 : 2);
+
+            // Without checks, overflow wraps around as in the interpreter
+            long[] inputs = {Long.MAX_VALUE, b};
+            assertEquals(equation, expression.evaluateLong(inputs), evaluate(compile(expression, false), inputs));
+
+            try {
+                evaluate(compile(checked, true), inputs);
+                fail(equation + " should overflow");
+            } catch (ArithmeticException e) {
+                // Expected
+            }
+
+            // Results that do not overflow are unaffected by the checks
+            long expected = expression.evaluateLong(new long[] {40, b});
+
+            assertEquals(equation, expected, evaluate(compile(checked, true), 40, b));
+        }
+    }
+
+    /**
+     * The optimisers must not fold constants that overflow, negate the minimum long,
+     * or re-associate operations when the overflow of the expression is checked.
+     */
+    @Test
+    public void testOptimisedOverflowIsChecked() {
+        String[] overflowing = {"9223372036854775807 + 1 + a", "a - (0 - 9223372036854775807 - 1)", "a * 3 * 4611686018427387904"};
+        long[] inputs = {0, 5, 1};
+
+        // Re-associating these to fold their constants first would overflow
+        String[] exact = {"(a + 9223372036854775807) + 1", "(a - (0 - 9223372036854775807 - 1)) - 1"};
+        long[] exactInputs = {-5, -5};
+        long[] expected = {Long.MAX_VALUE - 4, Long.MAX_VALUE - 5};
+
+        for(CompositeOptimiser optimiser : new CompositeOptimiser[] {
+                CompositeOptimiser.all(), CompositeOptimiser.saturating()
+        }) {
+            ExpressionParser parser = createParser(optimiser, true);
+
+            for(int index = 0; index < overflowing.length; ++index) {
+                CompiledLongExpression compiled = compile(parser.parse(overflowing[index]), true);
+
+                try {
+                    evaluate(compiled, inputs[index], 0);
+                    fail(overflowing[index] + " should overflow");
+                } catch (ArithmeticException e) {
+                    // Expected
+                }
+            }
+
+            for(int index = 0; index < exact.length; ++index) {
+                CompiledLongExpression compiled = compile(parser.parse(exact[index]), true);
+
+                assertEquals(exact[index], expected[index], evaluate(compiled, exactInputs[index], 0));
+            }
+        }
+    }
+
+    /**
+     * Expressions optimised as if they wrap around may have already folded away their overflows.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testWrappingExpressionsAreNotChecked() {
+        compile(createParser(CompositeOptimiser.all(), false).parse("9223372036854775807 + 1 + a"), true);
+    }
+
+    /**
+     * Only the branch taken may be evaluated, as the other may overflow.
+     */
+    @Test
+    public void testUntakenBranchDoesNotOverflow() {
+        ExpressionParser parser = createParser(CompositeOptimiser.none(), true);
+
+        String[] equations = {"if(a > 0, b * b, 0)", "if(a > 0, a, b + b)", "if(a > 0, a, a - b)"};
+        long[][] inputs = {{0, Long.MAX_VALUE}, {1, Long.MAX_VALUE}, {1, Long.MIN_VALUE}};
+
+        for(int index = 0; index < equations.length; ++index) {
+            Expression expression = parser.parse(equations[index]);
+
+            assertEquals(equations[index], expression.evaluateLong(inputs[index]),
+                         evaluate(compile(expression, true), inputs[index]));
+        }
+    }
+
+    /**
+     * The other backends only compute in doubles, and so must not silently compile expressions of longs.
+     */
+    @Test
+    public void testOtherBackendsRejectLongs() {
+        Expression expression = createParser().parse("a / b");
+
+        MethodHandleCompiler handleCompiler = new MethodHandleCompiler();
+        handleCompiler.addOutput(expression);
+
+        VectorCompiler vectorCompiler = new VectorCompiler();
+        vectorCompiler.addOutput(expression);
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        Runnable[] compilations = {handleCompiler::compile, vectorCompiler::compile, compiler::compile};
+
+        for(Runnable compilation : compilations) {
+            try {
+                compilation.run();
+                fail("Expressions of longs should not be compiled as doubles");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        }
+    }
+}
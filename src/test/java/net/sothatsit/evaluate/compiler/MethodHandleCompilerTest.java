@@ -0,0 +1,171 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.NodeFactory;
+import net.sothatsit.evaluate.tree.function.operator.Add;
+import net.sothatsit.evaluate.tree.function.operator.Multiply;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MethodHandleCompilerTest {
+
+    private static final int OUTPUTS = 3;
+    private static final int ROWS = 5;
+
+    @Test
+    public void testRandomExpressionsMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(6, 3);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+
+        for(int trial = 0; trial < 100; ++trial) {
+            Expression[] expressions = new Expression[OUTPUTS];
+            MethodHandleCompiler compiler = new MethodHandleCompiler();
+
+            for(int output = 0; output < OUTPUTS; ++output) {
+                expressions[output] = parser.parse(random.generate(5));
+                compiler.addOutput(expressions[output]);
+            }
+
+            CompiledExpression compiled = compiler.compile();
+            int inputCount = random.getArgumentCount();
+
+            double[][] rows = new double[ROWS][];
+            double[][] inputColumns = new double[inputCount][ROWS];
+            double[][] outputColumns = new double[OUTPUTS][ROWS];
+            double[] strided = new double[ROWS * inputCount];
+            double[] stridedOutputs = new double[ROWS * OUTPUTS];
+
+            for(int row = 0; row < ROWS; ++row) {
+                rows[row] = random.inputs();
+
+                for(int input = 0; input < inputCount; ++input) {
+                    inputColumns[input][row] = rows[row][input];
+                    strided[row * inputCount + input] = rows[row][input];
+                }
+            }
+
+            compiled.evaluateBatch(inputColumns, outputColumns, 0, ROWS);
+            compiled.evaluateStrided(strided, inputCount, stridedOutputs, OUTPUTS, 0, ROWS);
+
+            for(int row = 0; row < ROWS; ++row) {
+                double[] outputs = new double[OUTPUTS + 2];
+
+                // Read the inputs from within the strided array, so that the input offset is used
+                compiled.evaluate(strided, row * inputCount, outputs, 2);
+
+                for(int output = 0; output < OUTPUTS; ++output) {
+                    String message = expressions[output] + " of row " + row;
+                    double expected = expressions[output].evaluate(rows[row]);
+
+                    assertIdentical(message, expected, outputs[output + 2]);
+                    assertIdentical(message, expected, outputColumns[output][row]);
+                    assertIdentical(message, expected, stridedOutputs[row * OUTPUTS + output]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A chain of {@param depth} additions of the input x to itself, which is {@param depth} + 1 times x.
+     */
+    private static Expression createChain(int depth) {
+        NodeFactory factory = new NodeFactory();
+        Node x = factory.variable("x", 0);
+        Node chain = x;
+
+        for(int index = 0; index < depth; ++index) {
+            chain = factory.function(Add.fn, chain, x);
+        }
+
+        return new Expression(chain, Collections.singletonList("x"));
+    }
+
+    /**
+     * @return A tree of {@param levels} levels that each multiply the level below by itself, which
+     *         shares every level between two uses, and so evaluates 2 ^ {@param levels} nodes.
+     */
+    private static Expression createSharedTree(int levels) {
+        NodeFactory factory = new NodeFactory();
+        Node tree = factory.variable("x", 0);
+
+        for(int level = 0; level < levels; ++level) {
+            tree = factory.function(Multiply.fn, tree, tree);
+        }
+
+        return new Expression(tree, Collections.singletonList("x"));
+    }
+
+    private static double evaluate(CompiledExpression compiled, double x) {
+        double[] outputs = new double[1];
+        compiled.evaluate(new double[] {x}, 0, outputs, 0);
+
+        return outputs[0];
+    }
+
+    @Test
+    public void testTallTreesFallBack() {
+        Expression chain = createChain(50000);
+        MethodHandleCompiler compiler = new MethodHandleCompiler();
+        compiler.addOutput(chain);
+
+        assertFalse(compiler.isSupported());
+        assertEquals(50001 * 1.5, evaluate(compiler.compile(), 1.5), 0);
+
+        try {
+            compiler.compileHandle();
+            fail("Expected the chain to be too tall to compile into handles");
+        } catch(IllegalStateException expected) {
+            // Expected
+        }
+
+        try {
+            MethodHandleCompiler.compileNode(chain.root);
+            fail("Expected the chain to be too tall to compile into handles");
+        } catch(IllegalStateException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testTreesAtTheHeightLimitAreCompiled() {
+        Expression chain = createChain(MethodHandleCompiler.MAX_HEIGHT - 1);
+        MethodHandleCompiler compiler = new MethodHandleCompiler();
+        compiler.addOutput(chain);
+
+        assertTrue(compiler.isSupported());
+        assertTrue(compiler.compile() instanceof MethodHandleExpression);
+        assertEquals(MethodHandleCompiler.MAX_HEIGHT * 1.5, evaluate(compiler.compile(), 1.5), 0);
+    }
+
+    /**
+     * Shared nodes are compiled once, but evaluated once per use, so widely shared trees fall back.
+     */
+    @Test
+    public void testSharedTrees() {
+        double x = 1.0000001;
+
+        for(int levels : new int[] {10, 60}) {
+            MethodHandleCompiler compiler = new MethodHandleCompiler();
+            compiler.addOutput(createSharedTree(levels));
+
+            double expected = x;
+            for(int level = 0; level < levels; ++level) {
+                expected *= expected;
+            }
+
+            assertEquals(levels <= 10, compiler.isSupported());
+            assertIdentical(levels + " levels", expected, evaluate(compiler.compile(), x));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Enough outputs are compiled that their code is split between several methods,
+ * which pass the terms that they share through an array.
+ */
+public class MethodSplittingTest {
+
+    private static final int OUTPUTS = 300;
+
+    private final RandomExpressions random = new RandomExpressions(21, 4);
+    private final Expression[] expressions = new Expression[OUTPUTS];
+    private final ExpressionCompiler compiler = new ExpressionCompiler();
+
+    public MethodSplittingTest() {
+        ExpressionParser parser = random.parser(CompositeOptimiser.none());
+
+        // Every output uses the intermediate variables, so they are shared between the methods
+        parser.addIntermediateVariable("x", "sin(a0) * a1 + cos(a2)");
+        parser.addIntermediateVariable("y", "sqrt(abs(a3 - a0)) / (1 + a1 * a1)");
+
+        for(int output = 0; output < OUTPUTS; ++output) {
+            expressions[output] = parser.parse("(" + random.generate(4) + ") * x + y");
+            compiler.addOutput(expressions[output]);
+        }
+    }
+
+    private static void assertSplit(Object compiled) {
+        boolean split = false;
+
+        for(Method method : compiled.getClass().getDeclaredMethods()) {
+            split |= method.getName().contains("$");
+        }
+
+        assertTrue("Expected the code to be split between methods", split);
+    }
+
+    private void assertMatchesInterpreter(CompiledExpression compiled, double[] inputs) {
+        double[] outputs = new double[OUTPUTS];
+
+        compiled.evaluate(inputs, 0, outputs, 0);
+
+        for(int output = 0; output < OUTPUTS; ++output) {
+            assertIdentical(expressions[output].toString(), expressions[output].evaluate(inputs), outputs[output]);
+        }
+    }
+
+    @Test
+    public void testSplitMatchesInterpreter() {
+        CompiledExpression compiled = compiler.compile();
+        assertSplit(compiled);
+
+        for(int trial = 0; trial < 20; ++trial) {
+            assertMatchesInterpreter(compiled, random.inputs());
+        }
+    }
+
+    @Test
+    public void testSplitBatchMatchesInterpreter() {
+        CompiledExpression compiled = compiler.compile();
+
+        int rows = 9;
+        double[][] inputs = new double[rows][];
+        double[][] inputColumns = new double[random.getArgumentCount()][rows];
+        double[][] outputColumns = new double[OUTPUTS][rows];
+
+        for(int row = 0; row < rows; ++row) {
+            inputs[row] = random.inputs();
+
+            for(int input = 0; input < inputs[row].length; ++input) {
+                inputColumns[input][row] = inputs[row][input];
+            }
+        }
+
+        compiled.evaluateBatch(inputColumns, outputColumns, 0, rows);
+
+        for(int row = 0; row < rows; ++row) {
+            for(int output = 0; output < OUTPUTS; ++output) {
+                String message = expressions[output] + " of row " + row;
+
+                assertIdentical(message, expressions[output].evaluate(inputs[row]), outputColumns[output][row]);
+            }
+        }
+    }
+
+    @Test
+    public void testSplitFloatMatchesInterpreter() {
+        CompiledFloatExpression compiled = compiler.compileFloat();
+        assertSplit(compiled);
+
+        for(int trial = 0; trial < 20; ++trial) {
+            double[] inputs = random.inputs();
+            float[] floatInputs = new float[inputs.length];
+            float[] outputs = new float[OUTPUTS];
+
+            // Use inputs that are exact as floats, so that only the rounding of the computation differs
+            for(int input = 0; input < inputs.length; ++input) {
+                floatInputs[input] = (float) inputs[input];
+                inputs[input] = floatInputs[input];
+            }
+
+            compiled.evaluate(floatInputs, 0, outputs, 0);
+
+            for(int output = 0; output < OUTPUTS; ++output) {
+                double expected = expressions[output].evaluate(inputs);
+
+                if(Double.isNaN(expected) || Math.abs(expected) > 1e4)
+                    continue;
+
+                RandomExpressions.assertClose(expressions[output].toString(), expected, outputs[output], 1e-2);
+            }
+        }
+    }
+
+    /**
+     * The array of shared terms must not be shared between threads evaluating at the same time.
+     */
+    @Test(timeout = 30000)
+    public void testSplitIsThreadSafe() throws Exception {
+        CompiledExpression compiled = compiler.compile();
+        List<double[]> inputs = new ArrayList<>();
+
+        for(int trial = 0; trial < 8; ++trial) {
+            inputs.add(random.inputs());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(inputs.size());
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for(double[] threadInputs : inputs) {
+                futures.add(executor.submit(() -> {
+                    for(int repeat = 0; repeat < 200; ++repeat) {
+                        assertMatchesInterpreter(compiled, threadInputs);
+                    }
+                }));
+            }
+
+            for(Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSplitDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        CompiledExpression compiled = compiler.compile();
+        double[] inputs = random.inputs();
+        double[] outputs = new double[OUTPUTS];
+        int evaluations = 10000;
+
+        compiled.evaluate(inputs, 0, outputs, 0);
+
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+
+        for(int evaluation = 0; evaluation < evaluations; ++evaluation) {
+            compiled.evaluate(inputs, 0, outputs, 0);
+        }
+
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+
+        // Allocating an array of the shared terms for each evaluation would take at least 16 bytes each
+        assertTrue(allocated + " bytes allocated", allocated < evaluations * 16L);
+    }
+}
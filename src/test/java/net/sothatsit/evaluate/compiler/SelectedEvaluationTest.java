@@ -0,0 +1,167 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.CountingFunction;
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SelectedEvaluationTest {
+
+    /**
+     * More than 64 outputs, so that the mask spans more than one word.
+     */
+    private static final int OUTPUTS = 100;
+    private static final int OFFSET = 3;
+
+    private static BitSet randomMask(Random random) {
+        BitSet mask = new BitSet(OUTPUTS);
+
+        for(int output = 0; output < OUTPUTS; ++output) {
+            if(random.nextInt(4) == 0) {
+                mask.set(output);
+            }
+        }
+
+        return mask;
+    }
+
+    private static long[] toWords(BitSet mask) {
+        return Arrays.copyOf(mask.toLongArray(), CompiledExpression.getOutputMaskLength(OUTPUTS));
+    }
+
+    /**
+     * The selected outputs must match the interpreter, and the others must be left as they were.
+     */
+    private static void assertSelected(Expression[] expressions, double[] inputs, BitSet mask,
+                                       double[] outputs, int outputOffset) {
+
+        for(int output = 0; output < expressions.length; ++output) {
+            double expected = (mask.get(output) ? expressions[output].evaluate(inputs) : Double.NaN);
+
+            assertIdentical(expressions[output] + " selected " + mask.get(output),
+                            expected, outputs[outputOffset + output]);
+        }
+    }
+
+    @Test
+    public void testSelectedOutputsMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(20, 4);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+
+        for(int trial = 0; trial < 5; ++trial) {
+            ExpressionCompiler compiler = new ExpressionCompiler();
+            Expression[] expressions = new Expression[OUTPUTS];
+
+            for(int output = 0; output < OUTPUTS; ++output) {
+                expressions[output] = parser.parse(random.generate(4));
+                compiler.addOutput(expressions[output]);
+            }
+
+            CompiledExpression compiled = compiler.compile();
+
+            for(int row = 0; row < 20; ++row) {
+                double[] inputs = random.inputs();
+                BitSet mask = randomMask(random.getRandom());
+
+                double[] offsetInputs = new double[OFFSET + inputs.length];
+                double[] outputs = new double[OFFSET + OUTPUTS];
+
+                System.arraycopy(inputs, 0, offsetInputs, OFFSET, inputs.length);
+                Arrays.fill(outputs, Double.NaN);
+
+                compiled.evaluateSelected(offsetInputs, OFFSET, outputs, OFFSET, toWords(mask));
+                assertSelected(expressions, inputs, mask, outputs, OFFSET);
+
+                for(int index = 0; index < inputs.length; ++index) {
+                    compiled.setVariable(index, inputs[index]);
+                }
+
+                Arrays.fill(compiled.outputs, Double.NaN);
+                compiled.evaluate(mask);
+                assertSelected(expressions, inputs, mask, compiled.outputs, 0);
+
+                BitSet firstWord = mask.get(0, 64);
+
+                Arrays.fill(compiled.outputs, Double.NaN);
+                compiled.evaluate(firstWord.isEmpty() ? 0 : firstWord.toLongArray()[0]);
+                assertSelected(expressions, inputs, firstWord, compiled.outputs, 0);
+            }
+        }
+    }
+
+    @Test
+    public void testUnselectedTermsAreSkipped() {
+        CountingFunction count = new CountingFunction();
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+        parser.addFunction(count);
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(parser.parse("a * b"));
+        compiler.addOutput(parser.parse("count(a + b) * 2"));
+        compiler.addOutput(parser.parse("count(a + b) + a"));
+
+        CompiledExpression compiled = compiler.compile();
+        compiled.setVariable(0, 2);
+        compiled.setVariable(1, 3);
+
+        compiled.evaluate(0b001L);
+        assertEquals(0, count.calls);
+        assertEquals(6, compiled.getOutput(0), 0);
+
+        // The common term is computed once for both of the outputs that use it
+        compiled.evaluate(0b110L);
+        assertEquals(1, count.calls);
+        assertEquals(10, compiled.getOutput(1), 0);
+        assertEquals(7, compiled.getOutput(2), 0);
+
+        compiled.evaluate(0L);
+        assertEquals(1, count.calls);
+    }
+
+    @Test
+    public void testTieredSelectionMatchesInterpreter() {
+        RandomExpressions random = new RandomExpressions(21, 3);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        Expression[] expressions = new Expression[OUTPUTS];
+
+        for(int output = 0; output < OUTPUTS; ++output) {
+            expressions[output] = parser.parse(random.generate(4));
+            compiler.addOutput(expressions[output]);
+        }
+
+        List<Expression> outputs = Arrays.asList(expressions);
+        TieredExpression tiered = new TieredExpression(outputs, 3, 1, Runnable::run, compiler::compile);
+
+        for(int row = 0; row < 10; ++row) {
+            double[] inputs = random.inputs();
+            BitSet mask = randomMask(random.getRandom());
+
+            for(int index = 0; index < inputs.length; ++index) {
+                tiered.setVariable(index, inputs[index]);
+            }
+
+            Arrays.fill(tiered.outputs, Double.NaN);
+            tiered.evaluate(mask);
+            assertSelected(expressions, inputs, mask, tiered.outputs, 0);
+
+            // Switches to the compiled expression after the first full evaluation
+            tiered.evaluate();
+        }
+
+        assertTrue(tiered.isCompiled());
+    }
+}
@@ -0,0 +1,74 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.NodeFactory;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+import net.sothatsit.evaluate.tree.function.operator.Add;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+
+/**
+ * Each x_i = sin(x_(i-1)) + cos(x_(i-1)) uses x_(i-1) twice, and so the expression has
+ * an exponential number of paths, which must not each be visited when it is compiled.
+ */
+public class SharedNodesTest {
+
+    private static final int DEPTH = 200;
+
+    private static Expression createChain() {
+        NodeFactory factory = new NodeFactory();
+        Node node = factory.variable("x", 0);
+
+        for(int index = 0; index < DEPTH; ++index) {
+            node = factory.function(
+                    Add.fn,
+                    factory.function(MathFunctions.sin, node),
+                    factory.function(MathFunctions.cos, node)
+            );
+        }
+
+        return new Expression(node, Collections.singletonList("x"));
+    }
+
+    @Test(timeout = 20000)
+    public void testCompileSharedChain() {
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(createChain());
+
+        CompiledExpression compiled = compiler.compile();
+        CompiledFloatExpression compiledFloat = compiler.compileFloat();
+        CompiledIncrementalExpression incremental = compiler.compileIncremental();
+
+        double x = 0.4;
+        double derivative = 1;
+
+        for(int index = 0; index < DEPTH; ++index) {
+            derivative *= Math.cos(x) - Math.sin(x);
+            x = Math.sin(x) + Math.cos(x);
+        }
+
+        double[] outputs = new double[1];
+
+        compiled.evaluate(new double[] {0.4}, 0, outputs, 0);
+        assertClose("double", x, outputs[0], 1e-12);
+
+        incremental.setVariable(0, 0.4);
+        incremental.evaluate();
+        assertClose("incremental", x, incremental.getOutput(0), 1e-12);
+
+        float[] floatOutputs = new float[1];
+
+        compiledFloat.evaluate(new float[] {0.4f}, 0, floatOutputs, 0);
+        assertClose("float", x, floatOutputs[0], 1e-5);
+
+        CompiledGradientExpression gradient = compiler.compileGradient();
+        double[] gradients = new double[1];
+
+        gradient.evaluateGradient(new double[] {0.4}, 0, outputs, 0, gradients, 0);
+        assertClose("gradient", derivative, gradients[0], 1e-9);
+    }
+}
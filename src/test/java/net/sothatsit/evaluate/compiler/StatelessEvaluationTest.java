@@ -0,0 +1,132 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * evaluate(inputs, inputOffset, outputs, outputOffset) must only read and write the given parts of the given arrays.
+ */
+public class StatelessEvaluationTest {
+
+    private static final String[] EQUATIONS = {"a * b + c", "if(a > c, b, a - c)", "max(a, b) * 2 - min(b, c)"};
+    private static final double SENTINEL = -12345;
+
+    private static Expression[] parse(NumberType numberType) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+        parser.setNumberType(numberType);
+        parser.addArgument("a");
+        parser.addArgument("b");
+        parser.addArgument("c");
+
+        Expression[] expressions = new Expression[EQUATIONS.length];
+
+        for(int index = 0; index < EQUATIONS.length; ++index) {
+            expressions[index] = parser.parse(EQUATIONS[index]);
+        }
+
+        return expressions;
+    }
+
+    private static ExpressionCompiler createCompiler(Expression[] expressions) {
+        ExpressionCompiler compiler = new ExpressionCompiler();
+
+        for(Expression expression : expressions) {
+            compiler.addOutput(expression);
+        }
+
+        return compiler;
+    }
+
+    @Test
+    public void testOnlyGivenRangesAreUsed() {
+        Expression[] expressions = parse(NumberType.DOUBLE);
+        CompiledExpression compiled = createCompiler(expressions).compile();
+
+        double[] inputs = {SENTINEL, SENTINEL, 1.5, -2, 0.25, SENTINEL};
+        double[] outputs = new double[EQUATIONS.length + 5];
+
+        Arrays.fill(outputs, SENTINEL);
+        compiled.evaluate(inputs, 2, outputs, 3);
+
+        double[] rowInputs = Arrays.copyOfRange(inputs, 2, 5);
+
+        for(int index = 0; index < outputs.length; ++index) {
+            boolean isOutput = (index >= 3 && index < 3 + EQUATIONS.length);
+            double expected = (isOutput ? expressions[index - 3].evaluate(rowInputs) : SENTINEL);
+
+            assertIdentical("index " + index, expected, outputs[index]);
+        }
+
+        // The inputs and outputs held by the instance are not used
+        assertIdentical("inputs", 0, Arrays.stream(compiled.inputs).map(Math::abs).sum());
+        assertIdentical("outputs", 0, Arrays.stream(compiled.outputs).map(Math::abs).sum());
+    }
+
+    @Test
+    public void testFloatAndLongOffsets() {
+        CompiledFloatExpression compiledFloat = createCompiler(parse(NumberType.DOUBLE)).compileFloat();
+        float[] floatOutputs = {-1, -1, -1, -1, -1};
+
+        compiledFloat.evaluate(new float[] {9, 2, 3, 4}, 1, floatOutputs, 1);
+        assertEquals("[-1.0, 10.0, -2.0, 3.0, -1.0]", Arrays.toString(floatOutputs));
+
+        Expression[] expressions = parse(NumberType.LONG);
+        CompiledLongExpression compiledLong = createCompiler(expressions).compileLong();
+        long[] longOutputs = {-1, -1, -1, -1, -1};
+
+        compiledLong.evaluate(new long[] {9, 2, 3, 4}, 1, longOutputs, 1);
+        assertEquals("[-1, 10, -2, 3, -1]", Arrays.toString(longOutputs));
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentEvaluations() throws Exception {
+        Expression[] expressions = parse(NumberType.DOUBLE);
+        CompiledExpression compiled = createCompiler(expressions).compile();
+        RandomExpressions random = new RandomExpressions(11, 3);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for(int thread = 0; thread < 4; ++thread) {
+                double[] inputs = random.inputs();
+                double[] expected = new double[EQUATIONS.length];
+
+                for(int index = 0; index < EQUATIONS.length; ++index) {
+                    expected[index] = expressions[index].evaluate(inputs);
+                }
+
+                futures.add(executor.submit(() -> {
+                    double[] outputs = new double[EQUATIONS.length];
+
+                    for(int evaluation = 0; evaluation < 20000; ++evaluation) {
+                        compiled.evaluate(inputs, 0, outputs, 0);
+
+                        for(int index = 0; index < EQUATIONS.length; ++index) {
+                            assertIdentical(EQUATIONS[index], expected[index], outputs[index]);
+                        }
+                    }
+                }));
+            }
+
+            for(Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
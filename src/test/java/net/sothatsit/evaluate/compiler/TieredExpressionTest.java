@@ -0,0 +1,124 @@
+package net.sothatsit.evaluate.compiler;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TieredExpressionTest {
+
+    private static final int THREADS = 8;
+    private static final int EVALUATIONS = 50000;
+
+    private static Expression parse(String equation) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        return parser.parse(equation);
+    }
+
+    @Test
+    public void testCompilesAfterThreshold() {
+        Expression expression = parse("sin(a) * b + if(a > b, a, b)");
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        List<Runnable> tasks = new ArrayList<>();
+        TieredExpression tiered = compiler.compileTiered(10, tasks::add);
+
+        RandomExpressions random = new RandomExpressions(7, 2);
+        double[] outputs = new double[1];
+
+        for(int evaluation = 0; evaluation < 20; ++evaluation) {
+            double[] inputs = random.inputs();
+
+            tiered.evaluate(inputs, 0, outputs, 0);
+            assertIdentical("interpreted", expression.evaluate(inputs), outputs[0]);
+            assertEquals(evaluation < 9 ? 0 : 1, tasks.size());
+        }
+
+        assertFalse(tiered.isCompiled());
+        tasks.get(0).run();
+        assertTrue(tiered.isCompiled());
+
+        for(int evaluation = 0; evaluation < 20; ++evaluation) {
+            double[] inputs = random.inputs();
+
+            tiered.evaluate(inputs, 0, outputs, 0);
+            assertIdentical("compiled", expression.evaluate(inputs), outputs[0]);
+        }
+
+        assertEquals(20, tiered.getInterpretedEvaluations());
+    }
+
+    /**
+     * When evaluated from many threads at once, every evaluation must be counted,
+     * and compilation must be started exactly once.
+     */
+    @Test(timeout = 30000)
+    public void testConcurrentEvaluationsStartCompilationOnce() throws Exception {
+        Expression expression = parse("a * b + 1");
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        List<Runnable> tasks = new ArrayList<>();
+        TieredExpression tiered = compiler.compileTiered(EVALUATIONS, task -> {
+            synchronized(tasks) {
+                tasks.add(task);
+            }
+        });
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+
+        for(int index = 0; index < THREADS; ++index) {
+            double b = index;
+
+            Thread thread = new Thread(() -> {
+                try {
+                    double[] outputs = new double[1];
+
+                    start.await();
+
+                    for(int evaluation = 0; evaluation < EVALUATIONS; ++evaluation) {
+                        double[] inputs = {evaluation * 0.01, b};
+
+                        tiered.evaluate(inputs, 0, outputs, 0);
+                        assertIdentical("thread " + b, expression.evaluate(inputs), outputs[0]);
+                    }
+                } catch (Throwable throwable) {
+                    synchronized(errors) {
+                        errors.add(throwable);
+                    }
+                }
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        if(!errors.isEmpty())
+            throw new AssertionError(errors.get(0));
+
+        assertEquals(1, tasks.size());
+        assertEquals((long) THREADS * EVALUATIONS, tiered.getInterpretedEvaluations());
+    }
+}
@@ -0,0 +1,107 @@
+package net.sothatsit.evaluate.compiler.vector;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the vectorised batches against the interpreter when the Vector API is available
+ * (--add-modules jdk.incubator.vector), and otherwise checks the scalar fallback.
+ */
+public class VectorCompilerTest {
+
+    private static final int OUTPUTS = 3;
+
+    // Not a multiple of any vector length, so that rows are left over at both ends of the batch
+    private static final int ROWS = 45;
+    private static final int FROM = 3;
+    private static final int TO = ROWS - 1;
+
+    private static void assertBatchMatches(Expression[] expressions, RandomExpressions random, double tolerance) {
+        VectorCompiler compiler = new VectorCompiler();
+
+        for(Expression expression : expressions) {
+            compiler.addOutput(expression);
+        }
+
+        CompiledExpression compiled = compiler.compile();
+        boolean isVectorised = (compiled instanceof VectorExpression);
+
+        assertTrue(compiled.getClass().getName(), isVectorised || !VectorCompiler.isSupported());
+
+        double[][] rows = new double[ROWS][];
+        double[][] inputColumns = new double[random.getArgumentCount()][ROWS];
+        double[][] outputColumns = new double[expressions.length][ROWS];
+
+        for(int row = 0; row < ROWS; ++row) {
+            rows[row] = random.inputs();
+
+            for(int input = 0; input < rows[row].length; ++input) {
+                inputColumns[input][row] = rows[row][input];
+            }
+        }
+
+        compiled.evaluateBatch(inputColumns, outputColumns, FROM, TO);
+
+        for(int row = 0; row < ROWS; ++row) {
+            boolean evaluated = (row >= FROM && row < TO);
+
+            for(int output = 0; output < expressions.length; ++output) {
+                String message = expressions[output] + " of row " + row;
+                double expected = (evaluated ? expressions[output].evaluate(rows[row]) : 0);
+
+                if(tolerance == 0) {
+                    assertIdentical(message, expected, outputColumns[output][row]);
+                } else {
+                    assertClose(message, expected, outputColumns[output][row], tolerance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Only operations that are exactly rounded are used, so the lanes must match the interpreter exactly.
+     */
+    @Test
+    public void testExactOperationsMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(12, 3);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+
+        for(int trial = 0; trial < 50; ++trial) {
+            Expression[] expressions = new Expression[OUTPUTS];
+
+            for(int output = 0; output < OUTPUTS; ++output) {
+                String equation = random.generate(5).replace("sin(", "abs(").replace(" ^ ", " * ");
+
+                expressions[output] = parser.parse(equation);
+            }
+
+            assertBatchMatches(expressions, random, 0);
+        }
+    }
+
+    /**
+     * The lane-wise transcendental functions may differ from Math by an ulp.
+     */
+    @Test
+    public void testTranscendentalFunctionsMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(13, 2);
+        ExpressionParser parser = random.parser(CompositeOptimiser.none());
+
+        Expression[] expressions = {
+                parser.parse("sin(a0) + cos(a1) * tanh(a0)"),
+                parser.parse("atan2(a0, a1) - atan(a1) + sinh(a0 / 4)"),
+                parser.parse("if(a0 > 0, sqrt(a0) + ln(a0), a0 ^ 3)"),
+                parser.parse("abs(a0) ^ 0.3 + cbrt(a1)")
+        };
+
+        assertBatchMatches(expressions, random, 1e-13);
+    }
+}
@@ -0,0 +1,193 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.CountingFunction;
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.AbstractFunctionNode;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+import net.sothatsit.evaluate.tree.function.operator.Multiply;
+import net.sothatsit.evaluate.tree.function.operator.Power;
+import org.junit.Test;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static net.sothatsit.evaluate.TestSupport.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CostModelTest {
+
+    /**
+     * @return A function named {@param name} that counts its calls, with the estimated cost {@param cost}.
+     */
+    private static CountingFunction createCount(String name, double cost) {
+        return new CountingFunction(name) {
+            @Override
+            public OptimiseOptions getOptimiseOptions() {
+                return super.getOptimiseOptions().withCost(cost);
+            }
+        };
+    }
+
+    private static ExpressionParser createParser(Optimiser optimiser, CountingFunction... functions) {
+        ExpressionParser parser = new ExpressionParser(optimiser);
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        for(CountingFunction function : functions) {
+            parser.addFunction(function);
+        }
+
+        return parser;
+    }
+
+    private static double evaluate(CompiledExpression compiled, double... inputs) {
+        double[] outputs = new double[1];
+
+        compiled.evaluate(inputs, 0, outputs, 0);
+
+        return outputs[0];
+    }
+
+    @Test
+    public void testSubtreeCosts() {
+        ExpressionParser parser = createParser(CompositeOptimiser.none(), createCount("count", 7));
+
+        assertEquals(0, parser.parse("a").root.getCost(), 0);
+        assertEquals(4 + 4 + 60, parser.parse("a * b + sin(a)").root.getCost(), 0);
+        assertEquals(7 + 14, parser.parse("count(a / b)").root.getCost(), 0);
+        assertEquals(OptimiseOptions.DEFAULT_COST, OptimiseOptions.DEFAULT.cost, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveCostThrows() {
+        OptimiseOptions.DEFAULT.withCost(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNaNCostThrows() {
+        OptimiseOptions.DEFAULT.withCost(Double.NaN);
+    }
+
+    /**
+     * Cheap terms are cheaper to evaluate again than to keep in a local, and expensive terms are computed once.
+     */
+    @Test
+    public void testCompilerKeepsOnlyExpensiveTerms() {
+        CountingFunction cheap = createCount("cheap", 1);
+        CountingFunction expensive = createCount("expensive", 200);
+        ExpressionParser parser = createParser(CompositeOptimiser.none(), cheap, expensive);
+
+        CompiledExpression cheapTerms = compile(parser.parse("cheap(a) + cheap(a)"));
+        CompiledExpression expensiveTerms = compile(parser.parse("expensive(a) + expensive(a)"));
+
+        assertIdentical("cheap", 6, evaluate(cheapTerms, 3, 0));
+        assertIdentical("expensive", 6, evaluate(expensiveTerms, 3, 0));
+
+        assertEquals(2, cheap.calls);
+        assertEquals(1, expensive.calls);
+    }
+
+    /**
+     * The most expensive arguments are evaluated first, so that the cheapest are combined last.
+     */
+    @Test
+    public void testArgumentsAreOrderedByCost() {
+        CountingFunction expensive = createCount("expensive", 200);
+        ExpressionParser parser = createParser(CompositeOptimiser.all(), expensive);
+
+        Node[] arguments = ((AbstractFunctionNode) parser.parse("a + sin(b)").root).getArguments();
+        assertSame(MathFunctions.sin, ((AbstractFunctionNode) arguments[0]).getFunction());
+
+        arguments = ((AbstractFunctionNode) parser.parse("sin(b) * expensive(a)").root).getArguments();
+        assertSame(expensive, ((AbstractFunctionNode) arguments[0]).getFunction());
+    }
+
+    @Test
+    public void testArgumentsAreOrderedByOverriddenCosts() {
+        CountingFunction expensive = createCount("expensive", 200);
+        CompositeOptimiser optimiser = CompositeOptimiser.all();
+        ExpressionParser parser = createParser(optimiser, expensive);
+
+        optimiser.getCostModel().setCost(expensive, 1);
+
+        Node[] arguments = ((AbstractFunctionNode) parser.parse("expensive(a) * sin(b)").root).getArguments();
+        assertSame(MathFunctions.sin, ((AbstractFunctionNode) arguments[0]).getFunction());
+
+        optimiser.getCostModel().resetCost(expensive);
+
+        arguments = ((AbstractFunctionNode) parser.parse("expensive(a) * sin(b)").root).getArguments();
+        assertSame(expensive, ((AbstractFunctionNode) arguments[0]).getFunction());
+    }
+
+    /**
+     * The costs of built-in functions can be overridden without replacing the functions.
+     */
+    @Test
+    public void testOverriddenCostsChooseRewrites() {
+        CompositeOptimiser optimiser = CompositeOptimiser.all();
+        ExpressionParser parser = createParser(optimiser);
+
+        assertSame(Multiply.fn, ((AbstractFunctionNode) parser.parse("a ^ 2").root).getFunction());
+
+        optimiser.getCostModel().setCost(Power.fn, 1);
+        assertSame(Power.fn, ((AbstractFunctionNode) parser.parse("a ^ 2").root).getFunction());
+
+        optimiser.getCostModel().resetCost(Power.fn);
+        assertSame(Multiply.fn, ((AbstractFunctionNode) parser.parse("a ^ 2").root).getFunction());
+    }
+
+    /**
+     * The description of an optimiser is part of the keys of cached bytecode, and so its cost model is delimited.
+     */
+    @Test
+    public void testOptimiserDescribesCostModel() {
+        CompositeOptimiser optimiser = CompositeOptimiser.none();
+        optimiser.getCostModel().setCost(MathFunctions.sin, 200);
+
+        assertEquals(CompositeOptimiser.class.getName() + "[CostModel{sin=200.0}][]", optimiser.toString());
+    }
+
+    @Test
+    public void testCompilerUsesOverriddenCosts() {
+        CountingFunction count = new CountingFunction();
+        Expression expression = createParser(CompositeOptimiser.none(), count).parse("count(a) + count(a)");
+
+        assertIdentical("default", 6, evaluate(compile(expression), 3, 0));
+        assertEquals(1, count.calls);
+
+        CostModel costModel = new CostModel();
+        costModel.setCost(count, 0.5);
+
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.setCostModel(costModel);
+        compiler.addOutput(expression);
+
+        count.calls = 0;
+        assertIdentical("overridden", 6, evaluate(compiler.compile(), 3, 0));
+        assertEquals(2, count.calls);
+    }
+
+    /**
+     * Whichever rewrites the costs choose, the compiled results must match the interpreted expression.
+     */
+    @Test
+    public void testCostDrivenChoicesMatchInterpreter() {
+        RandomExpressions random = new RandomExpressions(25, 3);
+        ExpressionParser parser = random.parser(CompositeOptimiser.all());
+
+        for(int trial = 0; trial < 300; ++trial) {
+            Expression expression = parser.parse(random.generate(6));
+            CompiledExpression compiled = compile(expression);
+
+            for(int row = 0; row < 5; ++row) {
+                double[] inputs = random.inputs();
+
+                assertIdentical(expression.toString(), expression.evaluate(inputs), evaluate(compiled, inputs));
+            }
+        }
+    }
+}
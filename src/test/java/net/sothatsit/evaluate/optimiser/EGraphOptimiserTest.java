@@ -0,0 +1,98 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+
+public class EGraphOptimiserTest {
+
+    @Test
+    public void testConflictingConstantsAreNotMerged() {
+        for(PrecisionPolicy precisionPolicy : PrecisionPolicy.values()) {
+            ExpressionParser parser = new ExpressionParser(CompositeOptimiser.saturating(precisionPolicy));
+            parser.addArgument("a");
+
+            Expression expression = parser.parse("sin(0.0 / ((a / a) == 6))");
+
+            assertIdentical(expression.toString(), Double.NaN, expression.evaluate(new double[] {2}));
+        }
+    }
+
+    @Test
+    public void testStrictKeepsSignOfZero() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.saturating(PrecisionPolicy.STRICT));
+        parser.addArgument("a");
+        parser.addArgument("c");
+
+        Expression expression = parser.parse("((c - a) / (0.0 - a)) / 2.5");
+
+        assertIdentical(expression.toString(), Double.POSITIVE_INFINITY, expression.evaluate(new double[] {0, 1}));
+    }
+
+    /**
+     * Under the strict policy, the e-graph only applies rewrites that give identical results for every input.
+     */
+    @Test
+    public void testStrictMatchesUnoptimised() {
+        RandomExpressions random = new RandomExpressions(3, 3);
+        CompositeOptimiser optimiser = new CompositeOptimiser();
+        optimiser.add(new EGraphOptimiser(optimiser, PrecisionPolicy.STRICT));
+
+        ExpressionParser parser = random.parser(optimiser);
+        ExpressionParser reference = random.parser(CompositeOptimiser.none());
+
+        for(int trial = 0; trial < 300; ++trial) {
+            String equation = random.generate(4);
+            Expression expected = reference.parse(equation);
+            Expression actual = parser.parse(equation);
+
+            for(int input = 0; input < 5; ++input) {
+                double[] inputs = random.inputs();
+
+                assertIdentical(equation, expected.evaluate(inputs), actual.evaluate(inputs));
+            }
+        }
+    }
+
+    @Test
+    public void testStrictMatchesSimpleOptimiser() {
+        RandomExpressions random = new RandomExpressions(4, 3);
+        ExpressionParser parser = random.parser(CompositeOptimiser.saturating(PrecisionPolicy.STRICT));
+        ExpressionParser reference = random.parser(CompositeOptimiser.all(PrecisionPolicy.STRICT));
+
+        for(int trial = 0; trial < 300; ++trial) {
+            String equation = random.generate(4);
+            Expression expected = reference.parse(equation);
+            Expression actual = parser.parse(equation);
+
+            for(int input = 0; input < 5; ++input) {
+                double[] inputs = random.inputs();
+
+                assertIdentical(equation, expected.evaluate(inputs), actual.evaluate(inputs));
+            }
+        }
+    }
+
+    /**
+     * Every e-class of a constant equation is folded, and so rewrites can only merge e-classes of equal value.
+     */
+    @Test
+    public void testConstantEquationsAreFoldedExactly() {
+        RandomExpressions random = new RandomExpressions(2, 1);
+
+        for(PrecisionPolicy precisionPolicy : PrecisionPolicy.values()) {
+            ExpressionParser parser = random.parser(CompositeOptimiser.saturating(precisionPolicy));
+            ExpressionParser reference = random.parser(CompositeOptimiser.none());
+
+            for(int trial = 0; trial < 200; ++trial) {
+                String equation = random.generate(4).replace("a0", random.getRandom().nextBoolean() ? "0" : "1");
+                double expected = reference.parse(equation).evaluate(new double[1]);
+
+                assertIdentical(equation, expected, parser.parse(equation).evaluate(new double[1]));
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.compiler.CompiledFloatExpression;
+import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.compiler.MethodHandleCompiler;
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.AbstractFunctionNode;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static net.sothatsit.evaluate.TestSupport.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FusedMultiplyAddTest {
+
+    private static final String POLYNOMIAL = "((((0.3 * a + 1.2) * a - 0.7) * a + 2.1) * a - 1.1) * a + b * c + 0.5";
+
+    private static ExpressionParser createParser(PrecisionPolicy precisionPolicy) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all(precisionPolicy));
+        parser.addArgument("a");
+        parser.addArgument("b");
+        parser.addArgument("c");
+
+        return parser;
+    }
+
+    private static boolean isFused(Node node) {
+        return node instanceof AbstractFunctionNode && ((AbstractFunctionNode) node).getFunction() == MathFunctions.fma;
+    }
+
+    private static CompiledExpression createMethodHandleExpression(Expression expression) {
+        MethodHandleCompiler compiler = new MethodHandleCompiler();
+        compiler.addOutput(expression);
+
+        return compiler.compile();
+    }
+
+    /**
+     * @return The exact value of {@param a} * {@param b} + {@param c}, which is only rounded when it is converted.
+     */
+    private static BigDecimal exactMultiplyAdd(double a, double b, double c) {
+        return new BigDecimal(a).multiply(new BigDecimal(b)).add(new BigDecimal(c));
+    }
+
+    @Test
+    public void testOnlyRelaxedIsFused() {
+        Assume.assumeTrue(MathFunctions.isFmaSupported());
+
+        assertTrue(isFused(createParser(PrecisionPolicy.RELAXED).parse("a * b + c").root));
+        assertFalse(isFused(createParser(PrecisionPolicy.STRICT).parse("a * b + c").root));
+
+        ExpressionParser longParser = new ExpressionParser(CompositeOptimiser.all(PrecisionPolicy.RELAXED));
+        longParser.setNumberType(NumberType.LONG);
+        longParser.addArgument("a");
+        longParser.addArgument("b");
+        longParser.addArgument("c");
+
+        assertFalse(isFused(longParser.parse("a * b + c").root));
+    }
+
+    /**
+     * A fused multiply-add is rounded once, and so must equal its exact result rounded once.
+     */
+    @Test
+    public void testFusedIsRoundedOnce() {
+        Assume.assumeTrue(MathFunctions.isFmaSupported());
+
+        Expression expression = createParser(PrecisionPolicy.RELAXED).parse("a * b + c");
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(expression);
+
+        CompiledExpression compiled = compiler.compile();
+        CompiledExpression handles = createMethodHandleExpression(expression);
+        CompiledFloatExpression compiledFloat = compiler.compileFloat();
+
+        Random random = new Random(15);
+        double[] outputs = new double[1];
+        float[] floatOutputs = new float[1];
+
+        for(int trial = 0; trial < 1000; ++trial) {
+            // 1 + 2^-30 squared needs more than 53 bits, so a separate multiplication and addition would round twice
+            double a = 1 + random.nextInt(1 << 20) * 0x1p-30;
+            double c = -(1 + random.nextInt(1 << 20) * 0x1p-29);
+            double[] inputs = {a, a, c};
+            double expected = exactMultiplyAdd(a, a, c).doubleValue();
+
+            assertIdentical("interpreted", expected, expression.evaluate(inputs));
+
+            compiled.evaluate(inputs, 0, outputs, 0);
+            assertIdentical("compiled", expected, outputs[0]);
+
+            handles.evaluate(inputs, 0, outputs, 0);
+            assertIdentical("method handles", expected, outputs[0]);
+
+            float fa = (float) a;
+            float fc = (float) c;
+
+            compiledFloat.evaluate(new float[] {fa, fa, fc}, 0, floatOutputs, 0);
+            float expectedFloat = exactMultiplyAdd(fa, fa, fc).floatValue();
+
+            assertEquals("float", Float.floatToIntBits(expectedFloat), Float.floatToIntBits(floatOutputs[0]));
+        }
+    }
+
+    @Test
+    public void testRelaxedStaysClose() {
+        Expression strict = createParser(PrecisionPolicy.STRICT).parse(POLYNOMIAL);
+        Expression relaxed = createParser(PrecisionPolicy.RELAXED).parse(POLYNOMIAL);
+
+        CompiledExpression compiled = compile(relaxed);
+        Random random = new Random(16);
+        double[] outputs = new double[1];
+
+        for(int trial = 0; trial < 1000; ++trial) {
+            double[] inputs = {random.nextDouble() * 4 - 2, random.nextDouble() * 4 - 2, random.nextDouble() * 4 - 2};
+            double expected = strict.evaluate(inputs);
+
+            compiled.evaluate(inputs, 0, outputs, 0);
+
+            assertClose("relaxed", expected, relaxed.evaluate(inputs), 1e-12);
+            assertClose("compiled", expected, outputs[0], 1e-12);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.Expression;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class OptimiseContextTest {
+
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * 7 / 2 folds to 3 for longs and to 3.5 for doubles, and so each thread would see
+     * the wrong value if it optimised using the number type of another thread's expression.
+     */
+    @Test(timeout = 60000)
+    public void testSharedOptimiserKeepsEachNumberType() throws Exception {
+        CompositeOptimiser optimiser = CompositeOptimiser.all();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        try {
+            List<Future<?>> results = new ArrayList<>();
+
+            for(int thread = 0; thread < THREADS; ++thread) {
+                NumberType numberType = (thread % 2 == 0 ? NumberType.LONG : NumberType.DOUBLE);
+
+                results.add(executor.submit(() -> {
+                    ExpressionParser parser = new ExpressionParser(optimiser);
+                    parser.setNumberType(numberType);
+                    parser.addArgument("a");
+
+                    for(int iteration = 0; iteration < ITERATIONS; ++iteration) {
+                        Expression expression = parser.parse("a + 7 / 2");
+
+                        if(numberType == NumberType.LONG) {
+                            assertEquals(expression.toString(), 3, expression.evaluateLong(new long[] {0}));
+                        } else {
+                            assertEquals(expression.toString(), 3.5, expression.evaluate(new double[] {0}), 0);
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            for(Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testContextIsOnlyAvailableWhileOptimising() {
+        CompositeOptimiser.all().getNumberType();
+    }
+}
@@ -0,0 +1,137 @@
+package net.sothatsit.evaluate.optimiser;
+
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.AbstractFunctionNode;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.Node;
+import net.sothatsit.evaluate.tree.function.Function;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+import net.sothatsit.evaluate.tree.function.OneArgFunction;
+import net.sothatsit.evaluate.tree.function.operator.Divide;
+import net.sothatsit.evaluate.tree.function.operator.Multiply;
+import net.sothatsit.evaluate.tree.function.operator.Power;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static net.sothatsit.evaluate.TestSupport.compile;
+import static org.junit.Assert.assertSame;
+
+public class PowerReductionTest {
+
+    private static final double[] SPECIAL_VALUES = {
+            Double.NaN, -0.0, 0.0, 1, -1, -2.5, 1e200, -1e-200, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+
+    private static ExpressionParser createParser(PrecisionPolicy precisionPolicy) {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all(precisionPolicy));
+        parser.addArgument("a");
+
+        return parser;
+    }
+
+    private static Function getRootFunction(Expression expression) {
+        Node root = expression.root;
+
+        return (root instanceof AbstractFunctionNode ? ((AbstractFunctionNode) root).getFunction() : null);
+    }
+
+    /**
+     * Squaring is exact, and so is reduced under the strict policy, where it must match pow for every input.
+     */
+    @Test
+    public void testStrictSquareMatchesPow() {
+        Expression square = createParser(PrecisionPolicy.STRICT).parse("a ^ 2");
+        CompiledExpression compiled = compile(square);
+
+        assertSame(Multiply.fn, getRootFunction(square));
+
+        Random random = new Random(16);
+        double[] outputs = new double[1];
+
+        for(int trial = 0; trial < 1000; ++trial) {
+            double a = (trial < SPECIAL_VALUES.length ? SPECIAL_VALUES[trial] : random.nextGaussian() * 1e5);
+
+            compiled.evaluate(new double[] {a}, 0, outputs, 0);
+
+            assertIdentical("a = " + a, Math.pow(a, 2), square.evaluate(new double[] {a}));
+            assertIdentical("compiled a = " + a, Math.pow(a, 2), outputs[0]);
+        }
+    }
+
+    @Test
+    public void testStrictKeepsOtherPowers() {
+        ExpressionParser parser = createParser(PrecisionPolicy.STRICT);
+
+        for(String equation : new String[] {"a ^ 3", "a ^ (0 - 1)", "a ^ 0.5", "a ^ (1 / 3)"}) {
+            assertSame(equation, Power.fn, getRootFunction(parser.parse(equation)));
+        }
+    }
+
+    @Test
+    public void testRelaxedReductions() {
+        ExpressionParser parser = createParser(PrecisionPolicy.RELAXED);
+
+        assertSame(MathFunctions.sqrt, getRootFunction(parser.parse("a ^ 0.5")));
+        assertSame(MathFunctions.cbrt, getRootFunction(parser.parse("a ^ (1 / 3)")));
+        assertSame(Multiply.fn, getRootFunction(parser.parse("a ^ 16")));
+        assertSame(Divide.fn, getRootFunction(parser.parse("a ^ (0 - 5)")));
+        assertSame(Power.fn, getRootFunction(parser.parse("a ^ 17")));
+        assertSame(Power.fn, getRootFunction(parser.parse("a ^ 2.5")));
+    }
+
+    /**
+     * Each multiplication rounds, so the reduced powers may differ from pow by an ulp or so per multiplication.
+     */
+    @Test
+    public void testRelaxedIntegerPowersStayClose() {
+        ExpressionParser parser = createParser(PrecisionPolicy.RELAXED);
+        Random random = new Random(17);
+        double[] outputs = new double[1];
+
+        for(int exponent = -16; exponent <= 16; ++exponent) {
+            String equation = (exponent < 0 ? "a ^ (0 - " + -exponent + ")" : "a ^ " + exponent);
+            Expression expression = parser.parse(equation);
+            CompiledExpression compiled = compile(expression);
+
+            for(int trial = 0; trial < 100; ++trial) {
+                double a = (random.nextBoolean() ? 1 : -1) * (0.25 + random.nextDouble() * 4);
+                double expected = Math.pow(a, exponent);
+
+                compiled.evaluate(new double[] {a}, 0, outputs, 0);
+
+                assertClose(equation + " of " + a, expected, expression.evaluate(new double[] {a}), 1e-14);
+                assertClose(equation + " compiled of " + a, expected, outputs[0], 1e-14);
+            }
+        }
+    }
+
+    /**
+     * Repeating an impure base would evaluate it more than once.
+     */
+    @Test
+    public void testImpureBasesAreNotRepeated() {
+        Function impure = new OneArgFunction("impure") {
+            @Override
+            public OptimiseOptions getOptimiseOptions() {
+                return super.getOptimiseOptions().withIsPure(false);
+            }
+
+            @Override
+            public double evaluate(double arg) {
+                return arg;
+            }
+        };
+
+        for(PrecisionPolicy precisionPolicy : PrecisionPolicy.values()) {
+            ExpressionParser parser = createParser(precisionPolicy);
+            parser.addFunction(impure);
+
+            assertSame(precisionPolicy.name(), Power.fn, getRootFunction(parser.parse("impure(a) ^ 2")));
+            assertSame(precisionPolicy.name(), Power.fn, getRootFunction(parser.parse("impure(a) ^ 4")));
+        }
+    }
+}
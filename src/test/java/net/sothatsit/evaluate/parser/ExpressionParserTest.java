@@ -0,0 +1,80 @@
+package net.sothatsit.evaluate.parser;
+
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.tree.AbstractFunctionNode;
+import net.sothatsit.evaluate.tree.Expression;
+import net.sothatsit.evaluate.tree.IfNode;
+import net.sothatsit.evaluate.tree.Node;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ExpressionParserTest {
+
+    @Test
+    public void testEqualNodesAreShared() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+        parser.addIntermediateVariable("x", "sin(a) + 1");
+
+        Node[] product = ((AbstractFunctionNode) parser.parse("x * (sin(a) + 1)").root).getArguments();
+        assertSame(product[0], product[1]);
+
+        Node[] sum = ((AbstractFunctionNode) parser.parse("x + sin(a)").root).getArguments();
+        assertSame(((AbstractFunctionNode) sum[0]).getArguments()[0], sum[1]);
+    }
+
+    @Test
+    public void testLogicalOperatorsShareNodes() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        Node[] and = ((AbstractFunctionNode) parser.parse("(a && b) + 0").root).getArguments();
+        IfNode andNode = (IfNode) and[0];
+        assertSame(and[1], andNode.elseNode);
+        assertSame(and[1], ((IfNode) andNode.thenNode).elseNode);
+
+        Node[] or = ((AbstractFunctionNode) parser.parse("(a || b) * (a && b)").root).getArguments();
+        IfNode orNode = (IfNode) or[0];
+        assertSame(orNode.thenNode, ((IfNode) orNode.elseNode).thenNode);
+        assertSame(orNode.elseNode, ((IfNode) or[1]).thenNode);
+    }
+
+    @Test(timeout = 10000)
+    public void testParsedNodesAreNotRetained() throws InterruptedException {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+
+        WeakReference<Node> node = new WeakReference<>(parser.parse("sin(a * 2.5) + cos(a)").root);
+
+        parser.parse("a + 1");
+
+        while(node.get() != null) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertNull(node.get());
+    }
+
+    @Test
+    public void testParsesAfterError() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+
+        try {
+            parser.parse("a +");
+        } catch(ParseException e) {
+            // Expected
+        }
+
+        Expression expression = parser.parse("a * 2");
+
+        assertEquals(6.0, expression.evaluate(new double[] {3}), 0);
+    }
+}
@@ -0,0 +1,183 @@
+package net.sothatsit.evaluate.tree;
+
+import net.sothatsit.evaluate.RandomExpressions;
+import net.sothatsit.evaluate.compiler.CompiledExpression;
+import net.sothatsit.evaluate.compiler.CompiledLongExpression;
+import net.sothatsit.evaluate.compiler.ExpressionCompiler;
+import net.sothatsit.evaluate.compiler.NumberType;
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.function.operator.Add;
+import net.sothatsit.evaluate.tree.function.operator.Multiply;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static net.sothatsit.evaluate.TestSupport.compile;
+import static net.sothatsit.evaluate.TestSupport.runWithSmallStack;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BindTest {
+
+    private static final int[] BOUND = {0, 2};
+
+    private static double[] substitute(double[] inputs, double[] values) {
+        double[] substituted = inputs.clone();
+
+        for(int index = 0; index < BOUND.length; ++index) {
+            substituted[BOUND[index]] = values[index];
+        }
+
+        return substituted;
+    }
+
+    /**
+     * Without re-optimising, binding only substitutes constants, so the result must be identical.
+     */
+    @Test
+    public void testSubstitutionMatchesInterpreter() {
+        RandomExpressions random = new RandomExpressions(17, 4);
+        ExpressionParser parser = random.parser(CompositeOptimiser.none());
+
+        for(int trial = 0; trial < 300; ++trial) {
+            Expression expression = parser.parse(random.generate(5));
+            double[] values = {random.inputs()[0], random.inputs()[0]};
+            Expression bound = expression.bind(BOUND, values, CompositeOptimiser.none());
+
+            for(int row = 0; row < 5; ++row) {
+                double[] inputs = random.inputs();
+
+                assertIdentical(expression.toString(), expression.evaluate(substitute(inputs, values)),
+                                bound.evaluate(inputs));
+            }
+        }
+    }
+
+    /**
+     * Remainders of large values are too ill-conditioned to compare once the optimiser has reordered them.
+     */
+    @Test
+    public void testOptimisedBindingsStayClose() {
+        RandomExpressions random = new RandomExpressions(18, 4);
+        ExpressionParser parser = random.parser(CompositeOptimiser.none());
+        double[] outputs = new double[1];
+
+        for(int trial = 0; trial < 300; ++trial) {
+            Expression expression = parser.parse(random.generate(5).replace(" % ", " + "));
+            double[] values = {random.inputs()[0], random.inputs()[0]};
+            Expression bound = expression.bind(BOUND, values, CompositeOptimiser.all());
+            CompiledExpression compiled = compile(bound);
+
+            for(int row = 0; row < 5; ++row) {
+                double[] inputs = random.inputs();
+                double expected = expression.evaluate(substitute(inputs, values));
+
+                compiled.evaluate(inputs, 0, outputs, 0);
+
+                assertClose(expression.toString(), expected, bound.evaluate(inputs), 1e-9);
+                assertIdentical(bound + " compiled", bound.evaluate(inputs), outputs[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testConstantSubtreesAreFolded() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+        parser.addArgument("x");
+        parser.addArgument("k");
+
+        Expression expression = parser.parse("x * (sin(k) + k ^ 2) + cos(k)");
+        Expression bound = expression.bind("k", 0.5);
+
+        assertTrue(bound.toString(), bound.root.getHeight() < expression.root.getHeight());
+
+        for(double x = -2; x <= 2; x += 0.25) {
+            double expected = expression.evaluate(new double[] {x, 0.5});
+
+            assertClose("x = " + x, expected, bound.evaluate(new double[] {x, 7}), 1e-15);
+        }
+
+        assertTrue(expression.bind(new int[] {0, 1}, new double[] {1, 2}, CompositeOptimiser.all()).root
+                   instanceof ConstantNode);
+    }
+
+    @Test
+    public void testLongBindingsAreExact() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+        parser.setNumberType(NumberType.LONG);
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        Expression bound = parser.parse("a * b + b").bind("b", 3);
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.addOutput(bound);
+
+        CompiledLongExpression compiled = compiler.compileLong();
+        long[] outputs = new long[1];
+        long a = Long.MAX_VALUE / 3 - 5;
+
+        compiled.evaluate(new long[] {a, 0}, 0, outputs, 0);
+
+        assertEquals(a * 3 + 3, outputs[0]);
+        assertEquals(a * 3 + 3, bound.evaluateLong(new long[] {a, 0}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonIntegerLongBindingThrows() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.all());
+        parser.setNumberType(NumberType.LONG);
+        parser.addArgument("a");
+
+        parser.parse("a + 1").bind("a", 0.5);
+    }
+
+    @Test
+    public void testDeepChainsAreBound() throws Throwable {
+        runWithSmallStack(() -> {
+            NodeFactory factory = new NodeFactory();
+            Node a = factory.variable("a", 0);
+            Node b = factory.variable("b", 1);
+            Node chain = a;
+
+            for(int index = 0; index < 50000; ++index) {
+                chain = factory.function(Add.fn, chain, (index % 2 == 0 ? b : a));
+            }
+
+            Expression expression = new Expression(chain, Arrays.asList("a", "b"));
+            Expression bound = expression.bind(new int[] {1}, new double[] {2}, CompositeOptimiser.none());
+
+            assertTrue(bound.root.getHeight() >= 50000);
+
+            double[] outputs = new double[1];
+            compile(bound).evaluate(new double[] {0.5, 100}, 0, outputs, 0);
+
+            assertIdentical("bound", 0.5 + 25000 * 2 + 25000 * 0.5, outputs[0]);
+        });
+    }
+
+    /**
+     * Each x_i = x_(i-1) * x_(i-1) + b has an exponential number of paths, so each node must be bound once.
+     */
+    @Test(timeout = 10000)
+    public void testSharedNodesAreBoundOnce() {
+        NodeFactory factory = new NodeFactory();
+        Node b = factory.variable("b", 1);
+        Node node = factory.variable("a", 0);
+
+        for(int index = 0; index < 200; ++index) {
+            node = factory.function(Add.fn, factory.function(Multiply.fn, node, node), b);
+        }
+
+        Expression expression = new Expression(node, Arrays.asList("a", "b"));
+        Expression bound = expression.bind(new int[] {1}, new double[] {0}, CompositeOptimiser.none());
+
+        // The interpreter would also follow every path, so the bound tree is compiled instead
+        double[] outputs = new double[1];
+        compile(bound).evaluate(new double[] {1, 5}, 0, outputs, 0);
+
+        assertIdentical("bound", 1, outputs[0]);
+    }
+}
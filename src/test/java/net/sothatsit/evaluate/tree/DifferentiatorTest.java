@@ -0,0 +1,150 @@
+package net.sothatsit.evaluate.tree;
+
+import net.sothatsit.evaluate.optimiser.CompositeOptimiser;
+import net.sothatsit.evaluate.parser.ExpressionParser;
+import net.sothatsit.evaluate.tree.function.MathFunctions;
+import net.sothatsit.evaluate.tree.function.operator.Add;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static net.sothatsit.evaluate.RandomExpressions.assertClose;
+import static net.sothatsit.evaluate.RandomExpressions.assertIdentical;
+import static org.junit.Assert.assertTrue;
+
+public class DifferentiatorTest {
+
+    private static final String[] EQUATIONS = {
+            "sin(a * b) + a ^ 3",
+            "a / (1 + b * b)",
+            "ln(1 + a * a) - atan(b) * a",
+            "sqrt(a * a + b * b) * cos(b)",
+            "max(a, b) * cosh(a) + min(a * 2, b)",
+            "if(a > b, sin(a) * b, a / b)",
+            "(a + b) ^ 2 * tanh(a - b)"
+    };
+
+    @Test
+    public void testMatchesFiniteDifferences() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+        parser.addArgument("b");
+
+        double[][] points = {{0.3, 0.7}, {1.2, -0.4}, {-0.8, 0.6}, {2.5, 1.5}};
+
+        for(String equation : EQUATIONS) {
+            Expression expression = parser.parse(equation);
+            Expression[] gradient = expression.gradient();
+
+            for(double[] point : points) {
+                for(int input = 0; input < point.length; ++input) {
+                    double step = 1e-6;
+                    double[] above = point.clone();
+                    double[] below = point.clone();
+
+                    above[input] += step;
+                    below[input] -= step;
+
+                    double expected = (expression.evaluate(above) - expression.evaluate(below)) / (2 * step);
+
+                    assertClose(equation + " by input " + input, expected, gradient[input].evaluate(point), 1e-5);
+                }
+            }
+        }
+    }
+
+    /**
+     * The derivative of the branch that is not taken may not be defined, and so must not be evaluated.
+     */
+    @Test
+    public void testBranchNotTakenIsNotEvaluated() {
+        ExpressionParser parser = new ExpressionParser(CompositeOptimiser.none());
+        parser.addArgument("a");
+
+        Expression expression = parser.parse("if(a > 0, sqrt(a), 0) + if(a > 0, ln(a), a)");
+        Expression derivative = expression.gradient()[0];
+
+        assertIdentical(derivative.toString(), 1.0, derivative.evaluate(new double[] {-1}));
+        assertClose(derivative.toString(), 0.5 / 2 + 0.25, derivative.evaluate(new double[] {4}), 1e-12);
+    }
+
+    /**
+     * Each x_i = sin(x_(i-1)) + cos(x_(i-1)) uses x_(i-1) twice, and so visiting
+     * each path separately would visit the nodes an exponential number of times.
+     */
+    @Test(timeout = 10000)
+    public void testSharedNodesAreVisitedOnce() {
+        NodeFactory factory = new NodeFactory();
+        Node variable = factory.variable("x", 0);
+        Node node = variable;
+
+        int depth = 200;
+
+        for(int index = 0; index < depth; ++index) {
+            node = factory.function(
+                    Add.fn,
+                    factory.function(MathFunctions.sin, node),
+                    factory.function(MathFunctions.cos, node)
+            );
+        }
+
+        Node derivative = Differentiator.gradient(node, 1, factory)[0];
+
+        // The derivative shares the nodes of the expression, and only adds a few nodes per level
+        assertTrue(countNodes(derivative) + " nodes", countNodes(derivative) < 10 * depth);
+    }
+
+    @Test
+    public void testSharedNodesMatchChainRule() {
+        NodeFactory factory = new NodeFactory();
+        Node node = factory.variable("x", 0);
+
+        double x = 0.4;
+        double expected = 1;
+
+        for(int index = 0; index < 8; ++index) {
+            node = factory.function(
+                    Add.fn,
+                    factory.function(MathFunctions.sin, node),
+                    factory.function(MathFunctions.cos, node)
+            );
+
+            expected *= Math.cos(x) - Math.sin(x);
+            x = Math.sin(x) + Math.cos(x);
+        }
+
+        Node derivative = Differentiator.gradient(node, 1)[0];
+
+        assertClose(derivative.toString(), expected, derivative.evaluate(new double[] {0.4}), 1e-12);
+    }
+
+    private static int countNodes(Node root) {
+        Set<Node> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> toCount = new ArrayDeque<>();
+
+        toCount.push(root);
+
+        while(!toCount.isEmpty()) {
+            Node node = toCount.pop();
+
+            if(!counted.add(node))
+                continue;
+
+            if(node instanceof AbstractFunctionNode) {
+                Collections.addAll(toCount, ((AbstractFunctionNode) node).getArguments());
+            } else if(node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+
+                toCount.push(ifNode.condition);
+                toCount.push(ifNode.thenNode);
+                toCount.push(ifNode.elseNode);
+            }
+        }
+
+        return counted.size();
+    }
+}